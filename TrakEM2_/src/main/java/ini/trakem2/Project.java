@@ -36,6 +36,7 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Dissector;
 import ini.trakem2.display.Layer;
+import ini.trakem2.display.MipMapPrefetcher;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Pipe;
@@ -45,6 +46,7 @@ import ini.trakem2.display.Stack;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.persistence.ConcurrentCache;
 import ini.trakem2.persistence.DBLoader;
 import ini.trakem2.persistence.DBObject;
 import ini.trakem2.persistence.FSLoader;
@@ -299,7 +301,8 @@ public class Project extends DBObject {
 						Bureaucrat.createAndStart(new Worker.Task("auto-saving") {
 							@Override
 							public void exec() {
-								Project.this.save();
+								// Only the changes, when possible and desired
+								Project.this.save(getBooleanProperty("journal_autosaving"));
 							}
 						}, Project.this).join();
 					}
@@ -726,12 +729,20 @@ public class Project extends DBObject {
 
 	/** Save the project regardless of what getLoader().hasChanges() reports. */
 	public String save() {
+		return save(false);
+	}
+
+	/** Like {@link #save()}, but if @param journal is true, and the project was saved before, appends only
+	 *  the objects changed since then to the {@link ini.trakem2.persistence.ProjectJournal} of the XML file,
+	 *  when the changes allow it. */
+	public String save(final boolean journal) {
 		Thread.yield(); // let it repaint the log window
 		XMLOptions options = new XMLOptions();
 		options.overwriteXMLFile = true;
 		options.export_images = false;
 		options.patches_dir = null;
 		options.include_coordinate_transform = true;
+		options.journal = journal;
 		String path = loader.save(this, options);
 		if (null != path) restartAutosaving();
 		return path;
@@ -1506,8 +1517,20 @@ public class Project extends DBObject {
 		gd.addNumericField("Look_ahead_cache:", look_ahead_cache, 0, 6, "layers");
 		int autosaving_interval = getProperty("autosaving_interval", 10); // default: every 10 minutes
 		gd.addNumericField("Autosave every:", autosaving_interval, 0, 6, "minutes");
+		boolean journal_autosaving = "true".equals(ht_props.get("journal_autosaving"));
+		gd.addCheckbox("Autosave_only_changes (journal)", journal_autosaving);
+		boolean pack_transforms = "true".equals(ht_props.get("pack_transforms"));
+		gd.addCheckbox("Pack_coordinate_transforms into a single file", pack_transforms);
 		int n_mipmap_threads = getProperty("n_mipmap_threads", 1);
-		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
+		gd.addSlider("Number of threads for mipmaps", 1, Math.max(n_mipmap_threads, Runtime.getRuntime().availableProcessors()), n_mipmap_threads);
+		int n_prefetch_threads = Math.max(0, getProperty("n_prefetch_threads", 1));
+		gd.addSlider("Number of threads for prefetching mipmaps (0: none)", 0, Math.max(n_prefetch_threads, Runtime.getRuntime().availableProcessors()), n_prefetch_threads);
+		int cache_policy = Math.max(0, Math.min(ConcurrentCache.POLICIES.length - 1, getProperty("cache_policy", ConcurrentCache.LRU)));
+		gd.addChoice("Image_cache_policy:", ConcurrentCache.POLICIES, ConcurrentCache.POLICIES[cache_policy]);
+		int offheap_cache_mb = Math.max(0, getProperty("offheap_cache_mb", 0));
+		gd.addNumericField("Off-heap_image_cache:", offheap_cache_mb, 0, 6, "MB (0: none)");
+		String offheap_cache_dir = null == ht_props.get("offheap_cache_dir") ? "" : ht_props.get("offheap_cache_dir");
+		gd.addStringField("Off-heap_cache_folder (empty: temporary):", offheap_cache_dir, 30);
 		int meshResolution = getProperty("mesh_resolution", 32);
 		gd.addSlider("Default mesh resolution for images", 1, 512, meshResolution);
 		//
@@ -1529,11 +1552,13 @@ public class Project extends DBObject {
 		final int new_mipmap_format = gd.getNextChoiceIndex();
 		final int old_mipmap_format = loader.getMipMapFormat();
 		if (new_mipmap_format != old_mipmap_format) {
-			YesNoDialog yn = new YesNoDialog("MipMaps format", "Changing mipmaps format to '" + FSLoader.MIPMAP_FORMATS[new_mipmap_format] + "'requires regenerating all mipmaps. Proceed?");
+			final String msg = FSLoader.MIPMAP_PACKED == new_mipmap_format ?
+				"Changing mipmaps format to '" + FSLoader.MIPMAP_FORMATS[new_mipmap_format] + "' converts all existing mipmaps into packed files. Proceed?"
+				: "Changing mipmaps format to '" + FSLoader.MIPMAP_FORMATS[new_mipmap_format] + "' requires regenerating all mipmaps. Proceed?";
+			YesNoDialog yn = new YesNoDialog("MipMaps format", msg);
 			if (yn.yesPressed()) {
-				if (loader.setMipMapFormat(new_mipmap_format)) {
-					loader.updateMipMapsFormat(old_mipmap_format, new_mipmap_format);
-				}
+				// Sets the new format itself, once it is safe to
+				loader.updateMipMapsFormat(old_mipmap_format, new_mipmap_format);
 			}
 		}
 
@@ -1582,12 +1607,40 @@ public class Project extends DBObject {
 			setProperty("autosaving_interval", Integer.toString((int)autosaving_interval2));
 			restartAutosaving();
 		}
+		adjustProp("journal_autosaving", journal_autosaving, gd.getNextBoolean());
+		if (adjustProp("pack_transforms", pack_transforms, gd.getNextBoolean()) && !pack_transforms) {
+			YesNoDialog yn = new YesNoDialog("Coordinate transforms", "Pack also the existing coordinate transform files?");
+			if (yn.yesPressed()) loader.packCoordinateTransforms();
+		}
 		int n_mipmap_threads2 = (int)Math.max(1, gd.getNextNumber());
 		if (n_mipmap_threads != n_mipmap_threads2) {
 			setProperty("n_mipmap_threads", Integer.toString(n_mipmap_threads2));
 			// WARNING: this does it for a static service, affecting all projects!
 			FSLoader.restartMipMapThreads(n_mipmap_threads2);
 		}
+		int n_prefetch_threads2 = (int)Math.max(0, gd.getNextNumber());
+		if (n_prefetch_threads != n_prefetch_threads2) {
+			setProperty("n_prefetch_threads", Integer.toString(n_prefetch_threads2));
+			// WARNING: this does it for the canvases of all projects!
+			MipMapPrefetcher.setupThreads(n_prefetch_threads2);
+		}
+		int cache_policy2 = gd.getNextChoiceIndex();
+		if (cache_policy != cache_policy2) {
+			setProperty("cache_policy", Integer.toString(cache_policy2));
+			// WARNING: this does it for the caches of all open projects!
+			Loader.setCachePolicy(cache_policy2);
+		}
+		double d_offheap_cache_mb = gd.getNextNumber();
+		String offheap_cache_dir2 = gd.getNextString().trim();
+		if (Double.isNaN(d_offheap_cache_mb) || d_offheap_cache_mb < 0) {
+			Utils.log("IGNORING invalid off-heap cache size: " + d_offheap_cache_mb);
+		} else if (offheap_cache_mb != (int)d_offheap_cache_mb || !offheap_cache_dir.equals(offheap_cache_dir2)) {
+			final int offheap_cache_mb2 = (int)d_offheap_cache_mb;
+			setProperty("offheap_cache_mb", 0 == offheap_cache_mb2 ? null : Integer.toString(offheap_cache_mb2));
+			setProperty("offheap_cache_dir", 0 == offheap_cache_dir2.length() ? null : offheap_cache_dir2);
+			// WARNING: this does it for the caches of all open projects!
+			Loader.setOffHeapCache(offheap_cache_mb2 * 1024L * 1024L, 0 == offheap_cache_dir2.length() ? null : offheap_cache_dir2);
+		}
 		int meshResolution2 = (int)gd.getNextNumber();
 		if (meshResolution != meshResolution2) {
 			if (meshResolution2 > 0) {
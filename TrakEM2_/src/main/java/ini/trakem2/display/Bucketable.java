@@ -8,6 +8,7 @@ import java.util.HashSet;
 
 public interface Bucketable {
 	public ArrayList<? extends Displayable> getDisplayableList();
+	/** May return null: {@link Layer} and {@link LayerSet} index with a {@link SpatialIndex} instead. */
 	public HashMap<Displayable, HashSet<Bucket>> getBucketMap(Layer layer);
 	public void updateBucket(Displayable d, Layer layer);
 	public Project getProject();
@@ -4998,6 +4998,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 				}
 			});
 			gd.addCheckbox("Use original images", true);
+			gd.addCheckbox("Only changed tiles (resumes interrupted exports)", false);
 			gd.showDialog();
 			if (gd.wasCanceled()) return;
 			
@@ -5045,8 +5046,9 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			final Saver saver = new Saver(format);
 			final int tile_side = (int)gd.getNextNumber();
 			final boolean use_original_images = gd.getNextBoolean();
+			final boolean incremental = gd.getNextBoolean();
 			// in its own thread
-			if (save_for_web) project.getLoader().makePrescaledTiles(layer_array, Patch.class, srcRect, scale, c_alphas, the_type, null, use_original_images, saver, tile_side);
+			if (save_for_web) project.getLoader().makePrescaledTiles(layer_array, Patch.class, srcRect, scale, c_alphas, the_type, null, use_original_images, saver, tile_side, incremental);
 			else project.getLoader().makeFlatImage(layer_array, srcRect, scale, c_alphas, the_type, save_to_file, format, quality, background);
 
 		} else if (command.equals("Lock")) {
@@ -262,7 +262,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 			/* // debug: paint the ZDisplayable's bucket in this layer
 			if (null != active_layer.getParent().lbucks) {
-				active_layer.getParent().lbucks.get(active_layer).root.paint(g, srcRect, magnification, Color.red);
+				active_layer.getParent().lbucks.get(active_layer).paint(g, srcRect, magnification, Color.red);
 			}
 			*/
 
@@ -365,6 +365,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		this.paint(g);
 	}
 
+	/** Fetches in the background the mipmaps of the views likely to be painted next. */
+	private final MipMapPrefetcher prefetcher = new MipMapPrefetcher();
+
 	/** Handles repaint event requests and the generation of offscreen threads. */
 	private final AbstractRepaintThread RT = new AbstractRepaintThread(this, "T2-Canvas-Repainter", new OffscreenThread()) {
 		protected void handleUpdateGraphics(final Component target, final Rectangle clipRect) {
@@ -437,8 +440,8 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			g2d.setStroke(this.stroke);
 
 			// debug buckets
-			//if (null != display.getLayer().root) display.getLayer().root.paint(g2d, srcRect, magnification, Color.red);
-			//if (null != display.getLayer().getParent().lbucks.get(display.getLayer()).root) display.getLayer().getParent().lbucks.get(display.getLayer()).root.paint(g2d, srcRect, magnification, Color.blue);
+			//if (null != display.getLayer().index) display.getLayer().index.paint(g2d, srcRect, magnification, Color.red);
+			//if (null != display.getLayer().getParent().lbucks.get(display.getLayer())) display.getLayer().getParent().lbucks.get(display.getLayer()).paint(g2d, srcRect, magnification, Color.blue);
 			
 
 			// reset to identity
@@ -1715,6 +1718,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			to_flush.clear();
 		}
 		mouse_moved.quit();
+		prefetcher.cancel();
 		try {
 			synchronized (this) { if (null != animator) animator.shutdownNow(); }
 			cancelAnimations();
@@ -2471,6 +2475,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 			// Send repaint event, without offscreen graphics
 			RT.paint(clipRect, false);
+
+			// Only once the view is painted, guess the next
+			prefetcher.viewed(active_layer, srcRect, magnification);
 		}
 	}
 
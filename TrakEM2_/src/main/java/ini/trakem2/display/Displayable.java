@@ -164,6 +164,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			if (null == props) props = new HashMap<String,String>();
 			props.put(key, value);
 		}
+		project.getLoader().recordChange(this);
 		return true;
 	}
 
@@ -212,6 +213,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		} else {
 			linkedProps(target).put(key, value);
 		}
+		project.getLoader().recordChange(this);
 		return true;
 	}
 
@@ -2207,7 +2209,10 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		return a.getBounds().intersects(r);
 	}
 
-	public void setAnnotation(final String annotation) { this.annotation = annotation; }
+	public void setAnnotation(final String annotation) {
+		this.annotation = annotation;
+		project.getLoader().recordChange(this);
+	}
 
 	/** Returns null if none. */
 	public String getAnnotation() { return this.annotation; }
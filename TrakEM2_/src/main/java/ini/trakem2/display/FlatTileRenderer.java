@@ -0,0 +1,388 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2005-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+You may contact Albert Cardona at acardona at ini.phys.ethz.ch
+Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
+**/
+
+package ini.trakem2.display;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Renders flat images of a Layer as tiles of at most {@link #tile_size} pixels a side, each painted concurrently
+ *  with only the Displayable instances that the Layer's buckets find within it, and handed to a {@link TileConsumer}
+ *  as soon as it is done. A consumer that writes the tiles away renders layers of any size with as many tiles in
+ *  memory as there are threads; those that need a single image get it assembled from the tiles.
+ *
+ *  The tiles are exactly the pixels that a single image of the whole srcRect would have: each is painted with the
+ *  same transform, offset by the position of the tile.
+ */
+public final class FlatTileRenderer {
+
+	/** Side of the tiles, in pixels of the flat image. */
+	static public int tile_size = 1024;
+
+	/** Receives the tiles of a flat image, from the rendering threads, possibly several at once. */
+	public interface TileConsumer<T> {
+		/** @param x The position of the tile in the flat image.
+		 *  @param y The position of the tile in the flat image. */
+		public void accept(int x, int y, T tile) throws Exception;
+	}
+
+	private interface TilePainter<T> {
+		public T paint(Rectangle tile) throws Exception;
+	}
+
+	private FlatTileRenderer() {}
+
+	/** The tiles of a w by h image, in rows from the top left. */
+	static public List<Rectangle> tiles(final int w, final int h) {
+		final int side = Math.max(1, tile_size);
+		final ArrayList<Rectangle> tiles = new ArrayList<Rectangle>();
+		for (int y=0; y<h; y+=side) {
+			for (int x=0; x<w; x+=side) {
+				tiles.add(new Rectangle(x, y, Math.min(side, w - x), Math.min(side, h - y)));
+			}
+		}
+		return tiles;
+	}
+
+	/** The box in world coordinates that a tile of the flat image of srcRect at scale covers, plus a pixel around for interpolation. */
+	static private Rectangle worldBounds(final Rectangle srcRect, final double scale, final Rectangle tile) {
+		final int x0 = (int)Math.floor(srcRect.x + tile.x / scale) - 1,
+		          y0 = (int)Math.floor(srcRect.y + tile.y / scale) - 1,
+		          x1 = (int)Math.ceil(srcRect.x + (tile.x + tile.width) / scale) + 1,
+		          y1 = (int)Math.ceil(srcRect.y + (tile.y + tile.height) / scale) + 1;
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/** Paint all tiles with numThreads threads and give them to the consumer; on failure, stops and throws the first error. */
+	static private <T> void run(final List<Rectangle> tiles, final int numThreads, final TilePainter<T> painter, final TileConsumer<T> consumer) throws Exception {
+		if (numThreads < 2 || tiles.size() < 2) {
+			for (final Rectangle tile : tiles) {
+				if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+				consumer.accept(tile.x, tile.y, painter.paint(tile));
+			}
+			return;
+		}
+		final ExecutorService exec = Utils.newFixedThreadPool(Math.min(numThreads, tiles.size()), "FlatTileRenderer");
+		try {
+			final ArrayList<Future<Object>> fus = new ArrayList<Future<Object>>(tiles.size());
+			for (final Rectangle tile : tiles) {
+				fus.add(exec.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						if (Thread.currentThread().isInterrupted()) return null;
+						consumer.accept(tile.x, tile.y, painter.paint(tile));
+						return null;
+					}
+				}));
+			}
+			for (final Future<Object> fu : fus) {
+				try {
+					fu.get();
+				} catch (final ExecutionException ee) {
+					final Throwable t = ee.getCause();
+					if (t instanceof Exception) throw (Exception)t;
+					if (t instanceof Error) throw (Error)t;
+					throw ee;
+				}
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** A BufferedImage for painting flat images of type ImagePlus.GRAY8 or ImagePlus.COLOR_RGB. */
+	static public BufferedImage createImage(final int type, final int w, final int h) {
+		switch (type) {
+			case ImagePlus.GRAY8:
+				return new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, Loader.GRAY_LUT);
+			case ImagePlus.COLOR_RGB:
+				return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+			default:
+				throw new IllegalArgumentException("Can't paint flat images of type " + type + ": only 8-bit and RGB.");
+		}
+	}
+
+	/** Returns the flat image of srcRect at scale, as {@link Loader#getFlatAWTImage(Layer, Rectangle, double, int, int, Class, List, boolean, Color, Displayable)}
+	 *  does without 'quality' and with it when the images have mipmaps, but painting its tiles with numThreads threads. */
+	static public BufferedImage paint(final Layer layer, final Rectangle srcRect, final double scale, final int c_alphas, final int type, final Class<?> clazz, final List<? extends Displayable> al_displ, final boolean supersample, final Color background, final Displayable active, final int numThreads) throws Exception {
+		final BufferedImage bi = createImage(type, (int)Math.ceil(srcRect.width * scale), (int)Math.ceil(srcRect.height * scale));
+		paint(layer, srcRect, scale, c_alphas, type, clazz, al_displ, supersample, background, active, numThreads,
+				new TileConsumer<BufferedImage>() {
+					@Override
+					public void accept(final int x, final int y, final BufferedImage tile) {
+						synchronized (bi) {
+							bi.getRaster().setRect(x, y, tile.getRaster());
+						}
+						tile.flush();
+					}
+				});
+		return bi;
+	}
+
+	/** Paint the flat image of srcRect at scale, of ceil(srcRect.width * scale) by ceil(srcRect.height * scale) pixels, as tiles
+	 *  of {@link BufferedImage} of type ImagePlus.GRAY8 or ImagePlus.COLOR_RGB for the consumer.
+	 *  @param al_displ The Displayable objects to paint. If null, those of class clazz that the buckets find in each tile.
+	 *  @param supersample Whether to paint each tile at twice the scale and then scale it down, for 'quality' with mipmaps. */
+	static public void paint(final Layer layer, final Rectangle srcRect, final double scale, final int c_alphas, final int type, final Class<?> clazz, final List<? extends Displayable> al_displ, final boolean supersample, final Color background, final Displayable active, final int numThreads, final TileConsumer<BufferedImage> consumer) throws Exception {
+		final int f = supersample ? 2 : 1;
+		final double scaleP = f * scale;
+		final List<Layer> layers = layer.getParent().getColorCueLayerRange(layer);
+
+		// Given Displayable objects: separate the ZDisplayables, in their stack order
+		final ArrayList<Displayable> given = null == al_displ ? null : new ArrayList<Displayable>();
+		final ArrayList<ZDisplayable> given_z = null == al_displ ? null : new ArrayList<ZDisplayable>();
+		if (null != al_displ) {
+			final HashSet<ZDisplayable> az = new HashSet<ZDisplayable>();
+			for (final Displayable d : al_displ) {
+				if (d instanceof ZDisplayable) az.add((ZDisplayable)d);
+				else given.add(d);
+			}
+			for (final ZDisplayable zd : layer.getParent().getZDisplayables()) {
+				if (az.contains(zd)) given_z.add(zd);
+			}
+		}
+
+		final int ww = (int)Math.ceil(srcRect.width * scale),
+		          hh = (int)Math.ceil(srcRect.height * scale);
+
+		run(tiles(ww, hh), numThreads, new TilePainter<BufferedImage>() {
+			@Override
+			public BufferedImage paint(final Rectangle tile) {
+				final Rectangle r = worldBounds(srcRect, scale, tile);
+				final Collection<Displayable> ds;
+				final Collection<? extends Displayable> zds;
+				if (null == al_displ) {
+					ds = layer.find(clazz, r, true, true);
+					zds = layer.getParent().findZDisplayables(clazz, layer, r, true, true);
+				} else {
+					ds = given;
+					zds = given_z;
+				}
+
+				final BufferedImage bi = createImage(type, tile.width * f, tile.height * f);
+				final Graphics2D g2d = bi.createGraphics();
+
+				g2d.setColor(background);
+				g2d.fillRect(0, 0, bi.getWidth(), bi.getHeight());
+
+				g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+				g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,  RenderingHints.VALUE_ANTIALIAS_ON);
+				g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+				g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+				// the transform of the whole flat image, offset to the tile
+				final AffineTransform atc = new AffineTransform();
+				atc.translate(-tile.x * f, -tile.y * f);
+				atc.scale(scaleP, scaleP);
+				atc.translate(-srcRect.x, -srcRect.y);
+				final AffineTransform at = g2d.getTransform();
+				at.concatenate(atc);
+				g2d.setTransform(at);
+
+				// paint the ZDisplayables before the first label, if any
+				boolean zd_done = false;
+				for (final Displayable d : ds) {
+					if (!zd_done && d instanceof DLabel) {
+						zd_done = true;
+						paintAll(g2d, zds, r, scaleP, active, c_alphas, layer, layers);
+					}
+					if (!d.isOutOfRepaintingClip(scaleP, r, null)) {
+						d.paintOffscreen(g2d, r, scaleP, active == d, c_alphas, layer, layers);
+					}
+				}
+				if (!zd_done) paintAll(g2d, zds, r, scaleP, active, c_alphas, layer, layers);
+				g2d.dispose();
+
+				if (1 == f) return bi;
+
+				// scale down: faster than area averaging, but requires gaussian blurred images (such as the mipmaps)
+				final BufferedImage scaled = createImage(type, tile.width, tile.height);
+				final Graphics2D gs = scaled.createGraphics();
+				gs.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				gs.drawImage(bi, 0, 0, tile.width, tile.height, null);
+				gs.dispose();
+				bi.flush();
+				return scaled;
+			}
+		}, consumer);
+	}
+
+	static private void paintAll(final Graphics2D g2d, final Collection<? extends Displayable> zds, final Rectangle r, final double scaleP, final Displayable active, final int c_alphas, final Layer layer, final List<Layer> layers) {
+		for (final Displayable zd : zds) {
+			if (!zd.isOutOfRepaintingClip(scaleP, r, null)) {
+				zd.paint(g2d, r, scaleP, active == zd, c_alphas, layer, layers);
+			}
+		}
+	}
+
+	/** The size of the flat image of srcRect at scale that {@link #map(int, Rectangle, double, Collection, Color, boolean, int, TileConsumer)} makes; scale is at most 1. */
+	static public Dimension flatImageSize(final Rectangle srcRect, final double scale) {
+		if (scale < 1) return new Dimension((int)(srcRect.width * scale), (int)(srcRect.height * scale));
+		return new Dimension(srcRect.width, srcRect.height);
+	}
+
+	/** An ImageProcessor of type ImagePlus.GRAY8, GRAY16, GRAY32 or COLOR_RGB, filled with the background unless null or black; null for other types. */
+	static public ImageProcessor createProcessor(final int type, final int w, final int h, final Color background) {
+		final ImageProcessor ip;
+		switch (type) {
+			case ImagePlus.GRAY8:
+				ip = new ByteProcessor(w, h);
+				break;
+			case ImagePlus.GRAY16:
+				ip = new ShortProcessor(w, h);
+				break;
+			case ImagePlus.GRAY32:
+				ip = new FloatProcessor(w, h);
+				break;
+			case ImagePlus.COLOR_RGB:
+				ip = new ColorProcessor(w, h);
+				break;
+			default:
+				Utils.logAll("Cannot create an image of type " + type + ".\nSupported types: 8-bit, 16-bit, 32-bit and RGB.");
+				return null;
+		}
+		if (null != background && Color.black != background) {
+			ip.setColor(background);
+			ip.fill();
+		}
+		return ip;
+	}
+
+	/** Map the images of the patches into the flat image of srcRect at scale, as {@link Patch#makeFlatImage(int, Layer, Rectangle, double, Collection, Color, boolean)}
+	 *  does, and give it to the consumer as tiles of ImageProcessor of the given type, mapped with numThreads threads.
+	 *  The image of each patch is read and converted once, and kept only until all the tiles that it overlaps are done.
+	 *  @param patches The list of patches to paint. The first gets painted first (at the bottom). */
+	static public void map(final int type, final Rectangle srcRect, final double scale, final Collection<Patch> patches, final Color background, final boolean setMinAndMax, final int numThreads, final TileConsumer<ImageProcessor> consumer) throws Exception {
+		final double s = Math.min(1.0, scale);
+		final Dimension dim = flatImageSize(srcRect, scale);
+		final List<Rectangle> tiles = tiles(dim.width, dim.height);
+
+		// The patches of each tile, in order, and how many tiles each patch is in
+		final HashMap<Patch,Rectangle> boxes = new HashMap<Patch,Rectangle>();
+		for (final Patch p : patches) boxes.put(p, p.getBoundingBox());
+		final HashMap<Rectangle,List<Patch>> in_tile = new HashMap<Rectangle,List<Patch>>();
+		final SourceCache sources = new SourceCache(type, setMinAndMax);
+		for (final Rectangle tile : tiles) {
+			final Rectangle r = worldBounds(srcRect, s, tile);
+			final ArrayList<Patch> ps = new ArrayList<Patch>();
+			for (final Patch p : patches) {
+				if (boxes.get(p).intersects(r)) {
+					ps.add(p);
+					sources.expect(p);
+				}
+			}
+			in_tile.put(tile, ps);
+		}
+
+		run(tiles, numThreads, new TilePainter<ImageProcessor>() {
+			@Override
+			public ImageProcessor paint(final Rectangle tile) throws Exception {
+				final ImageProcessor ip = createProcessor(type, tile.width, tile.height, background);
+				for (final Patch p : in_tile.get(tile)) {
+					// TODO patches seem to come in in inverse order---find out why
+					try {
+						Patch.mapFlat(p, sources.get(p), ip, srcRect, s, tile.x, tile.y);
+					} finally {
+						sources.release(p);
+					}
+				}
+				return ip;
+			}
+		}, consumer);
+	}
+
+	/** The images of the patches converted for mapping, shared by the tiles that overlap each patch and released after the last one. */
+	static private final class SourceCache {
+		private final int type;
+		private final boolean setMinAndMax;
+		private final HashMap<Patch,AtomicInteger> counts = new HashMap<Patch,AtomicInteger>();
+		private final ConcurrentHashMap<Patch,FutureTask<ImageProcessor>> sources = new ConcurrentHashMap<Patch,FutureTask<ImageProcessor>>();
+
+		SourceCache(final int type, final boolean setMinAndMax) {
+			this.type = type;
+			this.setMinAndMax = setMinAndMax;
+		}
+
+		/** Before rendering: count one more tile for p. */
+		void expect(final Patch p) {
+			final AtomicInteger n = counts.get(p);
+			if (null == n) counts.put(p, new AtomicInteger(1));
+			else n.incrementAndGet();
+		}
+
+		ImageProcessor get(final Patch p) throws Exception {
+			FutureTask<ImageProcessor> fu = sources.get(p);
+			if (null == fu) {
+				final FutureTask<ImageProcessor> task = new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+					@Override
+					public ImageProcessor call() {
+						return Patch.flatSource(p, type, setMinAndMax);
+					}
+				});
+				fu = sources.putIfAbsent(p, task);
+				if (null == fu) {
+					fu = task;
+					task.run();
+				}
+			}
+			try {
+				return fu.get();
+			} catch (final ExecutionException ee) {
+				final Throwable t = ee.getCause();
+				if (t instanceof Exception) throw (Exception)t;
+				throw ee;
+			}
+		}
+
+		/** A tile is done with p. */
+		void release(final Patch p) {
+			if (0 == counts.get(p).decrementAndGet()) sources.remove(p);
+		}
+	}
+}
@@ -41,6 +41,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -54,9 +55,8 @@ import mpicbg.models.NoninvertibleModelException;
 public final class Layer extends DBObject implements Bucketable, Comparable<Layer> {
 
 	private final ArrayList<Displayable> al_displayables = new ArrayList<Displayable>();
-	/** For fast search. */
-	Bucket root = null;
-	private HashMap<Displayable,HashSet<Bucket>> db_map = null;
+	/** For fast search; read without locking. */
+	volatile SpatialIndex index = null;
 
 	private double z = 0;
 	private double thickness = 0;
@@ -208,7 +208,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		add(displ, update_displays, true);
 	}
 
-	public void add(final Displayable displ, final boolean update_displays, final boolean update_db) {
+	public synchronized void add(final Displayable displ, final boolean update_displays, final boolean update_db) {
 		if (null == displ || -1 != al_displayables.indexOf(displ)) return;
 		if (displ.getProject() != this.project)
 			throw new IllegalArgumentException("Layer rejected a Displayable: belongs to a different project.");
@@ -280,15 +280,16 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		}
 
 		// insert into bucket
-		if (null != root) {
+		final SpatialIndex index = this.index;
+		if (null != index) {
 			if (d.length == stack_index) {
 				// append at the end
-				root.put(stack_index, displ, this, db_map);
+				index.put(stack_index, displ);
 			} else {
 				// add as last first, then update
-				root.put(d.length, displ, this, db_map);
+				index.put(d.length, displ);
 				// find and update the range of affected Displayable objects
-				root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
+				index.updateRange(stack_index, d.length); // first to last indices affected
 			}
 		}
 
@@ -297,9 +298,10 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		}
 	}
 
+	/** Returns null: the Displayable objects of a Layer are indexed by a {@link SpatialIndex}, not by {@link Bucket}s. */
 	@Override
 	public HashMap<Displayable, HashSet<Bucket>> getBucketMap(final Layer layer) { // ignore layer
-		return db_map;
+		return null;
 	}
 
 	/** Used for reconstruction purposes. Assumes the displ are given in the proper order! */
@@ -314,8 +316,8 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		}
 	}
 
-	/** Will recreate the buckets; if you intend to remove many, use "removeAll" instead,
-	 *  so that the expensive operation of recreating the buckets is done only once. */
+	/** Will reindex the buckets; if you intend to remove many, use "removeAll" instead,
+	 *  so that the stack indices are read again only once. */
 	public synchronized boolean remove(final Displayable displ) {
 		if (null == displ || null == al_displayables) {
 			Utils.log2("Layer can't remove Displayable " + displ.getId());
@@ -327,7 +329,8 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 			return false;
 		}
 		al_displayables.remove(old_stack_index);
-		if (null != root) recreateBuckets();
+		final SpatialIndex index = this.index;
+		if (null != index) index.remove(displ, old_stack_index);
 		parent.removeFromOffscreens(this);
 		Display.remove(this, displ);
 		return true;
@@ -337,15 +340,20 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	public synchronized boolean removeAll(final Set<Displayable> ds) {
 		if (null == ds || null == al_displayables) return false;
 		// Ensure list is iterated only once: don't ask for index every time!
-		for (final Iterator<Displayable> it = al_displayables.iterator(); it.hasNext(); ) {
+		final int[] old_stack_indices = new int[ds.size()];
+		int n = 0;
+		int i = 0;
+		for (final Iterator<Displayable> it = al_displayables.iterator(); it.hasNext(); i++) {
 			final Displayable d = it.next();
 			if (ds.contains(d)) {
 				it.remove();
+				if (n < old_stack_indices.length) old_stack_indices[n++] = i;
 				parent.removeFromOffscreens(this);
 				Display.remove(this, d);
 			}
 		}
-		if (null != root) recreateBuckets();
+		final SpatialIndex index = this.index;
+		if (null != index) index.removeAll(ds, Arrays.copyOf(old_stack_indices, n));
 		Display.updateVisibleTabs(this.project);
 		return true;
 	}
@@ -541,42 +549,45 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Check class identity by instanceof instead of equality. */
-	synchronized public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only, final boolean instance_of) {
-		if (null != root) return root.find(c, aroi, this, visible_only, instance_of);
-		// Else, the slow way
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		if (Displayable.class == c) {
-			for (final Displayable d : al_displayables) {
-				if (visible_only && !d.isVisible()) continue;
-				final Area area = d.getArea();
-				area.intersect(aroi);
-				final Rectangle b = area.getBounds();
-				if (!(0 == b.width || 0 == b.height)) al.add(d);
-			}
-			return al;
-		}
-		if (instance_of) {
-			for (final Displayable d : al_displayables) {
-				if (visible_only && !d.isVisible()) continue;
-				if (c.isAssignableFrom(d.getClass())) {
+	public Collection<Displayable> getDisplayables(final Class<?> c, final Area aroi, final boolean visible_only, final boolean instance_of) {
+		final SpatialIndex index = this.index;
+		if (null != index) return index.find(c, aroi, visible_only, instance_of);
+		synchronized (this) {
+			// Else, the slow way
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			if (Displayable.class == c) {
+				for (final Displayable d : al_displayables) {
+					if (visible_only && !d.isVisible()) continue;
 					final Area area = d.getArea();
 					area.intersect(aroi);
 					final Rectangle b = area.getBounds();
 					if (!(0 == b.width || 0 == b.height)) al.add(d);
 				}
+				return al;
 			}
-		} else {
-			for (final Displayable d : al_displayables) {
-				if (visible_only && !d.isVisible()) continue;
-				if (d.getClass() == c) {
-					final Area area = d.getArea();
-					area.intersect(aroi);
-					final Rectangle b = area.getBounds();
-					if (!(0 == b.width || 0 == b.height)) al.add(d);
+			if (instance_of) {
+				for (final Displayable d : al_displayables) {
+					if (visible_only && !d.isVisible()) continue;
+					if (c.isAssignableFrom(d.getClass())) {
+						final Area area = d.getArea();
+						area.intersect(aroi);
+						final Rectangle b = area.getBounds();
+						if (!(0 == b.width || 0 == b.height)) al.add(d);
+					}
+				}
+			} else {
+				for (final Displayable d : al_displayables) {
+					if (visible_only && !d.isVisible()) continue;
+					if (d.getClass() == c) {
+						final Area area = d.getArea();
+						area.intersect(aroi);
+						final Rectangle b = area.getBounds();
+						if (!(0 == b.width || 0 == b.height)) al.add(d);
+					}
 				}
 			}
+			return al;
 		}
-		return al;
 	}
 
 	/** Check class identity with equality, so no superclasses or interfaces are possible. */
@@ -612,17 +623,20 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Find the Displayable objects that contain the point. */
-	synchronized public Collection<Displayable> find(final double x, final double y, final boolean visible_only) {
-		if (null != root) return root.find(x, y, this, visible_only);
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (int i = al_displayables.size() -1; i>-1; i--) {
-			final Displayable d = (Displayable)al_displayables.get(i);
-			if (visible_only && !d.isVisible()) continue;
-			if (d.contains(x, y)) {
-				al.add(d);
+	public Collection<Displayable> find(final double x, final double y, final boolean visible_only) {
+		final SpatialIndex index = this.index;
+		if (null != index) return index.find(x, y, visible_only);
+		synchronized (this) {
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			for (int i = al_displayables.size() -1; i>-1; i--) {
+				final Displayable d = (Displayable)al_displayables.get(i);
+				if (visible_only && !d.isVisible()) continue;
+				if (d.contains(x, y)) {
+					al.add(d);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 
 	public Collection<Displayable> find(final Class<?> c, final double x, final double y) {
@@ -630,22 +644,25 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Find the Displayable objects of Class c that contain the point, with class equality. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only) {
+	public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only) {
 		return find(c, x, y, visible_only, false);
 	}
 	/** Find the Displayable objects of Class c that contain the point, with instanceof if instance_of is true. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only, final boolean instance_of) {		
-		if (null != root) return root.find(c, x, y, this, visible_only, instance_of);
+	public Collection<Displayable> find(final Class<?> c, final double x, final double y, final boolean visible_only, final boolean instance_of) {
+		final SpatialIndex index = this.index;
+		if (null != index) return index.find(c, x, y, visible_only, instance_of);
 		if (Displayable.class == c) return find(x, y, visible_only); // search among all
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (int i = al_displayables.size() -1; i>-1; i--) {
-			final Displayable d = al_displayables.get(i);
-			if (visible_only && !d.isVisible()) continue;
-			if (d.getClass() == c && d.contains(x, y)) {
-				al.add(d);
+		synchronized (this) {
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			for (int i = al_displayables.size() -1; i>-1; i--) {
+				final Displayable d = al_displayables.get(i);
+				if (visible_only && !d.isVisible()) continue;
+				if (d.getClass() == c && d.contains(x, y)) {
+					al.add(d);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 
 	public Collection<Displayable> find(final Rectangle r) {
@@ -653,56 +670,65 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	/** Find the Displayable objects whose bounding box intersects with the given rectangle. */
-	synchronized public Collection<Displayable> find(final Rectangle r, final boolean visible_only) {
-		if (null != root && root.isBetter(r, this)) return root.find(r, this, visible_only);
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
-			if (visible_only && !d.isVisible()) continue;
-			if (d.getBoundingBox().intersects(r)) {
-				al.add(d);
+	public Collection<Displayable> find(final Rectangle r, final boolean visible_only) {
+		final SpatialIndex index = this.index;
+		if (null != index && index.isBetter(r)) return index.find(r, visible_only);
+		synchronized (this) {
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			for (final Displayable d : al_displayables) {
+				if (visible_only && !d.isVisible()) continue;
+				if (d.getBoundingBox().intersects(r)) {
+					al.add(d);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 	
-	synchronized public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only) {
+	public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only) {
 		return find(c, r, visible_only, false);
 	}
 
 	/** Find the Displayable objects whose bounding box intersects with the given rectangle. */
-	synchronized public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only, final boolean instance_of) {
+	public Collection<Displayable> find(final Class<?> c, final Rectangle r, final boolean visible_only, final boolean instance_of) {
 		if (Displayable.class == c) return find(r, visible_only);
-		if (null != root && root.isBetter(r, this)) return root.find(c, r, this, visible_only, instance_of);
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final Displayable d : al_displayables) {
-			if (visible_only && !d.isVisible()) continue;
-			if (d.getClass() != c) continue;
-			if (d.getBoundingBox().intersects(r)) {
-				al.add(d);
+		final SpatialIndex index = this.index;
+		if (null != index && index.isBetter(r)) return index.find(c, r, visible_only, instance_of);
+		synchronized (this) {
+			final ArrayList<Displayable> al = new ArrayList<Displayable>();
+			for (final Displayable d : al_displayables) {
+				if (visible_only && !d.isVisible()) continue;
+				if (d.getClass() != c) continue;
+				if (d.getBoundingBox().intersects(r)) {
+					al.add(d);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 
 	/** Find the Displayable objects of class 'target' whose perimeter (not just the bounding box)
 	 * intersect the given Displayable (which is itself included if present in this very Layer). */
-	synchronized public <T extends Displayable> Collection<T> getIntersecting(final Displayable d, final Class<T> target) {
-		if (null != root) {
+	public <T extends Displayable> Collection<T> getIntersecting(final Displayable d, final Class<T> target) {
+		final SpatialIndex index = this.index;
+		if (null != index) {
 			final Area area = new Area(d.getPerimeter());
-			if (root.isBetter(area.getBounds(), this)) {
-				return (Collection<T>) root.find(target, area, this, false, true);
+			if (index.isBetter(area.getBounds())) {
+				return (Collection<T>) index.find(target, area, false, true);
 			}
 		}
-		final ArrayList<T> al = new ArrayList<T>();
-		for (int i = al_displayables.size() -1; i>-1; i--) {
-			final Object ob = al_displayables.get(i);
-			if (target.isAssignableFrom(ob.getClass())) continue;
-			final Displayable da = (Displayable)ob;
-			if (d.intersects(da)) {
-				al.add((T)da);
+		synchronized (this) {
+			final ArrayList<T> al = new ArrayList<T>();
+			for (int i = al_displayables.size() -1; i>-1; i--) {
+				final Object ob = al_displayables.get(i);
+				if (target.isAssignableFrom(ob.getClass())) continue;
+				final Displayable da = (Displayable)ob;
+				if (d.intersects(da)) {
+					al.add((T)da);
+				}
 			}
+			return al;
 		}
-		return al;
 	}
 
 	/** Returns -1 if not found. */
@@ -722,7 +748,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		} else return;
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, i, i+1);
+		updateRange(i, i+1);
 	}
 
 	/** Within its own class only. */
@@ -736,7 +762,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		} else return;
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, i-1, i);
+		updateRange(i-1, i);
 	}
 
 	/** Within its own class only. */
@@ -765,7 +791,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		}
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, i, j);
+		updateRange(i, j);
 	}
 
 	/** Within its own class only. */
@@ -792,7 +818,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		}
 		updateInDatabase("stack_index");
 		Display.updatePanelIndex(d.getLayer(), d);
-		if (null != root) root.updateRange(this, d, j, i);
+		updateRange(j, i);
 	}
 
 	/** Within its own class only. */
@@ -1048,28 +1074,67 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		return pa.getPixel(x, y, mag);
 	}
 
+	/** Index again all Displayable objects; queries keep using the old index until the new one is complete. */
 	synchronized public void recreateBuckets() {
-		this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
-		this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
-		this.root.populate(this, this, db_map);
-		//root.debug();
+		this.index = new SpatialIndex(this, this);
+	}
+
+	/** Update in the buckets the stack indices of the Displayable objects from first to last, inclusive. */
+	private void updateRange(final int first, final int last) {
+		final SpatialIndex index = this.index;
+		if (null != index) index.updateRange(first, last);
 	}
 
 	/** Update buckets of a position change for the given Displayable. */
 	@Override
 	public void updateBucket(final Displayable d, final Layer layer) { // ignore layer
-		if (null != root) root.updatePosition(d, this, db_map);
+		synchronized (deferred_lock) {
+			if (null != deferred) {
+				deferred.add(d);
+				return;
+			}
+		}
+		final SpatialIndex index = this.index;
+		if (null != index) index.updatePosition(d);
+	}
+
+	/** The Displayable instances whose bucket updates wait for {@link #resumeBucketUpdates()}; null when not deferring. */
+	private HashSet<Displayable> deferred = null;
+	private int n_deferring = 0;
+	private final Object deferred_lock = new Object();
+
+	/** Record, rather than apply, the bucket updates of this layer's Displayable instances
+	 *  until a matching call to {@link #resumeBucketUpdates()}; for changing many of them at once,
+	 *  possibly from many threads. Calls may be nested. */
+	public void deferBucketUpdates() {
+		synchronized (deferred_lock) {
+			if (0 == n_deferring++) deferred = new HashSet<Displayable>();
+		}
+	}
+
+	/** Apply the bucket updates recorded since {@link #deferBucketUpdates()}, once the last deferring caller is done,
+	 *  all at once: see {@link SpatialIndex#updateAll(Collection)}. */
+	public void resumeBucketUpdates() {
+		final HashSet<Displayable> ds;
+		synchronized (deferred_lock) {
+			if (0 == n_deferring || 0 != --n_deferring) return;
+			ds = deferred;
+			deferred = null;
+		}
+		final SpatialIndex index = this.index;
+		if (null == index || ds.isEmpty()) return;
+		index.updateAll(ds);
 	}
 
 	public void checkBuckets() {
-		if (use_buckets && (null == root || null == db_map)) recreateBuckets();
+		if (use_buckets && null == index) recreateBuckets();
 	}
 
 	private boolean use_buckets = true;
 
 	public void setBucketsEnabled(final boolean b) {
 		this.use_buckets = b;
-		if (!use_buckets) this.root = null;
+		if (!use_buckets) this.index = null;
 	}
 
 	static class DoEditLayer implements DoStep {
@@ -1195,9 +1260,11 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				}
 			}
 
-			la.al_displayables.clear();
-			la.al_displayables.addAll(this.al);
-			la.recreateBuckets();
+			synchronized (la) {
+				la.al_displayables.clear();
+				la.al_displayables.addAll(this.al);
+				la.recreateBuckets();
+			}
 			Display.updateVisibleTabs();
 			Display.clearSelection();
 			Display.update(la);
@@ -1216,8 +1283,11 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		@Override
 		public boolean apply(final int action) {
 			// Replace all ZDisplayable
-			layer.al_displayables.clear();
-			layer.al_displayables.addAll(this.al_displayables);
+			synchronized (layer) {
+				layer.al_displayables.clear();
+				layer.al_displayables.addAll(this.al_displayables);
+				layer.updateRange(0, this.al_displayables.size() -1);
+			}
 			Display.update(layer);
 			return true;
 		}
@@ -54,6 +54,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -64,6 +65,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -836,7 +838,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	/** Add a Displayable to be painted in all Layers, such as a Pipe. Also updates open displays of the fact. */
-	public void add(final ZDisplayable zdispl) {
+	synchronized public void add(final ZDisplayable zdispl) {
 		if (null == zdispl || -1 != al_zdispl.indexOf(zdispl)) {
 			Utils.log2("LayerSet: not adding zdispl");
 			return;
@@ -865,7 +867,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		Display.add(this, zdispl);
 	}
 
-	public void addAll(final Collection<? extends ZDisplayable> coll) {
+	synchronized public void addAll(final Collection<? extends ZDisplayable> coll) {
 		if (null == coll || 0 == coll.size()) return;
 		for (final ZDisplayable zd : coll) {
 			al_zdispl.add(zd);
@@ -873,18 +875,21 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			zd.setLayer(al_layers.get(0));
 			zd.updateInDatabase("layer_set_id");
 		}
-		recreateBuckets(false); // only ZDisplayable
+		addAllToBuckets(coll);
 		Display.addAll(this, coll);
 	}
 
 	/** Used for reconstruction purposes, avoids repainting or updating. */
-	public void addSilently(final ZDisplayable zdispl) {
+	synchronized public void addSilently(final ZDisplayable zdispl) {
 		if (null == zdispl || -1 != al_zdispl.indexOf(zdispl)) return;
 		try {
 			zdispl.setLayer(0 == al_layers.size() ? null : al_layers.get(0));
 			zdispl.setLayerSet(this, false);
 			//Utils.log2("setLayerSet to ZDipl id=" + zdispl.getId());
 			al_zdispl.add(zdispl);
+			synchronized (lbucks) {
+				if (null != volume) volume.put(al_zdispl.size()-1, zdispl);
+			}
 		} catch (Exception e) {
 			Utils.log("LayerSet.addSilently: not adding ZDisplayable with id=" + zdispl.getId());
 			IJError.print(e);
@@ -893,7 +898,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	/** Remove a child. Does not destroy the child nor remove it from the database, only from the LayerSet and the Display. */
-	public boolean remove(final ZDisplayable zdispl) {
+	synchronized public boolean remove(final ZDisplayable zdispl) {
 		if (null == zdispl || null == al_zdispl) return false;
 		final int old_stack_index = al_zdispl.indexOf(zdispl);
 		if (-1 == old_stack_index) {
@@ -910,21 +915,23 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	
 	/** Remove a child. Does not destroy the child nor remove it from the database, only from the LayerSet and the Display.
 	 *  Returns false if at least one failed to be removed. */
-	public boolean removeAll(final Set<ZDisplayable> zds) {
+	synchronized public boolean removeAll(final Set<ZDisplayable> zds) {
 		if (null == zds || null == al_zdispl) return false;
 		// Ensure list is iterated only once: don't ask for index every time!
+		final int[] old_stack_indices = new int[zds.size()];
 		int count = 0;
-		for (final Iterator<ZDisplayable> it = al_zdispl.iterator(); it.hasNext(); ) {
+		int i = 0;
+		for (final Iterator<ZDisplayable> it = al_zdispl.iterator(); it.hasNext(); i++) {
 			final ZDisplayable zd = it.next();
 			if (zds.contains(zd)) {
 				it.remove();
 				removeFromOffscreens(zd);
 				Display.remove(zd);
-				count++;
+				old_stack_indices[count++] = i;
 				if (zds.size() == count) break;
 			}
 		}
-		removeFromBuckets(zds);
+		removeFromBuckets(zds, Arrays.copyOf(old_stack_indices, count));
 		Display.updateVisibleTabs(this.project);
 		return true;
 	}
@@ -1368,27 +1375,27 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 					// To the end of the list:
 					al_zdispl.add(al_zdispl.remove(i));
 					// OLD // if (null != root) root.update(this, d, i, al_zdispl.size()-1);
-					updateRangeInBuckets(d, i, al_zdispl.size()-1);
+					updateRangeInBuckets(i, al_zdispl.size()-1);
 					break;
 				case LayerSet.UP:
 					// +1 in the list
 					if (size -1 == i) return;
 					al_zdispl.add(i+1, al_zdispl.remove(i));
 					//if (null != root) root.update(this, d, i, i+1);
-					updateRangeInBuckets(d, i, i+1);
+					updateRangeInBuckets(i, i+1);
 					break;
 				case LayerSet.DOWN:
 					// -1 in the list
 					if (0 == i) return;
 					al_zdispl.add(i-1, al_zdispl.remove(i)); //swap
 					//if (null != root) root.update(this, d, i-1, i);
-					updateRangeInBuckets(d, i-1, i);
+					updateRangeInBuckets(i-1, i);
 					break;
 				case LayerSet.BOTTOM:
 					// to first position in the list
 					al_zdispl.add(0, al_zdispl.remove(i));
 					//if (null != root) root.update(this, d, 0, i);
-					updateRangeInBuckets(d, 0, i);
+					updateRangeInBuckets(0, i);
 					break;
 			}
 			updateInDatabase("stack_index");
@@ -1697,90 +1704,117 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Find the ZDisplayable objects that intersect with the 3D roi defined by the first and last layers, and the area -all in world coordinates. */
 	public ArrayList<ZDisplayable> find(final Layer first, final Layer last, final Area area) {
 		final ArrayList<ZDisplayable> al = new ArrayList<ZDisplayable>();
-		for (ZDisplayable zd : al_zdispl) {
-			if (zd.intersects(area, first.getZ(), last.getZ())) {
-				al.add(zd);
-			}
+		for (final Displayable d : volume().find(null, area, first.getZ(), last.getZ(), false, false)) {
+			al.add((ZDisplayable)d);
 		}
 		return al;
 	}
 
-	/** A Bucket for the ZDisplayable parts that show in every Layer. */
-	protected final class LayerBucket {
-		protected final Bucket root;
-		protected final HashMap<Displayable,HashSet<Bucket>> db_map = new HashMap<Displayable,HashSet<Bucket>>();
+	/** For fast search: a SpatialIndex of the ZDisplayable parts that show in each Layer.
+	 *  Read without locking; changes to the map itself are synchronized on it. */
+	protected final ConcurrentHashMap<Layer,SpatialIndex> lbucks = new ConcurrentHashMap<Layer,SpatialIndex>();
+
+	/** For fast search across layers, and in layers without a bucket: a SpatialIndex of the ZDisplayable objects by their
+	 *  bounding box across all layers. Made when first needed, and from then on updated along with the {@link #lbucks}. */
+	private volatile SpatialIndex volume = null;
 
-		LayerBucket(final Layer la) {
-			this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(LayerSet.this, la));
-			this.root.populate(LayerSet.this, la, this.db_map);
+	/** The bucket of the layer, or null if none yet. */
+	private final SpatialIndex bucketOf(final Layer la) {
+		return null == la ? null : lbucks.get(la);
+	}
+
+	/** The index of the ZDisplayable objects across all layers, made if not there yet. */
+	private final SpatialIndex volume() {
+		final SpatialIndex v = volume;
+		if (null != v) return v;
+		// The list is read under the lock of this LayerSet, which is always taken before that of lbucks
+		synchronized (this) {
+			synchronized (lbucks) {
+				if (null == volume) volume = new SpatialIndex(this);
+				return volume;
+			}
 		}
 	}
 
-	/** For fast search. */
-	protected HashMap<Layer,LayerBucket> lbucks = new HashMap<Layer,LayerBucket>();
+	/** Discard the index across all layers, to be made anew when next needed; for when the ZDisplayable objects are replaced or moved wholesale. */
+	private final void resetVolume() {
+		synchronized (lbucks) {
+			volume = null;
+		}
+	}
 
 	final private void addToBuckets(final Displayable zd, final int i) {
 		synchronized (lbucks) {
+			if (null != volume) volume.put(i, zd);
 			if (lbucks.isEmpty()) return;
 			for (final Long lid : zd.getLayerIds()) {
 				final Layer la = getLayer(lid); // map lookup
-				final LayerBucket lb = lbucks.get(la);
-				if (null == lb) {
+				final SpatialIndex index = bucketOf(la);
+				if (null == index) {
 					nbmsg(la);
 					continue;
 				}
-				lb.root.put(i, zd, la, lb.db_map);
+				index.put(i, zd);
 			}
 		}
 	}
-	/** Recreate the buckets of every layer in which the {@link Displayable} has data. */
-	final private void removeFromBuckets(final Displayable zd, final int old_stack_index) {
+	/** Add the ZDisplayable objects, just appended to the list, to the buckets of the layers in which they have data. */
+	final private void addAllToBuckets(final Collection<? extends ZDisplayable> zds) {
+		final HashMap<Displayable,Integer> stack_indices = SpatialIndex.readIndices(this, zds);
 		synchronized (lbucks) {
+			if (null != volume) volume.putAll(zds, stack_indices);
 			if (lbucks.isEmpty()) return;
-			for (final Long lid : zd.getLayerIds()) {
-				final Layer la = getLayer(lid);
-				final LayerBucket lb = lbucks.get(la);
-				if (null == lb) {
-					nbmsg(la);
+			final HashMap<Layer,ArrayList<ZDisplayable>> m = new HashMap<Layer,ArrayList<ZDisplayable>>();
+			for (final ZDisplayable zd : zds) {
+				for (final Long lid : zd.getLayerIds()) {
+					final Layer la = getLayer(lid); // map lookup
+					ArrayList<ZDisplayable> al = m.get(la);
+					if (null == al) {
+						al = new ArrayList<ZDisplayable>();
+						m.put(la, al);
+					}
+					al.add(zd);
+				}
+			}
+			for (final Map.Entry<Layer,ArrayList<ZDisplayable>> e : m.entrySet()) {
+				final SpatialIndex index = bucketOf(e.getKey());
+				if (null == index) {
+					nbmsg(e.getKey());
 					continue;
 				}
-				recreateBuckets(getLayer(lid), false);
+				index.putAll(e.getValue(), stack_indices);
 			}
 		}
 	}
 
-	/** Recreate the buckets for all layers involved. */
-	final private void removeFromBuckets(final Collection<ZDisplayable> zds) {
+	/** Remove the {@link Displayable} from the buckets of every layer, which all hold its stack index. */
+	final private void removeFromBuckets(final Displayable zd, final int old_stack_index) {
 		synchronized (lbucks) {
-			if (lbucks.isEmpty()) return;
-			final Set<Layer> touched = new HashSet<Layer>();
-			for (final ZDisplayable zd : zds) {
-				touched.addAll(zd.getLayersWithData());
+			if (null != volume) volume.remove(zd, old_stack_index);
+			for (final SpatialIndex index : lbucks.values()) {
+				index.remove(zd, old_stack_index);
 			}
-			for (final Layer la : touched) {
-				final LayerBucket lb = lbucks.remove(la);
-				if (null == lb) {
-					nbmsg(la);
-					continue;
-				}
-				lbucks.put(la, new LayerBucket(la));
+		}
+	}
+
+	/** Remove the {@link ZDisplayable} objects, which were at the given ascending stack indices,
+	 *  from the buckets of every layer, which all hold their stack indices. */
+	final private void removeFromBuckets(final Collection<ZDisplayable> zds, final int[] old_stack_indices) {
+		synchronized (lbucks) {
+			if (null != volume) volume.removeAll(zds, old_stack_indices);
+			for (final SpatialIndex index : lbucks.values()) {
+				index.removeAll(zds, old_stack_indices);
 			}
 		}
 	}
-	/** Used ONLY by move up/down/top/bottom. */
-	final private void updateRangeInBuckets(final Displayable zd, final int i, final int j) {
+	/** Used ONLY by move up/down/top/bottom, and their undo. The stack indices change in the buckets of every layer. */
+	final private void updateRangeInBuckets(final int i, final int j) {
+		final HashMap<Displayable,Integer> new_indices = SpatialIndex.readRange(this, i, j);
 		synchronized (lbucks) {
-			if (lbucks.isEmpty()) return;
-			for (final Long lid : zd.getLayerIds()) {
-				final Layer la = getLayer(lid);
-				final LayerBucket lb = lbucks.get(la);
-				if (null == lb) {
-					nbmsg(la);
-					continue;
-				}
-				for (final Bucket bu : lb.db_map.get(zd)) {
-					bu.updateRange(this, zd, i, j);
-				}
+			if (lbucks.isEmpty() && null == volume) return;
+			if (null != volume) volume.reindex(new_indices);
+			for (final SpatialIndex index : lbucks.values()) {
+				index.reindex(new_indices);
 			}
 		}
 	}
@@ -1793,28 +1827,22 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return al_zdispl;
 	}
 
+	/** Returns null: the ZDisplayable objects are indexed by a {@link SpatialIndex} for each Layer, not by {@link Bucket}s. */
 	public HashMap<Displayable, HashSet<Bucket>> getBucketMap(final Layer la) {
-		synchronized (lbucks) {
-			if (lbucks.isEmpty()) return null;
-			final LayerBucket lb = lbucks.get(la);
-			if (null == lb) {
-				nbmsg(la);
-				return null;
-			}
-			return lb.db_map;
-		}
+		return null;
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
-		synchronized (lbucks) {
-			final LayerBucket lb = lbucks.get(layer);
-			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
-		}
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) index.updatePosition(d);
+		final SpatialIndex v = volume;
+		if (null != v) v.updatePosition(d); // a no-op unless its bounding box moved to other cells
 	}
 
 	/** Recreate the ZDisplayable buckets, and also the Layer Displayable buckets if desired. */
 	public void recreateBuckets(final boolean layer_buckets) {
 		recreateBuckets(al_layers, layer_buckets);
+		resetVolume();
 	}
 
 	/** Recreate the ZDisplayable buckets for {@param layer}, and also the {@link Layer} {@link Displayable} buckets if desired.
@@ -1822,26 +1850,28 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	 * @param layer_buckets Whether to also recreate the {@link Layer}-specific buckets for images and text labels.
 	 */
 	public void recreateBuckets(final Layer layer, final boolean layer_buckets) {
-		LayerBucket lb = new LayerBucket(layer);
+		final SpatialIndex index = new SpatialIndex(this, layer);
 		synchronized (lbucks) {
-			lbucks.put(layer, lb);
+			lbucks.put(layer, index);
 		}
-		if (layer_buckets && null != layer.root) layer.recreateBuckets();
+		if (layer_buckets && null != layer.index) layer.recreateBuckets();
 	}
 
 	/** Regenerate the quad-tree bucket system for the ZDisplayable instances that have data at each of the given layers,
 	 *  and optionally regenerate the buckets as well for the 2D Displayable instances of that layer as well. */
 	public void recreateBuckets(final Collection<Layer> layers, final boolean layer_buckets) {
-		final HashMap<Layer,LayerBucket> m = new HashMap<Layer,LayerBucket>();
+		final HashMap<Layer,SpatialIndex> m = new HashMap<Layer,SpatialIndex>();
+		// Read once, here: the caller may hold the lock of this LayerSet
+		final ArrayList<Displayable> list = SpatialIndex.snapshot(this);
 		try {
 			Process.progressive(layers, new TaskFactory<Layer,Object>() {
 				@Override
 				public Object process(final Layer layer) {
-					LayerBucket lb = new LayerBucket(layer);
+					final SpatialIndex index = new SpatialIndex(LayerSet.this, layer, list);
 					synchronized (m) {
-						m.put(layer, lb);
+						m.put(layer, index);
 					}
-					if (layer_buckets && null != layer.root) layer.recreateBuckets();
+					if (layer_buckets && null != layer.index) layer.recreateBuckets();
 					return null;
 				}
 			}, Process.NUM_PROCESSORS -1); // works even when there is only 1 core, since it checks and fixes the '0' processors request
@@ -1849,8 +1879,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			IJError.print(e);
 		}
 		synchronized (lbucks) {
-			lbucks.clear();
+			// Replace without ever leaving a layer out, for those searching meanwhile
 			lbucks.putAll(m);
+			lbucks.keySet().retainAll(m.keySet());
 		}
 	}
 
@@ -2064,6 +2095,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			current_edit_time = System.currentTimeMillis();
 			current_edit_step = step;
 
+			// For saving only what changed; steps for more than one object count as changes to any
+			project.getLoader().recordChange(step.getD());
+
 			// Bye bye redo! Can't branch.
 			redo.clear();
 		}
@@ -2106,6 +2140,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				Utils.log("Undo: could not apply step!");
 				return false;
 			}
+			project.getLoader().recordChange(current_edit_step.getD());
 
 			Utils.log("Undoing " + current_edit_step.getClass().getSimpleName());
 
@@ -2135,6 +2170,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			if (0 == redo.size()) {
 				Utils.logAll("Empty redo history!");
 				if (null != current_edit_step) {
+					project.getLoader().recordChange(current_edit_step.getD());
 					return current_edit_step.apply(DoStep.REDO);
 				}
 				return false;
@@ -2158,6 +2194,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				Utils.log("Undo: could not apply step!");
 				return false;
 			}
+			project.getLoader().recordChange(current_edit_step.getD());
 
 			Utils.log("Redoing " + current_edit_step.getClass().getSimpleName());
 
@@ -2230,6 +2267,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				dobuckets = ls.lbucks.isEmpty();
 			}
 			if (dobuckets) ls.recreateBuckets(true);
+			else ls.resetVolume();
 
 			Display.updateSelection();
 			Display.update(ls); //so it's not left out painted beyond borders
@@ -2336,8 +2374,11 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			}
 
 			// Replace all ZDisplayable
-			ls.al_zdispl.clear();
-			ls.al_zdispl.addAll(this.all_zdispl);
+			synchronized (ls) {
+				ls.al_zdispl.clear();
+				ls.al_zdispl.addAll(this.all_zdispl);
+				ls.resetVolume();
+			}
 
 			// Replace all links
 			for (final Map.Entry<Displayable,Set<Displayable>> e : this.links.entrySet()) {
@@ -2392,8 +2433,11 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		@Override
 		public boolean apply(int action) {
 			// Replace all ZDisplayable
-			ls.al_zdispl.clear();
-			ls.al_zdispl.addAll(this.al_zdispl);
+			synchronized (ls) {
+				ls.al_zdispl.clear();
+				ls.al_zdispl.addAll(this.al_zdispl);
+				ls.updateRangeInBuckets(0, this.al_zdispl.size() -1);
+			}
 			Display.update(ls, false);
 			return true;
 		}
@@ -2795,18 +2839,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 	/** Find ZDisplayable objects that contain the point x,y in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Layer layer, final int x, final int y, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
-		if (null != lb) return lb.root.find(x, y, layer, visible_only);
-		else nbmsg(layer);
-
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final ZDisplayable zd : al_zdispl) {
-			if (zd.contains(layer, x, y)) al.add(zd);
-		}
-		return al;
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) return index.find(x, y, visible_only);
+		return volume().find(null, layer, x, y, visible_only, false);
 	}
 
 	/** Find ZDisplayable objects of Class c that contain the point x,y in the given layer. */
@@ -2815,18 +2850,9 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 	/** Find ZDisplayable objects of Class c that contain the point x,y in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final int x, final int y, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
-		if (null != lb) return lb.root.find(c, x, y, layer, visible_only, instance_of);
-		else nbmsg(layer);
-
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final ZDisplayable zd : al_zdispl) {
-			if (zd.getClass() == c && zd.contains(layer, x, y)) al.add(zd);
-		}
-		return al;
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) return index.find(c, x, y, visible_only, instance_of);
+		return volume().find(c, layer, x, y, visible_only, instance_of);
 	}
 
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Rectangle r, final boolean visible_only) {
@@ -2835,75 +2861,30 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	
 	/** Find ZDisplayable objects of the given class that intersect the given rectangle in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Rectangle r, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
-		if (null != lb) return lb.root.find(c, r, layer, visible_only, instance_of);
-		else nbmsg(layer);
-
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final ZDisplayable zd : al_zdispl) {
-			if (instance_of && !c.isInstance(zd)) continue;
-			else if (zd.getClass() != c) continue;
-			if (zd.getBounds(null, layer).intersects(r)) al.add(zd);
-		}
-		return al;
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) return index.find(c, r, visible_only, instance_of);
+		return volume().find(c, layer, r, visible_only, instance_of);
 	}
 	/** Find ZDisplayable objects of the given class that intersect the given area in the given layer.
 	 *  If @param instance_of is true, use c.isAssignableFrom instead of class equality. */
 	public Collection<Displayable> findZDisplayables(final Class<?> c, final Layer layer, final Area aroi, final boolean visible_only, final boolean instance_of) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
-		if (null != lb) return lb.root.find(c, aroi, layer, visible_only, instance_of);
-		else nbmsg(layer);
-
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final ZDisplayable zd : al_zdispl) {
-			if (visible_only && !zd.isVisible()) continue;
-			if (instance_of) {
-				if (!c.isAssignableFrom(zd.getClass())) continue;
-			} else if (zd.getClass() != c) continue;
-			if (zd.intersects(layer, aroi)) al.add(zd);
-		}
-		return al;
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) return index.find(c, aroi, visible_only, instance_of);
+		return volume().find(c, layer, aroi, visible_only, instance_of);
 	}
 	/** Find ZDisplayable objects that intersect the given rectangle in the given layer. */
 	public Collection<Displayable> findZDisplayables(final Layer layer, final Rectangle r, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
-		if (null != lb) return lb.root.find(r, layer, visible_only);
-		else nbmsg(layer);
-
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final ZDisplayable zd : al_zdispl) {
-			if (visible_only && !zd.isVisible()) continue;
-			if (zd.getBounds(null, layer).intersects(r)) al.add(zd);
-		}
-		return al;
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) return index.find(r, visible_only);
+		return volume().find(null, layer, r, visible_only, false);
 	}
 
 	/** Find ZDisplayable objects that intersect the given rectangle in the given layer.
 	 *  May return false positives but never false negatives. */
 	public Collection<Displayable> roughlyFindZDisplayables(final Layer layer, final Rectangle r, final boolean visible_only) {
-		final LayerBucket lb;
-		synchronized (lbucks) {
-			lb = lbucks.get(layer);
-		}
-		if (null != lb) return lb.root.roughlyFind(r, layer, visible_only);
-		else nbmsg(layer);
-
-		// Else, linear:
-		final ArrayList<Displayable> al = new ArrayList<Displayable>();
-		for (final ZDisplayable zd : al_zdispl) {
-			if (visible_only && !zd.isVisible()) continue;
-			if (zd.getBounds(null, layer).intersects(r)) al.add(zd);
-		}
-		return al;
+		final SpatialIndex index = bucketOf(layer);
+		if (null != index) return index.roughlyFind(r, visible_only);
+		return volume().roughlyFind(layer, r, visible_only);
 	}
 
 	private static final void nbmsg(final Layer la) {
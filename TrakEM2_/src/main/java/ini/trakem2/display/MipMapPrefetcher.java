@@ -0,0 +1,230 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2005-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+You may contact Albert Cardona at acardona at ini.phys.ethz.ch
+Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
+**/
+
+package ini.trakem2.display;
+
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/** Warms the cache with the mipmaps that a {@link DisplayCanvas} is likely to show next, so that panning, zooming
+ *  and scrolling through layers don't wait on the disk for every {@link Patch} that comes into view.
+ *
+ *  From each view that the canvas paints and the one before it, guesses where the user is going: further in the
+ *  same direction when panning, one more step of zoom when zooming, and the next layers when scrolling through
+ *  layers. After a jump or a pause, when there is no direction to follow, it guesses instead the previous and next
+ *  layers and the viewport regions around the view. The mipmaps of the patches there are fetched in the background,
+ *  those nearest to the view first.
+ *
+ *  Prefetching has its own I/O budget: a few low priority threads shared by all canvases, see {@link #setupThreads(int)},
+ *  and at most {@link #max_queued} patches queued per canvas; so repaints never wait behind more than that. When the
+ *  user changes direction, the fetches not yet started are cancelled. */
+public final class MipMapPrefetcher {
+
+	/** How many layers ahead to prefetch when scrolling through layers. */
+	static public int layers_ahead = 2;
+	/** The most patches queued for prefetching, per canvas. */
+	static public int max_queued = 64;
+	/** Two views painted more than this many milliseconds apart are not a movement. */
+	static public long idle_ms = 1000;
+
+	static private int num_threads = 1;
+	static private ThreadPoolExecutor exec = null;
+
+	/** Set the number of threads that fetch mipmaps for all canvases; zero disables prefetching.
+	 *  Set from the "n_prefetch_threads" project property when a project is opened and when it is edited. */
+	static synchronized public void setupThreads(final int count) {
+		num_threads = count < 0 ? 0 : count;
+		if (null != exec) {
+			exec.shutdownNow();
+			exec = null;
+		}
+	}
+
+	static synchronized private ThreadPoolExecutor executor() {
+		if (num_threads < 1) return null;
+		if (null == exec) exec = Utils.newFixedThreadPool(num_threads, "T2-Prefetcher");
+		return exec;
+	}
+
+	// The last view painted
+	private Layer layer = null;
+	private Rectangle srcRect = null;
+	private double magnification = 0;
+	private long time = 0;
+
+	/** The signs of the movement in x, y, layers and magnification for which the queued fetches were made. */
+	private int[] direction = new int[4];
+
+	/** The fetches not yet done, by Patch id and magnification. */
+	private final HashMap<String,Future<?>> queued = new HashMap<String,Future<?>>();
+
+	MipMapPrefetcher() {}
+
+	/** Guess the next views from the one just painted and the one before, and queue fetching their mipmaps. */
+	synchronized void viewed(final Layer layer, final Rectangle srcRect, final double magnification) {
+		if (Loader.isLowMemory() || null == executor()) return;
+		final long now = System.currentTimeMillis();
+		final Rectangle r = new Rectangle(srcRect);
+		final Layer last_layer = this.layer;
+		final Rectangle last = this.srcRect;
+		final double last_mag = this.magnification;
+		final boolean same = layer == last_layer && r.equals(last) && magnification == last_mag;
+		final boolean moving = null != last_layer && last_layer.getParent() == layer.getParent() && now - this.time <= idle_ms;
+		this.layer = layer;
+		this.srcRect = r;
+		this.magnification = magnification;
+		this.time = now;
+		if (same) return; // a repaint of the same view
+
+		final LayerSet ls = layer.getParent();
+		final int z = ls.indexOf(layer);
+		if (!moving) {
+			setDirection(new int[4]);
+			// Around the view: the previous and next layers, then the regions on each side
+			queue(ls.getLayer(z + 1), r, magnification, r);
+			queue(ls.getLayer(z - 1), r, magnification, r);
+			queue(layer, new Rectangle(r.x + r.width, r.y, r.width, r.height), magnification, r);
+			queue(layer, new Rectangle(r.x - r.width, r.y, r.width, r.height), magnification, r);
+			queue(layer, new Rectangle(r.x, r.y + r.height, r.width, r.height), magnification, r);
+			queue(layer, new Rectangle(r.x, r.y - r.height, r.width, r.height), magnification, r);
+			return;
+		}
+
+		final double zoom = magnification / last_mag;
+		// Zooming moves the srcRect too, around the mouse or the center: that is not panning
+		final int dx = 1 != zoom ? 0 : clamp(r.x - last.x, r.width),
+		          dy = 1 != zoom ? 0 : clamp(r.y - last.y, r.height),
+		          dz = z - ls.indexOf(last_layer);
+		setDirection(new int[]{Integer.signum(dx), Integer.signum(dy), Integer.signum(dz), Double.compare(zoom, 1)});
+
+		if (0 != dz) {
+			for (int k=1; k<=layers_ahead; k++) queue(ls.getLayer(z + k * Integer.signum(dz)), r, magnification, r);
+		}
+		if (0 != dx || 0 != dy) {
+			// One and two steps further
+			final Rectangle ahead = new Rectangle(r.x + dx, r.y + dy, r.width, r.height);
+			ahead.add(new Rectangle(r.x + 2 * dx, r.y + 2 * dy, r.width, r.height));
+			queue(layer, ahead, magnification, r);
+		}
+		if (1 != zoom) {
+			// One more step of zoom, around the center: no further in than the full resolution mipmaps,
+			// and no further out than showing the whole layer
+			final double lowest = Math.min(1, Math.min(r.width * magnification / ls.getLayerWidth(), r.height * magnification / ls.getLayerHeight()));
+			final double next_mag = Math.max(lowest, Math.min(1, magnification * zoom));
+			if (Double.compare(next_mag, magnification) != Double.compare(zoom, 1)) return; // at the end already
+			final int w = (int)Math.ceil(r.width * magnification / next_mag),
+			          h = (int)Math.ceil(r.height * magnification / next_mag);
+			queue(layer, new Rectangle((int)r.getCenterX() - w/2, (int)r.getCenterY() - h/2, w, h), next_mag, r);
+		}
+	}
+
+	/** Cancel all fetches not yet started. */
+	synchronized void cancel() {
+		for (final Future<?> fu : queued.values()) fu.cancel(false);
+		queued.clear();
+		purge();
+	}
+
+	/** Remove the cancelled fetches from the queue of the threads. */
+	static synchronized private void purge() {
+		if (null != exec) exec.purge();
+	}
+
+	private final void setDirection(final int[] direction) {
+		if (Arrays.equals(this.direction, direction)) return;
+		cancel();
+		this.direction = direction;
+	}
+
+	static private final int clamp(final int d, final int max) {
+		return d > max ? max : (d < -max ? -max : d);
+	}
+
+	/** Queue fetching the mipmaps for magnification of the patches of layer in region, nearest to the view first. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final void queue(final Layer layer, final Rectangle region, final double magnification, final Rectangle view) {
+		if (null == layer || queued.size() >= max_queued) return;
+		final ThreadPoolExecutor exec = executor();
+		if (null == exec) return;
+		final Loader loader = layer.getProject().getLoader();
+		final ArrayList<Patch> patches = new ArrayList<Patch>((Collection)layer.find(Patch.class, region, true));
+		final double cx = view.getCenterX(),
+		             cy = view.getCenterY();
+		Collections.sort(patches, new Comparator<Patch>() {
+			@Override
+			public int compare(final Patch p1, final Patch p2) {
+				return Double.compare(distance(p1, cx, cy), distance(p2, cx, cy));
+			}
+		});
+		for (final Patch p : patches) {
+			if (queued.size() >= max_queued) return;
+			final String key = new StringBuilder().append(p.getId()).append('@').append(magnification).toString();
+			if (queued.containsKey(key) || loader.isUnloadable(p) || loader.isCached(p, magnification)) continue;
+			final FutureTask<?>[] fu = new FutureTask[1];
+			fu[0] = new FutureTask<Object>(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+						if (!Loader.isLowMemory() && !loader.isCached(p, magnification)) loader.fetchImage(p, magnification);
+					} catch (Throwable t) {
+						IJError.print(t);
+					} finally {
+						done(key, fu[0]);
+					}
+				}
+			}, null);
+			queued.put(key, fu[0]);
+			try {
+				exec.execute(fu[0]);
+			} catch (Throwable t) {
+				queued.remove(key);
+				Utils.log2("Ignoring error with prefetching a Patch");
+				return;
+			}
+		}
+	}
+
+	private synchronized final void done(final String key, final Future<?> fu) {
+		// Not if it was cancelled and queued again meanwhile
+		if (queued.get(key) == fu) queued.remove(key);
+	}
+
+	static private final double distance(final Patch p, final double x, final double y) {
+		final Rectangle b = p.getBoundingBox(null);
+		final double dx = b.getCenterX() - x,
+		             dy = b.getCenterY() - y;
+		return dx * dx + dy * dy;
+	}
+}
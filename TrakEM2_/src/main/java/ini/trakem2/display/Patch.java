@@ -35,13 +35,12 @@ import ij.plugin.WandToolOptions;
 import ij.plugin.filter.ThresholdToSelection;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.filters.FilterEditor;
 import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.io.CoordinateTransformStore;
 import ini.trakem2.io.CoordinateTransformXML;
 import ini.trakem2.io.ImageSaver;
 import ini.trakem2.persistence.FSLoader;
@@ -137,6 +136,71 @@ public final class Patch extends Displayable implements ImageData {
 	 * The alpha mask is not the outside mask as potentially generated by a {@link CoordinateTransform}.
 	 * The alpha mask determines transparencies inside the width,height domain of the image. */
 	private long alpha_mask_id = 0;
+
+	/** Kinds of changes to this Patch since its mipmaps were last generated; see {@link #takeMipMapChanges()}. */
+	static public final int MIPMAP_MIN_MAX = 1,
+	                        MIPMAP_ALPHA_MASK_REGION = 2,
+	                        MIPMAP_OTHER = 4;
+
+	/** The changes to a {@link Patch} since its mipmaps were last generated, which the {@link Loader}
+	 * may apply to the existing mipmaps instead of regenerating them from the original image. */
+	static public final class MipMapChanges {
+		/** Any combination of {@link Patch#MIPMAP_MIN_MAX}, {@link Patch#MIPMAP_ALPHA_MASK_REGION} and {@link Patch#MIPMAP_OTHER}. */
+		public final int kinds;
+		/** The min and max with which the mipmaps were generated. */
+		public final double min, max;
+		/** Whether the mipmaps were generated with an alpha mask. */
+		public final boolean alpha_mask;
+		/** The bounds, in local coordinates, of the region of the alpha mask that was edited; may be null. */
+		public final Rectangle mask_bounds;
+
+		private MipMapChanges(final int kinds, final double min, final double max, final boolean alpha_mask, final Rectangle mask_bounds) {
+			this.kinds = kinds;
+			this.min = min;
+			this.max = max;
+			this.alpha_mask = alpha_mask;
+			this.mask_bounds = mask_bounds;
+		}
+	}
+
+	/** Changes recorded since the mipmaps were last generated, and the state that the mipmaps reflect. */
+	transient private int mipmap_changes = 0;
+	transient private MipMapChanges mipmap_state = null;
+	transient private long mipmap_ct_id;
+	transient private IFilter[] mipmap_filters;
+	transient private Rectangle mipmap_mask_bounds = null;
+
+	/** Record a change of kind @param kind, one of {@link #MIPMAP_MIN_MAX}, {@link #MIPMAP_ALPHA_MASK_REGION} or {@link #MIPMAP_OTHER},
+	 * before it is applied. */
+	synchronized private final void recordMipMapChange(final int kind) {
+		if (0 == mipmap_changes) {
+			mipmap_state = new MipMapChanges(0, min, max, hasAlphaMask(), null);
+			mipmap_ct_id = ct_id;
+			mipmap_filters = filters;
+		}
+		mipmap_changes |= kind;
+	}
+
+	/** Returns the changes recorded since the mipmaps were last generated, and forgets them,
+	 * given that the caller is about to update the mipmaps.
+	 * Returns null when no change was recorded, meaning that it is not known what changed. */
+	synchronized public final MipMapChanges takeMipMapChanges() {
+		if (0 == mipmap_changes) return null;
+		int kinds = mipmap_changes;
+		// Changes that bypassed the recording
+		if (mipmap_ct_id != ct_id || mipmap_filters != filters) kinds |= MIPMAP_OTHER;
+		final MipMapChanges changes = new MipMapChanges(kinds, mipmap_state.min, mipmap_state.max, mipmap_state.alpha_mask, mipmap_mask_bounds);
+		mipmap_changes = 0;
+		mipmap_state = null;
+		mipmap_filters = null;
+		mipmap_mask_bounds = null;
+		return changes;
+	}
+
+	/** Whether any change has been recorded since the mipmaps were last generated. */
+	synchronized public final boolean hasMipMapChanges() {
+		return 0 != mipmap_changes;
+	}
 	
 	protected int meshResolution = project.getProperty("mesh_resolution", 32);
 	public int getMeshResolution(){ return meshResolution; }
@@ -345,16 +409,22 @@ public final class Patch extends Displayable implements ImageData {
 
 	/** Update type, original dimensions and min,max from the given ImagePlus. */
 	private void readProps(final ImagePlus imp) {
+		final ImageProcessor ip = imp.getProcessor();
+		final boolean resized = imp.getWidth() != (int)this.o_width || imp.getHeight() != this.o_height;
+		// Not when reading the image to generate the mipmaps, which will reflect the change
+		if ((resized || imp.getType() != this.type || ip.isColorLut() != this.false_color || ip.getMin() != this.min || ip.getMax() != this.max)
+		 && !project.getLoader().isGeneratingMipMaps(this)) {
+			recordMipMapChange(MIPMAP_OTHER);
+		}
 		this.type = imp.getType();
-		this.false_color = imp.getProcessor().isColorLut();
-		if (imp.getWidth() != (int)this.o_width || imp.getHeight() != this.o_height) {
+		this.false_color = ip.isColorLut();
+		if (resized) {
 			this.o_width = imp.getWidth();
 			this.o_height = imp.getHeight();
 			this.width = o_width;
 			this.height = o_height;
 			updateBucket();
 		}
-		final ImageProcessor ip = imp.getProcessor();
 		this.min = ip.getMin();
 		this.max = ip.getMax();
 		final HashSet<String> keys = new HashSet<String>();
@@ -433,9 +503,12 @@ public final class Patch extends Displayable implements ImageData {
 
 	/** The min and max values are stored with the Patch, so that the image can be flushed away but the non-destructive contrast settings preserved. */
 	public void setMinAndMax(final double min, final double max) {
-		this.min = min;
-		this.max = max;
-		checkMinMax();
+		synchronized (this) {
+			recordMipMapChange(MIPMAP_MIN_MAX);
+			this.min = min;
+			this.max = max;
+			checkMinMax();
+		}
 		updateInDatabase("min_and_max");
 		Utils.log2("Patch.setMinAndMax: min,max " + min + "," + max);
 	}
@@ -984,14 +1057,19 @@ public final class Patch extends Displayable implements ImageData {
 				Utils.log("ERROR: could not copy alpha mask file for patch #" + this.id);
 			}
 			try {
-				if (0 != copy.ct_id
-						&& !Utils.safeCopy(
+				if (0 != copy.ct_id) {
+					final CoordinateTransformStore store = getCTStore();
+					if (null != store && store.contains(this.ct_id)) {
+						// Packed: store it under the same id in the other project
+						if (pr != this.project) copy.writeNewCoordinateTransform(getCT(), copy.ct_id);
+					} else if (!Utils.safeCopy(
 								this.createCTFilePath(this.ct_id),
 								copy.createCTFilePath(copy.ct_id))) {
-					Utils.log("ERROR: could not copy coordinate transform file for patch #" + this.id);
+						Utils.log("ERROR: could not copy coordinate transform file for patch #" + this.id);
+					}
 				}
-			} catch (final IOException ioe) {
-				IJError.print(ioe);
+			} catch (final Exception e) {
+				IJError.print(e);
 				Utils.log("ERROR: could not copy coordinate transform file for patch #" + this.id);
 			}
 		}
@@ -1551,6 +1629,11 @@ public final class Patch extends Displayable implements ImageData {
 	/** Must call updateMipMaps() afterwards. Set it to null to remove it.
 	 * @return true if the alpha mask file was written successfully. */
 	public synchronized boolean setAlphaMask(final ByteProcessor bp) throws IllegalArgumentException {
+		recordMipMapChange(MIPMAP_OTHER);
+		return storeAlphaMask(bp);
+	}
+
+	private synchronized boolean storeAlphaMask(final ByteProcessor bp) throws IllegalArgumentException {
 		if (null == bp) {
 			alpha_mask_id = 0;
 			return true;
@@ -1778,6 +1861,7 @@ public final class Patch extends Displayable implements ImageData {
 					}
 				}
 			}
+			if (mipmaps) p.recordMipMapChange(MIPMAP_OTHER);
 			p.min = min;
 			p.max = max;
 			p.ct_id = ct_id;
@@ -1817,6 +1901,7 @@ public final class Patch extends Displayable implements ImageData {
 
 	/** After setting a preprocessor script, it is advisable that you call updateMipMaps() immediately. */
 	public void setPreprocessorScriptPath(final String path) {
+		recordMipMapChange(MIPMAP_OTHER);
 		final String old_path = project.getLoader().getPreprocessorScriptPath(this);
 
 		if (null == path && null == old_path) return;
@@ -1915,7 +2000,14 @@ public final class Patch extends Displayable implements ImageData {
 				b1[i] = b2[i]; // replace old pixel with new pixel
 			}
 		}
-		setAlphaMask(mask);
+		// Only the region within the bounds of the area has changed
+		synchronized (this) {
+			recordMipMapChange(MIPMAP_ALPHA_MASK_REGION);
+			final Rectangle bounds = a.getBounds();
+			if (null == mipmap_mask_bounds) mipmap_mask_bounds = bounds;
+			else mipmap_mask_bounds.add(bounds);
+			storeAlphaMask(mask);
+		}
 	}
 
 	public String getPreprocessorScriptPath() {
@@ -2045,107 +2137,100 @@ public final class Patch extends Displayable implements ImageData {
 	 */
 	static public ImageProcessor makeFlatImage(final int type, final Layer layer, final Rectangle srcRect, final double scale, final Collection<Patch> patches, final Color background, final boolean setMinAndMax) {
 		
-		final ImageProcessor ip;
-		final int W, H;
-		if (scale < 1) {
-			W = (int)(srcRect.width * scale);
-			H = (int)(srcRect.height * scale);
-		} else {
-			W = srcRect.width;
-			H = srcRect.height;
-		}
-		switch (type) {
-			case ImagePlus.GRAY8:
-				ip = new ByteProcessor(W, H);
-				break;
-			case ImagePlus.GRAY16:
-				ip = new ShortProcessor(W, H);
-				break;
-			case ImagePlus.GRAY32:
-				ip = new FloatProcessor(W, H);
-				break;
-			case ImagePlus.COLOR_RGB:
-				ip = new ColorProcessor(W, H);
-				break;
-			default:
-				Utils.logAll("Cannot create an image of type " + type + ".\nSupported types: 8-bit, 16-bit, 32-bit and RGB.");
-				return null;
+		final Dimension dim = FlatTileRenderer.flatImageSize(srcRect, scale);
+		final ImageProcessor ip = FlatTileRenderer.createProcessor(type, dim.width, dim.height, null);
+		if (null == ip) return null;
+
+		// Render tiles in parallel, pasting each as it is done
+		try {
+			FlatTileRenderer.map(type, srcRect, scale, patches, background, setMinAndMax, Runtime.getRuntime().availableProcessors(),
+					new FlatTileRenderer.TileConsumer<ImageProcessor>() {
+						@Override
+						public void accept(final int x, final int y, final ImageProcessor tile) {
+							synchronized (ip) {
+								ip.insert(tile, x, y);
+							}
+						}
+					});
+		} catch (final InterruptedException ie) {
+			Utils.log("Interrupted while making a flat image.");
+			Thread.currentThread().interrupt();
+		} catch (final Exception e) {
+			IJError.print(e);
 		}
 
-		// Fill with background
-		if (null != background && Color.black != background) {
-			ip.setColor(background);
-			ip.fill();
+		return ip;
+	}
+
+	/** Map the image of patch p, converted to type, into ip, which is the part of the flat image of srcRect at scale that starts at x,y.
+	 *  @param pi the image of p already converted to type, as returned by {@link #flatSource(Patch, int, boolean)}. */
+	static void mapFlat(final Patch p, final ImageProcessor pi, final ImageProcessor ip, final Rectangle srcRect, final double scale, final int x, final int y) {
+		// A list to represent all the transformations that the Patch image has to go through to reach the scaled srcRect image
+		final CoordinateTransformList< CoordinateTransform > list = new CoordinateTransformList< CoordinateTransform >();
+
+		final AffineTransform at = new AffineTransform();
+		at.translate( -srcRect.x, -srcRect.y );
+		at.concatenate( p.getAffineTransform() );
+		
+		// 1. The coordinate tranform of the Patch, if any
+		if (p.hasCoordinateTransform()) {
+			final CoordinateTransform ct = p.getCoordinateTransform();
+			list.add(ct);
+			// Remove the translation in the patch_affine that the ct added to it
+			final Rectangle box = Patch.getCoordinateTransformBoundingBox(p, ct);
+			at.translate( -box.x, -box.y );
 		}
 		
-		AffineModel2D sc = null;
+		// 2. The affine transform of the Patch
+		final AffineModel2D patch_affine = new AffineModel2D();
+		patch_affine.set( at );
+		list.add( patch_affine );
+
+		// 3. The desired scaling
 		if ( scale < 1.0 )
 		{
-			sc = new AffineModel2D();
+			final AffineModel2D sc = new AffineModel2D();
 			sc.set( ( float )scale, 0, 0, ( float )scale, 0, 0 );
+			patch_affine.preConcatenate( sc );
 		}
-		for ( final Patch p : patches )
-		{
-			// TODO patches seem to come in in inverse order---find out why
-			
-			// A list to represent all the transformations that the Patch image has to go through to reach the scaled srcRect image
-			final CoordinateTransformList< CoordinateTransform > list = new CoordinateTransformList< CoordinateTransform >();
 
-			final AffineTransform at = new AffineTransform();
-			at.translate( -srcRect.x, -srcRect.y );
-			at.concatenate( p.getAffineTransform() );
-			
-			// 1. The coordinate tranform of the Patch, if any
-			if (p.hasCoordinateTransform()) {
-				final CoordinateTransform ct = p.getCoordinateTransform();
-				list.add(ct);
-				// Remove the translation in the patch_affine that the ct added to it
-				final Rectangle box = Patch.getCoordinateTransformBoundingBox(p, ct);
-				at.translate( -box.x, -box.y );
-			}
-			
-			// 2. The affine transform of the Patch
-			final AffineModel2D patch_affine = new AffineModel2D();
-			patch_affine.set( at );
-			list.add( patch_affine );
+		// 4. The offset of the part of the flat image
+		if ( 0 != x || 0 != y )
+		{
+			final AffineModel2D offset = new AffineModel2D();
+			offset.set( 1, 0, 0, 1, -x, -y );
+			patch_affine.preConcatenate( offset );
+		}
 
-			// 3. The desired scaling
-			if (null != sc) patch_affine.preConcatenate( sc );
+		final CoordinateTransformMesh mesh = new CoordinateTransformMesh( list, p.meshResolution, p.getOWidth(), p.getOHeight() );
+		
+		final mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh> mapping = new mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh>( mesh );
+		
+		/* TODO for taking into account independent min/max setting for each patch,
+		 * we will need a mapping with an `intensity transfer function' to be implemented.
+		 * --> EXISTS already as mpicbg/trakem2/transform/ExportUnsignedShort.java
+		 */
+		mapping.mapInterpolated( pi, ip );
+	}
 
-			final CoordinateTransformMesh mesh = new CoordinateTransformMesh( list, p.meshResolution, p.getOWidth(), p.getOHeight() );
-			
-			final mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh> mapping = new mpicbg.ij.TransformMeshMapping<CoordinateTransformMesh>( mesh );
-			
-			// 4. Convert the patch to the required type
-			ImageProcessor pi = p.getImageProcessor();
-			if (setMinAndMax) {
-				pi = pi.duplicate();
-				pi.setMinAndMax(p.min, p.max);
-			}
-			switch ( type )
-			{
-			case ImagePlus.GRAY8:
-				pi = pi.convertToByte( true );
-				break;
-			case ImagePlus.GRAY16:
-				pi = pi.convertToShort( true );
-				break;
-			case ImagePlus.GRAY32:
-				pi = pi.convertToFloat();
-				break;
-			default: // ImagePlus.COLOR_RGB and COLOR_256
-				pi = pi.convertToRGB();
-				break;
-			}
-			
-			/* TODO for taking into account independent min/max setting for each patch,
-			 * we will need a mapping with an `intensity transfer function' to be implemented.
-			 * --> EXISTS already as mpicbg/trakem2/transform/ExportUnsignedShort.java
-			 */
-			mapping.mapInterpolated( pi, ip );
+	/** The image of patch p converted to type for {@link #mapFlat(Patch, ImageProcessor, ImageProcessor, Rectangle, double, int, int)}. */
+	static ImageProcessor flatSource(final Patch p, final int type, final boolean setMinAndMax) {
+		ImageProcessor pi = p.getImageProcessor();
+		if (setMinAndMax) {
+			pi = pi.duplicate();
+			pi.setMinAndMax(p.min, p.max);
+		}
+		switch ( type )
+		{
+		case ImagePlus.GRAY8:
+			return pi.convertToByte( true );
+		case ImagePlus.GRAY16:
+			return pi.convertToShort( true );
+		case ImagePlus.GRAY32:
+			return pi.convertToFloat();
+		default: // ImagePlus.COLOR_RGB and COLOR_256
+			return pi.convertToRGB();
 		}
-
-		return ip;
 	}
 
 	/** Make the border have an alpha of zero. */
@@ -2216,6 +2301,7 @@ public final class Patch extends Displayable implements ImageData {
 	 * @see #setFilters(Filter[]), {@link #getFilters()}
 	 */
 	public void appendFilters(final IFilter[] fs) {
+		recordMipMapChange(MIPMAP_OTHER);
 		if (null == filters || 0 == filters.length) {
 			filters = fs;
 			return;
@@ -2234,7 +2320,9 @@ public final class Patch extends Displayable implements ImageData {
 	 * @see #appendFilters(Filter[]), {@link #getFilters()}
 	 */
 	public void setFilters(final IFilter[] fs) {
+		recordMipMapChange(MIPMAP_OTHER);
 		this.filters = fs;
+		project.getLoader().recordChange(this);
 	}
 	
 	/**
@@ -2262,6 +2350,11 @@ public final class Patch extends Displayable implements ImageData {
 		return hasCoordinateTransform() ? createCTFilePath(this.ct_id) : null;
 	}
 
+	/** The {@link CoordinateTransformStore} of the project, or null if it doesn't use one. */
+	private final CoordinateTransformStore getCTStore() {
+		return ((FSLoader)project.getLoader()).getCoordinateTransformStore(false);
+	}
+
 	private final String createCTFilePath(final long ctID) {
 		final FSLoader l = (FSLoader)project.getLoader();
 		return l.getCoordinateTransformsFolder()
@@ -2284,20 +2377,29 @@ public final class Patch extends Displayable implements ImageData {
 	}
 
 	/**
-	 * Read in the {@link CoordinateTransform} from a file whose name is crafted
-	 * from the {@link #ct_id} and this {@link Patch}'s {@link #id}.
+	 * Read in the {@link CoordinateTransform} from the {@link CoordinateTransformStore} of the project,
+	 * or else from a file whose name is crafted from the {@link #ct_id} and this {@link Patch}'s {@link #id}.
 	 * 
 	 * @return A new instance of the {@link CoordinateTransform} of this {@link Patch}, or null if none.
 	 * @throws {@link Exception} if the file could not be found or parsed or read.
 	 */
 	synchronized public CoordinateTransform fetchCoordinateTransform() throws Exception {
-		return hasCoordinateTransform() ?
-			CoordinateTransformXML.parse(createCTFilePath(this.ct_id))
-			: null;
+		if (!hasCoordinateTransform()) return null;
+		final CoordinateTransformStore store = getCTStore();
+		if (null != store) {
+			final CoordinateTransform ct = store.get(this.ct_id);
+			if (null != ct) return ct;
+		}
+		return CoordinateTransformXML.parse(createCTFilePath(this.ct_id));
 	}
 
 	/** Will throw an {@link Exception} if the file can't be read or is not there. */
 	synchronized private char[] readCoordinateTransformFile() throws Exception {
+		final CoordinateTransformStore store = getCTStore();
+		if (null != store && store.contains(this.ct_id)) {
+			// Like it was written to the file
+			return store.get(this.ct_id).toXML("\t\t\t\t").toCharArray();
+		}
 		final File f = new File(createCTFilePath(this.ct_id));
 		final char[] c = new char[(int)f.length()];
 		Reader reader = null;
@@ -2317,12 +2419,14 @@ public final class Patch extends Displayable implements ImageData {
 
 	/**
 	 * Writes the {@link CoordinateTransform} {@param t} to the trakem2.transforms/ directory, using the unique {@link #ct_id}
-	 * and this {@link Patch}'s {@link #id} to generate a file path for it.
+	 * and this {@link Patch}'s {@link #id} to generate a file path for it; or, if the project packs its transforms,
+	 * to its {@link CoordinateTransformStore}.
 	 * 
 	 * @return true if it was written successfully.
 	 * @throws {@link Exception} if the new file could not be written.
 	 */
 	synchronized protected boolean setNewCoordinateTransform(final CoordinateTransform ct) throws Exception {
+		recordMipMapChange(MIPMAP_OTHER);
 		// If the new CoordinateTransform is null, set the id to 0
 		if (null == ct) {
 			this.ct_id = 0;
@@ -2346,6 +2450,17 @@ public final class Patch extends Displayable implements ImageData {
 	 *  @param ctID The id
 	 *  @see #setNewCoordinateTransform(CoordinateTransform) */
 	synchronized private boolean writeNewCoordinateTransform(final CoordinateTransform ct, final long ctID) throws Exception {
+		recordMipMapChange(MIPMAP_OTHER);
+		final FSLoader loader = (FSLoader)project.getLoader();
+		CoordinateTransformStore store = loader.getCoordinateTransformStore(false);
+		// Also when replacing a packed one, which would otherwise be read instead of the file
+		if (loader.packsCoordinateTransforms() || (null != store && store.contains(ctID))) {
+			if (null == store) store = loader.getCoordinateTransformStore(true);
+			if (null != store) {
+				store.put(ctID, ct);
+				return true;
+			}
+		}
 		RandomAccessFile ra = null;
 		try {
 			final File f = new File(createCTFilePath(ctID));
@@ -2360,10 +2475,12 @@ public final class Patch extends Displayable implements ImageData {
 
 	/**
 	 * 
-	 * @return True if {@link #ct_id} {@code == 0} or if the file is found, or false if not found.
+	 * @return True if {@link #ct_id} {@code == 0} or if the packed transform or the file is found, or false if not found.
 	 */
 	public boolean checkCoordinateTransformFile() {
 		if (0 == this.ct_id) return true; // means there isn't a CoordinateTransform
+		final CoordinateTransformStore store = getCTStore();
+		if (null != store && store.contains(this.ct_id)) return true;
 		return new File(createCTFilePath(this.ct_id)).exists();
 	}
 
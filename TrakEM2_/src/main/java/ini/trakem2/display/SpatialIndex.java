@@ -0,0 +1,674 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2005-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+You may contact Albert Cardona at acardona at ini.phys.ethz.ch
+Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
+**/
+
+package ini.trakem2.display;
+
+import ini.trakem2.utils.M;
+import ini.trakem2.utils.Utils;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** A spatial index of the Displayable objects of a {@link Bucketable} in one {@link Layer}, answering the same queries
+ *  as the {@link Bucket} tree but without ever locking the threads that query it.
+ *
+ *  The Layer is divided into a grid of square cells of {@link Bucket#getBucketSide(Bucketable, Layer)} side; the cells
+ *  at the borders extend to infinity, so that objects outside the Layer bounds are still found. Each cell is an array of
+ *  the Displayable objects that intersect it, sorted by stack index, which is never modified once published: changes
+ *  are made on copies of the affected cells and rows of cells, and then the whole grid is replaced at once. Queries read
+ *  the grid once and work on that copy, which is consistent even if a change is published meanwhile.
+ *
+ *  Changes are serialized among themselves. Those of many Displayable objects at once, see {@link #putAll(Collection)}
+ *  and {@link #updateAll(Collection)}, copy each affected cell only once; and the areas of the Displayable objects,
+ *  which is the expensive part, are computed before taking the lock. Removals don't renumber the stack indices of the
+ *  others, whose order is the same: they are renumbered all at once before the next change that needs the actual
+ *  stack indices, see {@link #renumber()}. The container's list is only read while holding the container's lock,
+ *  which those that modify the list must hold too, and never while holding this index's lock.
+ *
+ *  An index of a volume, see {@link #SpatialIndex(LayerSet)}, holds instead the {@link ZDisplayable} objects of a
+ *  {@link LayerSet} by their bounding box across all layers: it answers queries in any layer, or in a range of layers,
+ *  by testing only those whose bounding box is near. */
+public final class SpatialIndex {
+
+	/** The Displayable objects that intersect a cell, sorted by their stack index. Never modified. */
+	static private final class Cell {
+		final Displayable[] ds;
+		final int[] indices;
+		Cell(final Displayable[] ds, final int[] indices) {
+			this.ds = ds;
+			this.indices = indices;
+		}
+	}
+
+	static private final Cell EMPTY = new Cell(new Displayable[0], new int[0]);
+
+	private final Bucketable container;
+	/** The layer, or null for an index of a volume. */
+	private final Layer layer;
+	private final int side, cols, rows;
+
+	/** The cells, by row and column. The arrays are replaced, never modified, once published. */
+	private volatile Cell[][] grid;
+
+	// Only for writers, guarded by this:
+	/** The stack index with which each Displayable is in the cells. */
+	private final HashMap<Displayable,Integer> indices = new HashMap<Displayable,Integer>();
+	/** The cells, as row * cols + column, in which each Displayable is. */
+	private final HashMap<Displayable,int[]> cells_of = new HashMap<Displayable,int[]>();
+	/** The stack indices, as held in {@link #indices}, of the Displayable objects removed since the last {@link #renumber()}; sorted. */
+	private final ArrayList<Integer> gaps = new ArrayList<Integer>();
+	/** The largest of {@link #indices}, or more. */
+	private int max_index = -1;
+
+	/** Past this many removals, renumber the stack indices right away. */
+	static private final int MAX_GAPS = 1024;
+
+	/** Index all Displayable objects of the container, as they are in the given layer. */
+	public SpatialIndex(final Bucketable container, final Layer layer) {
+		this(container, layer, snapshot(container));
+	}
+
+	/** Index all Displayable objects in list, which is a {@link #snapshot(Bucketable)} of the container's list,
+	 *  as they are in the given layer; for indexing many layers of the same container. */
+	public SpatialIndex(final Bucketable container, final Layer layer, final List<? extends Displayable> list) {
+		this.container = container;
+		this.layer = layer;
+		final HashMap<Displayable,Area> areas = new HashMap<Displayable,Area>();
+		final ArrayList<Rectangle> bounds = new ArrayList<Rectangle>(list.size());
+		for (final Displayable d : list) {
+			final Area a = area(d);
+			if (null == a) continue;
+			areas.put(d, a);
+			bounds.add(a.getBounds());
+		}
+		this.side = side(container, layer, bounds);
+		this.cols = Math.max(1, (int)Math.ceil(container.getLayerWidth() / side));
+		this.rows = Math.max(1, (int)Math.ceil(container.getLayerHeight() / side));
+		final Cell[][] grid = new Cell[rows][cols];
+		for (final Cell[] row : grid) Arrays.fill(row, EMPTY);
+		this.grid = grid;
+		Utils.showStatus(new StringBuilder("Indexing ").append(areas.size()).append(" objects in ").append(cols).append('x').append(rows).append(" cells").toString(), false);
+		synchronized (this) {
+			final Edit edit = new Edit();
+			for (int i=0; i<list.size(); i++) {
+				final Displayable d = list.get(i);
+				final Area a = areas.get(d);
+				if (null == a) continue;
+				indices.put(d, i);
+				edit.place(d, a);
+			}
+			max_index = list.size() -1;
+			edit.commit();
+		}
+	}
+
+	/** A copy of the container's list, read while holding the container's lock. */
+	static public ArrayList<Displayable> snapshot(final Bucketable container) {
+		synchronized (container) {
+			return new ArrayList<Displayable>(container.getDisplayableList());
+		}
+	}
+
+	/** Index all {@link ZDisplayable} objects of the layer_set by their bounding box across all layers,
+	 *  for the queries that take a {@link Layer} or a range of Z. */
+	public SpatialIndex(final LayerSet layer_set) {
+		this(layer_set, null);
+	}
+
+	/** The area by which d is indexed: in the layer, or its bounding box if the index is of a volume. May be null. */
+	private final Area area(final Displayable d) {
+		if (null != layer) return d.getAreaForBucket(layer);
+		final Rectangle b = d.getBoundingBox(null);
+		// Padded, for a Tree of a single node has no width or height
+		return new Area(new Rectangle(b.x, b.y, b.width + 1, b.height + 1));
+	}
+
+	/** The side set for the project, or twice the median size of the Displayable objects. */
+	static private int side(final Bucketable container, final Layer layer, final ArrayList<Rectangle> bounds) {
+		if (null != container.getProject().getProperty("bucket_side")) {
+			return Bucket.getBucketSide(container, layer); // reads the property
+		}
+		if (bounds.isEmpty()) return Bucket.MIN_BUCKET_SIZE;
+		final int[] sizes = new int[bounds.size()];
+		for (int i=0; i<sizes.length; i++) {
+			final Rectangle r = bounds.get(i);
+			sizes[i] = Math.max(r.width, r.height);
+		}
+		Arrays.sort(sizes);
+		final int size = 2 * sizes[sizes.length/2];
+		return size > Bucket.MIN_BUCKET_SIZE ? size : Bucket.MIN_BUCKET_SIZE;
+	}
+
+	public String toString() {
+		return (null == layer ? "SpatialIndex of a volume: " : "SpatialIndex: ") + cols + "x" + rows + " cells of side " + side;
+	}
+
+	// ======== Queries: lock-free ========
+
+	private final int col(final double x) {
+		final int c = (int)Math.floor(x / side);
+		return c < 0 ? 0 : (c >= cols ? cols -1 : c);
+	}
+
+	private final int row(final double y) {
+		final int r = (int)Math.floor(y / side);
+		return r < 0 ? 0 : (r >= rows ? rows -1 : r);
+	}
+
+	/** Whether d passes the class and visibility filters; c may be null to accept any class. */
+	static private final boolean accepts(final Displayable d, final Class<?> c, final boolean visible_only, final boolean instance_of) {
+		if (visible_only && !d.isVisible()) return false;
+		if (null == c) return true;
+		return instance_of ? c.isAssignableFrom(d.getClass()) : d.getClass() == c;
+	}
+
+	/** The kinds of test of {@link #find(int, Class, Rectangle, Area, double, double, boolean, boolean)}. */
+	static private final int INTERSECTS_RECT = 0, ROUGHLY_INSIDE = 1, CONTAINS_POINT = 2, INTERSECTS_AREA = 3, INTERSECTS_VOLUME = 4;
+
+	/** Accumulate, sorted by stack index, the Displayable objects that pass the test at layer la in the cells within box.
+	 *  For INTERSECTS_VOLUME, px and py are the first and last Z instead of a point. */
+	private final Collection<Displayable> find(final int test, final Class<?> c, final Layer la, final Rectangle box, final Area area,
+			final double px, final double py, final boolean visible_only, final boolean instance_of) {
+		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
+		if (box.width < 0 || box.height < 0) return accum.values();
+		final Cell[][] grid = this.grid; // the one and only read of the grid
+		final int c0 = col(box.x),
+		          c1 = col(box.x + box.width),
+		          r0 = row(box.y),
+		          r1 = row(box.y + box.height);
+		// A Displayable in many cells is tested only once:
+		final BitSet tested = c0 == c1 && r0 == r1 ? null : new BitSet();
+		for (int r=r0; r<=r1; r++) {
+			final Cell[] row = grid[r];
+			for (int k=c0; k<=c1; k++) {
+				final Cell cell = row[k];
+				for (int i=0; i<cell.ds.length; i++) {
+					final int index = cell.indices[i];
+					if (null != tested) {
+						if (tested.get(index)) continue;
+						tested.set(index);
+					}
+					final Displayable d = cell.ds[i];
+					if (!accepts(d, c, visible_only, instance_of)) continue;
+					final boolean found;
+					switch (test) {
+						case INTERSECTS_RECT:
+							final Area a = d.getAreaForBucket(la);
+							found = null != a && M.intersects(area, a);
+							break;
+						case ROUGHLY_INSIDE:
+							found = d.isRoughlyInside(la, box);
+							break;
+						case CONTAINS_POINT:
+							found = d.contains(la, px, py);
+							break;
+						case INTERSECTS_VOLUME:
+							found = ((ZDisplayable)d).intersects(area, px, py);
+							break;
+						default:
+							found = d.intersects(la, area);
+							break;
+					}
+					if (found) accum.put(index, d);
+				}
+			}
+		}
+		return accum.values(); // sorted by integer key
+	}
+
+	/** Find all Displayable objects that intersect with the given srcRect and return them ordered by stack_index. If @param visible_only is true, then hidden Displayable objects are ignored. */
+	public Collection<Displayable> find(final Rectangle srcRect, final boolean visible_only) {
+		return find(INTERSECTS_RECT, null, layer, srcRect, new Area(srcRect), 0, 0, visible_only, false);
+	}
+
+	/** Like {@link #find(Rectangle, boolean)} but for objects of class c only, or its subclasses as well if instance_of is true. */
+	public Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final boolean visible_only, final boolean instance_of) {
+		return find(INTERSECTS_RECT, c, layer, srcRect, new Area(srcRect), 0, 0, visible_only, instance_of);
+	}
+
+	/** Fast and dirty, never returns a false negative but may return a false positive; see {@link Displayable#isRoughlyInside(Layer, Rectangle)}. */
+	public Collection<Displayable> roughlyFind(final Rectangle srcRect, final boolean visible_only) {
+		return find(ROUGHLY_INSIDE, null, layer, srcRect, null, 0, 0, visible_only, false);
+	}
+
+	/** Find all Displayable objects that contain the given point and return them ordered by stack_index. */
+	public Collection<Displayable> find(final double px, final double py, final boolean visible_only) {
+		return find(null, px, py, visible_only, false);
+	}
+
+	/** Like {@link #find(double, double, boolean)} but for objects of class c only, or its subclasses as well if instance_of is true. */
+	public Collection<Displayable> find(final Class<?> c, final double px, final double py, final boolean visible_only, final boolean instance_of) {
+		// Pad by one pixel: the point may be at the edge of two cells
+		final int x = (int)Math.floor(px),
+		          y = (int)Math.floor(py);
+		return find(CONTAINS_POINT, c, layer, new Rectangle(x -1, y -1, 2, 2), null, px, py, visible_only, instance_of);
+	}
+
+	/** Find all Displayable objects that intersect the given Area and return them ordered by stack_index. */
+	public Collection<Displayable> find(final Area area, final boolean visible_only) {
+		return find(INTERSECTS_AREA, null, layer, area.getBounds(), area, 0, 0, visible_only, false);
+	}
+
+	/** Like {@link #find(Area, boolean)} but for objects of class c only, or its subclasses as well if instance_of is true. */
+	public Collection<Displayable> find(final Class<?> c, final Area area, final boolean visible_only, final boolean instance_of) {
+		return find(INTERSECTS_AREA, c, layer, area.getBounds(), area, 0, 0, visible_only, instance_of);
+	}
+
+	// Queries of an index of a volume, which work as well with the index of a layer when la is that layer:
+
+	/** Like {@link #find(Class, Rectangle, boolean, boolean)} but at layer la. */
+	public Collection<Displayable> find(final Class<?> c, final Layer la, final Rectangle srcRect, final boolean visible_only, final boolean instance_of) {
+		return find(INTERSECTS_RECT, c, la, srcRect, new Area(srcRect), 0, 0, visible_only, instance_of);
+	}
+
+	/** Like {@link #roughlyFind(Rectangle, boolean)} but at layer la. */
+	public Collection<Displayable> roughlyFind(final Layer la, final Rectangle srcRect, final boolean visible_only) {
+		return find(ROUGHLY_INSIDE, null, la, srcRect, null, 0, 0, visible_only, false);
+	}
+
+	/** Like {@link #find(Class, double, double, boolean, boolean)} but at layer la; c may be null for any class. */
+	public Collection<Displayable> find(final Class<?> c, final Layer la, final double px, final double py, final boolean visible_only, final boolean instance_of) {
+		final int x = (int)Math.floor(px),
+		          y = (int)Math.floor(py);
+		return find(CONTAINS_POINT, c, la, new Rectangle(x -1, y -1, 2, 2), null, px, py, visible_only, instance_of);
+	}
+
+	/** Like {@link #find(Class, Area, boolean, boolean)} but at layer la; c may be null for any class. */
+	public Collection<Displayable> find(final Class<?> c, final Layer la, final Area area, final boolean visible_only, final boolean instance_of) {
+		return find(INTERSECTS_AREA, c, la, area.getBounds(), area, 0, 0, visible_only, instance_of);
+	}
+
+	/** Find the {@link ZDisplayable} objects that intersect the Area in any layer from z_first to z_last, inclusive,
+	 *  see {@link ZDisplayable#intersects(Area, double, double)}, ordered by stack index; c may be null for any class. */
+	public Collection<Displayable> find(final Class<?> c, final Area area, final double z_first, final double z_last, final boolean visible_only, final boolean instance_of) {
+		return find(INTERSECTS_VOLUME, c, null, area.getBounds(), area, z_first, z_last, visible_only, instance_of);
+	}
+
+	/** Determine whether the rectangle is smaller than the layer dimensions padded in by one cell side -- if not, makes little sense to use the index, and it's better to do linear search without the TreeMap overhead. */
+	public final boolean isBetter(final Rectangle r) {
+		return r.width * (double)r.height < (container.getLayerWidth() - side) * (double)(container.getLayerHeight() - side);
+	}
+
+	// ======== Changes: serialized ========
+
+	/** A set of changes to the cells, published all at once by {@link #commit()}. */
+	private final class Edit {
+		/** The new contents of each changed cell, by cell key. */
+		private final HashMap<Integer,HashSet<Displayable>> changed = new HashMap<Integer,HashSet<Displayable>>();
+
+		private final HashSet<Displayable> contents(final int key) {
+			HashSet<Displayable> hs = changed.get(key);
+			if (null == hs) {
+				hs = new HashSet<Displayable>(Arrays.asList(grid[key / cols][key % cols].ds));
+				changed.put(key, hs);
+			}
+			return hs;
+		}
+
+		/** Take d out of all its cells. */
+		final void remove(final Displayable d) {
+			final int[] keys = cells_of.remove(d);
+			if (null == keys) return;
+			for (final int key : keys) contents(key).remove(d);
+		}
+
+		/** Put d in all cells that its area, which may be null, intersects, and take it out of any others. */
+		final void place(final Displayable d, final Area a) {
+			final int[] old_keys = cells_of.get(d);
+			final int[] keys = null == a ? new int[0] : keys(a);
+			if (null != old_keys) {
+				if (Arrays.equals(old_keys, keys)) return;
+				for (final int key : old_keys) {
+					if (Arrays.binarySearch(keys, key) < 0) contents(key).remove(d);
+				}
+			}
+			for (final int key : keys) {
+				if (null == old_keys || Arrays.binarySearch(old_keys, key) < 0) contents(key).add(d);
+			}
+			if (0 == keys.length) cells_of.remove(d);
+			else cells_of.put(d, keys);
+		}
+
+		/** Sort again all the cells in which d is, for its stack index has changed. */
+		final void reindex(final Displayable d) {
+			final int[] keys = cells_of.get(d);
+			if (null == keys) return;
+			for (final int key : keys) contents(key);
+		}
+
+		/** The keys of the cells that the area intersects, sorted. */
+		private final int[] keys(final Area a) {
+			final Rectangle b = a.getBounds();
+			final int c0 = col(b.x),
+			          c1 = col(b.x + b.width),
+			          r0 = row(b.y),
+			          r1 = row(b.y + b.height);
+			final boolean rectangular = a.isRectangular();
+			final int[] keys = new int[(c1 - c0 + 1) * (r1 - r0 + 1)];
+			int n = 0;
+			for (int r=r0; r<=r1; r++) {
+				for (int c=c0; c<=c1; c++) {
+					if (rectangular || intersects(a, c, r)) keys[n++] = r * cols + c;
+				}
+			}
+			return n == keys.length ? keys : Arrays.copyOf(keys, n);
+		}
+
+		/** Whether the area intersects the cell, with those at the borders extending to infinity. */
+		private final boolean intersects(final Area a, final int c, final int r) {
+			final double x0 = 0 == c ? -Double.MAX_VALUE / 4 : c * (double)side,
+			             x1 = cols -1 == c ? Double.MAX_VALUE / 4 : (c + 1) * (double)side,
+			             y0 = 0 == r ? -Double.MAX_VALUE / 4 : r * (double)side,
+			             y1 = rows -1 == r ? Double.MAX_VALUE / 4 : (r + 1) * (double)side;
+			return a.intersects(x0, y0, x1 - x0, y1 - y0);
+		}
+
+		/** Publish the changed cells, sorted by the stack indices, in a new grid. */
+		final void commit() {
+			if (changed.isEmpty()) return;
+			final Cell[][] next = grid.clone();
+			final boolean[] copied = new boolean[rows];
+			final Comparator<Displayable> by_index = new Comparator<Displayable>() {
+				@Override
+				public int compare(final Displayable d1, final Displayable d2) {
+					return indices.get(d1).compareTo(indices.get(d2));
+				}
+			};
+			for (final Map.Entry<Integer,HashSet<Displayable>> e : changed.entrySet()) {
+				final int r = e.getKey() / cols,
+				          c = e.getKey() % cols;
+				if (!copied[r]) {
+					next[r] = next[r].clone();
+					copied[r] = true;
+				}
+				final HashSet<Displayable> hs = e.getValue();
+				if (hs.isEmpty()) {
+					next[r][c] = EMPTY;
+					continue;
+				}
+				final Displayable[] ds = hs.toArray(new Displayable[hs.size()]);
+				Arrays.sort(ds, by_index);
+				final int[] is = new int[ds.length];
+				for (int i=0; i<ds.length; i++) is[i] = indices.get(ds[i]);
+				next[r][c] = new Cell(ds, is);
+			}
+			grid = next;
+			changed.clear();
+		}
+	}
+
+	/** The areas of the Displayable objects in this index's layer, or their bounding boxes, computed outside the lock. */
+	private final HashMap<Displayable,Area> areas(final Collection<? extends Displayable> ds) {
+		final HashMap<Displayable,Area> areas = new HashMap<Displayable,Area>();
+		for (final Displayable d : ds) areas.put(d, area(d));
+		return areas;
+	}
+
+	/** Set the new stack indices of those Displayable objects that are in this index, and sort again their cells. */
+	private final void reindex(final Edit edit, final Map<Displayable,Integer> new_indices) {
+		if (new_indices.size() < indices.size()) {
+			for (final Map.Entry<Displayable,Integer> e : new_indices.entrySet()) {
+				final Integer old = indices.get(e.getKey());
+				if (null == old || old.equals(e.getValue())) continue;
+				indices.put(e.getKey(), e.getValue());
+				edit.reindex(e.getKey());
+			}
+		} else {
+			for (final Map.Entry<Displayable,Integer> e : indices.entrySet()) {
+				final Integer i = new_indices.get(e.getKey());
+				if (null == i || i.equals(e.getValue())) continue;
+				e.setValue(i);
+				edit.reindex(e.getKey());
+			}
+		}
+	}
+
+	/** The stack indices of the Displayable objects from first to last, inclusive, as they are now in the container's list. */
+	static public HashMap<Displayable,Integer> readRange(final Bucketable container, final int first, final int last) {
+		final HashMap<Displayable,Integer> m = new HashMap<Displayable,Integer>();
+		synchronized (container) {
+			final ArrayList<? extends Displayable> list = container.getDisplayableList();
+			final int end = Math.min(last, list.size() -1);
+			for (int i=Math.max(0, first); i<=end; i++) m.put(list.get(i), i);
+		}
+		return m;
+	}
+
+	/** The stack indices of the given Displayable objects in the container's list, looked up from its end;
+	 *  those not in the list are left out. */
+	static public HashMap<Displayable,Integer> readIndices(final Bucketable container, final Collection<? extends Displayable> ds) {
+		final HashSet<Displayable> hs = new HashSet<Displayable>(ds);
+		final HashMap<Displayable,Integer> m = new HashMap<Displayable,Integer>();
+		synchronized (container) {
+			final ArrayList<? extends Displayable> list = container.getDisplayableList();
+			for (int i=list.size() -1; i>-1 && m.size() < hs.size(); i--) {
+				final Displayable d = list.get(i);
+				if (hs.contains(d)) m.put(d, i);
+			}
+		}
+		return m;
+	}
+
+	/** The stack index as held in {@link #indices} of the Displayable at stack_index in the container's list, given
+	 *  the removals since the last {@link #renumber()}: stack_index plus the number of gaps before it. */
+	private final int toHeld(final int stack_index) {
+		int i = stack_index;
+		for (final int gap : gaps) {
+			if (gap <= i) i++;
+			else break;
+		}
+		return i;
+	}
+
+	/** Shift down every stack index by the number of those removed before it, in one pass over all cells. */
+	private final void renumber() {
+		if (gaps.isEmpty()) return;
+		final int[] gs = new int[gaps.size()];
+		for (int i=0; i<gs.length; i++) gs[i] = gaps.get(i);
+		for (final Map.Entry<Displayable,Integer> e : indices.entrySet()) {
+			final int i = e.getValue();
+			if (i > gs[0]) e.setValue(i - below(gs, i));
+		}
+		// The order of the Displayable objects in each cell doesn't change, only their stack indices
+		final Cell[][] next = grid.clone();
+		for (int r=0; r<rows; r++) {
+			Cell[] row = null;
+			for (int c=0; c<cols; c++) {
+				final Cell cell = next[r][c];
+				final int n = cell.ds.length;
+				if (0 == n || cell.indices[n -1] < gs[0]) continue;
+				final int[] is = new int[n];
+				for (int k=0; k<n; k++) is[k] = cell.indices[k] - below(gs, cell.indices[k]);
+				if (null == row) row = next[r] = next[r].clone();
+				row[c] = new Cell(cell.ds, is);
+			}
+		}
+		grid = next;
+		max_index -= below(gs, max_index);
+		gaps.clear();
+	}
+
+	/** The number of gaps smaller than i, which is not one of them. */
+	static private final int below(final int[] gs, final int i) {
+		final int k = Arrays.binarySearch(gs, i);
+		return k < 0 ? -k -1 : k;
+	}
+
+	/** Add the given Displayable, which is at stack_index in the container's list. */
+	public void put(final int stack_index, final Displayable d) {
+		final Area a = area(d);
+		synchronized (this) {
+			// Appended after all those in this index, it displaces none of them: no need to renumber
+			int i = toHeld(stack_index);
+			if (i <= max_index || indices.containsKey(d)) {
+				renumber();
+				i = stack_index;
+			}
+			final Integer old = indices.put(d, i);
+			max_index = Math.max(max_index, i);
+			final Edit edit = new Edit();
+			if (null != old && old != i) edit.reindex(d);
+			edit.place(d, a);
+			edit.commit();
+		}
+	}
+
+	/** Add many Displayable objects at once, publishing all changes at once. Their stack indices are looked up
+	 *  in the container's list from its end, so this is fastest for those just appended. If others were displaced
+	 *  to make room for them, call {@link #updateRange(int, int)} as well. */
+	public void putAll(final Collection<? extends Displayable> ds) {
+		putAll(ds, readIndices(container, ds));
+	}
+
+	/** Like {@link #putAll(Collection)}, with the stack indices already read with {@link #readIndices(Bucketable, Collection)};
+	 *  those of ds not in stack_indices are left out. */
+	public void putAll(final Collection<? extends Displayable> ds, final Map<Displayable,Integer> stack_indices) {
+		final HashMap<Displayable,Area> areas = areas(ds);
+		synchronized (this) {
+			renumber();
+			final Edit edit = new Edit();
+			for (final Map.Entry<Displayable,Area> e : areas.entrySet()) {
+				final Displayable d = e.getKey();
+				final Integer i = stack_indices.get(d);
+				if (null == i) continue; // not in the container
+				final Integer old = indices.put(d, i);
+				max_index = Math.max(max_index, i);
+				if (null != old && !old.equals(i)) edit.reindex(d);
+				edit.place(d, e.getValue());
+			}
+			edit.commit();
+		}
+	}
+
+	/** Update the stack indices of the Displayable objects from first to last, inclusive, as they are now in the container's list. */
+	public void updateRange(final int first, final int last) {
+		reindex(readRange(container, first, last));
+	}
+
+	/** Update the stack indices of the Displayable objects in new_indices that are in this index;
+	 *  read them once with {@link #readRange(Bucketable, int, int)} to update many indices of the same container. */
+	public void reindex(final Map<Displayable,Integer> new_indices) {
+		synchronized (this) {
+			renumber();
+			final Edit edit = new Edit();
+			reindex(edit, new_indices);
+			edit.commit();
+		}
+	}
+
+	/** Move the Displayable to the cells of its current area. */
+	public void updatePosition(final Displayable d) {
+		updateAll(Collections.singleton(d));
+	}
+
+	/** Move each Displayable to the cells of its current area, publishing all changes at once. */
+	public void updateAll(final Collection<? extends Displayable> ds) {
+		final HashMap<Displayable,Area> areas = areas(ds);
+		// Those that weren't here and now are need their stack index, read outside this index's lock
+		final ArrayList<Displayable> added = new ArrayList<Displayable>();
+		synchronized (this) {
+			for (final Map.Entry<Displayable,Area> e : areas.entrySet()) {
+				if (null != e.getValue() && !indices.containsKey(e.getKey())) added.add(e.getKey());
+			}
+		}
+		final HashMap<Displayable,Integer> stack_indices = added.isEmpty() ? null : readIndices(container, added);
+		synchronized (this) {
+			if (null != stack_indices) renumber();
+			final Edit edit = new Edit();
+			for (final Map.Entry<Displayable,Area> e : areas.entrySet()) {
+				final Displayable d = e.getKey();
+				if (!indices.containsKey(d)) {
+					if (null == e.getValue()) continue; // neither was nor is here
+					final Integer i = null == stack_indices ? null : stack_indices.get(d);
+					if (null == i) continue; // not in the container, or added meanwhile by another thread
+					indices.put(d, i);
+					max_index = Math.max(max_index, i);
+				}
+				edit.place(d, e.getValue());
+			}
+			edit.commit();
+		}
+	}
+
+	/** Remove the Displayable, which has already been removed from the container's list at old_stack_index. */
+	public void remove(final Displayable d, final int old_stack_index) {
+		removeAll(Collections.singleton(d), new int[]{old_stack_index});
+	}
+
+	/** Remove the Displayable objects, which have already been removed from the container's list
+	 *  at the given stack indices, in ascending order. The stack indices of all others are to be shifted down
+	 *  by the number of those removed before them, which is deferred to the next {@link #renumber()}. */
+	public void removeAll(final Collection<? extends Displayable> ds, final int[] old_stack_indices) {
+		synchronized (this) {
+			final Edit edit = new Edit();
+			for (final Displayable d : ds) {
+				edit.remove(d);
+				indices.remove(d);
+			}
+			// All read before adding any, for the old stack indices predate all of these removals
+			final int[] held = new int[old_stack_indices.length];
+			for (int k=0; k<held.length; k++) held[k] = toHeld(old_stack_indices[k]);
+			for (final int i : held) {
+				final int k = Collections.binarySearch(gaps, i);
+				if (k < 0) gaps.add(-k -1, i);
+			}
+			edit.commit();
+			if (gaps.size() > MAX_GAPS) renumber();
+		}
+	}
+
+	/** Paint the cells that intersect the srcRect, with the number of Displayable objects in each; for debugging. */
+	public void paint(final Graphics2D g, final Rectangle srcRect, final double mag, final Color color) {
+		final Cell[][] grid = this.grid;
+		final Stroke original_stroke = g.getStroke();
+		final AffineTransform original = g.getTransform();
+		g.setTransform(new AffineTransform());
+		g.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+		g.setColor(color);
+		for (int r=row(srcRect.y), r1=row(srcRect.y + srcRect.height); r<=r1; r++) {
+			for (int c=col(srcRect.x), c1=col(srcRect.x + srcRect.width); c<=c1; c++) {
+				final int x = c * side,
+				          y = r * side;
+				g.drawRect((int)((x - srcRect.x) * mag), (int)((y - srcRect.y) * mag), (int)(side * mag), (int)(side * mag));
+				g.drawString(Integer.toString(grid[r][c].ds.length), (int)((x - srcRect.x + side/2) * mag), (int)((y - srcRect.y + side/2) * mag));
+			}
+		}
+		g.setStroke(original_stroke);
+		g.setTransform(original);
+	}
+}
@@ -371,14 +371,19 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	@Override
 	public boolean intersects(final Area area, final double z_first, final double z_last) {
 		if (null == root) return false;
+		// Cheap rejection by the bounding box of all layers, padded for nodes at its edges and for a tree of a single node
+		final Rectangle box = getBoundingBox(null);
+		box.grow(1, 1);
+		if (!box.intersects(area.getBounds())) return false;
 		synchronized (node_layer_map) {
-			// Area to local coords
 			try {
-				final Area a = area.createTransformedArea(this.at.createInverse());
+				Area a = null;
 				// find layers between z_first and z_last
 				for (final Map.Entry<Layer,Set<Node<T>>> e : node_layer_map.entrySet()) {
 					final double z = e.getKey().getZ();
 					if (z >= z_first && z <= z_last) {
+						// Area to local coords, only once there are nodes to test
+						if (null == a) a = area.createTransformedArea(this.at.createInverse());
 						for (final Node<T> nd : e.getValue()) {
 							if (nd.intersects(a)) return true;
 						}
@@ -1972,6 +1977,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 		} finally {
 			layer_set.addDataEditStep(this);
+			project.getLoader().recordChange(this);
 			Display.repaint();
 		}
 		return true;
@@ -2197,13 +2203,17 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}});
 	}
 
+	/** Called after every change to the nodes: records the change, and updates the table of nodes if open. */
 	protected void updateView() {
+		project.getLoader().recordChange(this);
 		if (null == tndv) return;
 		synchronized (tndv) {
 			tndv.recreate(this.root);
 		}
 	}
+	/** Called after every change to the data of @param node: records the change, and updates the table of nodes if open. */
 	protected void updateViewData(final Node<?> node) {
+		if (null != node) project.getLoader().recordChange(this);
 		if (null == tndv) return;
 		synchronized (tndv) {
 			tndv.updateData(node);
@@ -2821,7 +2831,10 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				nd.apply(chain, roi);
 			}
 		}
-		if (null != chain) calculateBoundingBox(la);
+		if (null != chain) {
+			calculateBoundingBox(la);
+			project.getLoader().recordChange(this);
+		}
 		return true;
 	}
 	public boolean apply(final VectorDataTransform vdt) throws Exception {
@@ -2835,6 +2848,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 		}
 		calculateBoundingBox(vdt.layer);
+		project.getLoader().recordChange(this);
 		return true;
 	}
 
@@ -2944,8 +2958,9 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				}
 			}
 			clearState();
-			return true;
 		}
+		project.getLoader().recordChange(this);
+		return true;
 	}
 
 	/** Open an image in a separate thread and returns the thread. Frees up to 1 Gb for it. */
@@ -3146,6 +3161,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		} else {
 			Utils.log("Could not delete some review stacks.\n --> Directory remains: " + f.getAbsolutePath());
 		}
+		project.getLoader().recordChange(Tree.this); // the review tags
 		Display.repaint(getLayerSet());
 
 			}}, getProject());
@@ -3623,6 +3639,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 			e.getKey().setColor(c);
 		}
+		project.getLoader().recordChange(this);
 	}
 	
 	public void colorizeByBranchBetweennessCentrality(final int etching_multiplier) {
@@ -3647,6 +3664,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 			v.data.setColor(c);
 		}
+		project.getLoader().recordChange(this);
 	}
 	
 	public class Pair {
@@ -3787,5 +3805,6 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		for (final Node<T> nd : root.getSubtreeNodes()) {
 			nd.removeAllTags();
 		}
+		project.getLoader().recordChange(this);
 	}
 }
@@ -196,6 +196,7 @@ public class Treeline extends Tree<Float> {
 			return null;
 		}
 		nearest.setData(nearest.getData() + inc);
+		project.getLoader().recordChange(this);
 		return nearest;
 	}
 
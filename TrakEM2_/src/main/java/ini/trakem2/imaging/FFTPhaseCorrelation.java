@@ -0,0 +1,220 @@
+package ini.trakem2.imaging;
+
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Phase correlation of two images, as done by {@link PhaseCorrelationCalculator}
+ * but with FFT plans that are created once per transform size and shared by
+ * all threads, so that many pairs of images of the same size, like the strips
+ * of the tiles of a grid, are correlated at the cost of the transforms alone.
+ *
+ * Of the {@link #NUM_PEAKS} highest peaks of the phase correlation, each in its
+ * four possible interpretations (the transform is periodic), the shift is the
+ * one with the highest cross-correlation coefficient over the overlap of the
+ * two images.
+ */
+public final class FFTPhaseCorrelation
+{
+	/** Number of phase correlation peaks to verify with cross-correlation. */
+	static public final int NUM_PEAKS = 5;
+	/** Minimal overlap of the two images for a shift to be considered, as a fraction of the pixels of the smaller one. */
+	static public final float MIN_OVERLAP = 0.05f;
+
+	static private final ConcurrentHashMap<Integer,FftReal> real_plans = new ConcurrentHashMap<Integer,FftReal>();
+	static private final ConcurrentHashMap<Integer,FftComplex> complex_plans = new ConcurrentHashMap<Integer,FftComplex>();
+
+	private FFTPhaseCorrelation() {}
+
+	static private final FftReal realPlan(final int nfft) {
+		final FftReal plan = real_plans.get(nfft);
+		if (null != plan) return plan;
+		final FftReal p = new FftReal(nfft);
+		final FftReal other = real_plans.putIfAbsent(nfft, p);
+		return null == other ? p : other;
+	}
+
+	static private final FftComplex complexPlan(final int nfft) {
+		final FftComplex plan = complex_plans.get(nfft);
+		if (null != plan) return plan;
+		final FftComplex p = new FftComplex(nfft);
+		final FftComplex other = complex_plans.putIfAbsent(nfft, p);
+		return null == other ? p : other;
+	}
+
+	/** @return a double[3] array containing the x, y position of ip2 relative to ip1, and the cross-correlation coefficient R
+	 *  of the two images at that position; R is -1 when no candidate shift leaves enough overlap. */
+	static public double[] correlate(final FloatProcessor ip1, final FloatProcessor ip2) {
+		final int w1 = ip1.getWidth(),
+		          h1 = ip1.getHeight(),
+		          w2 = ip2.getWidth(),
+		          h2 = ip2.getHeight();
+		final float[] pix1 = (float[])ip1.getPixels(),
+		              pix2 = (float[])ip2.getPixels();
+		final int nx = FftReal.nfftFast(Math.max(w1, w2)),
+		          ny = FftComplex.nfftFast(Math.max(h1, h2));
+
+		final float[][] s1 = spectrum(pix1, w1, h1, nx, ny),
+		                s2 = spectrum(pix2, w2, h2, nx, ny);
+
+		// Normalized cross-power spectrum, into s1
+		for (int y=0; y<ny; ++y) {
+			final float[] a = s1[y],
+			              b = s2[y];
+			for (int k=0; k<nx+2; k+=2) {
+				final float re = a[k] * b[k] + a[k+1] * b[k+1],
+				            im = a[k+1] * b[k] - a[k] * b[k+1];
+				final float mag = (float)Math.sqrt(re * re + im * im);
+				if (mag > 1e-9f) {
+					a[k] = re / mag;
+					a[k+1] = im / mag;
+				} else {
+					a[k] = a[k+1] = 0;
+				}
+			}
+		}
+
+		final float[][] pc = inverse(s1, nx, ny);
+		final int[] peaks = peaks(pc, nx, ny);
+
+		final double min_overlap = MIN_OVERLAP * Math.min(w1 * h1, w2 * h2);
+		final double[] best = new double[]{0, 0, -1};
+		for (int i=0; i<peaks.length; i+=2) {
+			if (-1 == peaks[i]) break;
+			for (int sx = peaks[i]; sx > -nx; sx -= nx) {
+				for (int sy = peaks[i+1]; sy > -ny; sy -= ny) {
+					final double R = crossCorrelation(pix1, w1, h1, pix2, w2, h2, sx, sy, min_overlap);
+					if (R > best[2]) {
+						best[0] = sx;
+						best[1] = sy;
+						best[2] = R;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/** The 2D FFT of the image minus its mean, padded with zeros to nx,ny: ny rows of nx/2+1 complex numbers, interleaved. */
+	static private final float[][] spectrum(final float[] pix, final int w, final int h, final int nx, final int ny) {
+		double sum = 0;
+		for (int i=0; i<pix.length; ++i) sum += pix[i];
+		final float mean = (float)(sum / pix.length);
+
+		final FftReal fx = realPlan(nx);
+		final float[][] s = new float[ny][nx+2];
+		final float[] row = new float[nx];
+		for (int y=0; y<h; ++y) {
+			for (int x=0, i=y*w; x<w; ++x, ++i) row[x] = pix[i] - mean;
+			fx.realToComplex(-1, row, s[y]);
+		}
+		// rows beyond h are all zeros, and so is their transform
+
+		final FftComplex fy = complexPlan(ny);
+		final float[] col = new float[2*ny];
+		for (int k=0; k<nx+2; k+=2) {
+			for (int y=0; y<ny; ++y) {
+				col[2*y] = s[y][k];
+				col[2*y+1] = s[y][k+1];
+			}
+			fy.complexToComplex(-1, col, col);
+			for (int y=0; y<ny; ++y) {
+				s[y][k] = col[2*y];
+				s[y][k+1] = col[2*y+1];
+			}
+		}
+		return s;
+	}
+
+	/** The inverse of {@link #spectrum(float[], int, int, int, int)}, unscaled: ny rows of nx real numbers. Overwrites s. */
+	static private final float[][] inverse(final float[][] s, final int nx, final int ny) {
+		final FftComplex fy = complexPlan(ny);
+		final float[] col = new float[2*ny];
+		for (int k=0; k<nx+2; k+=2) {
+			for (int y=0; y<ny; ++y) {
+				col[2*y] = s[y][k];
+				col[2*y+1] = s[y][k+1];
+			}
+			fy.complexToComplex(1, col, col);
+			for (int y=0; y<ny; ++y) {
+				s[y][k] = col[2*y];
+				s[y][k+1] = col[2*y+1];
+			}
+		}
+		final FftReal fx = realPlan(nx);
+		final float[][] r = new float[ny][nx];
+		for (int y=0; y<ny; ++y) fx.complexToReal(1, s[y], r[y]);
+		return r;
+	}
+
+	/** @return the x,y of the {@link #NUM_PEAKS} highest local maxima, interleaved and sorted by decreasing value; -1 where there are fewer. */
+	static private final int[] peaks(final float[][] pc, final int nx, final int ny) {
+		final int[] peaks = new int[2*NUM_PEAKS];
+		final float[] values = new float[NUM_PEAKS];
+		Arrays.fill(peaks, -1);
+		Arrays.fill(values, -Float.MAX_VALUE);
+		for (int y=0; y<ny; ++y) {
+			for (int x=0; x<nx; ++x) {
+				final float v = pc[y][x];
+				if (v <= values[NUM_PEAKS-1]) continue;
+				boolean max = true;
+				// 8-neighbourhood, wrapping around like the transform
+				for (int dy=-1; max && dy<2; ++dy) {
+					final float[] row = pc[(y + dy + ny) % ny];
+					for (int dx=-1; dx<2; ++dx) {
+						if ((0 != dx || 0 != dy) && row[(x + dx + nx) % nx] > v) {
+							max = false;
+							break;
+						}
+					}
+				}
+				if (!max) continue;
+				int i = NUM_PEAKS - 1;
+				for (; i > 0 && values[i-1] < v; --i) {
+					values[i] = values[i-1];
+					peaks[2*i] = peaks[2*i-2];
+					peaks[2*i+1] = peaks[2*i-1];
+				}
+				values[i] = v;
+				peaks[2*i] = x;
+				peaks[2*i+1] = y;
+			}
+		}
+		return peaks;
+	}
+
+	/** The cross-correlation coefficient of the overlap of the two images when the second is at sx,sy of the first;
+	 *  -1 when they overlap in fewer than min_overlap pixels. */
+	static private final double crossCorrelation(final float[] pix1, final int w1, final int h1,
+	                                             final float[] pix2, final int w2, final int h2,
+	                                             final int sx, final int sy, final double min_overlap) {
+		final int x0 = Math.max(0, sx),
+		          x1 = Math.min(w1, sx + w2),
+		          y0 = Math.max(0, sy),
+		          y1 = Math.min(h1, sy + h2);
+		if (x1 <= x0 || y1 <= y0) return -1;
+		final double n = (x1 - x0) * (double)(y1 - y0);
+		if (n < min_overlap) return -1;
+		double s1 = 0, s2 = 0, s11 = 0, s22 = 0, s12 = 0;
+		for (int y=y0; y<y1; ++y) {
+			for (int x=x0, i1=y*w1+x0, i2=(y-sy)*w2+x0-sx; x<x1; ++x, ++i1, ++i2) {
+				final double a = pix1[i1],
+				             b = pix2[i2];
+				s1 += a;
+				s2 += b;
+				s11 += a * a;
+				s22 += b * b;
+				s12 += a * b;
+			}
+		}
+		final double var1 = s11 - s1 * s1 / n,
+		             var2 = s22 - s2 * s2 / n;
+		if (var1 <= 0 || var2 <= 0) return 0;
+		return (s12 - s1 * s2 / n) / Math.sqrt(var1 * var2);
+	}
+}
@@ -25,6 +25,7 @@ package ini.trakem2.imaging;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
@@ -41,14 +42,20 @@ import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.CrossCorrelation2D;
 import mpi.fruitfly.registration.ImageFilter;
-import mpicbg.imglib.algorithm.fft.PhaseCorrelationPeak;
 import mpicbg.models.ErrorStatistic;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
@@ -164,15 +171,36 @@ public class StitchingTEM {
 		{
 			public void run() {
 				
+				final ExecutorService exec = Utils.newFixedThreadPool("Stitching");
 				try {
 					final int LEFT = 0, TOP = 1;
 
+					// Correlate all pairs up front, in parallel: each patch with the one on its left and the one above, if any
+					final ArrayList<CorrelationPair> pairs = new ArrayList<CorrelationPair>();
+					final int[] left = new int[patch.length],
+					            top = new int[patch.length];
+					for (int i=1; i<patch.length; i++) {
+						left[i] = top[i] = -1;
+						if (0 != i % grid_width) {
+							left[i] = pairs.size();
+							pairs.add(new CorrelationPair(patch[i - 1], patch[i], LEFT_RIGHT));
+						}
+						if (i - grid_width > -1) {
+							top[i] = pairs.size();
+							pairs.add(new CorrelationPair(patch[i - grid_width], patch[i], TOP_BOTTOM));
+						}
+					}
+					final List<Future<double[]>> results = correlate(pairs, param.overlap, param.cc_scale, default_left_right_overlap, default_bottom_top_overlap, param.min_R, exec);
+
 					int prev_i = 0;
 					int prev = LEFT;
 
 					double[] R1=null,
 					R2=null;
 
+					// Without optimizing, the new locations of the patches, applied once no correlation renders them
+					final double[][] locations = new double[patch.length][];
+
 
 					// for minimization:
 					ArrayList<AbstractAffineTile2D<?>> al_tiles = new ArrayList<AbstractAffineTile2D<?>>();
@@ -213,16 +241,16 @@ public class StitchingTEM {
 
 						if (TOP == prev) {
 							// compare with top only
-							R1 = correlate(patch[prev_i], patch[i], param.overlap, param.cc_scale, TOP_BOTTOM, default_dx, default_dy, param.min_R);
+							R1 = result(results.get(top[i]), default_dx, default_dy);
 							R2 = null;
 							tile_top = al_tiles.get(i - grid_width);
 						} else {
 							// the one on the left
-							R2 = correlate(patch[prev_i], patch[i], param.overlap, param.cc_scale, LEFT_RIGHT, default_dx, default_dy, param.min_R);
+							R2 = result(results.get(left[i]), default_dx, default_dy);
 							tile_left = al_tiles.get(i - 1);
 							// the one above
 							if (i - grid_width > -1) {
-								R1 = correlate(patch[i - grid_width], patch[i], param.overlap, param.cc_scale, TOP_BOTTOM, default_dx, default_dy, param.min_R);
+								R1 = result(results.get(top[i]), default_dx, default_dy);
 								tile_top = al_tiles.get(i - grid_width);
 							} else {
 								R1 = null;
@@ -240,16 +268,16 @@ public class StitchingTEM {
 								// trust top
 								if (optimize) addMatches(tile_top, tile, R1[0], R1[1]);
 								else {
-									patch[i - grid_width].getBoundingBox(box);
-									patch[i].setLocation(box.x + R1[0], box.y + R1[1]);
+									placed(patch[i - grid_width], locations[i - grid_width], box);
+									locations[i] = new double[]{box.x + R1[0], box.y + R1[1]};
 								}
 							} else {
 								final Rectangle b2 = patch[i - grid_width].getBoundingBox(null);
 								// don't move: use default overlap
 								if (optimize) addMatches(tile_top, tile, 0, b2.height - default_bottom_top_overlap);
 								else {
-									patch[i - grid_width].getBoundingBox(box);
-									patch[i].setLocation(box.x, box.y + b2.height - default_bottom_top_overlap);
+									placed(patch[i - grid_width], locations[i - grid_width], box);
+									locations[i] = new double[]{box.x, box.y + b2.height - default_bottom_top_overlap};
 								}
 							}
 						} else { // LEFT
@@ -263,16 +291,16 @@ public class StitchingTEM {
 											addMatches(tile_left, tile, R2[0], R2[1]);
 											addMatches(tile_top, tile, R1[0], R1[1]);
 										} else {
-											patch[i-1].getBoundingBox(box);
-											patch[i - grid_width].getBoundingBox(box2);
-											patch[i].setLocation((box.x + R1[0] + box2.x + R2[0]) / 2, (box.y + R1[1] + box2.y + R2[1]) / 2);
+											placed(patch[i-1], locations[i-1], box);
+											placed(patch[i - grid_width], locations[i - grid_width], box2);
+											locations[i] = new double[]{(box.x + R1[0] + box2.x + R2[0]) / 2, (box.y + R1[1] + box2.y + R2[1]) / 2};
 										}
 									} else {
 										// use top alone
 										if (optimize) addMatches(tile_top, tile, R1[0], R1[1]);
 										else {
-											patch[i - grid_width].getBoundingBox(box);
-											patch[i].setLocation(box.x + R1[0], box.y + R1[1]);
+											placed(patch[i - grid_width], locations[i - grid_width], box);
+											locations[i] = new double[]{box.x + R1[0], box.y + R1[1]};
 										}
 									}
 								} else {
@@ -281,18 +309,18 @@ public class StitchingTEM {
 										// use left alone
 										if (optimize) addMatches(tile_left, tile, R2[0], R2[1]);
 										else {
-											patch[i-1].getBoundingBox(box);
-											patch[i].setLocation(box.x + R2[0], box.y + R2[1]);
+											placed(patch[i-1], locations[i-1], box);
+											locations[i] = new double[]{box.x + R2[0], box.y + R2[1]};
 										}
 									} else {
-										patch[prev_i].getBoundingBox(box);
-										patch[i - grid_width].getBoundingBox(box2);
+										placed(patch[prev_i], locations[prev_i], box);
+										placed(patch[i - grid_width], locations[i - grid_width], box2);
 										// left not trusted, top not trusted: use a combination of defaults for both
 										if (optimize) {
 											addMatches(tile_left, tile, box.width - default_left_right_overlap, 0);
 											addMatches(tile_top, tile, 0, box2.height - default_bottom_top_overlap);
 										} else {
-											patch[i].setLocation(box.x + box.width - default_left_right_overlap, box2.y + box2.height - default_bottom_top_overlap);
+											locations[i] = new double[]{box.x + box.width - default_left_right_overlap, box2.y + box2.height - default_bottom_top_overlap};
 										}
 									}
 								}
@@ -300,23 +328,30 @@ public class StitchingTEM {
 								// use left alone (top not applicable in top row)
 								if (optimize) addMatches(tile_left, tile, R2[0], R2[1]);
 								else {
-									patch[i-1].getBoundingBox(box);
-									patch[i].setLocation(box.x + R2[0], box.y + R2[1]);
+									placed(patch[i-1], locations[i-1], box);
+									locations[i] = new double[]{box.x + R2[0], box.y + R2[1]};
 								}
 							} else {
-								patch[prev_i].getBoundingBox(box);
+								placed(patch[prev_i], locations[prev_i], box);
 								// left not trusted, and top not applicable: use default overlap with left tile
 								if (optimize) addMatches(tile_left, tile, box.width - default_left_right_overlap, 0);
 								else {
-									patch[i].setLocation(box.x + box.width - default_left_right_overlap, box.y);
+									locations[i] = new double[]{box.x + box.width - default_left_right_overlap, box.y};
 								}
 							}
 						}
 
-						if (!optimize) Display.repaint(patch[i].getLayer(), patch[i], null, 0, false);
 						Utils.log2(i + ": Done patch " + patch[i]);
 					}
 
+					// All correlations are done: let the threads finish before moving any patch
+					exec.shutdown();
+					try {
+						exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException ie) {
+						return;
+					}
+
 					if (optimize) {
 
 						ArrayList<AbstractAffineTile2D<?>> al_fixed_tiles = new ArrayList<AbstractAffineTile2D<?>>();
@@ -336,6 +371,10 @@ public class StitchingTEM {
 						for ( AbstractAffineTile2D< ? > t : al_tiles )
 							t.getPatch().setAffineTransform( t.getModel().createAffine() );
 
+					} else {
+						for (int i=1; i<patch.length; i++) {
+							if (null != locations[i]) patch[i].setLocation(locations[i][0], locations[i][1]);
+						}
 					}
 					
 					// Remove or hide disconnected tiles
@@ -373,11 +412,19 @@ public class StitchingTEM {
 					//
 				} catch (Exception e) {
 					IJError.print(e);
+				} finally {
+					exec.shutdownNow();
 				}
 			}
 		};
 	}
 
+	/** Set box to the bounding box of the patch, moved to the location if not null. */
+	static private final void placed(final Patch p, final double[] location, final Rectangle box) {
+		p.getBoundingBox(box);
+		if (null != location) box.setLocation((int)Math.floor(location[0]), (int)Math.floor(location[1]));
+	}
+
 	/** dx, dy is the position of t2 relative to the 0,0 of t1. */
 	static private final void addMatches(AbstractAffineTile2D<?> t1, AbstractAffineTile2D<?> t2, double dx, double dy) {
 		Point p1 = new Point(new float[]{0f, 0f});
@@ -401,86 +448,191 @@ public class StitchingTEM {
 	 * @param ignore_patch_transform will prevent resizing of the ImageProcessor in the event of the Patch having a transform different than identity. */ 
 	// TODO 2: there is a combination of options that ends up resulting in the actual ImageProcessor of the Patch being returned as is, which is DANGEROUS because it can potentially result in changes in the data.
 	static public ImageProcessor makeStripe(final Patch p, final Roi roi, final float scale, boolean ignore_patch_transform) {
-		
-		
-		ImagePlus imp = null;
-		ImageProcessor ip = null;
-		Loader loader =  p.getProject().getLoader();
-		// check if using mipmaps and if there is a file for it. If there isn't, most likely this method is being called in an import sequence as grid procedure.
-		if (loader.isMipMapsRegenerationEnabled() && loader.checkMipMapFileExists(p, scale)) 
-		{
-			
-			// Read the transform image from the patch (this way we avoid the JPEG artifacts)
-			final Patch.PatchImage pai = p.createTransformedImage();
-			pai.target.setMinAndMax( p.getMin(), p.getMax() );
-			
-			Image image = pai.target.createImage(); //p.getProject().getLoader().fetchImage(p, scale);
-			
-			// check that dimensions are correct. If anything, they'll be larger
-			//Utils.log2("patch w,h " + p.getWidth() + ", " + p.getHeight() + " fetched image w,h: " + image.getWidth(null) + ", " + image.getHeight(null));
-			if (Math.abs(p.getWidth() * scale - image.getWidth(null)) > 0.001 || Math.abs(p.getHeight() * scale - image.getHeight(null)) > 0.001) {
-				image = image.getScaledInstance((int)(p.getWidth() * scale), (int)(p.getHeight() * scale), Image.SCALE_AREA_AVERAGING); // slow but good quality. Makes an RGB image, but it doesn't matter.
-				//Utils.log2("   resizing, now image w,h: " + image.getWidth(null) + ", " + image.getHeight(null));
-			}
-			try {
-				imp = new ImagePlus("s", image);
-				ip = imp.getProcessor();
-				//imp.show();
-			} catch (Exception e) {
-				IJError.print(e);
-			}
-			// cut
-			if (null != roi) {
-				// scale ROI!
-				Rectangle rb = roi.getBounds();
-				Roi roi2 = new Roi((int)(rb.x * scale), (int)(rb.y * scale), (int)(rb.width * scale), (int)(rb.height * scale));
-				rb = roi2.getBounds();
-				if (ip.getWidth() != rb.width || ip.getHeight() != rb.height) {
-					ip.setRoi(roi2);
-					ip = ip.crop();
+		return new StripeSource(p, scale, ignore_patch_transform).stripe(roi);
+	}
+
+	/** The image of a Patch from which stripes are cut, see {@link StitchingTEM#makeStripe(Patch, Roi, float, boolean)}:
+	 *  rendered once, for as many stripes as wanted. */
+	static private final class StripeSource {
+		final Patch p;
+		final float scale;
+		/** Whether the image comes from the mipmaps, and then is already scaled. */
+		final boolean mipmap;
+		/** Whether the image of the Patch was a float image. */
+		final boolean gray32;
+		final ImageProcessor ip;
+
+		StripeSource(final Patch p, final float scale, final boolean ignore_patch_transform) {
+			this.p = p;
+			this.scale = scale;
+			ImagePlus imp = null;
+			ImageProcessor ip = null;
+			Loader loader =  p.getProject().getLoader();
+			// check if using mipmaps and if there is a file for it. If there isn't, most likely this method is being called in an import sequence as grid procedure.
+			this.mipmap = loader.isMipMapsRegenerationEnabled() && loader.checkMipMapFileExists(p, scale);
+			if (mipmap) 
+			{
+				
+				// Read the transform image from the patch (this way we avoid the JPEG artifacts)
+				final Patch.PatchImage pai = p.createTransformedImage();
+				pai.target.setMinAndMax( p.getMin(), p.getMax() );
+				
+				Image image = pai.target.createImage(); //p.getProject().getLoader().fetchImage(p, scale);
+				
+				// check that dimensions are correct. If anything, they'll be larger
+				//Utils.log2("patch w,h " + p.getWidth() + ", " + p.getHeight() + " fetched image w,h: " + image.getWidth(null) + ", " + image.getHeight(null));
+				if (Math.abs(p.getWidth() * scale - image.getWidth(null)) > 0.001 || Math.abs(p.getHeight() * scale - image.getHeight(null)) > 0.001) {
+					image = image.getScaledInstance((int)(p.getWidth() * scale), (int)(p.getHeight() * scale), Image.SCALE_AREA_AVERAGING); // slow but good quality. Makes an RGB image, but it doesn't matter.
+					//Utils.log2("   resizing, now image w,h: " + image.getWidth(null) + ", " + image.getHeight(null));
 				}
-			}
-			//Utils.log2("scale: " + scale + "  ip w,h: " + ip.getWidth() + ", " + ip.getHeight());
-		} else {
-			
-			
-			final Patch.PatchImage pai = p.createTransformedImage();
-			pai.target.setMinAndMax( p.getMin(), p.getMax() );
-			
-			ip = pai.target;
-			imp = new ImagePlus("", ip);
-			
-			
-			// compare and adjust
-			if (!ignore_patch_transform && p.getAffineTransform().getType() != AffineTransform.TYPE_TRANSLATION) { // if it's not only a translation:
-				final Rectangle b = p.getBoundingBox();
-				ip = ip.resize(b.width, b.height);
-				//Utils.log2("resizing stripe for patch: " + p);
-				// the above is only meant to correct for improperly acquired images at the microscope, the scale only.
-			}
-			// cut
-			if (null != roi) {
-				final Rectangle rb = roi.getBounds();
-				if (ip.getWidth() != rb.width || ip.getHeight() != rb.height) {
-					ip.setRoi(roi);
-					ip = ip.crop();
+				try {
+					imp = new ImagePlus("s", image);
+					ip = imp.getProcessor();
+					//imp.show();
+				} catch (Exception e) {
+					IJError.print(e);
+				}
+			} else {
+				
+				
+				final Patch.PatchImage pai = p.createTransformedImage();
+				pai.target.setMinAndMax( p.getMin(), p.getMax() );
+				
+				ip = pai.target;
+				imp = new ImagePlus("", ip);
+				
+				
+				// compare and adjust
+				if (!ignore_patch_transform && p.getAffineTransform().getType() != AffineTransform.TYPE_TRANSLATION) { // if it's not only a translation:
+					final Rectangle b = p.getBoundingBox();
+					ip = ip.resize(b.width, b.height);
+					//Utils.log2("resizing stripe for patch: " + p);
+					// the above is only meant to correct for improperly acquired images at the microscope, the scale only.
 				}
 			}
-			// scale
-			if (scale < 1) {
-				p.getProject().getLoader().releaseToFit((long)(ip.getWidth() * ip.getHeight() * 4 * 1.2)); // floats have 4 bytes, plus some java peripherals correction factor
-				ip = ip.convertToFloat();
-				ip.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip.getPixels(), ip.getWidth(), ip.getHeight()), (float)Math.sqrt(0.25 / scale / scale - 0.25)).data); // scaling with area averaging is the same as a gaussian of sigma 0.5/scale and then resize with nearest neightbor So this line does the gaussian, and line below does the neares-neighbor scaling
-				ip = ip.resize((int)(ip.getWidth() * scale)); // scale maintaining aspect ratio
+			this.gray32 = null != imp && imp.getType() == ImagePlus.GRAY32;
+			this.ip = ip;
+		}
+
+		/** @return FloatProcessor, which may be the image of this source itself; see {@link #ip}. */
+		ImageProcessor stripe(final Roi roi) {
+			ImageProcessor ip = this.ip;
+			if (mipmap) {
+				// cut
+				if (null != roi) {
+					// scale ROI!
+					Rectangle rb = roi.getBounds();
+					Roi roi2 = new Roi((int)(rb.x * scale), (int)(rb.y * scale), (int)(rb.width * scale), (int)(rb.height * scale));
+					rb = roi2.getBounds();
+					if (ip.getWidth() != rb.width || ip.getHeight() != rb.height) {
+						ip.setRoi(roi2);
+						ip = ip.crop();
+					}
+				}
+				//Utils.log2("scale: " + scale + "  ip w,h: " + ip.getWidth() + ", " + ip.getHeight());
+			} else {
+				// cut
+				if (null != roi) {
+					final Rectangle rb = roi.getBounds();
+					if (ip.getWidth() != rb.width || ip.getHeight() != rb.height) {
+						ip.setRoi(roi);
+						ip = ip.crop();
+					}
+				}
+				// scale
+				if (scale < 1) {
+					p.getProject().getLoader().releaseToFit((long)(ip.getWidth() * ip.getHeight() * 4 * 1.2)); // floats have 4 bytes, plus some java peripherals correction factor
+					ip = ip.convertToFloat();
+					// into a new processor, for the pixels of this source to remain as they are for other stripes
+					ip = new FloatProcessor(ip.getWidth(), ip.getHeight(), ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip.getPixels(), ip.getWidth(), ip.getHeight()), (float)Math.sqrt(0.25 / scale / scale - 0.25)).data, null); // scaling with area averaging is the same as a gaussian of sigma 0.5/scale and then resize with nearest neightbor So this line does the gaussian, and line below does the neares-neighbor scaling
+					ip = ip.resize((int)(ip.getWidth() * scale)); // scale maintaining aspect ratio
+				}
 			}
+
+			//Utils.log2("makeStripe: w,h " + ip.getWidth() + ", " + ip.getHeight());
+
+			// return a FloatProcessor
+			if (!gray32) return ip.convertToFloat();
+
+			return ip;
 		}
+	}
 
-		//Utils.log2("makeStripe: w,h " + ip.getWidth() + ", " + ip.getHeight());
+	/** The stripes of the pairs of Patch to correlate at one scale, cut from one rendering of each Patch, which is
+	 *  done when its first stripe is asked for. A stripe is kept until handed out as many times as expected,
+	 *  so that each Patch image and its stripes are released after the last pair it takes part in. */
+	static private final class StripeCache {
+		final float scale;
+		/** Per Patch, the stripes expected from it and how many times; null stripes until the Patch is rendered. */
+		final HashMap<Patch,HashMap<Rectangle,Object[]>> stripes = new HashMap<Patch,HashMap<Rectangle,Object[]>>();
+
+		StripeCache(final float scale) {
+			this.scale = scale;
+		}
 
-		// return a FloatProcessor
-		if (imp.getType() != ImagePlus.GRAY32) return ip.convertToFloat();
+		/** Register, before any {@link #get(Patch, Roi)}, that the stripe of p within roi will be asked for once. */
+		void expect(final Patch p, final Roi roi) {
+			HashMap<Rectangle,Object[]> m = stripes.get(p);
+			if (null == m) {
+				m = new HashMap<Rectangle,Object[]>();
+				stripes.put(p, m);
+			}
+			final Object[] o = m.get(roi.getBounds());
+			if (null == o) m.put(roi.getBounds(), new Object[]{null, 1});
+			else o[1] = (Integer)o[1] + 1;
+		}
+
+		/** @return a FloatProcessor that the caller may modify; made anew when not expected. */
+		ImageProcessor get(final Patch p, final Roi roi) {
+			final HashMap<Rectangle,Object[]> m;
+			synchronized (stripes) {
+				m = stripes.get(p);
+			}
+			if (null == m) return makeStripe(p, roi, scale);
+			synchronized (m) {
+				final Rectangle r = roi.getBounds();
+				final Object[] o = m.get(r);
+				if (null == o) return makeStripe(p, roi, scale);
+				if (null == o[0]) {
+					// Cut all stripes of p from a single rendering
+					final StripeSource source = new StripeSource(p, scale, false);
+					for (final Map.Entry<Rectangle,Object[]> e : m.entrySet()) {
+						final ImageProcessor ip = source.stripe(new Roi(e.getKey()));
+						e.getValue()[0] = ip == source.ip ? ip.duplicate() : ip;
+					}
+				}
+				final int count = (Integer)o[1] - 1;
+				if (count > 0) {
+					o[1] = count;
+					return ((ImageProcessor)o[0]).duplicate();
+				}
+				m.remove(r);
+				if (m.isEmpty()) {
+					synchronized (stripes) {
+						stripes.remove(p);
+					}
+				}
+				return (ImageProcessor)o[0];
+			}
+		}
+	}
 
-		return ip;
+	/** The rois of the stripes of base and moving that {@link #correlate(Patch, Patch, float, float, int, double, double, float)} compares
+	 *  at overlap; that is, the bottom and top or the right and left stripes. */
+	static private Roi[] stripeRois(final Rectangle b1, final Rectangle b2, final float overlap, final int direction) {
+		final int w1 = b1.width,
+			  h1 = b1.height,
+			  w2 = b2.width,
+			  h2 = b2.height;
+		switch(direction) {
+			case TOP_BOTTOM:
+				return new Roi[]{new Roi(0, h1 - (int)(h1 * overlap), w1, (int)(h1 * overlap)), // bottom
+				                 new Roi(0, 0, w2, (int)(h2 * overlap))}; // top
+			case LEFT_RIGHT:
+				return new Roi[]{new Roi(w1 - (int)(w1 * overlap), 0, (int)(w1 * overlap), h1), // right
+				                 new Roi(0, 0, (int)(w2 * overlap), h2)}; // left
+		}
+		return new Roi[]{null, null};
 	}
 
 	
@@ -495,6 +647,11 @@ public class StitchingTEM {
 	 * 	- R: cross-correlation coefficient<br />
 	 */
 	static public double[] correlate(final Patch base, final Patch moving, final float percent_overlap, final float scale, final int direction, final double default_dx, final double default_dy, final float min_R) {
+		return correlate(base, moving, percent_overlap, scale, direction, default_dx, default_dy, min_R, null);
+	}
+
+	/** @param cache Optional, to take the stripes for phase-correlation from. */
+	static private double[] correlate(final Patch base, final Patch moving, final float percent_overlap, final float scale, final int direction, final double default_dx, final double default_dy, final float min_R, final StripeCache cache) {
 		//PhaseCorrelation2D pc = null;
 		double R = -2;
 		//final int limit = 5; // number of peaks to check in the PhaseCorrelation results
@@ -506,10 +663,6 @@ public class StitchingTEM {
 		ImageProcessor ip1, ip2;
 		final Rectangle b1 = base.getBoundingBox(null);
 		final Rectangle b2 = moving.getBoundingBox(null);
-		final int w1 = b1.width,
-			  h1 = b1.height,
-			  w2 = b2.width,
-			  h2 = b2.height;
 		Roi roi1=null,
 		    roi2=null;
 		float overlap = percent_overlap;
@@ -517,35 +670,28 @@ public class StitchingTEM {
 		       dy = default_dy;
 		do {
 			// create rois for the stripes
-			switch(direction) {
-				case TOP_BOTTOM:
-					roi1 = new Roi(0, h1 - (int)(h1 * overlap), w1, (int)(h1 * overlap)); // bottom
-					roi2 = new Roi(0, 0, w2, (int)(h2 * overlap)); // top
-					break;
-				case LEFT_RIGHT:
-					roi1 = new Roi(w1 - (int)(w1 * overlap), 0, (int)(w1 * overlap), h1); // right
-					roi2 = new Roi(0, 0, (int)(w2 * overlap), h2); // left
-					break;
-			}
+			Roi[] rois = stripeRois(b1, b2, overlap, direction);
+			roi1 = rois[0];
+			roi2 = rois[1];
 			//Utils.log2("roi1: " + roi1);
 			//Utils.log2("roi2: " + roi2);
-			ip1 = makeStripe(base, roi1, scale); // will apply the transform if necessary
-			ip2 = makeStripe(moving, roi2, scale);
+			if (null == cache) {
+				ip1 = makeStripe(base, roi1, scale); // will apply the transform if necessary
+				ip2 = makeStripe(moving, roi2, scale);
+			} else {
+				ip1 = cache.get(base, roi1);
+				ip2 = cache.get(moving, roi2);
+			}
 			//new ImagePlus("roi1", ip1).show();
 			//new ImagePlus("roi2", ip2).show();
 			ip1.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip1.getPixels(), ip1.getWidth(), ip1.getHeight()), 1f).data);
 			ip2.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip2.getPixels(), ip2.getWidth(), ip2.getHeight()), 1f).data);
 			//
 			
-			final ImagePlus imp1 = new ImagePlus( "", ip1 );
-			final ImagePlus imp2 = new ImagePlus( "", ip2 );
-
-			PhaseCorrelationCalculator t = new PhaseCorrelationCalculator(imp1, imp2);
-			PhaseCorrelationPeak peak = t.getPeak();
+			final double[] pc = FFTPhaseCorrelation.correlate((FloatProcessor)ip1, (FloatProcessor)ip2);
 			
-			final double resultR = peak.getCrossCorrelationPeak();
-			final int[] peackPostion = peak.getPosition();
-			final java.awt.Point shift = new java.awt.Point(peackPostion[0], peackPostion[1]);
+			final double resultR = pc[2];
+			final java.awt.Point shift = new java.awt.Point((int)pc[0], (int)pc[1]);
 			
 			//pc = new PhaseCorrelation2D(ip1, ip2, limit, true, false, false); // with windowing
 			//final java.awt.Point shift = pc.computePhaseCorrelation();
@@ -582,16 +728,9 @@ public class StitchingTEM {
 		// Phase-correlation failed, fall back to cross-correlation with a safe overlap
 		overlap = percent_overlap * 2;
 		if (overlap > 1.0f) overlap = 1.0f;
-		switch(direction) {
-			case TOP_BOTTOM:
-				roi1 = new Roi(0, h1 - (int)(h1 * overlap), w1, (int)(h1 * overlap)); // bottom
-				roi2 = new Roi(0, 0, w2, (int)(h2 * overlap)); // top
-				break;
-			case LEFT_RIGHT:
-				roi1 = new Roi(w1 - (int)(w1 * overlap), 0, (int)(w1 * overlap), h1); // right
-				roi2 = new Roi(0, 0, (int)(w2 * overlap), h2); // left
-				break;
-		}
+		final Roi[] rois = stripeRois(b1, b2, overlap, direction);
+		roi1 = rois[0];
+		roi2 = rois[1];
 		// use one third of the size used for phase-correlation though! Otherwise, it may take FOREVER
 		float scale_cc = (float)(scale / 3f);
 		ip1 = makeStripe(base, roi1, scale_cc);
@@ -693,6 +832,8 @@ public class StitchingTEM {
 	}
 	
 	/**
+	 * The correlations of the pairs of all layers run concurrently, while the
+	 * tiles of each layer are optimized, one layer after another, as soon as its pairs are done.
 	 * 
 	 * @param layers
 	 * @param worker Optional, the {@link Worker} running this task.
@@ -703,14 +844,27 @@ public class StitchingTEM {
 		if (!param.setup(col.size() > 0 ? (Patch)col.iterator().next() : null)) {
 			return;
 		}
-		int i = 1;
-		for (Layer la : layers) {
-			if (Thread.currentThread().isInterrupted() || (null != worker && worker.hasQuitted())) return;
-			if (null != worker) worker.setTaskName("Montage layer " + i + "/" + layers.size());
-			final Collection<Patch> patches = (Collection<Patch>) (Collection) la.getDisplayables(Patch.class);
-			AlignTask.transformPatchesAndVectorData(patches, new Runnable() { public void run() {
-				montageWithPhaseCorrelation(patches, param);
-			}});
+		final ExecutorService exec = Utils.newFixedThreadPool("Montage with phase-correlation");
+		try {
+			final ArrayList<Montage> montages = new ArrayList<Montage>();
+			for (Layer la : layers) {
+				montages.add(startMontage((Collection<Patch>) (Collection) la.getDisplayables(Patch.class), param, exec));
+			}
+			int i = 1;
+			for (Layer la : layers) {
+				if (Thread.currentThread().isInterrupted() || (null != worker && worker.hasQuitted())) return;
+				if (null != worker) worker.setTaskName("Montage layer " + i + "/" + layers.size());
+				final Collection<Patch> patches = (Collection<Patch>) (Collection) la.getDisplayables(Patch.class);
+				final Montage montage = montages.get(i - 1);
+				AlignTask.transformPatchesAndVectorData(patches, new Runnable() { public void run() {
+					if (null != montage) finishMontage(montage, param);
+				}});
+				// Release the correlations of this layer
+				montages.set(i - 1, null);
+				i++;
+			}
+		} finally {
+			exec.shutdownNow();
 		}
 	}
 
@@ -803,9 +957,38 @@ public class StitchingTEM {
 	static public void montageWithPhaseCorrelation(final Collection<Patch> col, final PhaseCorrelationParam param) 
 	{
 		if (null == col || col.size() < 1) return;
-		final ArrayList<Patch> al = new ArrayList<Patch>(col);
+		final ExecutorService exec = Utils.newFixedThreadPool("Montage with phase-correlation");
+		try {
+			finishMontage(startMontage(col, param, exec), param);
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** The tiles of a collection of patches and the correlations of their pairs, see {@link StitchingTEM#startMontage(Collection, PhaseCorrelationParam, ExecutorService)}. */
+	static private final class Montage {
+		final ArrayList<Patch> al;
 		final ArrayList<AbstractAffineTile2D<?>> tiles = new ArrayList<AbstractAffineTile2D<?>>();
 		final ArrayList<AbstractAffineTile2D<?>> fixed_tiles = new ArrayList<AbstractAffineTile2D<?>>();
+		/** Per pair, the indices of the base and the moving tiles. */
+		final ArrayList<int[]> tile_pairs = new ArrayList<int[]>();
+		List<Future<double[]>> results;
+
+		Montage(final Collection<Patch> col) {
+			this.al = new ArrayList<Patch>(col);
+		}
+	}
+
+	/**
+	 * Create the tiles of the patches and submit the correlations of all pairs of overlapping patches to exec.
+	 * @return null if there are no patches.
+	 */
+	static private Montage startMontage(final Collection<Patch> col, final PhaseCorrelationParam param, final ExecutorService exec)
+	{
+		if (null == col || col.size() < 1) return null;
+		final Montage m = new Montage(col);
+		final ArrayList<Patch> al = m.al;
+		final ArrayList<AbstractAffineTile2D<?>> tiles = m.tiles;
 		
 		for (final Patch p : al) {
 			// Pre-check: just a warning
@@ -824,7 +1007,7 @@ public class StitchingTEM {
 			tiles.add(tile);
 			if (p.isLocked2()) {
 				Utils.log("Added fixed (locked) tile " + p);
-				fixed_tiles.add(tile);
+				m.fixed_tiles.add(tile);
 			}
 		}
 		// Get acceptable values
@@ -840,13 +1023,13 @@ public class StitchingTEM {
 		}
 
 		
+		final ArrayList<CorrelationPair> pairs = new ArrayList<CorrelationPair>();
 
 		for (int i=0; i<al.size(); i++) {
 			final Patch p1 = al.get(i);
 			final Rectangle r1 = p1.getBoundingBox();
 			// find overlapping, add as connections
 			for (int j=i+1; j<al.size(); j++) {
-				if (Thread.currentThread().isInterrupted()) return;
 				final Patch p2 = al.get(j);
 				final Rectangle r2 = p2.getBoundingBox();
 				if (r1.intersects(r2)) {
@@ -859,39 +1042,26 @@ public class StitchingTEM {
 						continue;
 					}
 
-					p1.getProject().getLoader().releaseToFit((long)(p1.getWidth() * p1.getHeight() * 25));
-
-					final double[] R;
 					if (1 == overlap) {
-						R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R );
-						if (SUCCESS == R[2]) {
-							addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-						}
+						pairs.add(new CorrelationPair(p1, p2, TOP_BOTTOM));
+						m.tile_pairs.add(new int[]{i, j});
 					} else {
 						switch (getClosestOverlapLocation(p1, p2)) {
 							case 0: // p1 overlaps p2 from the left
-								R = correlate(p1, p2, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
+								pairs.add(new CorrelationPair(p1, p2, LEFT_RIGHT));
+								m.tile_pairs.add(new int[]{i, j});
 								break;
 							case 1: // p1 overlaps p2 from the top
-								R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
+								pairs.add(new CorrelationPair(p1, p2, TOP_BOTTOM));
+								m.tile_pairs.add(new int[]{i, j});
 								break;
 							case 2: // p1 overlaps p2 from the right
-								R = correlate(p2, p1, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
+								pairs.add(new CorrelationPair(p2, p1, LEFT_RIGHT));
+								m.tile_pairs.add(new int[]{j, i});
 								break;
 							case 3: // p1 overlaps p2 from the bottom
-								R = correlate(p2, p1, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
+								pairs.add(new CorrelationPair(p2, p1, TOP_BOTTOM));
+								m.tile_pairs.add(new int[]{j, i});
 								break;
 							default:
 								Utils.log("Unknown overlap direction!");
@@ -902,6 +1072,25 @@ public class StitchingTEM {
 			}
 		}
 
+		m.results = correlate(pairs, overlap, cc_scale, 0, 0, param.min_R, exec);
+		return m;
+	}
+
+	/** Wait for the correlations of the montage, add the successful ones as matches in the order of the pairs, and optimize. */
+	static private void finishMontage(final Montage m, final PhaseCorrelationParam param)
+	{
+		final ArrayList<Patch> al = m.al;
+		final ArrayList<AbstractAffineTile2D<?>> tiles = m.tiles;
+
+		for (int k=0; k<m.tile_pairs.size(); k++) {
+			final double[] R = result(m.results.get(k), 0, 0);
+			if (Thread.currentThread().isInterrupted()) return;
+			if (SUCCESS == R[2]) {
+				final int[] ij = m.tile_pairs.get(k);
+				addMatches(tiles.get(ij[0]), tiles.get(ij[1]), R[0], R[1]);
+			}
+		}
+
 		if (param.remove_disconnected || param.hide_disconnected) {
 			for (Iterator<AbstractAffineTile2D<?>> it = tiles.iterator(); it.hasNext(); ) {
 				AbstractAffineTile2D<?> t = it.next();
@@ -914,13 +1103,63 @@ public class StitchingTEM {
 		}
 
 		// Optimize tile configuration by removing bad matches
-		optimizeTileConfiguration(tiles, fixed_tiles, param);
+		optimizeTileConfiguration(tiles, m.fixed_tiles, param);
 
 		for ( AbstractAffineTile2D< ? > t : tiles )
 			t.getPatch().setAffineTransform( t.getModel().createAffine() );
 
 		try { Display.repaint(al.get(0).getLayer()); } catch (Exception e) {}
 	}
+
+	/** A pair of patches to correlate: the stripe of base at one side with the stripe of moving at the opposite side. */
+	static private final class CorrelationPair {
+		final Patch base, moving;
+		final int direction;
+
+		CorrelationPair(final Patch base, final Patch moving, final int direction) {
+			this.base = base;
+			this.moving = moving;
+			this.direction = direction;
+		}
+	}
+
+	/**
+	 * Submit to exec the {@link #correlate(Patch, Patch, float, float, int, double, double, float)} of each pair.
+	 * Each patch is rendered once for all the stripes of the pairs it takes part in,
+	 * and released after the last of them; the pairs start in order, so that patches
+	 * shared by nearby pairs, like neighbours in a grid, are not kept for long.
+	 * @return the futures of the results, in the order of the pairs.
+	 */
+	static private List<Future<double[]>> correlate(final List<CorrelationPair> pairs, final float overlap, final float scale, final double default_dx, final double default_dy, final float min_R, final ExecutorService exec) {
+		final StripeCache cache = new StripeCache(scale);
+		for (final CorrelationPair pair : pairs) {
+			final Roi[] rois = stripeRois(pair.base.getBoundingBox(null), pair.moving.getBoundingBox(null), overlap, pair.direction);
+			cache.expect(pair.base, rois[0]);
+			cache.expect(pair.moving, rois[1]);
+		}
+		final ArrayList<Future<double[]>> fus = new ArrayList<Future<double[]>>(pairs.size());
+		for (final CorrelationPair pair : pairs) {
+			fus.add(exec.submit(new Callable<double[]>() {
+				public double[] call() {
+					pair.base.getProject().getLoader().releaseToFit((long)(pair.base.getWidth() * pair.base.getHeight() * 25));
+					return correlate(pair.base, pair.moving, overlap, scale, pair.direction, default_dx, default_dy, min_R, cache);
+				}
+			}));
+		}
+		return fus;
+	}
+
+	/** Wait for a result of {@link #correlate(List, float, float, double, double, float, ExecutorService)}; an ERROR one when it failed or the thread was interrupted. */
+	static private double[] result(final Future<double[]> fu, final double default_dx, final double default_dy) {
+		try {
+			return fu.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ee) {
+			IJError.print(ee.getCause());
+		}
+		return new double[]{default_dx, default_dy, ERROR, 0};
+	}
 	
 	/**
 	 * Optimize tile configuration by removing bad matches
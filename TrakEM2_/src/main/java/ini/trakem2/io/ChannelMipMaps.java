@@ -0,0 +1,156 @@
+package ini.trakem2.io;
+
+import ini.trakem2.persistence.ImageBytes;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** Reads {@link RawMipMaps} and {@link RagMipMaps} files through a {@link FileChannel},
+ * with the same result as their own {@code load} and {@code read} methods but with fewer copies
+ * and allocations, given that this is the hottest path when fetching mipmaps:
+ *
+ * - Files are read with positional reads and their channel closed right after. They are not
+ *   memory-mapped: a mapping would hold the file open until garbage collected, and on some
+ *   platforms, like Windows, a mipmap file that is mapped can't be regenerated or deleted.
+ * - The header is decoded in place, from a per-thread buffer.
+ * - The grey and color channels are copied from the file straight into the channel arrays of the
+ *   returned {@link ImageBytes}, which come from the {@link CachingThread} pool.
+ * - The compressed alpha channel of RAG files is inflated with an {@link Inflater} that
+ *   is reused by each thread, from a per-thread staging buffer.
+ *
+ * The methods are thread-safe.
+ */
+public final class ChannelMipMaps
+{
+	/** Per-thread reusable state: an {@link Inflater}, a header buffer and a staging buffer for compressed data. */
+	static private final class State {
+		final Inflater inflater = new Inflater(false);
+		final ByteBuffer header = ByteBuffer.allocate(RawMipMaps.HEADER_SIZE);
+		byte[] staging = new byte[64 * 1024];
+
+		final byte[] staging(final int length) {
+			if (staging.length < length) staging = new byte[Math.max(length, staging.length * 2)];
+			return staging;
+		}
+	}
+
+	static private final ThreadLocal<State> states = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	private ChannelMipMaps() {}
+
+	/** Like {@link RawMipMaps#load(String)}. */
+	static public final ImageBytes loadRaw(final String path) {
+		return load(path, false, 0);
+	}
+
+	/** Like {@link RagMipMaps#load(String)}. */
+	static public final ImageBytes loadRag(final String path) {
+		return load(path, true, 0);
+	}
+
+	/** Like {@link RawMipMaps#read(String)}. */
+	static public final BufferedImage readRaw(final String path) {
+		return RagMipMaps.createImage(loadRaw(path));
+	}
+
+	/** Like {@link RagMipMaps#read(String)}. */
+	static public final BufferedImage readRag(final String path) {
+		return RagMipMaps.createImage(loadRag(path));
+	}
+
+	static private final ImageBytes load(final String path, final boolean compressed_alpha, final int retry) {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(path);
+			final FileChannel fc = fis.getChannel();
+			final long size = fc.size();
+			if (size < RawMipMaps.HEADER_SIZE) throw new IOException("Incomplete file: " + path);
+			final State state = states.get();
+			final ByteBuffer header = state.header;
+			header.clear();
+			read(fc, header, 0, path);
+			// Header, big-endian like the files
+			final int width = header.getInt(0),
+			          height = header.getInt(4),
+			          nCh = header.get(8);
+			if (nCh < 1 || nCh > 4) throw new IOException("Invalid number of channels " + nCh + " in " + path);
+			final int chLength = compressed_alpha ? width * height : (int)((size - RawMipMaps.HEADER_SIZE) / nCh);
+			// Types 2 and 4 of RAG files have a compressed alpha channel
+			final int end = compressed_alpha && 0 == nCh % 2 ? nCh -1 : nCh;
+			if (RawMipMaps.HEADER_SIZE + (long)end * chLength > size) throw new IOException("Incomplete file: " + path);
+			final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, chLength);
+			long pos = RawMipMaps.HEADER_SIZE;
+			for (int i=0; i<end; ++i) {
+				read(fc, ByteBuffer.wrap(ch[i], 0, chLength), pos, path);
+				pos += chLength;
+			}
+			if (end < nCh) {
+				// Inflate the alpha channel from the staging buffer
+				final int len = (int)(size - pos);
+				final byte[] a = state.staging(len);
+				read(fc, ByteBuffer.wrap(a, 0, len), pos, path);
+				inflate(state.inflater, a, 0, len, ch[nCh-1], chLength);
+			}
+			return new ImageBytes(ch, width, height);
+		} catch (FileNotFoundException fnfe) {
+			Utils.log2("File not found: " + path);
+		} catch (Exception e) {
+			// As in RawMipMaps and RagMipMaps: the file may exist but not yet be fully written
+			if (retry < 2) {
+				try { Thread.sleep(100); } catch (InterruptedException ie) {}
+				return load(path, compressed_alpha, retry + 1);
+			}
+			IJError.print(e);
+		} finally {
+			if (null != fis) try { fis.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Inflate @param len bytes of @param a starting at @param offset into the first @param chLength bytes of @param alpha,
+	 *  with the {@link Inflater} of the calling thread. */
+	static final void inflate(final byte[] a, final int offset, final int len, final byte[] alpha, final int chLength) throws IOException {
+		inflate(states.get().inflater, a, offset, len, alpha, chLength);
+	}
+
+	/** Fill @param b with the bytes of @param fc starting at @param pos, without moving the position of the channel. */
+	static private final void read(final FileChannel fc, final ByteBuffer b, long pos, final String path) throws IOException {
+		while (b.hasRemaining()) {
+			final int r = fc.read(b, pos);
+			if (-1 == r) throw new IOException("Unexpected end of file: " + path);
+			pos += r;
+		}
+	}
+
+	static private final void inflate(final Inflater inflater, final byte[] a, final int offset, final int len, final byte[] alpha, final int chLength) throws IOException {
+		inflater.reset();
+		inflater.setInput(a, offset, len);
+		try {
+			int sum = 0;
+			while (sum < chLength) {
+				final int r = inflater.inflate(alpha, sum, chLength - sum);
+				if (0 == r && (inflater.finished() || inflater.needsInput())) break;
+				sum += r;
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException(dfe.toString());
+		} finally {
+			// Don't retain a reference to the input array
+			inflater.reset();
+		}
+	}
+}
@@ -0,0 +1,553 @@
+package ini.trakem2.io;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.CoordinateTransformList;
+import mpicbg.trakem2.transform.InvertibleCoordinateTransform;
+import mpicbg.trakem2.transform.InvertibleCoordinateTransformList;
+
+/** Stores the {@link CoordinateTransform} of many {@link ini.trakem2.display.Patch} instances
+ * in one append-only data file, instead of one XML file for each.
+ *
+ * Each transform is stored under its unique id in a compact binary encoding, see {@link #encode(CoordinateTransform)}:
+ * the numbers of the data strings of the transforms, such as the many point matches of a
+ * {@link mpicbg.trakem2.transform.MovingLeastSquaresTransform2}, are stored as binary floats, doubles or integers.
+ *
+ * Writes are batched: {@link #put(long, CoordinateTransform)} only encodes the transform,
+ * and all pending transforms are appended to the data file in one go by {@link #flush(boolean)},
+ * which must be called before saving a project that refers to them.
+ * Like in {@link PackedMipMaps}, an index file records, for each id, the offset and the length
+ * of its data; the index is appended to after the data, and is read in full when opening.
+ * Storing a transform again under the same id, or compacting without ids that are no longer used,
+ * leaves garbage in the data file, which {@link #compact(Set)} reclaims.
+ *
+ * Recently read transforms are kept, already parsed, in an LRU cache of at most {@link #CACHE_SIZE} bytes of encoded data.
+ * Callers always receive a copy, which they may modify.
+ *
+ * Folder layout, inside the coordinate transforms folder:
+ * packed/index
+ * packed/transforms
+ */
+public final class CoordinateTransformStore
+{
+	/** Name of the folder, inside the coordinate transforms folder, that contains the index and the data file. */
+	static public final String FOLDER = "packed/";
+
+	/** Maximum size of the encoded transforms waiting to be appended, in bytes. */
+	static public final int MAX_PENDING = 8 * 1024 * 1024;
+
+	/** Maximum size of the encoded transforms whose parsed instances are cached, in bytes. */
+	static public final long CACHE_SIZE = 64 * 1024 * 1024;
+
+	/** Size of an index record: id (long), offset (long), length (int); a negative length removes the id. */
+	static private final int RECORD = 8 + 8 + 4;
+
+	/** Kinds of transform. */
+	static private final byte LIST = 0,
+	                          INVERTIBLE_LIST = 1,
+	                          TRANSFORM = 2;
+
+	/** Encodings of the data string of a transform. */
+	static private final byte RAW = 0,
+	                          TOKENS = 1;
+
+	/** Types of tokens in a {@link #TOKENS} data string. */
+	static private final byte STRING = 0,
+	                          LONG = 1,
+	                          FLOAT = 2,
+	                          DOUBLE = 3;
+
+	static private final class Location {
+		final long offset;
+		final int length;
+		Location(final long offset, final int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	static private final class Cached {
+		final CoordinateTransform ct;
+		final int length;
+		Cached(final CoordinateTransform ct, final int length) {
+			this.ct = ct;
+			this.length = length;
+		}
+	}
+
+	private final String dir;
+	private final Map<Long,Location> index = new HashMap<Long,Location>();
+	/** Encoded transforms not yet appended to the data file. */
+	private final LinkedHashMap<Long,byte[]> pending = new LinkedHashMap<Long,byte[]>();
+	private long pending_bytes = 0;
+	/** Parsed transforms, in order of access. Synchronized on itself. */
+	private final LinkedHashMap<Long,Cached> cache = new LinkedHashMap<Long,Cached>(64, 0.75f, true);
+	private long cache_bytes = 0;
+	/** Counts the changes to the stored transforms, so that {@link #get(long)} doesn't cache a transform
+	 *  read before a change. Synchronized on the cache. */
+	private long version = 0;
+	private FileChannel data;
+	private RandomAccessFile index_file;
+	/** Bytes in the data file that are no longer referenced by the index. */
+	private long garbage = 0;
+
+	/** Whether there is a store inside the given coordinate transforms folder, without creating it. */
+	static public final boolean exists(final String dir_cts) {
+		return new File((dir_cts.endsWith("/") ? dir_cts : dir_cts + "/") + FOLDER + "index").exists();
+	}
+
+	/** Open or create the store inside the given coordinate transforms folder. */
+	public CoordinateTransformStore(final String dir_cts) throws IOException {
+		this.dir = (dir_cts.endsWith("/") ? dir_cts : dir_cts + "/") + FOLDER;
+		final File fdir = new File(this.dir);
+		if (!fdir.exists() && !fdir.mkdirs()) {
+			throw new IOException("Could not create folder " + this.dir);
+		}
+		recover();
+		data = new RandomAccessFile(new File(dir + "transforms"), "rw").getChannel();
+		readIndex();
+	}
+
+	/** Undo a {@link #compact(Set)} that was interrupted before the new index was in place,
+	 *  or finish one that was interrupted afterwards. */
+	private final void recover() throws IOException {
+		final File f_index = new File(dir + "index"),
+		           f_data = new File(dir + "transforms"),
+		           old_index = new File(dir + "index.old"),
+		           old_data = new File(dir + "transforms.old");
+		if (!f_index.exists() && old_index.exists()) {
+			Utils.log2("Restoring the coordinate transforms at " + dir + " from before an interrupted compaction");
+			if (old_data.exists()) {
+				f_data.delete();
+				move(old_data, f_data);
+			}
+			move(old_index, f_index);
+		}
+		old_index.delete();
+		old_data.delete();
+	}
+
+	static private final void move(final File from, final File to) throws IOException {
+		if (!from.renameTo(to)) throw new IOException("Could not rename " + from + " to " + to);
+	}
+
+	private final void readIndex() throws IOException {
+		index_file = new RandomAccessFile(new File(dir + "index"), "rw");
+		final long length = index_file.length();
+		// Drop any truncated record, as left by a crash
+		final long valid = length - length % RECORD;
+		if (valid < length) {
+			Utils.log2("Ignoring truncated record at the end of " + dir + "index");
+			index_file.setLength(valid);
+		}
+		final byte[] b = new byte[(int)Math.min(valid, RECORD * 65536)];
+		long pos = 0;
+		index_file.seek(0);
+		while (pos < valid) {
+			final int n = (int)Math.min(b.length, valid - pos);
+			index_file.readFully(b, 0, n);
+			final ByteBuffer buf = ByteBuffer.wrap(b, 0, n);
+			while (buf.hasRemaining()) {
+				final long id = buf.getLong();
+				final long offset = buf.getLong();
+				final int len = buf.getInt();
+				final Location old = len < 0 ? index.remove(id) : index.put(id, new Location(offset, len));
+				if (null != old) garbage += old.length;
+			}
+			pos += n;
+		}
+		index_file.seek(valid);
+	}
+
+	public final String getFolder() {
+		return dir;
+	}
+
+	/** The number of transforms, including those not yet flushed. */
+	synchronized public final int size() {
+		int n = index.size();
+		for (final Long id : pending.keySet()) {
+			if (!index.containsKey(id)) ++n;
+		}
+		return n;
+	}
+
+	/** Bytes in the data file that are no longer referenced. */
+	synchronized public final long getGarbageBytes() {
+		return garbage;
+	}
+
+	synchronized public final boolean contains(final long id) {
+		return pending.containsKey(id) || index.containsKey(id);
+	}
+
+	/** Store @param ct under @param id, replacing any previous one. The transform is encoded right away,
+	 *  so @param ct may be modified afterwards; it is written to disk with the next {@link #flush(boolean)},
+	 *  which happens anyway once the pending transforms reach {@link #MAX_PENDING} bytes. */
+	public final void put(final long id, final CoordinateTransform ct) throws IOException {
+		final byte[] b = encode(ct);
+		final boolean full;
+		synchronized (this) {
+			final byte[] old = pending.put(id, b);
+			if (null != old) pending_bytes -= old.length;
+			pending_bytes += b.length;
+			full = pending_bytes > MAX_PENDING;
+		}
+		// After storing it, so that a get(id) that misses this change doesn't cache what it read
+		synchronized (cache) {
+			final Cached c = cache.remove(id);
+			if (null != c) cache_bytes -= c.length;
+			++version;
+		}
+		if (full) flush(false);
+	}
+
+	/** Returns a new instance of the transform stored under @param id, or null if not found. */
+	public final CoordinateTransform get(final long id) throws Exception {
+		final long v;
+		synchronized (cache) {
+			final Cached c = cache.get(id);
+			if (null != c) return c.ct.copy();
+			v = version;
+		}
+		byte[] b;
+		final Location loc;
+		synchronized (this) {
+			b = pending.get(id);
+			loc = null == b ? index.get(id) : null;
+			if (null == b && null == loc) return null;
+		}
+		if (null == b) {
+			b = new byte[loc.length];
+			final ByteBuffer buf = ByteBuffer.wrap(b);
+			long pos = loc.offset;
+			while (buf.hasRemaining()) {
+				final int r = data.read(buf, pos);
+				if (-1 == r) throw new EOFException("Truncated data for coordinate transform #" + id);
+				pos += r;
+			}
+		}
+		final CoordinateTransform ct = decode(b);
+		if (b.length < CACHE_SIZE / 4) {
+			synchronized (cache) {
+				// Not if it was stored again while reading it
+				if (v != version) return ct.copy();
+				final Cached old = cache.put(id, new Cached(ct, b.length));
+				if (null != old) cache_bytes -= old.length;
+				cache_bytes += b.length;
+				final Iterator<Cached> it = cache.values().iterator();
+				while (cache_bytes > CACHE_SIZE && it.hasNext()) {
+					cache_bytes -= it.next().length;
+					it.remove();
+				}
+			}
+			return ct.copy();
+		}
+		return ct;
+	}
+
+	/** Append all pending transforms to the data file, and then their records to the index.
+	 *  If @param sync, wait until both are on disk, as needed before saving a project that refers to them. */
+	synchronized public final void flush(final boolean sync) throws IOException {
+		if (pending.isEmpty()) {
+			if (sync) {
+				data.force(false);
+				index_file.getFD().sync();
+			}
+			return;
+		}
+		final ByteBuffer buf = ByteBuffer.allocate((int)pending_bytes);
+		final ByteBuffer records = ByteBuffer.allocate(pending.size() * RECORD);
+		final long start = data.size();
+		for (final Map.Entry<Long,byte[]> e : pending.entrySet()) {
+			records.putLong(e.getKey()).putLong(start + buf.position()).putInt(e.getValue().length);
+			buf.put(e.getValue());
+		}
+		buf.flip();
+		long pos = start;
+		while (buf.hasRemaining()) pos += data.write(buf, pos);
+		if (sync) data.force(false);
+		// Record in the index only after the data was written
+		index_file.write(records.array()); // in one go
+		if (sync) index_file.getFD().sync();
+		records.flip();
+		while (records.hasRemaining()) {
+			final Location old = index.put(records.getLong(), new Location(records.getLong(), records.getInt()));
+			if (null != old) garbage += old.length;
+		}
+		pending.clear();
+		pending_bytes = 0;
+	}
+
+	/** Rewrite the transforms with an id in @param live into a new data file and a new index,
+	 *  dropping all others and the garbage. Blocks all other calls to synchronized methods while running,
+	 *  but not the reads of {@link #get(long)} that already started: call only when the transforms are not in use.
+	 *  @return the number of transforms dropped. */
+	synchronized public final int compact(final Set<Long> live) throws IOException {
+		flush(true);
+		int n_dropped = 0;
+		for (final Long id : index.keySet()) {
+			if (!live.contains(id)) ++n_dropped;
+		}
+		if (0 == garbage && 0 == n_dropped) return 0;
+		final File tmpdir = new File(dir + "compacting/");
+		if (!tmpdir.exists() && !tmpdir.mkdir()) throw new IOException("Could not create " + tmpdir);
+		final FileChannel new_data = new RandomAccessFile(new File(tmpdir, "transforms"), "rw").getChannel();
+		final RandomAccessFile new_index = new RandomAccessFile(new File(tmpdir, "index"), "rw");
+		final Map<Long,Location> new_locations = new HashMap<Long,Location>();
+		try {
+			// Any left by an interrupted compaction
+			new_data.truncate(0);
+			new_index.setLength(0);
+			final ByteBuffer record = ByteBuffer.allocate(RECORD);
+			long offset = 0;
+			for (final Map.Entry<Long,Location> e : index.entrySet()) {
+				if (!live.contains(e.getKey())) continue;
+				final Location loc = e.getValue();
+				final ByteBuffer buf = ByteBuffer.allocate(loc.length);
+				long pos = loc.offset;
+				while (buf.hasRemaining()) {
+					final int r = data.read(buf, pos);
+					if (-1 == r) throw new EOFException("Truncated data for coordinate transform #" + e.getKey());
+					pos += r;
+				}
+				buf.flip();
+				pos = offset;
+				while (buf.hasRemaining()) pos += new_data.write(buf, pos);
+				record.clear();
+				record.putLong(e.getKey()).putLong(offset).putInt(loc.length);
+				new_index.write(record.array());
+				new_locations.put(e.getKey(), new Location(offset, loc.length));
+				offset += loc.length;
+			}
+			new_data.force(false);
+			new_index.getFD().sync();
+		} catch (IOException ioe) {
+			new_index.close();
+			new_data.close();
+			Utils.removeFile(tmpdir);
+			throw ioe;
+		}
+		// Swap: move the old files aside and the new ones in place; see recover()
+		index_file.close();
+		data.close();
+		new_index.close();
+		new_data.close();
+		final File f_index = new File(dir + "index"),
+		           f_data = new File(dir + "transforms"),
+		           old_index = new File(dir + "index.old"),
+		           old_data = new File(dir + "transforms.old");
+		old_index.delete();
+		old_data.delete();
+		try {
+			move(f_index, old_index);
+			move(f_data, old_data);
+			move(new File(tmpdir, "transforms"), f_data);
+			move(new File(tmpdir, "index"), f_index);
+		} catch (IOException ioe) {
+			// Back to the old files, which the index in memory refers to
+			if (old_data.exists()) {
+				f_data.delete();
+				old_data.renameTo(f_data);
+			}
+			if (old_index.exists()) {
+				f_index.delete();
+				old_index.renameTo(f_index);
+			}
+			Utils.removeFile(tmpdir);
+			data = new RandomAccessFile(f_data, "rw").getChannel();
+			index_file = new RandomAccessFile(f_index, "rw");
+			index_file.seek(index_file.length());
+			throw ioe;
+		}
+		old_index.delete();
+		old_data.delete();
+		tmpdir.delete();
+		data = new RandomAccessFile(f_data, "rw").getChannel();
+		index_file = new RandomAccessFile(f_index, "rw");
+		index_file.seek(index_file.length());
+		index.clear();
+		index.putAll(new_locations);
+		garbage = 0;
+		synchronized (cache) {
+			cache.clear();
+			cache_bytes = 0;
+			++version;
+		}
+		Utils.log2("Compacted coordinate transforms at " + dir + ": " + index.size() + " transforms, dropped " + n_dropped);
+		return n_dropped;
+	}
+
+	/** Flush all pending transforms and close the files. */
+	synchronized public final void close() {
+		try {
+			flush(true);
+		} catch (IOException ioe) {
+			IJError.print(ioe);
+		}
+		try {
+			index_file.close();
+		} catch (IOException ioe) {
+			IJError.print(ioe);
+		}
+		try {
+			data.close();
+		} catch (IOException ioe) {
+			IJError.print(ioe);
+		}
+		synchronized (cache) {
+			cache.clear();
+			cache_bytes = 0;
+		}
+	}
+
+	/** Encode @param ct as a tree: lists as their kind and the number of their transforms,
+	 *  followed by each transform; and any other transform as its class name and its data string.
+	 *  A data string made of single-space separated tokens is stored as its number of tokens
+	 *  and each token as a byte for its type, {@link #STRING}, {@link #LONG}, {@link #FLOAT} or {@link #DOUBLE},
+	 *  followed by its value; numbers are only stored as such when printing them back results in the very same text.
+	 *  Any other data string is stored as is. */
+	static public final byte[] encode(final CoordinateTransform ct) throws IOException {
+		final ByteArrayOutputStream ba = new ByteArrayOutputStream(1024);
+		final DataOutputStream dos = new DataOutputStream(ba);
+		encode(ct, dos);
+		dos.flush();
+		return ba.toByteArray();
+	}
+
+	static private final void encode(final CoordinateTransform ct, final DataOutputStream dos) throws IOException {
+		if (ct instanceof InvertibleCoordinateTransformList) {
+			final List<?> list = ((InvertibleCoordinateTransformList<?>)ct).getList(null);
+			dos.writeByte(INVERTIBLE_LIST);
+			dos.writeInt(list.size());
+			for (final Object t : list) encode((CoordinateTransform)t, dos);
+		} else if (ct instanceof CoordinateTransformList) {
+			final List<?> list = ((CoordinateTransformList<?>)ct).getList(null);
+			dos.writeByte(LIST);
+			dos.writeInt(list.size());
+			for (final Object t : list) encode((CoordinateTransform)t, dos);
+		} else {
+			dos.writeByte(TRANSFORM);
+			dos.writeUTF(ct.getClass().getName());
+			final String s = ct.toDataString();
+			final String[] tokens = s.split(" ", -1);
+			for (final String token : tokens) {
+				if (0 == token.length() || token.length() > 0xffff / 3) {
+					// Not single-space separated tokens
+					dos.writeByte(RAW);
+					final byte[] b = s.getBytes("UTF-8");
+					dos.writeInt(b.length);
+					dos.write(b);
+					return;
+				}
+			}
+			dos.writeByte(TOKENS);
+			dos.writeInt(tokens.length);
+			for (final String token : tokens) writeToken(token, dos);
+		}
+	}
+
+	static private final boolean isNumber(final String s) {
+		final char c = s.charAt(0);
+		return (c >= '0' && c <= '9') || ('-' == c && s.length() > 1);
+	}
+
+	static private final void writeToken(final String s, final DataOutputStream dos) throws IOException {
+		if (isNumber(s)) {
+			try {
+				if (-1 == s.indexOf('.') && -1 == s.indexOf('E')) {
+					final long l = Long.parseLong(s);
+					if (Long.toString(l).equals(s)) {
+						dos.writeByte(LONG);
+						dos.writeLong(l);
+						return;
+					}
+				} else {
+					final float f = Float.parseFloat(s);
+					if (Float.toString(f).equals(s)) {
+						dos.writeByte(FLOAT);
+						dos.writeFloat(f);
+						return;
+					}
+					final double d = Double.parseDouble(s);
+					if (Double.toString(d).equals(s)) {
+						dos.writeByte(DOUBLE);
+						dos.writeDouble(d);
+						return;
+					}
+				}
+			} catch (NumberFormatException nfe) {
+				// Not a number after all
+			}
+		}
+		dos.writeByte(STRING);
+		dos.writeUTF(s);
+	}
+
+	/** Create a new instance of the transform encoded by {@link #encode(CoordinateTransform)} in @param b. */
+	static public final CoordinateTransform decode(final byte[] b) throws Exception {
+		final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(b));
+		return decode(dis, new StringBuilder(Math.max(16, b.length * 2)));
+	}
+
+	static private final CoordinateTransform decode(final DataInputStream dis, final StringBuilder sb) throws Exception {
+		final byte kind = dis.readByte();
+		switch (kind) {
+			case INVERTIBLE_LIST:
+				final InvertibleCoordinateTransformList<InvertibleCoordinateTransform> ictl = new InvertibleCoordinateTransformList<InvertibleCoordinateTransform>();
+				for (int i=dis.readInt(); i>0; --i) ictl.add((InvertibleCoordinateTransform)decode(dis, sb));
+				return ictl;
+			case LIST:
+				final CoordinateTransformList<CoordinateTransform> ctl = new CoordinateTransformList<CoordinateTransform>();
+				for (int i=dis.readInt(); i>0; --i) ctl.add(decode(dis, sb));
+				return ctl;
+			case TRANSFORM:
+				final CoordinateTransform ct = (CoordinateTransform) Class.forName(dis.readUTF()).newInstance();
+				final byte encoding = dis.readByte();
+				if (RAW == encoding) {
+					final byte[] s = new byte[dis.readInt()];
+					dis.readFully(s);
+					ct.init(new String(s, "UTF-8"));
+				} else if (TOKENS == encoding) {
+					sb.setLength(0);
+					final int n = dis.readInt();
+					for (int i=0; i<n; ++i) {
+						if (i > 0) sb.append(' ');
+						final byte type = dis.readByte();
+						switch (type) {
+							case STRING: sb.append(dis.readUTF()); break;
+							case LONG: sb.append(dis.readLong()); break;
+							case FLOAT: sb.append(dis.readFloat()); break;
+							case DOUBLE: sb.append(dis.readDouble()); break;
+							default: throw new IOException("Unknown token type " + type);
+						}
+					}
+					ct.init(sb.toString());
+				} else {
+					throw new IOException("Unknown data encoding " + encoding);
+				}
+				return ct;
+			default:
+				throw new IOException("Unknown kind of coordinate transform " + kind);
+		}
+	}
+}
@@ -33,6 +33,7 @@ import ij.io.TiffEncoder;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.ImageBytes;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -613,6 +614,29 @@ public class ImageSaver {
 		return grey;
 	}
 
+	/** Split the image into grey, RGB or RGBA channels, as stored in mipmap files. */
+	static public final ImageBytes asImageBytes(final BufferedImage bi) {
+		final int w = bi.getWidth(),
+		          h = bi.getHeight();
+		if (BufferedImage.TYPE_BYTE_GRAY == bi.getType()) {
+			// The raster, not getRGB, which would apply the gamma of the grey color space
+			final byte[] g = new byte[w * h];
+			bi.getRaster().getDataElements(0, 0, w, h, g);
+			return new ImageBytes(new byte[][]{g}, w, h);
+		}
+		final int[] pix = bi.getRGB(0, 0, w, h, null, 0, w);
+		final boolean alpha = bi.getColorModel().hasAlpha();
+		final byte[][] c = new byte[alpha ? 4 : 3][pix.length];
+		for (int i=0; i<pix.length; i++) {
+			final int x = pix[i];
+			c[0][i] = (byte)((x >> 16)&0xff);
+			c[1][i] = (byte)((x >>  8)&0xff);
+			c[2][i] = (byte) (x       &0xff);
+			if (alpha) c[3][i] = (byte)((x >> 24)&0xff);
+		}
+		return new ImageBytes(c, w, h);
+	}
+
 	static public final void debugAlpha() {
 		// create an image with an alpha channel
 		BufferedImage bi = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
@@ -0,0 +1,548 @@
+package ini.trakem2.io;
+
+import ini.trakem2.persistence.ImageBytes;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Stores many mipmaps in a few large, append-only chunk files, instead of one file per Patch and level.
+ *
+ * Each mipmap is encoded like a {@link RagMipMaps} file and appended to the current chunk file;
+ * when a chunk reaches {@link #CHUNK_SIZE} a new one is started. An index file records, for each key,
+ * the chunk, the offset and the length of its data. Keys are the paths of the mipmap files
+ * relative to the mipmaps folder, so that the same naming scheme of one file per Patch and level applies.
+ *
+ * The index is a journal: it is appended to on every save and remove, and read in full when opening.
+ * A truncated last record, as left by a crash, is ignored. Saving over an existing key or removing
+ * a key leaves garbage in the chunks, which {@link #compact()} reclaims; see {@link #needsCompaction()}.
+ * Compaction moves the old files aside before moving the new ones in place, and only then deletes
+ * the old ones, so that an interrupted compaction is undone or finished when opening.
+ *
+ * Reads use positional {@link FileChannel} reads, which don't modify the channel's position
+ * and therefore can run concurrently with each other and with appending, but not with compacting
+ * or closing. Once closed, loading returns null and saving and removing return false.
+ *
+ * Folder layout, inside the mipmaps folder:
+ * packed/index
+ * packed/chunk.0
+ * packed/chunk.1
+ * ...
+ * and, only while compacting, packed/compacting/ and the old files packed/index.old, packed/chunk.0.old, ...
+ */
+public final class PackedMipMaps
+{
+	/** Maximum size of a chunk file, in bytes. */
+	static public final long CHUNK_SIZE = 1024L * 1024 * 1024;
+
+	/** Name of the folder, inside the mipmaps folder, that contains the index and the chunk files. */
+	static public final String FOLDER = "packed/";
+
+	/** Fraction of the live bytes above which the garbage in the chunks warrants a {@link #compact()}. */
+	static public final double MAX_GARBAGE = 0.5;
+
+	static private final class Location {
+		final int chunk;
+		final long offset;
+		final int length;
+		Location(final int chunk, final long offset, final int length) {
+			this.chunk = chunk;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final String dir;
+	private final Map<String,Location> index = new HashMap<String,Location>();
+	private final List<FileChannel> chunks = new ArrayList<FileChannel>();
+	private RandomAccessFile index_file;
+	/** Bytes in the chunks that are no longer referenced by the index. */
+	private long garbage = 0;
+	private long live = 0;
+	/** Held for reading while reading from the chunks, and for writing while compacting,
+	 *  which replaces the chunks. Always acquired before the monitor of this instance. */
+	private final ReentrantReadWriteLock chunks_lock = new ReentrantReadWriteLock();
+	/** Set by {@link #close()}; guarded by the monitor of this instance. */
+	private boolean closed = false;
+
+	/** Open or create the packed mipmaps inside the given mipmaps folder. */
+	public PackedMipMaps(final String dir_mipmaps) throws IOException {
+		this.dir = (dir_mipmaps.endsWith("/") ? dir_mipmaps : dir_mipmaps + "/") + FOLDER;
+		final File fdir = new File(this.dir);
+		if (!fdir.exists() && !fdir.mkdirs()) {
+			throw new IOException("Could not create folder " + this.dir);
+		}
+		recover();
+		// Open existing chunks
+		for (int i=0; ; i++) {
+			final File f = new File(this.dir + "chunk." + i);
+			if (!f.exists()) break;
+			chunks.add(new RandomAccessFile(f, "rw").getChannel());
+		}
+		if (chunks.isEmpty()) newChunk();
+		readIndex();
+	}
+
+	/** Undo a {@link #compact()} that was interrupted before the new index was in place,
+	 *  or finish one that was interrupted afterwards. */
+	private final void recover() throws IOException {
+		final File f_index = new File(dir + "index"),
+		           old_index = new File(dir + "index.old"),
+		           tmpdir = new File(dir + "compacting/");
+		if (!f_index.exists() && old_index.exists()) {
+			Utils.log2("Restoring the packed mipmaps at " + dir + " from before an interrupted compaction");
+			// The new chunks are moved in place, starting with the first, only once all old ones were moved aside
+			if (!new File(tmpdir, "chunk.0").exists()) {
+				for (int i=0; ; i++) {
+					final File f = new File(dir + "chunk." + i);
+					if (!f.exists()) break;
+					if (!f.delete()) throw new IOException("Could not delete " + f);
+				}
+			}
+			for (int i=0; ; i++) {
+				final File f = new File(dir + "chunk." + i + ".old");
+				if (!f.exists()) break;
+				move(f, new File(dir + "chunk." + i));
+			}
+			move(old_index, f_index);
+		}
+		deleteOld();
+		deleteFolder(tmpdir);
+	}
+
+	static private final void deleteFolder(final File fdir) {
+		final File[] files = fdir.listFiles();
+		if (null == files) return;
+		for (final File f : files) f.delete();
+		if (!fdir.delete()) Utils.log2("Could not delete " + fdir);
+	}
+
+	/** Delete the old files that a {@link #compact()} moved aside. */
+	private final void deleteOld() {
+		new File(dir + "index.old").delete();
+		for (int i=0; ; i++) {
+			final File f = new File(dir + "chunk." + i + ".old");
+			if (!f.exists()) break;
+			if (!f.delete()) Utils.log2("Could not delete " + f);
+		}
+	}
+
+	static private final void move(final File from, final File to) throws IOException {
+		if (!from.renameTo(to)) throw new IOException("Could not rename " + from + " to " + to);
+	}
+
+	private final void newChunk() throws IOException {
+		chunks.add(new RandomAccessFile(new File(dir + "chunk." + chunks.size()), "rw").getChannel());
+	}
+
+	/** Index record: UTF key, chunk (int), offset (long), length (int); a negative length removes the key. */
+	private final void readIndex() throws IOException {
+		index_file = new RandomAccessFile(new File(dir + "index"), "rw");
+		long valid = 0;
+		try {
+			while (true) {
+				final String key = index_file.readUTF();
+				final int chunk = index_file.readInt();
+				final long offset = index_file.readLong();
+				final int length = index_file.readInt();
+				valid = index_file.getFilePointer();
+				final Location old = length < 0 ? index.remove(key) : index.put(key, new Location(chunk, offset, length));
+				if (null != old) {
+					garbage += old.length;
+					live -= old.length;
+				}
+				if (length > 0) live += length;
+			}
+		} catch (EOFException eof) {
+			// Done. Drop any truncated record
+			if (valid < index_file.length()) {
+				Utils.log2("Ignoring truncated record at the end of " + dir + "index");
+				index_file.setLength(valid);
+			}
+			index_file.seek(valid);
+		}
+	}
+
+	private final void appendRecord(final String key, final int chunk, final long offset, final int length) throws IOException {
+		final ByteArrayOutputStream ba = new ByteArrayOutputStream(key.length() + 18);
+		final DataOutputStream dos = new DataOutputStream(ba);
+		dos.writeUTF(key);
+		dos.writeInt(chunk);
+		dos.writeLong(offset);
+		dos.writeInt(length);
+		dos.flush();
+		index_file.write(ba.toByteArray()); // in one go
+	}
+
+	public final String getFolder() {
+		return dir;
+	}
+
+	synchronized public final int size() {
+		return index.size();
+	}
+
+	/** Bytes in the chunk files that are no longer referenced. */
+	synchronized public final long getGarbageBytes() {
+		return garbage;
+	}
+
+	/** Whether the garbage in the chunk files exceeds {@link #MAX_GARBAGE} of the live bytes. */
+	synchronized public final boolean needsCompaction() {
+		return garbage > 0 && garbage > live * MAX_GARBAGE;
+	}
+
+	synchronized public final boolean contains(final String key) {
+		return !closed && index.containsKey(key);
+	}
+
+	/** Store the image with the given channels under @param key, replacing any previous one. */
+	public final boolean save(final String key, final byte[][] b, final int width, final int height) {
+		try {
+			final byte[] data = RagMipMaps.encode(b, width, height);
+			synchronized (this) {
+				if (closed) return false;
+				FileChannel fc = chunks.get(chunks.size() -1);
+				if (fc.size() > 0 && fc.size() + data.length > CHUNK_SIZE) {
+					newChunk();
+					fc = chunks.get(chunks.size() -1);
+				}
+				final int chunk = chunks.size() -1;
+				final long offset = fc.size();
+				final ByteBuffer buf = ByteBuffer.wrap(data);
+				long pos = offset;
+				while (buf.hasRemaining()) pos += fc.write(buf, pos);
+				// Record in the index only after the data was written
+				appendRecord(key, chunk, offset, data.length);
+				final Location old = index.put(key, new Location(chunk, offset, data.length));
+				if (null != old) {
+					garbage += old.length;
+					live -= old.length;
+				}
+				live += data.length;
+			}
+			return true;
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return false;
+	}
+
+	/** Returns null if not found. */
+	public final ImageBytes load(final String key) {
+		chunks_lock.readLock().lock();
+		try {
+			final Location loc;
+			final FileChannel fc;
+			synchronized (this) {
+				if (closed) return null;
+				loc = index.get(key);
+				if (null == loc) return null;
+				fc = chunks.get(loc.chunk);
+			}
+			final byte[] data = CachingThread.getOrCreateByteArray(loc.length);
+			try {
+				final ByteBuffer buf = ByteBuffer.wrap(data);
+				long pos = loc.offset;
+				while (buf.hasRemaining()) {
+					final int r = fc.read(buf, pos);
+					if (-1 == r) throw new EOFException("Truncated chunk for " + key);
+					pos += r;
+				}
+				return RagMipMaps.decode(data, 0, loc.length);
+			} finally {
+				CachingThread.storeForReuse(data);
+			}
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			chunks_lock.readLock().unlock();
+		}
+		return null;
+	}
+
+	/** Returns null if not found. */
+	public final BufferedImage read(final String key) {
+		return RagMipMaps.createImage(load(key));
+	}
+
+	/** Returns false if the key was not present. */
+	synchronized public final boolean remove(final String key) {
+		if (closed) return false;
+		final Location old = index.remove(key);
+		if (null == old) return false;
+		try {
+			appendRecord(key, 0, 0, -1);
+		} catch (IOException ioe) {
+			IJError.print(ioe);
+		}
+		garbage += old.length;
+		live -= old.length;
+		return true;
+	}
+
+	/** Rewrite all referenced data into new chunks and a new index, dropping the garbage.
+	 *  Waits for the reads of {@link #load(String)} that already started, and blocks all other calls while running.
+	 *  If moving the new files in place fails, the old ones are restored and remain in use. */
+	public final void compact() throws IOException {
+		chunks_lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				compactLocked();
+			}
+		} finally {
+			chunks_lock.writeLock().unlock();
+		}
+	}
+
+	private final void compactLocked() throws IOException {
+		if (closed || 0 == garbage) return;
+		final File tmpdir = new File(dir + "compacting/");
+		// Any left by an interrupted compaction
+		deleteFolder(tmpdir);
+		if (!tmpdir.mkdir()) throw new IOException("Could not create " + tmpdir);
+		final List<FileChannel> new_chunks = new ArrayList<FileChannel>();
+		new_chunks.add(new RandomAccessFile(new File(tmpdir, "chunk.0"), "rw").getChannel());
+		final RandomAccessFile new_index = new RandomAccessFile(new File(tmpdir, "index"), "rw");
+		final RandomAccessFile old_index = this.index_file;
+		this.index_file = new_index;
+		final Map<String,Location> new_locations = new HashMap<String,Location>();
+		try {
+			for (final Map.Entry<String,Location> e : index.entrySet()) {
+				final Location loc = e.getValue();
+				final ByteBuffer buf = ByteBuffer.allocate(loc.length);
+				long pos = loc.offset;
+				final FileChannel src = chunks.get(loc.chunk);
+				while (buf.hasRemaining()) {
+					final int r = src.read(buf, pos);
+					if (-1 == r) throw new EOFException("Truncated chunk for " + e.getKey());
+					pos += r;
+				}
+				buf.flip();
+				FileChannel fc = new_chunks.get(new_chunks.size() -1);
+				if (fc.size() > 0 && fc.size() + loc.length > CHUNK_SIZE) {
+					fc = new RandomAccessFile(new File(tmpdir, "chunk." + new_chunks.size()), "rw").getChannel();
+					new_chunks.add(fc);
+				}
+				final long offset = fc.size();
+				pos = offset;
+				while (buf.hasRemaining()) pos += fc.write(buf, pos);
+				appendRecord(e.getKey(), new_chunks.size() -1, offset, loc.length);
+				new_locations.put(e.getKey(), new Location(new_chunks.size() -1, offset, loc.length));
+			}
+			for (final FileChannel fc : new_chunks) fc.force(false);
+			new_index.getFD().sync();
+		} catch (IOException ioe) {
+			new_index.close();
+			for (final FileChannel fc : new_chunks) fc.close();
+			deleteFolder(tmpdir);
+			throw ioe;
+		} finally {
+			this.index_file = old_index;
+		}
+		// Swap: move the old files aside and the new ones in place, the index last; see recover()
+		old_index.close();
+		for (final FileChannel fc : chunks) fc.close();
+		new_index.close();
+		for (final FileChannel fc : new_chunks) fc.close();
+		final File f_index = new File(dir + "index");
+		final int n_old = chunks.size();
+		chunks.clear();
+		deleteOld();
+		try {
+			move(f_index, new File(dir + "index.old"));
+			for (int i=0; i<n_old; i++) move(new File(dir + "chunk." + i), new File(dir + "chunk." + i + ".old"));
+			for (int i=0; i<new_chunks.size(); i++) move(new File(tmpdir, "chunk." + i), new File(dir + "chunk." + i));
+			move(new File(tmpdir, "index"), f_index);
+		} catch (IOException ioe) {
+			// Back to the old files, which the index in memory refers to
+			try {
+				recover();
+			} catch (IOException ioe2) {
+				IJError.print(ioe2);
+			}
+			reopen();
+			throw ioe;
+		}
+		deleteOld();
+		deleteFolder(tmpdir);
+		reopen();
+		index.clear();
+		index.putAll(new_locations);
+		garbage = 0;
+		Utils.log2("Compacted packed mipmaps at " + dir + ": " + index.size() + " mipmaps, " + live + " bytes");
+	}
+
+	/** Open the chunks and the index file in the folder, to append to them. */
+	private final void reopen() throws IOException {
+		for (int i=0; ; i++) {
+			final File f = new File(dir + "chunk." + i);
+			if (!f.exists()) break;
+			chunks.add(new RandomAccessFile(f, "rw").getChannel());
+		}
+		if (chunks.isEmpty()) newChunk();
+		this.index_file = new RandomAccessFile(new File(dir + "index"), "rw");
+		this.index_file.seek(this.index_file.length());
+	}
+
+	/** Waits for the reads of {@link #load(String)} that already started; later calls find it closed. */
+	public final void close() {
+		chunks_lock.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (closed) return;
+				closed = true;
+				try {
+					index_file.getFD().sync();
+					index_file.close();
+				} catch (IOException ioe) {
+					IJError.print(ioe);
+				}
+				for (final FileChannel fc : chunks) {
+					try { fc.close(); } catch (IOException ioe) { IJError.print(ioe); }
+				}
+				chunks.clear();
+				index.clear();
+			}
+		} finally {
+			chunks_lock.writeLock().unlock();
+		}
+	}
+
+	static private final ImageBytes loadFile(final String path, final String ext) {
+		if (".rag".equals(ext)) return RagMipMaps.load(path);
+		if (".raw".equals(ext)) return RawMipMaps.load(path);
+		final BufferedImage bi = ".tif".equals(ext) ? ImageSaver.openTIFF(path, false) : ImageSaver.openImage(path, false);
+		if (null == bi) return null;
+		try {
+			return ImageSaver.asImageBytes(bi);
+		} finally {
+			bi.flush();
+		}
+	}
+
+	/** Collect the paths, relative to the folder of @param rel, of all files ending with @param ext. */
+	static private final void listFiles(final File dir, final String rel, final String ext, final List<String> files) {
+		final String[] names = dir.list();
+		if (null == names) return;
+		for (final String name : names) {
+			if ('.' == name.charAt(0)) continue;
+			final File f = new File(dir, name);
+			if (f.isDirectory()) listFiles(f, rel + name + "/", ext, files);
+			else if (name.endsWith(ext)) files.add(rel + name);
+		}
+	}
+
+	/** Convert all mipmap files with extension @param ext (one of ".jpg", ".png", ".tif", ".raw", ".rag")
+	 * in the numbered level folders of @param dir_mipmaps into packed mipmaps, each stored under its relative
+	 * path with the extension replaced by @param packed_ext. The files are read and decoded in parallel
+	 * by @param exec. The old files are not removed: each stored file is recorded in @param migrated,
+	 * with its last modification time before reading, for {@link #removeMigrated} to remove it
+	 * once the packed mipmaps are in use.
+	 *
+	 * @return the number of converted files, or -1 if the packed mipmaps could not be opened. */
+	static public final int migrate(final String dir_mipmaps, final String ext, final String packed_ext, final ExecutorService exec, final Map<String,Long> migrated) {
+		final String dir = dir_mipmaps.endsWith("/") ? dir_mipmaps : dir_mipmaps + "/";
+		final PackedMipMaps packed;
+		try {
+			packed = new PackedMipMaps(dir);
+		} catch (IOException ioe) {
+			IJError.print(ioe);
+			return -1;
+		}
+		final AtomicInteger count = new AtomicInteger(0);
+		try {
+			final String[] names = new File(dir).list();
+			if (null == names) return 0;
+			final List<String> files = new ArrayList<String>();
+			for (final String name : names) {
+				// Only numbered level folders
+				if (!name.matches("^\\d+$")) continue;
+				listFiles(new File(dir + name), name + "/", ext, files);
+			}
+			final int n = files.size();
+			Utils.log2("Packing " + n + " mipmap files from " + dir);
+			final List<Future<?>> fus = new ArrayList<Future<?>>();
+			for (final String rel : files) {
+				fus.add(exec.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						final String path = dir + rel;
+						final String key = rel.substring(0, rel.length() - ext.length()) + packed_ext;
+						final long last_modified = new File(path).lastModified();
+						final ImageBytes ib = loadFile(path, ext);
+						if (null == ib) {
+							Utils.log2("Could not read mipmap " + path);
+							return false;
+						}
+						try {
+							if (packed.save(key, ib.c, ib.width, ib.height)) {
+								migrated.put(path, last_modified);
+								final int k = count.incrementAndGet();
+								if (0 == k % 1000) Utils.showStatus("Packed " + k + "/" + n + " mipmaps", false);
+								return true;
+							}
+						} finally {
+							CachingThread.storeForReuse(ib.c);
+						}
+						return false;
+					}
+				}));
+			}
+			Utils.wait(fus);
+		} finally {
+			packed.close();
+		}
+		Utils.log2("Packed " + count.get() + " mipmap files into " + packed.getFolder());
+		return count.get();
+	}
+
+	/** Remove the old mipmap files recorded by {@link #migrate}, once the mipmaps format is the packed one.
+	 * A file modified after it was packed, by a regeneration that ran meanwhile, is packed again
+	 * into @param packed before being removed, so that the newer mipmap is not lost.
+	 *
+	 * @return the number of removed files. */
+	static public final int removeMigrated(final PackedMipMaps packed, final String dir_mipmaps, final String ext, final String packed_ext, final Map<String,Long> migrated) {
+		final String dir = dir_mipmaps.endsWith("/") ? dir_mipmaps : dir_mipmaps + "/";
+		int count = 0;
+		for (final Map.Entry<String,Long> e : migrated.entrySet()) {
+			final String path = e.getKey();
+			final File f = new File(path);
+			if (!f.exists()) continue;
+			if (f.lastModified() != e.getValue().longValue()) {
+				final ImageBytes ib = loadFile(path, ext);
+				if (null == ib) {
+					Utils.log2("Could not read mipmap " + path + ", keeping it");
+					continue;
+				}
+				try {
+					final String rel = path.substring(dir.length());
+					if (!packed.save(rel.substring(0, rel.length() - ext.length()) + packed_ext, ib.c, ib.width, ib.height)) continue;
+				} finally {
+					CachingThread.storeForReuse(ib.c);
+				}
+			}
+			if (f.delete()) ++count;
+			else Utils.log2("Could not delete " + path);
+		}
+		Utils.log2("Removed " + count + " mipmap files packed into " + packed.getFolder());
+		return count;
+	}
+}
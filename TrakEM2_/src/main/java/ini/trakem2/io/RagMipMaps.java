@@ -94,6 +94,54 @@ public final class RagMipMaps
 		return false;
 	}
 	
+	/** Encode the image in the same format as {@link #save(String, byte[][], int, int)} would write it to a file. */
+	static public final byte[] encode(final byte[][] b, final int width, final int height) throws IOException {
+		final int chLength = width * height;
+		final boolean alpha = 0 == b.length % 2;
+		final ByteArrayOutputStream ba = new ByteArrayOutputStream(HEADER_SIZE + chLength * (alpha ? b.length - 1 : b.length) + (alpha ? chLength / 8 : 0));
+		ba.write((width  >> 24) & 0xff);
+		ba.write((width  >> 16) & 0xff);
+		ba.write((width  >>  8) & 0xff);
+		ba.write( width         & 0xff);
+		ba.write((height >> 24) & 0xff);
+		ba.write((height >> 16) & 0xff);
+		ba.write((height >>  8) & 0xff);
+		ba.write( height        & 0xff);
+		ba.write(b.length);
+		if (!alpha) {
+			for (int i=0; i<b.length; ++i) ba.write(b[i], 0, chLength);
+		} else {
+			for (int i=0; i<b.length-1; ++i) ba.write(b[i], 0, chLength);
+			final Deflater deflater = new Deflater(4, false);
+			final DeflaterOutputStream def = new DeflaterOutputStream(ba, deflater, 1024);
+			def.write(b[b.length-1], 0, chLength);
+			def.finish();
+			deflater.end();
+		}
+		return ba.toByteArray();
+	}
+
+	/** Decode an image encoded with {@link #encode(byte[][], int, int)}, from @param length bytes starting at @param offset.
+	 *  The channel arrays are taken from the {@link CachingThread} pool. */
+	static public final ImageBytes decode(final byte[] a, final int offset, final int length) throws IOException {
+		final int width =  ((a[offset  ]&0xff) << 24) | ((a[offset+1]&0xff) << 16) | ((a[offset+2]&0xff) << 8) | (a[offset+3]&0xff);
+		final int height = ((a[offset+4]&0xff) << 24) | ((a[offset+5]&0xff) << 16) | ((a[offset+6]&0xff) << 8) | (a[offset+7]&0xff);
+		final int nCh = a[offset+8];
+		final int chLength = width * height;
+		final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, chLength);
+		// Types 2 and 4 have a compressed alpha channel
+		final int end = 0 == nCh % 2 ? nCh -1 : nCh;
+		int pos = offset + HEADER_SIZE;
+		for (int i=0; i<end; ++i) {
+			System.arraycopy(a, pos, ch[i], 0, chLength);
+			pos += chLength;
+		}
+		if (end < nCh) {
+			ChannelMipMaps.inflate(a, pos, offset + length - pos, ch[nCh-1], chLength);
+		}
+		return new ImageBytes(ch, width, height);
+	}
+
 	static public final ImageBytes load(final String path) {
 		return load(path, 0);
 	}
@@ -152,8 +200,13 @@ public final class RagMipMaps
 	}
 
 	static public final BufferedImage read(final String path) {
+		return createImage(load(path));
+	}
+
+	/** Create an image from the channels of @param ib, which are then stored for reuse
+	 *  unless the image is grey, in which case the image wraps them. Returns null if @param ib is null. */
+	static public final BufferedImage createImage(final ImageBytes ib) {
 		try {
-			final ImageBytes ib = load(path);
 			if (null == ib) return null;
 			final byte[][] ch = ib.c;
 			// Channel length also specifies the type
@@ -0,0 +1,170 @@
+package ini.trakem2.io;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Writes an uncompressed, 8-bit or RGB TIFF file, readable by ImageJ, from pieces of the image given in any order,
+ * so that an image larger than the heap can be saved as its pieces are made.
+ *
+ * The header and the image file directory are written when opening, given the dimensions, and the pixels, as a single strip,
+ * are written straight to their place in the file with positional {@link FileChannel} writes: {@link #write(int, int, BufferedImage)}
+ * can be called from several threads at once.
+ */
+public final class TiffStreamWriter
+{
+	/** The largest file that a TIFF can address with its 32-bit offsets. */
+	static public final long MAX_SIZE = 0xffffffffL;
+
+	static private final short ASCII = 2,
+	                           SHORT = 3,
+	                           LONG = 4,
+	                           RATIONAL = 5;
+
+	static private final int N_ENTRIES = 13;
+
+	private final int width, height, samples;
+	private final long data_offset;
+	private final FileChannel fc;
+	private final ThreadLocal<byte[]> rows = new ThreadLocal<byte[]>();
+
+	/** Whether an image of width by height pixels of type fits in a TIFF file. */
+	static public final boolean fits(final int width, final int height, final int type) {
+		return (long)width * height * (ImagePlus.COLOR_RGB == type ? 3 : 1) + 4096 < MAX_SIZE;
+	}
+
+	/** Create the file at path, replacing any, for an image of width by height pixels.
+	 *  @param type Either ImagePlus.GRAY8 or ImagePlus.COLOR_RGB.
+	 *  @param cal The calibration of the pixels, or null. */
+	public TiffStreamWriter(final String path, final int width, final int height, final int type, final Calibration cal) throws IOException {
+		if (ImagePlus.GRAY8 != type && ImagePlus.COLOR_RGB != type) {
+			throw new IllegalArgumentException("Can't write TIFF images of type " + type + ": only 8-bit and RGB.");
+		}
+		if (!fits(width, height, type)) {
+			throw new IOException("An image of " + width + "x" + height + " pixels is too large for a TIFF file.");
+		}
+		this.width = width;
+		this.height = height;
+		this.samples = ImagePlus.COLOR_RGB == type ? 3 : 1;
+
+		final StringBuilder sb = new StringBuilder("ImageJ=\n");
+		if (null != cal && cal.scaled()) sb.append("unit=").append(cal.getUnit()).append('\n');
+		final byte[] description = (sb.toString() + '\0').getBytes("US-ASCII");
+
+		// Layout: header, directory, then the values that don't fit in their entries, then the pixels
+		final int ifd_offset = 8;
+		final int bps_offset = ifd_offset + 2 + N_ENTRIES * 12 + 4;
+		final int xres_offset = bps_offset + 6;
+		final int yres_offset = xres_offset + 8;
+		final int description_offset = yres_offset + 8;
+		this.data_offset = description_offset + description.length;
+
+		final ByteBuffer h = ByteBuffer.allocate((int)data_offset); // big-endian, like ImageJ
+		h.put((byte)'M').put((byte)'M').putShort((short)42).putInt(ifd_offset);
+		h.putShort((short)N_ENTRIES);
+		entry(h, 254, LONG, 1, 0); // NewSubfileType
+		entry(h, 256, LONG, 1, width);
+		entry(h, 257, LONG, 1, height);
+		if (1 == samples) entryShort(h, 258, 8); // BitsPerSample
+		else entry(h, 258, SHORT, 3, bps_offset);
+		entryShort(h, 262, 1 == samples ? 1 : 2); // Photometric: black is zero, or RGB
+		entry(h, 270, ASCII, description.length, description_offset);
+		entry(h, 273, LONG, 1, data_offset); // StripOffsets
+		entryShort(h, 277, samples); // SamplesPerPixel
+		entry(h, 278, LONG, 1, height); // RowsPerStrip
+		entry(h, 279, LONG, 1, (long)width * height * samples); // StripByteCounts
+		entry(h, 282, RATIONAL, 1, xres_offset);
+		entry(h, 283, RATIONAL, 1, yres_offset);
+		entryShort(h, 296, 1); // ResolutionUnit: none, the unit is in the description
+		h.putInt(0); // no next directory
+		h.putShort((short)8).putShort((short)8).putShort((short)8);
+		resolution(h, null == cal ? 1 : cal.pixelWidth);
+		resolution(h, null == cal ? 1 : cal.pixelHeight);
+		h.put(description);
+		h.flip();
+
+		final File f = new File(path);
+		if (f.exists() && !f.delete()) throw new IOException("Could not replace " + path);
+		this.fc = new RandomAccessFile(f, "rw").getChannel();
+		try {
+			long pos = 0;
+			while (h.hasRemaining()) pos += fc.write(h, pos);
+			// Allocate the whole file, so that pieces can be written in any order
+			fc.write(ByteBuffer.wrap(new byte[1]), data_offset + (long)width * height * samples - 1);
+		} catch (IOException ioe) {
+			fc.close();
+			throw ioe;
+		}
+	}
+
+	static private final void entry(final ByteBuffer h, final int tag, final short type, final int count, final long value) {
+		h.putShort((short)tag).putShort(type).putInt(count).putInt((int)value);
+	}
+
+	/** A SHORT value is left-justified in its 4 bytes. */
+	static private final void entryShort(final ByteBuffer h, final int tag, final int value) {
+		h.putShort((short)tag).putShort(SHORT).putInt(1).putShort((short)value).putShort((short)0);
+	}
+
+	/** Pixels per unit, as ImageJ writes them. */
+	static private final void resolution(final ByteBuffer h, final double pixel_size) {
+		final double r = pixel_size > 0 ? 1 / pixel_size : 1;
+		final long scale = 1000000;
+		h.putInt((int)Math.min(MAX_SIZE, Math.round(r * scale))).putInt((int)scale);
+	}
+
+	/** Write the pixels of tile at x, y in the image; the tile must be a {@link BufferedImage#TYPE_BYTE_INDEXED} or {@link BufferedImage#TYPE_BYTE_GRAY}
+	 *  image for 8-bit, or a {@link BufferedImage#TYPE_INT_ARGB} or {@link BufferedImage#TYPE_INT_RGB} image for RGB, as made by the renderer. */
+	public final void write(final int x, final int y, final BufferedImage tile) throws IOException {
+		final int w = Math.min(tile.getWidth(), width - x),
+		          h = Math.min(tile.getHeight(), height - y);
+		if (w <= 0 || h <= 0) return;
+		final int tw = tile.getWidth();
+		byte[] row = rows.get();
+		if (null == row || row.length < w * samples) {
+			row = new byte[tw * samples];
+			rows.set(row);
+		}
+		final ByteBuffer buf = ByteBuffer.wrap(row, 0, w * samples);
+		if (1 == samples) {
+			final byte[] pix = ((DataBufferByte)tile.getRaster().getDataBuffer()).getData();
+			for (int j=0; j<h; j++) {
+				System.arraycopy(pix, j * tw, row, 0, w);
+				writeRow(buf, x, y + j);
+			}
+		} else {
+			final int[] pix = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+			for (int j=0; j<h; j++) {
+				for (int i=0, k=j*tw, b=0; i<w; i++, k++) {
+					final int c = pix[k];
+					row[b++] = (byte)(c >> 16);
+					row[b++] = (byte)(c >> 8);
+					row[b++] = (byte) c;
+				}
+				writeRow(buf, x, y + j);
+			}
+		}
+	}
+
+	private final void writeRow(final ByteBuffer buf, final int x, final int y) throws IOException {
+		buf.rewind();
+		long pos = data_offset + ((long)y * width + x) * samples;
+		while (buf.hasRemaining()) pos += fc.write(buf, pos);
+	}
+
+	public final void close() throws IOException {
+		try {
+			fc.force(false);
+		} finally {
+			fc.close();
+		}
+	}
+}
@@ -0,0 +1,853 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An ExecutorProvider whose ExecutorServices run {@link Serializable} Callables
+ * in separate worker JVMs, one {@link ProcessWorker} each, so that the heap
+ * of this JVM holds only the results.
+ *
+ * Install it with:
+ *
+ * ExecutorProvider.setProvider(new ProcessExecutorProvider(4, "-Xmx8g"));
+ *
+ * Local workers are launched with the java binary of this JVM and the classpath
+ * given by the system property "trakem2.worker.classpath", or "java.class.path"
+ * when not set; Fiji users have to set the former, given that Fiji's launcher
+ * only puts its own jar in "java.class.path". Unless constructed with an
+ * address to listen at, only workers on this machine can connect; workers
+ * launched by hand on other machines need the {@link #getSecret() secret}
+ * in the environment variable {@link ProcessWorker#SECRET}. Every worker has
+ * to prove it knows the secret before it gets any task, and both ends only
+ * deserialize classes of TrakEM2, ImageJ and mpicbg, the JDK collections,
+ * geometry and exceptions that tasks and their results are made of, or those
+ * listed in the system property "trakem2.worker.allowed".
+ *
+ * Callables are serialized when submitted; those that can't be (their state
+ * includes objects that aren't Serializable, or they refer to a project with
+ * unsaved changes) run in a local thread pool instead, as with the
+ * {@link DefaultExecutorProvider}. Each worker runs as many tasks at a time as
+ * the thread count or fraction requested for the ExecutorService allows for its
+ * own number of processors. Results are returned as each task finishes.
+ *
+ * A worker that disconnects or stops sending heartbeats for {@link #TIMEOUT}
+ * milliseconds is dropped, and its unfinished tasks are sent to another worker,
+ * up to {@link #MAX_ATTEMPTS} times each; local workers that exit are launched again.
+ */
+public class ProcessExecutorProvider extends ExecutorProvider
+{
+    /** Times a task is sent to a worker before failing it. */
+    static public final int MAX_ATTEMPTS = 3;
+    /** Milliseconds without a heartbeat after which a worker is dropped. */
+    static public final long TIMEOUT = 30000;
+
+    private final ServerSocket server;
+    private final String host;
+    private final List<String> jvmArgs;
+    private final String classpath;
+    /** Known only to this JVM and its workers. */
+    private final byte[] secret;
+    /** Locally launched workers, relaunched when they exit. */
+    private final java.lang.Process[] processes;
+    private final int[] launches;
+
+    // All guarded by 'this'
+    private final LinkedList<Job> queue = new LinkedList<Job>();
+    private final ArrayList<Connection> connections = new ArrayList<Connection>();
+    private long nextId = 0;
+    private volatile boolean shutdown = false;
+
+    private final DefaultExecutorProvider local = new DefaultExecutorProvider();
+
+    /**
+     * Launch @param nWorkers worker JVMs on this machine, with @param jvmArgs
+     * such as the maximum heap size. Only local workers may connect.
+     */
+    public ProcessExecutorProvider(final int nWorkers, final String... jvmArgs) throws IOException
+    {
+        this(new ServerSocket(0, 50, InetAddress.getByName(null)), "127.0.0.1", nWorkers, jvmArgs);
+    }
+
+    /**
+     * Listen for workers at @param port of the loopback interface, and launch
+     * @param nWorkers worker JVMs on this machine, which may be zero.
+     */
+    public ProcessExecutorProvider(final int port, final int nWorkers, final String... jvmArgs) throws IOException
+    {
+        this(new ServerSocket(port, 50, InetAddress.getByName(null)), "127.0.0.1", nWorkers, jvmArgs);
+    }
+
+    /**
+     * Listen for workers at @param port of the network interface with the
+     * @param bindAddress, or of all interfaces when it is the wildcard address,
+     * so that workers launched by hand on other machines may connect; and
+     * launch @param nWorkers worker JVMs on this machine, which may be zero.
+     * Remote workers need the {@link #getSecret() secret}.
+     */
+    public ProcessExecutorProvider(final InetAddress bindAddress, final int port, final int nWorkers, final String... jvmArgs) throws IOException
+    {
+        this(new ServerSocket(port, 50, bindAddress), bindAddress.isAnyLocalAddress() ? "127.0.0.1" : bindAddress.getHostAddress(), nWorkers, jvmArgs);
+    }
+
+    private ProcessExecutorProvider(final ServerSocket server, final String host, final int nWorkers, final String[] jvmArgs) throws IOException
+    {
+        this.server = server;
+        this.host = host;
+        this.secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.jvmArgs = Arrays.asList(jvmArgs);
+        this.classpath = System.getProperty("trakem2.worker.classpath", System.getProperty("java.class.path"));
+        this.processes = new java.lang.Process[Math.max(0, nWorkers)];
+        this.launches = new int[processes.length];
+
+        final Thread acceptor = new Thread("ProcessExecutorProvider acceptor")
+        {
+            public void run()
+            {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        final Thread dispatcher = new Thread("ProcessExecutorProvider dispatcher")
+        {
+            public void run()
+            {
+                dispatch();
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        for (int i=0; i<processes.length; ++i)
+        {
+            launch(i);
+        }
+
+        final Thread monitor = new Thread("ProcessExecutorProvider monitor")
+        {
+            public void run()
+            {
+                monitor();
+            }
+        };
+        monitor.setDaemon(true);
+        monitor.start();
+
+        Utils.log2("Listening for workers at port " + server.getLocalPort());
+    }
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    /**
+     * The secret that workers launched by hand have to find, in hexadecimal,
+     * in their environment variable {@link ProcessWorker#SECRET}.
+     */
+    public String getSecret()
+    {
+        return ProcessWorker.toHex(secret);
+    }
+
+    /** The number of workers currently connected. */
+    public synchronized int getWorkerCount()
+    {
+        return connections.size();
+    }
+
+    public ExecutorService getService(final int nThreads)
+    {
+        return new Service(Math.max(1, nThreads), 0);
+    }
+
+    public ExecutorService getService(final float fractionThreads)
+    {
+        return new Service(0, fractionThreads);
+    }
+
+    /**
+     * Stop all workers, failing the tasks not yet done. If this is the current
+     * provider, the {@link DefaultExecutorProvider} is installed instead.
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+        if (this == ExecutorProvider.getProvider())
+        {
+            ExecutorProvider.setProvider(local);
+        }
+        final ArrayList<Connection> cs;
+        final ArrayList<Job> jobs = new ArrayList<Job>();
+        synchronized (this)
+        {
+            cs = new ArrayList<Connection>(connections);
+            jobs.addAll(queue);
+            queue.clear();
+            for (final Connection c : connections)
+            {
+                jobs.addAll(c.inFlight.values());
+                c.inFlight.clear();
+            }
+            connections.clear();
+            notifyAll();
+        }
+        for (final Connection c : cs)
+        {
+            try
+            {
+                synchronized (c.out)
+                {
+                    c.out.writeByte(ProcessWorker.SHUTDOWN);
+                    c.out.flush();
+                }
+            }
+            catch (final IOException ioe) {}
+            c.close();
+        }
+        try
+        {
+            server.close();
+        }
+        catch (final IOException ioe) {}
+        synchronized (processes)
+        {
+            for (final java.lang.Process p : processes)
+            {
+                if (null != p) p.destroy();
+            }
+        }
+        for (final Job job : jobs)
+        {
+            job.future.fail(new IOException("The process executor was shut down."));
+        }
+    }
+
+    private void launch(final int i)
+    {
+        final ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(jvmArgs);
+        cmd.add("-Djava.awt.headless=true");
+        cmd.add("-cp");
+        cmd.add(classpath);
+        cmd.add(ProcessWorker.class.getName());
+        cmd.add(host);
+        cmd.add(Integer.toString(server.getLocalPort()));
+        try
+        {
+            final ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            pb.environment().put(ProcessWorker.SECRET, ProcessWorker.toHex(secret));
+            final java.lang.Process p = pb.start();
+            synchronized (processes)
+            {
+                processes[i] = p;
+                launches[i] += 1;
+            }
+            // Drain the output so that the worker never blocks on writing to it
+            final Thread t = new Thread("ProcessWorker " + i + " output")
+            {
+                public void run()
+                {
+                    try
+                    {
+                        final BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                        String line;
+                        while (null != (line = r.readLine()))
+                        {
+                            Utils.log2("worker " + i + ": " + line);
+                        }
+                        r.close();
+                    }
+                    catch (final IOException ioe) {}
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        catch (final IOException ioe)
+        {
+            IJError.print(ioe);
+        }
+    }
+
+    private void accept()
+    {
+        while (!shutdown)
+        {
+            try
+            {
+                final Socket socket = server.accept();
+                // The handshake runs in the thread of the connection, so that
+                // a slow or silent client doesn't hold back other workers
+                final Thread reader = new Thread("ProcessExecutorProvider reader " + socket.getRemoteSocketAddress())
+                {
+                    public void run()
+                    {
+                        final Connection c;
+                        try
+                        {
+                            c = new Connection(socket, secret);
+                        }
+                        catch (final IOException ioe)
+                        {
+                            Utils.log2("Could not connect to worker at " + socket.getRemoteSocketAddress() + ": " + ioe);
+                            try
+                            {
+                                socket.close();
+                            }
+                            catch (final IOException ioe2) {}
+                            return;
+                        }
+                        synchronized (ProcessExecutorProvider.this)
+                        {
+                            if (shutdown)
+                            {
+                                c.close();
+                                return;
+                            }
+                            connections.add(c);
+                            ProcessExecutorProvider.this.notifyAll();
+                        }
+                        read(c);
+                    }
+                };
+                reader.setDaemon(true);
+                reader.start();
+            }
+            catch (final IOException ioe)
+            {
+                if (!shutdown) IJError.print(ioe);
+            }
+        }
+    }
+
+    /** Send queued jobs to the connections with spare capacity. */
+    private void dispatch()
+    {
+        while (!shutdown)
+        {
+            Job job = null;
+            Connection target = null;
+            synchronized (this)
+            {
+                while (!shutdown && null == job)
+                {
+                    for (final Job j : queue)
+                    {
+                        for (final Connection c : connections)
+                        {
+                            if (c.accepts(j))
+                            {
+                                job = j;
+                                target = c;
+                                break;
+                            }
+                        }
+                        if (null != job) break;
+                    }
+                    if (null == job)
+                    {
+                        try
+                        {
+                            wait();
+                        }
+                        catch (final InterruptedException ie)
+                        {
+                            return;
+                        }
+                    }
+                }
+                if (null == job) return;
+                queue.remove(job);
+                if (job.future.isDone()) continue; // cancelled while queued
+                job.cost = target.cost(job);
+                target.load += job.cost;
+                target.inFlight.put(job.id, job);
+            }
+            try
+            {
+                synchronized (target.out)
+                {
+                    target.out.writeByte(ProcessWorker.TASK);
+                    target.out.writeLong(job.id);
+                    target.out.writeInt(job.bytes.length);
+                    target.out.write(job.bytes);
+                    target.out.flush();
+                }
+            }
+            catch (final IOException ioe)
+            {
+                // The reader of the connection requeues its jobs
+                target.close();
+            }
+        }
+    }
+
+    private void read(final Connection c)
+    {
+        try
+        {
+            while (!shutdown)
+            {
+                final byte type = c.in.readByte();
+                c.lastSeen = System.currentTimeMillis();
+                switch (type)
+                {
+                    case ProcessWorker.HEARTBEAT:
+                        break;
+                    case ProcessWorker.RESULT:
+                        final long id = c.in.readLong();
+                        final boolean success = c.in.readBoolean();
+                        final byte[] bytes = new byte[c.in.readInt()];
+                        c.in.readFully(bytes);
+                        final Job job;
+                        synchronized (this)
+                        {
+                            job = c.inFlight.remove(id);
+                            if (null != job) c.load -= job.cost;
+                            notifyAll();
+                        }
+                        if (null != job) job.future.complete(bytes, success);
+                        break;
+                    default:
+                        throw new IOException("Unexpected message: " + type);
+                }
+            }
+        }
+        catch (final IOException ioe)
+        {
+            if (!shutdown) Utils.log2("Lost worker at " + c.socket.getRemoteSocketAddress() + ": " + ioe);
+        }
+        finally
+        {
+            c.close();
+            drop(c);
+        }
+    }
+
+    /** Remove @param c and send its unfinished jobs elsewhere. */
+    private void drop(final Connection c)
+    {
+        final ArrayList<Job> failed = new ArrayList<Job>();
+        synchronized (this)
+        {
+            connections.remove(c);
+            for (final Job job : c.inFlight.values())
+            {
+                job.attempts += 1;
+                if (job.attempts >= MAX_ATTEMPTS) failed.add(job);
+                else queue.addFirst(job);
+            }
+            c.inFlight.clear();
+            c.load = 0;
+            notifyAll();
+        }
+        for (final Job job : failed)
+        {
+            job.future.fail(new IOException("Task failed in " + job.attempts + " workers."));
+        }
+    }
+
+    /** Drop workers that stopped sending heartbeats, and relaunch local workers that exited. */
+    private void monitor()
+    {
+        while (!shutdown)
+        {
+            try
+            {
+                Thread.sleep(ProcessWorker.HEARTBEAT_INTERVAL);
+            }
+            catch (final InterruptedException ie)
+            {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final ArrayList<Connection> stale = new ArrayList<Connection>();
+            synchronized (this)
+            {
+                for (final Connection c : connections)
+                {
+                    if (now - c.lastSeen > TIMEOUT) stale.add(c);
+                }
+            }
+            for (final Connection c : stale)
+            {
+                Utils.log2("Worker at " + c.socket.getRemoteSocketAddress() + " timed out.");
+                c.close(); // its reader will drop it
+            }
+            for (int i=0; i<processes.length; ++i)
+            {
+                final java.lang.Process p;
+                synchronized (processes)
+                {
+                    p = processes[i];
+                }
+                if (null == p) continue;
+                try
+                {
+                    final int exit = p.exitValue();
+                    if (shutdown) return;
+                    synchronized (processes)
+                    {
+                        processes[i] = null;
+                    }
+                    if (launches[i] > MAX_ATTEMPTS)
+                    {
+                        Utils.log("Worker " + i + " exited with " + exit + " too many times: not relaunching it.");
+                        continue;
+                    }
+                    Utils.log2("Worker " + i + " exited with " + exit + ": relaunching it.");
+                    launch(i);
+                }
+                catch (final IllegalThreadStateException itse)
+                {
+                    // Still running
+                }
+            }
+        }
+    }
+
+    private synchronized void enqueue(final Job job)
+    {
+        if (shutdown)
+        {
+            job.future.fail(new IOException("The process executor was shut down."));
+            return;
+        }
+        job.id = nextId++;
+        queue.add(job);
+        notifyAll();
+    }
+
+    private synchronized void cancel(final Job job)
+    {
+        queue.remove(job);
+        // If in flight, its result is ignored when it arrives
+    }
+
+    private static final class Connection
+    {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final int cpus;
+        volatile long lastSeen;
+        // Guarded by the provider
+        double load = 0;
+        final HashMap<Long,Job> inFlight = new HashMap<Long,Job>();
+
+        Connection(final Socket socket, final byte[] secret) throws IOException
+        {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socket.setSoTimeout((int)TIMEOUT);
+            // The worker proves that it knows the secret by signing a challenge
+            final byte[] challenge = new byte[ProcessWorker.CHALLENGE_LENGTH];
+            new SecureRandom().nextBytes(challenge);
+            out.write(challenge);
+            out.flush();
+            final byte[] response = new byte[ProcessWorker.CHALLENGE_LENGTH];
+            in.readFully(response);
+            if (!MessageDigest.isEqual(response, ProcessWorker.sign(secret, challenge))) throw new IOException("Worker failed to authenticate.");
+            if (ProcessWorker.HELLO != in.readByte()) throw new IOException("Not a worker.");
+            this.cpus = Math.max(1, in.readInt());
+            socket.setSoTimeout(0);
+            this.lastSeen = System.currentTimeMillis();
+        }
+
+        /** The fraction of this worker that @param job would use. */
+        double cost(final Job job)
+        {
+            return Math.min(1.0, job.threads > 0 ? job.threads / (double)cpus : job.fraction);
+        }
+
+        /** Whether there's room for @param job; an idle worker takes any job. */
+        boolean accepts(final Job job)
+        {
+            return inFlight.isEmpty() || load + cost(job) <= 1.0001;
+        }
+
+        void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (final IOException ioe) {}
+        }
+    }
+
+    private static final class Job
+    {
+        long id;
+        final byte[] bytes;
+        final int threads;
+        final float fraction;
+        final JobFuture<?> future;
+        int attempts = 0;
+        double cost = 0;
+
+        Job(final byte[] bytes, final int threads, final float fraction, final JobFuture<?> future)
+        {
+            this.bytes = bytes;
+            this.threads = threads;
+            this.fraction = fraction;
+            this.future = future;
+        }
+    }
+
+    private final class JobFuture<T> implements Future<T>
+    {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final Service service;
+        private Job job;
+        private T value = null;
+        private Throwable error = null;
+        private boolean cancelled = false;
+
+        JobFuture(final Service service)
+        {
+            this.service = service;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(final byte[] bytes, final boolean success)
+        {
+            try
+            {
+                final Object ob = ProcessWorker.deserialize(bytes);
+                if (success) set((T)ob, null, false);
+                else set(null, (Throwable)ob, false);
+            }
+            catch (final Throwable t)
+            {
+                set(null, t, false);
+            }
+        }
+
+        void fail(final Throwable t)
+        {
+            set(null, t, false);
+        }
+
+        private boolean set(final T value, final Throwable error, final boolean cancelled)
+        {
+            synchronized (this)
+            {
+                if (0 == latch.getCount()) return false;
+                this.value = value;
+                this.error = error;
+                this.cancelled = cancelled;
+                latch.countDown();
+            }
+            service.done();
+            return true;
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            if (!set(null, null, true)) return false;
+            ProcessExecutorProvider.this.cancel(job);
+            return true;
+        }
+
+        public synchronized boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        public boolean isDone()
+        {
+            return 0 == latch.getCount();
+        }
+
+        public T get() throws InterruptedException, ExecutionException
+        {
+            latch.await();
+            return result();
+        }
+
+        public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!latch.await(timeout, unit)) throw new TimeoutException();
+            return result();
+        }
+
+        private synchronized T result() throws ExecutionException
+        {
+            if (cancelled) throw new CancellationException();
+            if (null != error) throw new ExecutionException(error);
+            return value;
+        }
+    }
+
+    /** An ExecutorService that sends tasks to the workers, or runs them locally when they can't be serialized. */
+    private final class Service extends AbstractExecutorService
+    {
+        private final int threads;
+        private final float fraction;
+        private ExecutorService localService = null;
+        // Guarded by 'this'
+        private int pending = 0;
+        private boolean isShutdown = false;
+
+        Service(final int threads, final float fraction)
+        {
+            this.threads = threads;
+            this.fraction = fraction;
+        }
+
+        private synchronized ExecutorService local()
+        {
+            if (null == localService)
+            {
+                localService = local.getService(threads > 0 ? threads
+                        : Math.max(1, (int)(fraction * Runtime.getRuntime().availableProcessors())));
+            }
+            return localService;
+        }
+
+        @Override
+        public <T> Future<T> submit(final Callable<T> task)
+        {
+            if (null == task) throw new NullPointerException();
+            synchronized (this)
+            {
+                if (isShutdown) throw new RejectedExecutionException("Shut down");
+            }
+            final byte[] bytes;
+            try
+            {
+                if (!(task instanceof Serializable)) return local().submit(task);
+                bytes = ProcessWorker.serialize(task);
+            }
+            catch (final IOException ioe)
+            {
+                Utils.log2("Running locally: " + ioe);
+                return local().submit(task);
+            }
+            final JobFuture<T> future = new JobFuture<T>(this);
+            final Job job = new Job(bytes, threads, fraction, future);
+            future.job = job;
+            synchronized (this)
+            {
+                ++pending;
+            }
+            enqueue(job);
+            return future;
+        }
+
+        @Override
+        public Future<?> submit(final Runnable task)
+        {
+            return submit(task, null);
+        }
+
+        @Override
+        public <T> Future<T> submit(final Runnable task, final T result)
+        {
+            if (task instanceof Serializable)
+            {
+                return submit(new ProcessWorker.RunnableCallable<T>(task, result));
+            }
+            return local().submit(task, result);
+        }
+
+        public void execute(final Runnable command)
+        {
+            submit(command);
+        }
+
+        synchronized void done()
+        {
+            --pending;
+            notifyAll();
+        }
+
+        public void shutdown()
+        {
+            synchronized (this)
+            {
+                isShutdown = true;
+                if (null != localService) localService.shutdown();
+            }
+        }
+
+        public List<Runnable> shutdownNow()
+        {
+            shutdown();
+            synchronized (this)
+            {
+                return null == localService ? Collections.<Runnable>emptyList() : localService.shutdownNow();
+            }
+        }
+
+        public synchronized boolean isShutdown()
+        {
+            return isShutdown;
+        }
+
+        public synchronized boolean isTerminated()
+        {
+            return isShutdown && 0 == pending && (null == localService || localService.isTerminated());
+        }
+
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            final long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            synchronized (this)
+            {
+                while (0 != pending)
+                {
+                    final long left = end - System.currentTimeMillis();
+                    if (left <= 0) return false;
+                    wait(left);
+                }
+            }
+            final ExecutorService ls;
+            synchronized (this)
+            {
+                ls = localService;
+            }
+            return null == ls || ls.awaitTermination(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+}
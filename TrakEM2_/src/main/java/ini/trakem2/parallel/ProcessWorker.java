@@ -0,0 +1,454 @@
+package ini.trakem2.parallel;
+
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A worker JVM for the {@link ProcessExecutorProvider}: connects to the
+ * dispatcher at the host and port given as arguments, announces how many
+ * processors it has, and runs the serialized {@link Callable} instances it
+ * receives, sending back each result as soon as it is ready.
+ *
+ * Usage: java -cp &lt;TrakEM2 and Fiji jars&gt; ini.trakem2.parallel.ProcessWorker host port
+ *
+ * with the secret of the dispatcher, see {@link ProcessExecutorProvider#getSecret()},
+ * in the environment variable {@link #SECRET}.
+ *
+ * Callables that refer to TrakEM2 objects serialize the path to the saved
+ * project XML file and the ids of the objects, and resolve them on
+ * deserialization with {@link #getProject(String)}, which opens the
+ * project once per worker, without displays and without regenerating
+ * mipmaps: the mipmaps folder belongs to the JVM that saved the project.
+ */
+public final class ProcessWorker
+{
+    // Message types of the protocol between the dispatcher and its workers.
+    /** Worker to dispatcher: int number of processors. */
+    static final byte HELLO = 1;
+    /** Worker to dispatcher: no content. */
+    static final byte HEARTBEAT = 2;
+    /** Worker to dispatcher: long task id, boolean success, int length and bytes of the serialized result or Throwable. */
+    static final byte RESULT = 3;
+    /** Dispatcher to worker: long task id, int length and bytes of the serialized Callable. */
+    static final byte TASK = 4;
+    /** Dispatcher to worker: no content; the worker exits. */
+    static final byte SHUTDOWN = 5;
+
+    /** The name of the environment variable with the secret of the dispatcher, in hexadecimal. */
+    static public final String SECRET = "TRAKEM2_WORKER_SECRET";
+    /** Bytes of the challenge that the dispatcher sends on connection, and of the worker's response. */
+    static final int CHALLENGE_LENGTH = 32;
+
+    /** Package prefixes of the classes that may be deserialized, besides those in the system property "trakem2.worker.allowed". */
+    static private final String[] ALLOWED = {"ij.", "ini.trakem2.", "mpicbg.", "Jama."};
+
+    /**
+     * JDK classes that may be deserialized: those that the state of callables
+     * and their results are made of. Throwables of the JDK are allowed too, to
+     * report the failure of a task.
+     */
+    static private final HashSet<String> ALLOWED_JDK = new HashSet<String>(Arrays.asList(
+            "java.lang.Boolean", "java.lang.Byte", "java.lang.Character", "java.lang.Short",
+            "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double",
+            "java.lang.Number", "java.lang.String", "java.lang.Enum", "java.lang.StackTraceElement",
+            "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.HashSet",
+            "java.util.LinkedHashMap", "java.util.LinkedHashSet", "java.util.TreeMap", "java.util.TreeSet",
+            "java.util.Arrays$ArrayList", "java.util.Collections$EmptyList", "java.util.Collections$EmptySet",
+            "java.util.Collections$EmptyMap", "java.util.Collections$UnmodifiableCollection",
+            "java.util.Collections$UnmodifiableList", "java.util.Collections$UnmodifiableRandomAccessList",
+            "java.util.Collections$UnmodifiableSet", "java.util.Collections$UnmodifiableMap",
+            "java.awt.Point", "java.awt.Rectangle", "java.awt.Polygon", "java.awt.geom.AffineTransform",
+            "java.awt.geom.Point2D$Double", "java.awt.geom.Point2D$Float",
+            "java.awt.geom.Rectangle2D$Double", "java.awt.geom.Rectangle2D$Float"));
+
+    /** Milliseconds between heartbeats. */
+    static final long HEARTBEAT_INTERVAL = 2000;
+
+    /** Projects opened in this JVM for deserializing callables, by path. */
+    static private final HashMap<String,Project> projects = new HashMap<String,Project>();
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ExecutorService exec;
+    private volatile boolean running = true;
+
+    private ProcessWorker(final Socket socket) throws IOException
+    {
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // The dispatcher never sends more tasks than this worker has processors for.
+        this.exec = Executors.newCachedThreadPool();
+    }
+
+    static public void main(final String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: ProcessWorker <host> <port>");
+            System.exit(1);
+        }
+        final String secret = System.getenv(SECRET);
+        if (null == secret)
+        {
+            System.out.println("The environment variable " + SECRET + " is not set.");
+            System.exit(1);
+        }
+        ControlWindow.setGUIEnabled(false);
+        try
+        {
+            final ProcessWorker worker = new ProcessWorker(new Socket(args[0], Integer.parseInt(args[1])));
+            worker.run(fromHex(secret));
+        }
+        catch (final Throwable t)
+        {
+            IJError.print(t);
+        }
+        System.exit(0);
+    }
+
+    private void run(final byte[] secret) throws IOException
+    {
+        // Answer the challenge of the dispatcher before anything else
+        final byte[] challenge = new byte[CHALLENGE_LENGTH];
+        in.readFully(challenge);
+        synchronized (out)
+        {
+            out.write(sign(secret, challenge));
+        }
+        send(HELLO, -1, false, null);
+        final Thread heartbeat = new Thread("ProcessWorker heartbeat")
+        {
+            public void run()
+            {
+                while (running)
+                {
+                    try
+                    {
+                        Thread.sleep(HEARTBEAT_INTERVAL);
+                        send(HEARTBEAT, -1, false, null);
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        return;
+                    }
+                    catch (final IOException ioe)
+                    {
+                        running = false;
+                        return;
+                    }
+                }
+            }
+        };
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        try
+        {
+            while (running)
+            {
+                final byte type = in.readByte();
+                if (SHUTDOWN == type) break;
+                if (TASK != type) throw new IOException("Unexpected message: " + type);
+                final long id = in.readLong();
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                exec.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        execute(id, bytes);
+                    }
+                });
+            }
+        }
+        catch (final EOFException eof)
+        {
+            // Dispatcher is gone
+        }
+        finally
+        {
+            running = false;
+            heartbeat.interrupt();
+            exec.shutdownNow();
+        }
+    }
+
+    private void execute(final long id, final byte[] bytes)
+    {
+        boolean success = false;
+        Object result;
+        try
+        {
+            result = ((Callable<?>) deserialize(bytes)).call();
+            success = true;
+        }
+        catch (final Throwable t)
+        {
+            result = t;
+        }
+        byte[] b;
+        try
+        {
+            b = serialize(result);
+        }
+        catch (final Throwable t)
+        {
+            // The result or the exception can't be sent: send its description instead
+            success = false;
+            try
+            {
+                b = serialize(new RuntimeException(result + " could not be serialized: " + t));
+            }
+            catch (final IOException ioe)
+            {
+                IJError.print(ioe);
+                return;
+            }
+        }
+        try
+        {
+            send(RESULT, id, success, b);
+        }
+        catch (final IOException ioe)
+        {
+            running = false;
+        }
+    }
+
+    private void send(final byte type, final long id, final boolean success, final byte[] b) throws IOException
+    {
+        synchronized (out)
+        {
+            out.writeByte(type);
+            switch (type)
+            {
+                case HELLO:
+                    out.writeInt(Runtime.getRuntime().availableProcessors());
+                    break;
+                case RESULT:
+                    out.writeLong(id);
+                    out.writeBoolean(success);
+                    out.writeInt(b.length);
+                    out.write(b);
+                    break;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns the open project saved at @param path, opening it without displays
+     * if it isn't open in this JVM yet. Meant for the readObject of callables
+     * run by a worker; in the JVM that serialized them it returns the very same
+     * project.
+     */
+    static public Project getProject(final String path) throws IOException
+    {
+        synchronized (projects)
+        {
+            Project project = projects.get(path);
+            if (null != project) return project;
+            for (final Project p : Project.getProjects())
+            {
+                if (p.getLoader() instanceof FSLoader && path.equals(((FSLoader)p.getLoader()).getProjectXMLPath()))
+                {
+                    return p;
+                }
+            }
+            if (!new File(path).exists()) throw new IOException("No such project file: " + path);
+            // Many workers may open the same project: none writes to its mipmaps,
+            // not even while opening it
+            Loader.setMipMapsRegenerationAllowed(false);
+            project = Project.openFSProject(path, false);
+            if (null == project) throw new IOException("Could not open project " + path);
+            projects.put(path, project);
+            return project;
+        }
+    }
+
+    /**
+     * Returns the path to the saved project XML file of @param project, for
+     * callables to serialize in place of the project's objects.
+     * @throws NotSerializableException when the project has never been saved or has
+     * unsaved changes, given that a worker would not see the same objects.
+     */
+    static public String getSavedProjectPath(final Project project) throws NotSerializableException
+    {
+        if (!(project.getLoader() instanceof FSLoader))
+        {
+            throw new NotSerializableException("Project is not file-based: " + project);
+        }
+        final String path = ((FSLoader)project.getLoader()).getProjectXMLPath();
+        if (null == path || project.getLoader().hasChanges())
+        {
+            throw new NotSerializableException("Project has unsaved changes: " + project);
+        }
+        return path;
+    }
+
+    static byte[] serialize(final Object ob) throws IOException
+    {
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(b);
+        oos.writeObject(ob);
+        oos.close();
+        return b.toByteArray();
+    }
+
+    static Object deserialize(final byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))
+        {
+            @Override
+            protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException
+            {
+                if (!isAllowed(desc.getName())) throw new InvalidClassException(desc.getName(), "Not allowed to be deserialized.");
+                // Plugin classes may not be visible to the system class loader
+                try
+                {
+                    return Class.forName(desc.getName(), false, ProcessWorker.class.getClassLoader());
+                }
+                catch (final ClassNotFoundException cnfe)
+                {
+                    return super.resolveClass(desc);
+                }
+            }
+
+            @Override
+            protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException, ClassNotFoundException
+            {
+                throw new InvalidClassException("Proxy classes are not allowed to be deserialized.");
+            }
+        };
+        try
+        {
+            return ois.readObject();
+        }
+        finally
+        {
+            ois.close();
+        }
+    }
+
+    /** Whether the class named @param name, or the class of the elements of an array of that name, may be deserialized. */
+    static private boolean isAllowed(String name)
+    {
+        if (name.startsWith("["))
+        {
+            name = name.substring(name.lastIndexOf('[') + 1);
+            // Primitive arrays
+            if (!name.startsWith("L")) return true;
+            name = name.substring(1, name.length() - 1);
+        }
+        if (ALLOWED_JDK.contains(name)) return true;
+        for (final String prefix : ALLOWED)
+        {
+            if (name.startsWith(prefix)) return true;
+        }
+        if (name.startsWith("java."))
+        {
+            // Without initializing the class, as it may yet be rejected
+            try
+            {
+                if (Throwable.class.isAssignableFrom(Class.forName(name, false, ProcessWorker.class.getClassLoader()))) return true;
+            }
+            catch (final ClassNotFoundException cnfe) {}
+        }
+        final String extra = System.getProperty("trakem2.worker.allowed");
+        if (null != extra)
+        {
+            for (final String prefix : extra.split(","))
+            {
+                final String p = prefix.trim();
+                if (p.length() > 0 && name.startsWith(p)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** The HMAC-SHA256 of @param challenge with @param secret as key; it is {@link #CHALLENGE_LENGTH} bytes long. */
+    static byte[] sign(final byte[] secret, final byte[] challenge) throws IOException
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        }
+        catch (final GeneralSecurityException gse)
+        {
+            throw new IOException("Cannot sign the challenge: " + gse);
+        }
+    }
+
+    static String toHex(final byte[] b)
+    {
+        final StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int i=0; i<b.length; ++i)
+        {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16)).append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static byte[] fromHex(final String s)
+    {
+        final byte[] b = new byte[s.length() / 2];
+        for (int i=0; i<b.length; ++i)
+        {
+            b[i] = (byte) Integer.parseInt(s.substring(2*i, 2*i + 2), 16);
+        }
+        return b;
+    }
+
+    /** Wraps a {@link Runnable} that is {@link Serializable} for sending it to a worker. */
+    static final class RunnableCallable<T> implements Callable<T>, Serializable
+    {
+        private static final long serialVersionUID = 1L;
+        private final Runnable r;
+        private final T result;
+
+        RunnableCallable(final Runnable r, final T result)
+        {
+            this.r = r;
+            this.result = result;
+        }
+
+        public T call()
+        {
+            r.run();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package ini.trakem2.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** Reads a project saved in the binary format written by {@link BinaryProjectWriter},
+ * delivering to a SAX {@link DefaultHandler} such as the {@link TMLHandler} the same
+ * elements, attributes and text that parsing the equivalent XML file would,
+ * but without any XML parsing, and one chunk at a time.
+ *
+ * The format, version {@link #VERSION}, is:
+ *
+ * - The 8 bytes of {@link #MAGIC} and the version, as an int.
+ * - The prolog: the XML declaration and the DOCTYPE with the DTD, as an int length and UTF-8 bytes.
+ * - A sequence of chunks, each an int with the length of the data, an int with the length
+ *   of the deflated data, and the deflated data. A chunk with a length of zero ends the stream.
+ *   Each chunk ends after the end of a layer set, layer or ZDisplayable, so that no chunk
+ *   holds more than a few megabytes and the file can be read as a stream.
+ *
+ * The data of a chunk is a sequence of events, each starting with a byte:
+ *
+ * - {@link #START}: the name of the element, the number of attributes as a varint,
+ *   and for each attribute its name and its value.
+ * - {@link #END}: ends the innermost open element.
+ * - {@link #TEXT}: a string with the text inside an element.
+ * - {@link #SPACE}: a reference to a whitespace-only text, such as the indentation between elements.
+ *
+ * Element and attribute names, and whitespace, are referenced by a varint: zero means
+ * a new one follows as a string, and any other number refers to the one defined in that order, starting at 1.
+ * Strings are a varint with the number of characters, followed by each character as a varint.
+ * Attribute values start with a byte for their type:
+ *
+ * - {@link #STRING}: a string.
+ * - {@link #LONG}: an integer, as a zigzag varint.
+ * - {@link #FLOAT}: a 4-byte float, for values printed with {@link Float#toString(float)} such as the coordinates of {@link ini.trakem2.display.Node} instances.
+ * - {@link #DOUBLE}: an 8-byte double.
+ * - {@link #TOKENS}: a list of space-separated tokens, such as the SVG paths of {@link ini.trakem2.display.AreaList} instances:
+ *   a varint with the number of tokens, and each token as a byte for its type, {@link #TOKEN_CHAR}, {@link #TOKEN_LONG}
+ *   (a zigzag varint with the difference to the previous integer token but one, so that x and y coordinates are delta-encoded)
+ *   or {@link #TOKEN_FLOAT}, followed by its value.
+ *
+ * Numbers are only packed when printing them back results in the very same text.
+ *
+ * Every length and count is checked against the bytes left, in the file or in the chunk,
+ * so that a truncated or corrupt file fails with an {@link IOException}.
+ */
+public final class BinaryProjectReader
+{
+	/** The file extension of binary projects. */
+	static public final String EXTENSION = ".t2b";
+
+	static final byte[] MAGIC = new byte[]{'T', 'R', 'A', 'K', 'E', 'M', '2', 'B'};
+	static final int VERSION = 1;
+
+	/** Events. */
+	static final byte START = 1,
+	                  END = 2,
+	                  TEXT = 3,
+	                  SPACE = 4;
+
+	/** Types of attribute values. */
+	static final byte STRING = 0,
+	                  LONG = 1,
+	                  FLOAT = 2,
+	                  DOUBLE = 3,
+	                  TOKENS = 4;
+
+	/** Types of tokens in a {@link #TOKENS} value. */
+	static final byte TOKEN_CHAR = 0,
+	                  TOKEN_LONG = 1,
+	                  TOKEN_FLOAT = 2;
+
+	/** Whether the file at @param path is, by its extension, a binary project. */
+	static public final boolean isBinary(final String path) {
+		return path.toLowerCase().endsWith(EXTENSION);
+	}
+
+	static private final InputStream open(final String path) throws IOException {
+		return new BufferedInputStream(FSLoader.isURL(path) ? new java.net.URL(path).openStream() : new FileInputStream(path));
+	}
+
+	/** Returns the XML declaration and the DOCTYPE, with the DTD, of the binary project at @param path. */
+	static public final String readProlog(final String path) throws IOException {
+		final InputStream in = open(path);
+		try {
+			return new String(readHeader(new DataInputStream(in), path, size(path)), "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Parse the binary project at @param path into the @param handler. */
+	static public final void parse(final String path, final DefaultHandler handler) throws IOException, SAXException {
+		final InputStream in = open(path);
+		try {
+			parse(in, path, handler, size(path));
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Parse the binary project read from @param in into the @param handler; @param path is only used for error messages. */
+	static public final void parse(final InputStream in, final String path, final DefaultHandler handler) throws IOException, SAXException {
+		parse(in, path, handler, Long.MAX_VALUE);
+	}
+
+	/** Like {@link #parse(InputStream, String, DefaultHandler)}, with the @param size of the stream in bytes, or Long.MAX_VALUE if not known. */
+	static private final void parse(final InputStream in, final String path, final DefaultHandler handler, final long size) throws IOException, SAXException {
+		final DataInputStream dis = new DataInputStream(in);
+		final byte[] prolog = readHeader(dis, path, size);
+		new Decoder(handler, size - HEADER - prolog.length).decode(dis);
+	}
+
+	/** The size of the file at @param path, or Long.MAX_VALUE for a URL. */
+	static private final long size(final String path) {
+		return FSLoader.isURL(path) ? Long.MAX_VALUE : new File(path).length();
+	}
+
+	/** The bytes of the magic, the version and the length of the prolog. */
+	static private final int HEADER = MAGIC.length + 8;
+
+	/** Throws an IOException if the @param length read for @param what is negative or larger than @param max. */
+	static private final void check(final long length, final long max, final String what) throws IOException {
+		if (length < 0 || length > max) throw new IOException("Corrupt binary project file: " + what + " of length " + length + ", with at most " + max + " possible");
+	}
+
+	/** Returns the prolog, in UTF-8. */
+	static private final byte[] readHeader(final DataInputStream dis, final String path, final long size) throws IOException {
+		final byte[] magic = new byte[MAGIC.length];
+		dis.readFully(magic);
+		for (int i=0; i<MAGIC.length; ++i) {
+			if (magic[i] != MAGIC[i]) throw new IOException("Not a binary TrakEM2 project: " + path);
+		}
+		final int version = dis.readInt();
+		if (version > VERSION) throw new IOException("Unsupported version " + version + " of the binary TrakEM2 format, in " + path);
+		final int length = dis.readInt();
+		check(length, size - HEADER, "prolog");
+		final byte[] prolog = read(dis, new byte[0], length);
+		return prolog.length == length ? prolog : Arrays.copyOf(prolog, length);
+	}
+
+	/** Read @param length bytes into @param buf, or into a larger copy of it. When the size of the stream is
+	 *  not known, a corrupt length fails at the end of the stream rather than by allocating it all at once. */
+	static private final byte[] read(final DataInputStream dis, byte[] buf, final int length) throws IOException {
+		int n = 0;
+		while (n < length) {
+			if (n == buf.length) buf = grow(buf, length);
+			final int r = dis.read(buf, n, Math.min(buf.length, length) - n);
+			if (r < 0) throw new EOFException();
+			n += r;
+		}
+		return buf;
+	}
+
+	/** A copy of the full @param buf, twice as large but no larger than needed for @param length bytes. */
+	static private final byte[] grow(final byte[] buf, final int length) {
+		return Arrays.copyOf(buf, (int)Math.min(length, Math.max(64 * 1024, 2L * buf.length)));
+	}
+
+	/** The decoding state, which spans all chunks. */
+	static private final class Decoder {
+		private final DefaultHandler handler;
+		private final ArrayList<String> names = new ArrayList<String>(),
+		                                spaces = new ArrayList<String>(),
+		                                open = new ArrayList<String>();
+		private final AttributesImpl attributes = new AttributesImpl();
+		private final Inflater inflater = new Inflater(false);
+		private byte[] compressed = new byte[0],
+		               data = new byte[0];
+		private char[] chars = new char[256];
+		/** Position in the data of the current chunk, and the length of its data. */
+		private int pos, limit;
+		/** The bytes left in the stream. */
+		private long remaining;
+		private final StringBuilder sb = new StringBuilder();
+
+		Decoder(final DefaultHandler handler, final long remaining) {
+			this.handler = handler;
+			this.remaining = remaining;
+		}
+
+		final void decode(final DataInputStream dis) throws IOException, SAXException {
+			handler.startDocument();
+			try {
+				while (true) {
+					final int length = dis.readInt(),
+					          clength = dis.readInt();
+					remaining -= 8;
+					if (0 == length) break;
+					check(clength, remaining, "chunk");
+					check(length, clength * 1032L, "inflated chunk"); // deflate compresses at most about 1032 to 1
+					remaining -= clength;
+					readChunk(dis, length, clength);
+					pos = 0;
+					limit = length;
+					while (pos < length) {
+						event();
+					}
+				}
+			} catch (EOFException eofe) {
+				throw new IOException("Incomplete binary project file");
+			} finally {
+				inflater.end();
+			}
+			if (!open.isEmpty()) throw new IOException("Incomplete binary project file: unclosed " + open.get(open.size() -1));
+			handler.endDocument();
+		}
+
+		private final void readChunk(final DataInputStream dis, final int length, final int clength) throws IOException {
+			compressed = read(dis, compressed, clength);
+			inflater.reset();
+			inflater.setInput(compressed, 0, clength);
+			try {
+				int sum = 0;
+				while (sum < length) {
+					if (sum == data.length) data = grow(data, length);
+					final int r = inflater.inflate(data, sum, Math.min(data.length, length) - sum);
+					if (0 == r && (inflater.finished() || inflater.needsInput())) throw new IOException("Truncated chunk");
+					sum += r;
+				}
+			} catch (DataFormatException dfe) {
+				throw new IOException(dfe.toString());
+			}
+		}
+
+		private final void event() throws IOException, SAXException {
+			final byte type = next();
+			switch (type) {
+				case START:
+					final String name = name();
+					final int n = count("attributes");
+					attributes.clear();
+					for (int i=0; i<n; ++i) {
+						final String attr = name();
+						attributes.addAttribute("", "", attr, "CDATA", value());
+					}
+					open.add(name);
+					handler.startElement("", "", name, attributes);
+					break;
+				case END:
+					if (open.isEmpty()) throw new IOException("Unbalanced end of element");
+					handler.endElement("", "", open.remove(open.size() -1));
+					break;
+				case TEXT:
+					final int len = readChars();
+					handler.characters(chars, 0, len);
+					break;
+				case SPACE:
+					final String space = ref(spaces);
+					space.getChars(0, space.length(), chars(space.length()), 0);
+					handler.characters(chars, 0, space.length());
+					break;
+				default:
+					throw new IOException("Unknown event type " + type);
+			}
+		}
+
+		private final String name() throws IOException {
+			return ref(names);
+		}
+
+		private final String ref(final ArrayList<String> table) throws IOException {
+			final long k = readVarLong();
+			check(k, table.size(), "reference");
+			if (0 != k) return table.get((int)k -1);
+			final String s = readString();
+			table.add(s);
+			return s;
+		}
+
+		private final String value() throws IOException {
+			final byte type = next();
+			switch (type) {
+				case STRING:
+					return readString();
+				case LONG:
+					return Long.toString(zigzag(readVarLong()));
+				case FLOAT:
+					return Float.toString(Float.intBitsToFloat(readInt()));
+				case DOUBLE:
+					return Double.toString(Double.longBitsToDouble(((long)readInt() << 32) | (readInt() & 0xffffffffL)));
+				case TOKENS:
+					final int n = count("tokens");
+					final long[] previous = new long[2];
+					int n_longs = 0;
+					sb.setLength(0);
+					for (int i=0; i<n; ++i) {
+						if (i > 0) sb.append(' ');
+						final byte tt = next();
+						switch (tt) {
+							case TOKEN_CHAR:
+								sb.append((char) readVarLong());
+								break;
+							case TOKEN_LONG:
+								final long v = previous[n_longs & 1] + zigzag(readVarLong());
+								previous[n_longs & 1] = v;
+								++n_longs;
+								sb.append(v);
+								break;
+							case TOKEN_FLOAT:
+								sb.append(Float.intBitsToFloat(readInt()));
+								break;
+							default:
+								throw new IOException("Unknown token type " + tt);
+						}
+					}
+					return sb.toString();
+				default:
+					throw new IOException("Unknown value type " + type);
+			}
+		}
+
+		private final char[] chars(final int length) {
+			if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+			return chars;
+		}
+
+		/** Read a count of @param what, each at least one byte long, checked against the bytes left in the chunk. */
+		private final int count(final String what) throws IOException {
+			final long n = readVarLong();
+			check(n, limit - pos, what);
+			return (int) n;
+		}
+
+		/** Read a string into {@link #chars} and return its length. */
+		private final int readChars() throws IOException {
+			final int length = count("string");
+			final char[] c = chars(length);
+			for (int i=0; i<length; ++i) {
+				c[i] = (char) readVarLong();
+			}
+			return length;
+		}
+
+		private final String readString() throws IOException {
+			return new String(chars, 0, readChars());
+		}
+
+		/** The next byte of the chunk; throws an IOException at its end. */
+		private final byte next() throws IOException {
+			if (pos >= limit) throw new IOException("Corrupt binary project file: an event runs beyond the end of its chunk");
+			return data[pos++];
+		}
+
+		private final int readInt() throws IOException {
+			return ((next() & 0xff) << 24) | ((next() & 0xff) << 16) | ((next() & 0xff) << 8) | (next() & 0xff);
+		}
+
+		private final long readVarLong() throws IOException {
+			long v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (shift > 63) throw new IOException("Corrupt binary project file: a number too long");
+				b = next();
+				v |= (long)(b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return v;
+		}
+	}
+
+	static final long zigzag(final long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,588 @@
+package ini.trakem2.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/** Writes a project in the binary format described in {@link BinaryProjectReader}.
+ *
+ * It is a {@link Writer} that receives the XML text of the project as it is being exported
+ * by {@link Loader#writeXMLTo(ini.trakem2.Project, Writer, ini.trakem2.persistence.XMLOptions)},
+ * so that every object keeps exporting itself with its own exportXML method,
+ * and encodes it as it arrives: elements, attributes and text are written in the same order
+ * and with the same values that a SAX parser would deliver for the XML text, but with names
+ * and indentation written only once, numbers packed as primitives, and the whole compressed
+ * one chunk at a time, without ever holding the text of the whole project in memory.
+ *
+ * Only handles the XML that TrakEM2 writes: no entities other than the predefined ones and
+ * character references, and at most one attribute per ATTLIST declaration.
+ *
+ * The saving of time is therefore limited: objects still format their numbers as text in exportXML,
+ * which this writer then tokenizes and parses back. Writing the events directly, without the text,
+ * would need a second export method in every exported class, kept in step with its exportXML;
+ * that is not done here.
+ */
+public final class BinaryProjectWriter extends Writer
+{
+	/** Chunks end at the end of any of these elements, if larger than {@link #MIN_CHUNK}. */
+	static final HashSet<String> CHUNK_ENDS = new HashSet<String>(Arrays.asList(new String[]{
+			"t2_layer_set", "t2_layer",
+			"t2_area_list", "t2_pipe", "t2_polyline", "t2_ball", "t2_dissector", "t2_stack", "t2_treeline", "t2_areatree", "t2_connector"}));
+	static private final int MIN_CHUNK = 64 * 1024,
+	                         MAX_CHUNK = 4 * 1024 * 1024;
+
+	static private final Pattern ATTLIST = Pattern.compile("<!ATTLIST\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)");
+
+	/** A growable byte array with the encoding primitives of the format. */
+	static private final class Chunk extends ByteArrayOutputStream {
+		Chunk(final int size) {
+			super(size);
+		}
+		final byte[] buffer() {
+			return buf;
+		}
+		final void writeVarLong(long v) {
+			while (0 != (v & ~0x7fL)) {
+				write((int)((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			write((int)v);
+		}
+		final void writeZigZag(final long v) {
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+		final void writeInt(final int v) {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+		final void writeString(final String s) {
+			final int len = s.length();
+			writeVarLong(len);
+			for (int i=0; i<len; ++i) writeVarLong(s.charAt(i));
+		}
+	}
+
+	private final DataOutputStream out;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, false);
+	private byte[] compressed = new byte[64 * 1024];
+	private final Chunk chunk = new Chunk(MIN_CHUNK * 2);
+
+	/** The XML text received and not yet encoded. */
+	private char[] buf = new char[64 * 1024];
+	private int len = 0;
+
+	private boolean in_prolog = true,
+	                closed = false;
+	private final StringBuilder prolog = new StringBuilder();
+	/** "element attribute" pairs declared in the DTD with a type other than CDATA, whose values are collapsed like a parser would. */
+	private final HashSet<String> tokenized = new HashSet<String>();
+
+	private final HashMap<String,Integer> names = new HashMap<String,Integer>(),
+	                                      spaces = new HashMap<String,Integer>();
+	private final ArrayList<String> open = new ArrayList<String>();
+	private final ArrayList<String> attribute_names = new ArrayList<String>(),
+	                                attribute_values = new ArrayList<String>();
+	private final StringBuilder sb = new StringBuilder();
+
+	public BinaryProjectWriter(final OutputStream os) {
+		this.out = new DataOutputStream(os);
+	}
+
+	@Override
+	public void write(final char[] c, final int off, final int length) throws IOException {
+		ensure(length);
+		System.arraycopy(c, off, buf, len, length);
+		len += length;
+		process(false);
+	}
+
+	@Override
+	public void write(final String s, final int off, final int length) throws IOException {
+		ensure(length);
+		s.getChars(off, off + length, buf, len);
+		len += length;
+		process(false);
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		ensure(1);
+		buf[len++] = (char)c;
+		process(false);
+	}
+
+	private final void ensure(final int length) {
+		if (len + length > buf.length) buf = Arrays.copyOf(buf, Math.max(len + length, buf.length * 2));
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/** Encode all remaining text and write the end of the stream. */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			process(true);
+			if (in_prolog || !open.isEmpty()) {
+				throw new IOException("Incomplete XML: " + (in_prolog ? "no root element" : "unclosed " + open.get(open.size() -1)));
+			}
+			endChunk();
+			out.writeInt(0);
+			out.writeInt(0);
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	/** Encode as much as possible of the received text. When @param end is false, incomplete tags are left for later. */
+	private final void process(final boolean end) throws IOException {
+		int pos = 0;
+		while (pos < len) {
+			final int next;
+			if (in_prolog) {
+				next = prolog(pos);
+			} else if ('<' == buf[pos]) {
+				next = tag(pos);
+			} else {
+				int lt = indexOf('<', pos);
+				if (-1 == lt) {
+					if (!end) break;
+					lt = len;
+				}
+				text(pos, lt);
+				next = lt;
+			}
+			if (-1 == next) break; // incomplete
+			pos = next;
+		}
+		System.arraycopy(buf, pos, buf, 0, len - pos);
+		len -= pos;
+	}
+
+	private final int indexOf(final char c, final int start) {
+		for (int i=start; i<len; ++i) {
+			if (c == buf[i]) return i;
+		}
+		return -1;
+	}
+
+	/** Returns the index right after @param s, or -1 if not found. */
+	private final int indexAfter(final String s, final int start) {
+		final int n = s.length();
+		final char c = s.charAt(0);
+		for (int i=start; i <= len - n; ++i) {
+			if (c != buf[i]) continue;
+			int k = 1;
+			while (k < n && s.charAt(k) == buf[i + k]) ++k;
+			if (n == k) return i + n;
+		}
+		return -1;
+	}
+
+	private final boolean startsWith(final String s, final int pos) {
+		if (pos + s.length() > len) return false;
+		for (int i=0; i<s.length(); ++i) {
+			if (s.charAt(i) != buf[pos + i]) return false;
+		}
+		return true;
+	}
+
+	/** Consume the XML declaration, comments and the DOCTYPE that precede the root element. */
+	private final int prolog(final int pos) throws IOException {
+		if ('<' != buf[pos]) {
+			prolog.append(buf[pos]);
+			return pos + 1;
+		}
+		if (pos + 4 > len) return -1;
+		final int end;
+		if ('?' == buf[pos+1]) {
+			end = indexAfter("?>", pos);
+		} else if (startsWith("<!--", pos)) {
+			end = indexAfter("-->", pos);
+		} else if ('!' == buf[pos+1]) {
+			// DOCTYPE, with the DTD within brackets
+			final int gt = indexOf('>', pos),
+			          lb = indexOf('[', pos);
+			if (-1 != lb && (-1 == gt || lb < gt)) {
+				final int rb = indexOf(']', lb);
+				end = -1 == rb ? -1 : indexAfter(">", rb);
+			} else {
+				end = -1 == gt ? -1 : gt + 1;
+			}
+			if (-1 != end) {
+				final Matcher m = ATTLIST.matcher(new String(buf, pos, end - pos));
+				while (m.find()) {
+					if (!"CDATA".equals(m.group(3))) tokenized.add(m.group(1) + ' ' + m.group(2));
+				}
+			}
+		} else {
+			// The root element
+			in_prolog = false;
+			writeHeader();
+			return pos;
+		}
+		if (-1 == end) return -1;
+		prolog.append(buf, pos, end - pos);
+		return end;
+	}
+
+	private final void writeHeader() throws IOException {
+		out.write(BinaryProjectReader.MAGIC);
+		out.writeInt(BinaryProjectReader.VERSION);
+		final byte[] b = prolog.toString().getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/** Encode the tag starting at @param pos; returns the index after it or -1 if incomplete. */
+	private final int tag(final int pos) throws IOException {
+		if (pos + 1 >= len) return -1;
+		final char c1 = buf[pos+1];
+		if ('/' == c1) {
+			final int gt = indexOf('>', pos);
+			if (-1 == gt) return -1;
+			final String name = new String(buf, pos + 2, gt - pos - 2).trim();
+			if (open.isEmpty() || !name.equals(open.get(open.size() -1))) {
+				throw new IOException("Unexpected end tag " + name);
+			}
+			end();
+			return gt + 1;
+		}
+		if ('?' == c1) return indexAfter("?>", pos);
+		if ('!' == c1) {
+			if (pos + 9 > len) return -1;
+			if (startsWith("<![CDATA[", pos)) {
+				final int end = indexAfter("]]>", pos);
+				if (-1 == end) return -1;
+				if (!open.isEmpty()) writeText(new String(buf, pos + 9, end - pos - 12));
+				return end;
+			}
+			return indexAfter("-->", pos);
+		}
+		// Find the end of the start tag, outside of quoted values
+		char quote = 0;
+		int gt = -1;
+		for (int i=pos+1; i<len; ++i) {
+			final char c = buf[i];
+			if (0 != quote) {
+				if (c == quote) quote = 0;
+			} else if ('"' == c || '\'' == c) {
+				quote = c;
+			} else if ('>' == c) {
+				gt = i;
+				break;
+			}
+		}
+		if (-1 == gt) return -1;
+		final boolean empty = '/' == buf[gt-1];
+		final int stop = empty ? gt - 1 : gt;
+		// Element name
+		int i = pos + 1;
+		while (i < stop && !isSpace(buf[i])) ++i;
+		final String name = new String(buf, pos + 1, i - pos - 1);
+		// Attributes
+		attribute_names.clear();
+		attribute_values.clear();
+		while (true) {
+			while (i < stop && isSpace(buf[i])) ++i;
+			if (i >= stop) break;
+			final int start = i;
+			while (i < stop && '=' != buf[i] && !isSpace(buf[i])) ++i;
+			final String attr = new String(buf, start, i - start);
+			while (i < stop && '=' != buf[i]) ++i;
+			++i; // past '='
+			while (i < stop && isSpace(buf[i])) ++i;
+			if (i >= stop) throw new IOException("Malformed attribute " + attr + " in element " + name);
+			final char q = buf[i];
+			final int vstart = ++i;
+			while (i < stop && q != buf[i]) ++i;
+			attribute_names.add(attr);
+			attribute_values.add(attributeValue(vstart, i, tokenized.contains(name + ' ' + attr)));
+			++i; // past the closing quote
+		}
+		start(name);
+		if (empty) end();
+		return gt + 1;
+	}
+
+	static private final boolean isSpace(final char c) {
+		return ' ' == c || '\n' == c || '\t' == c || '\r' == c;
+	}
+
+	/** Normalize the value like an XML parser: whitespace characters become spaces, and if @param collapse,
+	 *  leading and trailing spaces are removed and consecutive ones reduced to one. */
+	private final String attributeValue(final int start, final int end, final boolean collapse) {
+		sb.setLength(0);
+		for (int i=start; i<end; ++i) {
+			char c = buf[i];
+			if ('\r' == c) {
+				if (i + 1 < end && '\n' == buf[i+1]) continue;
+				c = ' ';
+			} else if ('\n' == c || '\t' == c) {
+				c = ' ';
+			}
+			if ('&' == c) {
+				i = entity(i, end);
+				continue;
+			}
+			sb.append(c);
+		}
+		if (!collapse) return sb.toString();
+		final String s = sb.toString().trim();
+		if (-1 == s.indexOf("  ")) return s;
+		return s.replaceAll(" +", " ");
+	}
+
+	/** Append the character of the entity at @param i, or the '&' itself if not recognized; returns the index of its last character. */
+	private final int entity(final int i, final int end) {
+		int semicolon = -1;
+		for (int k=i+1; k<end && k<i+12; ++k) {
+			if (';' == buf[k]) {
+				semicolon = k;
+				break;
+			}
+		}
+		if (-1 == semicolon) {
+			sb.append('&');
+			return i;
+		}
+		final String e = new String(buf, i + 1, semicolon - i - 1);
+		if ("amp".equals(e)) sb.append('&');
+		else if ("lt".equals(e)) sb.append('<');
+		else if ("gt".equals(e)) sb.append('>');
+		else if ("quot".equals(e)) sb.append('"');
+		else if ("apos".equals(e)) sb.append('\'');
+		else if (e.startsWith("#")) {
+			// Not a number, or not a code point: passed through as text, as an '&' that isn't an entity
+			final int c;
+			try {
+				c = e.startsWith("#x") ? Integer.parseInt(e.substring(2), 16) : Integer.parseInt(e.substring(1));
+			} catch (NumberFormatException nfe) {
+				sb.append('&');
+				return i;
+			}
+			if (!Character.isValidCodePoint(c)) {
+				sb.append('&');
+				return i;
+			}
+			sb.appendCodePoint(c);
+		} else {
+			sb.append('&');
+			return i;
+		}
+		return semicolon;
+	}
+
+	/** The text between elements; outside the root element, a parser would ignore it. */
+	private final void text(final int start, final int end) throws IOException {
+		if (open.isEmpty()) return;
+		sb.setLength(0);
+		boolean space = true;
+		for (int i=start; i<end; ++i) {
+			char c = buf[i];
+			if ('\r' == c) {
+				if (i + 1 < end && '\n' == buf[i+1]) continue;
+				c = '\n';
+			}
+			if ('&' == c) {
+				i = entity(i, end);
+				space = false;
+				continue;
+			}
+			if (!isSpace(c)) space = false;
+			sb.append(c);
+		}
+		if (space) {
+			final String s = sb.toString();
+			final Integer k = spaces.get(s);
+			chunk.write(BinaryProjectReader.SPACE);
+			if (null != k) {
+				chunk.writeVarLong(k);
+			} else {
+				chunk.writeVarLong(0);
+				chunk.writeString(s);
+				spaces.put(s, spaces.size() + 1);
+			}
+		} else {
+			writeText(sb.toString());
+		}
+	}
+
+	private final void writeText(final String s) throws IOException {
+		chunk.write(BinaryProjectReader.TEXT);
+		chunk.writeString(s);
+		checkChunk(false);
+	}
+
+	private final void writeName(final String name) {
+		final Integer k = names.get(name);
+		if (null != k) {
+			chunk.writeVarLong(k);
+		} else {
+			chunk.writeVarLong(0);
+			chunk.writeString(name);
+			names.put(name, names.size() + 1);
+		}
+	}
+
+	private final void start(final String name) throws IOException {
+		chunk.write(BinaryProjectReader.START);
+		writeName(name);
+		final int n = attribute_names.size();
+		chunk.writeVarLong(n);
+		for (int i=0; i<n; ++i) {
+			writeName(attribute_names.get(i));
+			writeValue(attribute_values.get(i));
+		}
+		open.add(name);
+		checkChunk(false);
+	}
+
+	private final void end() throws IOException {
+		chunk.write(BinaryProjectReader.END);
+		checkChunk(CHUNK_ENDS.contains(open.remove(open.size() -1)));
+	}
+
+	private final void writeValue(final String s) {
+		if (isNumber(s)) {
+			if (writeNumber(s)) return;
+		} else if (s.length() > 2 && -1 != s.indexOf(' ') && writeTokens(s)) {
+			return;
+		}
+		chunk.write(BinaryProjectReader.STRING);
+		chunk.writeString(s);
+	}
+
+	/** Whether @param s may be a number; only the characters are checked. */
+	static private final boolean isNumber(final String s) {
+		final int n = s.length();
+		if (0 == n || n > 24) return false;
+		final char c0 = s.charAt(0);
+		if (!(('0' <= c0 && c0 <= '9') || '-' == c0)) return false;
+		for (int i=1; i<n; ++i) {
+			final char c = s.charAt(i);
+			if (!(('0' <= c && c <= '9') || '.' == c || 'E' == c || '-' == c)) return false;
+		}
+		return true;
+	}
+
+	/** Returns the value of @param s if it is an integer printed as {@link Long#toString(long)} would, or null. */
+	static private final Long asLong(final String s) {
+		final int n = s.length();
+		if (n > 18) return null;
+		final int first = '-' == s.charAt(0) ? 1 : 0;
+		if (first == n) return null;
+		// No leading zeros, and no "-0"
+		if ('0' == s.charAt(first) && (n - first > 1 || 1 == first)) return null;
+		for (int i=first; i<n; ++i) {
+			final char c = s.charAt(i);
+			if (c < '0' || c > '9') return null;
+		}
+		return Long.parseLong(s);
+	}
+
+	/** Returns the value of @param s if it is a float printed as {@link Float#toString(float)} would, or null. */
+	static private final Float asFloat(final String s) {
+		try {
+			final float f = Float.parseFloat(s);
+			return Float.toString(f).equals(s) ? f : null;
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	private final boolean writeNumber(final String s) {
+		final Long l = asLong(s);
+		if (null != l) {
+			chunk.write(BinaryProjectReader.LONG);
+			chunk.writeZigZag(l);
+			return true;
+		}
+		final Float f = asFloat(s);
+		if (null != f) {
+			chunk.write(BinaryProjectReader.FLOAT);
+			chunk.writeInt(Float.floatToIntBits(f));
+			return true;
+		}
+		try {
+			final double d = Double.parseDouble(s);
+			if (Double.toString(d).equals(s)) {
+				chunk.write(BinaryProjectReader.DOUBLE);
+				final long bits = Double.doubleToLongBits(d);
+				chunk.writeInt((int)(bits >>> 32));
+				chunk.writeInt((int)bits);
+				return true;
+			}
+		} catch (NumberFormatException nfe) {}
+		return false;
+	}
+
+	/** Write @param s as a list of single characters and numbers, if it is one; otherwise write nothing and return false. */
+	private final boolean writeTokens(final String s) {
+		final String[] tokens = s.split(" ", -1);
+		// Check first, so that nothing is written if any token can't be packed
+		for (final String t : tokens) {
+			if (1 == t.length() && !('0' <= t.charAt(0) && t.charAt(0) <= '9')) continue;
+			if (!isNumber(t) || (null == asLong(t) && null == asFloat(t))) return false;
+		}
+		chunk.write(BinaryProjectReader.TOKENS);
+		chunk.writeVarLong(tokens.length);
+		final long[] previous = new long[2];
+		int n_longs = 0;
+		for (final String t : tokens) {
+			final Long l = isNumber(t) ? asLong(t) : null;
+			if (null != l) {
+				chunk.write(BinaryProjectReader.TOKEN_LONG);
+				chunk.writeZigZag(l - previous[n_longs & 1]);
+				previous[n_longs & 1] = l;
+				++n_longs;
+			} else if (1 == t.length() && !('0' <= t.charAt(0) && t.charAt(0) <= '9')) {
+				chunk.write(BinaryProjectReader.TOKEN_CHAR);
+				chunk.writeVarLong(t.charAt(0));
+			} else {
+				chunk.write(BinaryProjectReader.TOKEN_FLOAT);
+				chunk.writeInt(Float.floatToIntBits(asFloat(t)));
+			}
+		}
+		return true;
+	}
+
+	/** End the chunk if large enough: at the end of elements in {@link #CHUNK_ENDS}, or anywhere when too large. */
+	private final void checkChunk(final boolean at_end_of_object) throws IOException {
+		final int size = chunk.size();
+		if (size >= MAX_CHUNK || (at_end_of_object && size >= MIN_CHUNK)) endChunk();
+	}
+
+	private final void endChunk() throws IOException {
+		final int size = chunk.size();
+		if (0 == size) return;
+		deflater.reset();
+		deflater.setInput(chunk.buffer(), 0, size);
+		deflater.finish();
+		int clength = 0;
+		while (!deflater.finished()) {
+			if (clength == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			clength += deflater.deflate(compressed, clength, compressed.length - clength);
+		}
+		out.writeInt(size);
+		out.writeInt(clength);
+		out.write(compressed, 0, clength);
+		chunk.reset();
+	}
+}
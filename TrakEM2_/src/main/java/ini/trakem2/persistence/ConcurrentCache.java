@@ -0,0 +1,937 @@
+package ini.trakem2.persistence;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ini.trakem2.display.MipMapImage;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.TypedHashMap;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Image;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A thread-safe cache of mipmap pyramids and ImagePlus instances, keyed by Patch id.
+ *  {@link #getClosestAbove(long, int)} and {@link #getClosestBelow(long, int)} return the
+ *  requested mipmap level or the closest cached one, larger or smaller respectively.
+ *
+ *  Pyramids are keyed by Patch id and distributed over a number of stripes,
+ *  each with its own lock and its own eviction policy; there is no global lock,
+ *  so that repaint threads fetching mipmaps for different Patch instances don't wait on each other.
+ *  The total number of bytes is shared among all stripes. When over max_bytes,
+ *  one victim is taken from each stripe in turn until enough bytes have been freed,
+ *  which approximates a global eviction order without ever holding two stripe locks at once.
+ *
+ *  Eviction works at the granularity of whole pyramids:
+ *  when a Patch is evicted, all its mipmap levels and its ImagePlus (if not shared) are flushed.
+ *
+ *  The eviction policy is one of {@link #LRU}, {@link #TINY_LFU} or {@link #SIZE_AWARE},
+ *  and can be changed at any time with {@link #setPolicy(int)}.
+ *
+ *  Hit, miss and eviction counts are kept for {@link #get(long, int)}, {@link #get(long)},
+ *  {@link #getClosestAbove(long, int)} and {@link #getClosestBelow(long, int)}.
+ *
+ *  Optionally, evicted mipmaps are handed to a second tier {@link OffHeapCache} set with
+ *  {@link #setSecondTier(OffHeapCache)}, from which {@link #get(long, int)} and
+ *  {@link #getClosestAbove(long, int)} promote them back when not found here.
+ *  Explicit removals, which mean that the images are no longer valid, remove them from both tiers.
+ */
+public final class ConcurrentCache {
+
+	/** Evict the least recently used pyramid. */
+	static public final int LRU = 0;
+	/** Admit into the main LRU only those pyramids that are accessed more often than
+	 *  the pyramid they would replace, as estimated by a frequency sketch; new pyramids
+	 *  wait in a small admission window. Resists scans, such as exporting a whole layer. */
+	static public final int TINY_LFU = 1;
+	/** Among the few least recently used pyramids, evict the largest one. */
+	static public final int SIZE_AWARE = 2;
+
+	static public final String[] POLICIES = new String[]{"LRU", "W-TinyLFU", "Size-aware LRU"};
+
+	static private final int[] PIXEL_SIZE = new int[]{1, 2, 4, 1, 4}; // GRAY0, GRAY16, GRAY32, COLOR_256 and COLOR_RGB
+	static private final int OVERHEAD = 1024; // in bytes: what a LUT would take (256 * 3) plus some extra
+
+	static final long size(final ImagePlus imp) {
+		return imp.getWidth() * imp.getHeight() * imp.getNSlices() * PIXEL_SIZE[imp.getType()] + OVERHEAD;
+	}
+
+	static final long size(final Image img) {
+		return img.getWidth(null) * img.getHeight(null) * 4 + OVERHEAD; // assume int[] image
+	}
+
+	static private final int computeLevel(final int i) {
+		return (int)(0.5 + ((Math.log(i) - Math.log(32)) / Math.log(2))) + 1;
+	}
+
+	/** The position in the array is the Math.max(width, height) of an image. */
+	private final static int[] max_levels = new int[50000]; // don't change to smaller than 33. Here 50000 is the maximum width or height for which precomputed mipmap levels will exist.
+	static {
+		// from 0 to 31 all zeros
+		for (int i=32; i<max_levels.length; i++) {
+			max_levels[i] = computeLevel(i);
+		}
+	}
+
+	static final int maxLevel(final int maxdim) {
+		return maxdim < max_levels.length ? max_levels[maxdim] : computeLevel(maxdim);
+	}
+
+	/** Returns null if the ImagePlus was preprocessed or doesn't have an original FileInfo
+	 * (which means the image does not come from a file). */
+	static public final String getPath(final ImagePlus imp) {
+		final FileInfo fi = imp.getOriginalFileInfo();
+		if (null == fi || Loader.PREPROCESSED == fi.fileFormat) return null;
+		final String dir = fi.directory;
+		if (null == dir) {
+			return fi.url;
+		}
+		return dir + fi.fileName;
+	}
+
+	static private final class Pyramid {
+		private final long id;
+		private Image[] images;
+		private int n_images = 0; // counts non-null instances in images array
+		private SoftReference<ImagePlus> srimp = null;
+		/** Null when the ImagePlus does not come from a file. */
+		private ImagePlusUsers users = null;
+		/** The bytes of the ImagePlus that this pyramid is accountable for:
+		 *  zero when the ImagePlus is shared with other pyramids via its path. */
+		private long impBytes = 0;
+		/** Bytes of all images plus impBytes. */
+		private long bytes = 0;
+
+		Pyramid(final long id, final int n_levels) {
+			this.id = id;
+			this.images = new Image[Math.max(1, n_levels)];
+		}
+
+		final Image get(final int level) {
+			return level < 0 || level >= images.length ? null : images[level];
+		}
+
+		/** Accepts a null @param img.
+		 *  Returns the number of bytes used/freed (positive/negative). */
+		final long replace(final Image img, final int level) {
+			if (level >= images.length) {
+				if (null == img) return 0;
+				images = Arrays.copyOf(images, level + 1);
+			}
+			final Image old = images[level];
+			if (old == img) return 0;
+			long b = 0;
+			if (null != old) {
+				b -= size(old);
+				old.flush(); CachingThread.storeArrayForReuse(old);
+				n_images--;
+			}
+			if (null != img) {
+				b += size(img);
+				n_images++;
+			}
+			images[level] = img;
+			this.bytes += b;
+			return b;
+		}
+
+		/** Flush all mipmap levels. Returns the number of bytes freed (negative). */
+		final long clearImages() {
+			long b = 0;
+			for (int i=0; i<images.length; i++) {
+				if (null != images[i]) b += replace(null, i);
+			}
+			return b;
+		}
+
+		final ImagePlus getImagePlus() {
+			return null == this.srimp ? null : this.srimp.get();
+		}
+
+		final boolean hasImagePlus() {
+			return null != this.srimp;
+		}
+
+		final boolean isEmpty() {
+			return 0 == n_images && null == srimp;
+		}
+	}
+
+	/** Access is synchronized by the imps table. */
+	static private final class ImagePlusUsers {
+		final Set<Long> users = new HashSet<Long>();
+		final SoftReference<ImagePlus> srimp;
+		final long bytes;
+		String path;
+		ImagePlusUsers(final String path, final ImagePlus imp, final Long firstUser, final long bytes) {
+			this.path = path;
+			this.srimp = new SoftReference<ImagePlus>(imp);
+			this.bytes = bytes;
+			users.add(firstUser);
+		}
+		final ImagePlus getImagePlus() {
+			return this.srimp.get();
+		}
+	}
+
+	/** Decides which pyramid of a stripe to evict next.
+	 *  Not thread-safe: always called while holding the lock of the owning stripe. */
+	static private abstract class Policy {
+		/** Called when a pyramid is added to the stripe. */
+		abstract void onInsert(Pyramid p);
+		/** Called when any image of the pyramid is read or replaced. */
+		abstract void onAccess(Pyramid p);
+		/** Called when a pyramid is removed from the stripe, whether evicted or not. */
+		abstract void onRemove(Pyramid p);
+		/** Returns the next pyramid to evict, or null if none; does not remove it. */
+		abstract Pyramid victim();
+		/** All pyramids, from the next to be evicted to the last. */
+		abstract List<Pyramid> pyramids();
+	}
+
+	static private final class LRUPolicy extends Policy {
+		final LinkedHashMap<Long,Pyramid> order = new LinkedHashMap<Long,Pyramid>(16, 0.75f, true);
+		@Override
+		final void onInsert(final Pyramid p) { order.put(p.id, p); }
+		@Override
+		final void onAccess(final Pyramid p) { order.get(p.id); }
+		@Override
+		final void onRemove(final Pyramid p) { order.remove(p.id); }
+		@Override
+		Pyramid victim() {
+			final Iterator<Pyramid> it = order.values().iterator();
+			return it.hasNext() ? it.next() : null;
+		}
+		@Override
+		final List<Pyramid> pyramids() { return new ArrayList<Pyramid>(order.values()); }
+	}
+
+	static private final class SizeAwarePolicy extends Policy {
+		/** Number of least recently used pyramids among which to pick the largest. */
+		static private final int SAMPLE = 8;
+		final LinkedHashMap<Long,Pyramid> order = new LinkedHashMap<Long,Pyramid>(16, 0.75f, true);
+		@Override
+		final void onInsert(final Pyramid p) { order.put(p.id, p); }
+		@Override
+		final void onAccess(final Pyramid p) { order.get(p.id); }
+		@Override
+		final void onRemove(final Pyramid p) { order.remove(p.id); }
+		@Override
+		final Pyramid victim() {
+			Pyramid largest = null;
+			int i = 0;
+			for (final Pyramid p : order.values()) {
+				if (null == largest || p.bytes > largest.bytes) largest = p;
+				if (++i == SAMPLE) break;
+			}
+			return largest;
+		}
+		@Override
+		final List<Pyramid> pyramids() { return new ArrayList<Pyramid>(order.values()); }
+	}
+
+	/** Approximate counts of recent accesses, in a count-min sketch of 4 rows.
+	 *  Counts saturate at 15 and are halved every 10 * width additions,
+	 *  so that old popularity decays. */
+	static private final class FrequencySketch {
+		private final int[][] table;
+		private final int mask;
+		private int additions = 0;
+
+		FrequencySketch(final int width) {
+			int w = 16;
+			while (w < width) w <<= 1;
+			this.table = new int[4][w];
+			this.mask = w - 1;
+		}
+
+		static private final int hash(final long id, final int row) {
+			long h = (id + row) * 0x9E3779B97F4A7C15L;
+			h ^= (h >>> 29) + row;
+			h *= 0xBF58476D1CE4E5B9L;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		final void increment(final long id) {
+			for (int row=0; row<table.length; row++) {
+				final int i = hash(id, row) & mask;
+				if (table[row][i] < 15) table[row][i]++;
+			}
+			if (++additions >= 10 * (mask + 1)) {
+				for (final int[] counts : table) {
+					for (int i=0; i<counts.length; i++) counts[i] >>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+		final int frequency(final long id) {
+			int min = Integer.MAX_VALUE;
+			for (int row=0; row<table.length; row++) {
+				min = Math.min(min, table[row][hash(id, row) & mask]);
+			}
+			return min;
+		}
+	}
+
+	static private final class TinyLFUPolicy extends Policy {
+		/** New pyramids wait in the window, which takes 1% of all pyramids (at least one). */
+		final LinkedHashMap<Long,Pyramid> window = new LinkedHashMap<Long,Pyramid>(16, 0.75f, true);
+		final LinkedHashMap<Long,Pyramid> main = new LinkedHashMap<Long,Pyramid>(16, 0.75f, true);
+		final FrequencySketch sketch = new FrequencySketch(1024);
+
+		@Override
+		final void onInsert(final Pyramid p) {
+			sketch.increment(p.id);
+			window.put(p.id, p);
+		}
+		@Override
+		final void onAccess(final Pyramid p) {
+			sketch.increment(p.id);
+			if (null == window.get(p.id)) main.get(p.id);
+		}
+		@Override
+		final void onRemove(final Pyramid p) {
+			if (null == window.remove(p.id)) main.remove(p.id);
+		}
+		static private final Pyramid eldest(final LinkedHashMap<Long,Pyramid> m) {
+			final Iterator<Pyramid> it = m.values().iterator();
+			return it.hasNext() ? it.next() : null;
+		}
+		@Override
+		final Pyramid victim() {
+			final int window_max = Math.max(1, (window.size() + main.size()) / 100);
+			while (window.size() > window_max) {
+				// The eldest in the window competes for admission into main with main's eldest
+				final Pyramid candidate = eldest(window);
+				final Pyramid incumbent = eldest(main);
+				if (null == incumbent || sketch.frequency(candidate.id) > sketch.frequency(incumbent.id)) {
+					window.remove(candidate.id);
+					main.put(candidate.id, candidate);
+					if (null != incumbent) return incumbent;
+				} else {
+					return candidate;
+				}
+			}
+			final Pyramid p = eldest(main);
+			return null != p ? p : eldest(window);
+		}
+		@Override
+		final List<Pyramid> pyramids() {
+			final ArrayList<Pyramid> a = new ArrayList<Pyramid>(window.size() + main.size());
+			a.addAll(main.values());
+			a.addAll(window.values());
+			return a;
+		}
+	}
+
+	static private final Policy createPolicy(final int policy) {
+		switch (policy) {
+			case TINY_LFU: return new TinyLFUPolicy();
+			case SIZE_AWARE: return new SizeAwarePolicy();
+			default: return new LRUPolicy();
+		}
+	}
+
+	private final class Stripe {
+		private final TypedHashMap<Long,Pyramid> pyramids = new TypedHashMap<Long,Pyramid>();
+		private Policy policy = createPolicy(ConcurrentCache.this.policy);
+
+		/** Must be called while holding this stripe's lock. */
+		private final void drop(final Pyramid p) {
+			pyramids.removeEntry(p.id);
+			policy.onRemove(p);
+		}
+
+		/** Flush all images and the ImagePlus of the next pyramid to evict.
+		 *  Returns the number of bytes freed (negative), or 1 if there wasn't any pyramid to evict. */
+		private final long evictOne() {
+			synchronized (this) {
+				final Pyramid p = policy.victim();
+				if (null == p) return 1;
+				drop(p);
+				long b = 0;
+				if (p.hasImagePlus()) {
+					b -= detachImagePlus(p);
+					count.decrementAndGet();
+				}
+				count.addAndGet(-p.n_images);
+				demote(p);
+				b += p.clearImages();
+				addBytes(b);
+				evictions.incrementAndGet();
+				return b;
+			}
+		}
+	}
+
+	/** Keep a table of loaded ImagePlus, shared by all stripes. Synchronize on it to access it. */
+	private final TypedHashMap<String,ImagePlusUsers> imps = new TypedHashMap<String,ImagePlusUsers>();
+
+	private final Stripe[] stripes;
+	private final int stripe_mask;
+	/** Where to start looking for victims in the next call to {@link #removeAndFlushSome(long)}. */
+	private final AtomicInteger hand = new AtomicInteger(0);
+
+	private final AtomicLong bytes = new AtomicLong(0);
+	private volatile long max_bytes; // negative values are ok
+	private volatile int policy;
+	/** The number of images stored (not of pyramids). */
+	private final AtomicInteger count = new AtomicInteger(0);
+
+	/** The optional second tier, or null. */
+	private volatile OffHeapCache l2 = null;
+
+	private final AtomicLong hits = new AtomicLong(0),
+							 misses = new AtomicLong(0),
+							 evictions = new AtomicLong(0);
+
+	/** Uses {@link #LRU} and a number of stripes proportional to the number of processors. */
+	public ConcurrentCache(final long max_bytes) {
+		this(max_bytes, LRU, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/** @param n_stripes is rounded up to the next power of two, to a maximum of 256. */
+	public ConcurrentCache(final long max_bytes, final int policy, final int n_stripes) {
+		this.max_bytes = max_bytes;
+		this.policy = checkPolicy(policy);
+		int n = 1;
+		while (n < n_stripes && n < 256) n <<= 1;
+		this.stripes = new Stripe[n];
+		for (int i=0; i<n; i++) stripes[i] = new Stripe();
+		this.stripe_mask = n - 1;
+	}
+
+	static private final int checkPolicy(final int policy) {
+		if (policy < 0 || policy >= POLICIES.length) {
+			Utils.log2("Unknown cache policy " + policy + ", using LRU");
+			return LRU;
+		}
+		return policy;
+	}
+
+	private final Stripe stripe(final long id) {
+		final long h = id * 0x9E3779B97F4A7C15L;
+		return stripes[(int)(h ^ (h >>> 32)) & stripe_mask];
+	}
+
+	private final void addBytes(final long b) {
+		bytes.addAndGet(b);
+	}
+
+	/** Set the cache into which evicted mipmaps are stored, or null to use none.
+	 *  The previous second tier, if any, is closed. */
+	public void setSecondTier(final OffHeapCache l2) {
+		final OffHeapCache old = this.l2;
+		this.l2 = l2;
+		if (null != old && old != l2) old.close();
+	}
+
+	public OffHeapCache getSecondTier() { return l2; }
+
+	/** Copy all mipmaps of @param p into the second tier, if any. Must be called before flushing them. */
+	private final void demote(final Pyramid p) {
+		final OffHeapCache l2 = this.l2;
+		if (null == l2) return;
+		for (int i=0; i<p.images.length; i++) {
+			if (null == p.images[i] || Loader.isSignalImage(p.images[i])) continue;
+			l2.put(p.id, i, p.images[i]);
+		}
+	}
+
+	/** Forget the given level (or all levels, if negative) of @param id in the second tier, if any.
+	 *  Must be called while holding the lock of the stripe of @param id, as {@link Stripe#evictOne()} demotes under it. */
+	private final void invalidate(final long id, final int level) {
+		final OffHeapCache l2 = this.l2;
+		if (null == l2) return;
+		if (level < 0) l2.removePyramid(id);
+		else l2.forget(id, level);
+	}
+
+	/** Changes the eviction policy, keeping all cached images. The pyramids of each stripe are
+	 *  handed over to the new policy from the least to the most recently used. */
+	public void setPolicy(final int policy) {
+		final int pol = checkPolicy(policy);
+		if (pol == this.policy) return;
+		this.policy = pol;
+		for (final Stripe s : stripes) {
+			synchronized (s) {
+				final Policy next = createPolicy(pol);
+				for (final Pyramid p : s.policy.pyramids()) next.onInsert(p);
+				s.policy = next;
+			}
+		}
+	}
+
+	/** Returns one of {@link #LRU}, {@link #TINY_LFU} or {@link #SIZE_AWARE}. */
+	public int getPolicy() { return policy; }
+
+	public void setMaxBytes(final long max_bytes) {
+		final long old = this.max_bytes;
+		this.max_bytes = max_bytes;
+		if (max_bytes < old) {
+			ensureFree(0);
+		}
+	}
+
+	/** Remove and flush the minimal amount of images to ensure there are at least min_free_bytes free. */
+	public final long ensureFree(final long min_free_bytes) {
+		final long b = bytes.get();
+		if (b + min_free_bytes > max_bytes) {
+			// remove the difference (or a bit more):
+			return removeAndFlushSome(b + min_free_bytes - max_bytes);
+		}
+		return 0;
+	}
+
+	/** Maximum desired space for this cache. */
+	public long getMaxBytes() { return max_bytes; }
+
+	/** Current estimated space occupied by the images in this cache. */
+	public long getBytes() { return bytes.get(); }
+
+	public final long getHits() { return hits.get(); }
+
+	public final long getMisses() { return misses.get(); }
+
+	/** The number of pyramids evicted to stay under max_bytes or to free memory;
+	 *  does not count explicit removals. */
+	public final long getEvictions() { return evictions.get(); }
+
+	public final void resetStats() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	public final String getStats() {
+		final long h = hits.get(),
+		           m = misses.get();
+		return new StringBuilder("cache ").append(POLICIES[policy])
+			.append(": hits ").append(h)
+			.append(", misses ").append(m)
+			.append(" (hit rate ").append(0 == h + m ? 0 : (100 * h) / (float)(h + m)).append("%)")
+			.append(", evictions ").append(evictions.get())
+			.append(", images ").append(count.get())
+			.append(", bytes ").append(bytes.get()).append(" / ").append(max_bytes)
+			.toString();
+	}
+
+	private final void record(final boolean hit) {
+		if (hit) hits.incrementAndGet();
+		else misses.incrementAndGet();
+	}
+
+	public final boolean contains(final long id) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			return s.pyramids.hasKey(id);
+		}
+	}
+
+	public final boolean contains(final long id, final int level) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			return null != p && null != p.get(level);
+		}
+	}
+
+	public final Image get(final long id, final int level) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			final Image img = null == p ? null : p.get(level);
+			record(null != img);
+			if (null != img) {
+				s.policy.onAccess(p);
+				return img;
+			}
+		}
+		return promote(id, level);
+	}
+
+	/** Move the given level from the second tier, if any, into this cache.
+	 *  Both within the lock of the stripe, or a removal in between would be undone. */
+	private final Image promote(final long id, final int level) {
+		final OffHeapCache l2 = this.l2;
+		if (null == l2) return null;
+		final Stripe s = stripe(id);
+		final Image img;
+		synchronized (s) {
+			img = l2.remove(id, level);
+			if (null == img) return null;
+			insert(s, id, img, level);
+		}
+		fit();
+		return img;
+	}
+
+	public final ImagePlus get(final String path) {
+		if (null == path) return null;
+		synchronized (imps) {
+			final ImagePlusUsers u = imps.getValue(path);
+			return null == u ? null : u.getImagePlus();
+		}
+	}
+
+	public final ImagePlus get(final long id) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			final ImagePlus imp = null == p ? null : p.getImagePlus();
+			if (null != imp) s.policy.onAccess(p);
+			record(null != imp);
+			return imp;
+		}
+	}
+
+	public final Map<Integer,Image> getAll(final long id) {
+		final TypedHashMap<Integer,Image> m = new TypedHashMap<Integer,Image>();
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			if (null == p) return m;
+			for (int i=0; i<p.images.length; i++) {
+				if (null != p.images[i]) m.put(i, p.images[i]);
+			}
+			s.policy.onAccess(p);
+		}
+		return m;
+	}
+
+	public final MipMapImage getClosestAbove(final long id, final int level) {
+		final Stripe s = stripe(id);
+		final MipMapImage mipMap;
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			if (null != p) {
+				for (int i=Math.min(level, p.images.length-1); i>-1; i--) {
+					if (null == p.images[i]) continue;
+					s.policy.onAccess(p);
+					record(true);
+					final double scale = Math.pow( 2.0, i );
+					return new MipMapImage( p.images[ i ], scale, scale );
+				}
+			}
+			record(false);
+			final OffHeapCache l2 = this.l2;
+			if (null == l2) return null;
+			// Promote within the lock, as in promote(long, int)
+			mipMap = l2.removeClosestAbove(id, level);
+			if (null == mipMap) return null;
+			insert(s, id, mipMap.image, (int)(0.5 + Math.log(mipMap.scaleX) / Math.log(2)));
+		}
+		fit();
+		return mipMap;
+	}
+
+	// Below or equal
+	public final MipMapImage getClosestBelow(final long id, final int level) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			if (null != p) {
+				for (int i=Math.max(0, level); i<p.images.length; i++) {
+					if (null == p.images[i]) continue;
+					s.policy.onAccess(p);
+					record(true);
+					final double scale = Math.pow( 2.0, i );
+					return new MipMapImage( p.images[ i ], scale, scale );
+				}
+			}
+			record(false);
+			return null;
+		}
+	}
+
+	/** Makes up space to fit b, which has already been added. */
+	private final void fit() {
+		final long over = bytes.get() - max_bytes;
+		if (over > 0) removeAndFlushSome(over);
+	}
+
+	// If already there, move to latest
+	// If the image is different, flush the old image
+	public final void put(final long id, final Image image, final int level) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			// Within the lock, or an eviction could demote the old image again
+			invalidate(id, level);
+			insert(s, id, image, level);
+		}
+		fit(); // AFTER adding it, and outside the stripe lock
+	}
+
+	/** Must be called while holding the lock of @param s, the stripe of @param id; then call {@link #fit()} outside of it. */
+	private final void insert(final Stripe s, final long id, final Image image, final int level) {
+		Pyramid p = s.pyramids.getValue(id);
+		if (null == p) {
+			final int max = Math.max(image.getWidth(null), image.getHeight(null));
+			p = new Pyramid(id, level + maxLevel(max));
+			s.pyramids.put(id, p);
+			s.policy.onInsert(p);
+		} else {
+			s.policy.onAccess(p);
+		}
+		if (null == p.get(level)) count.incrementAndGet();
+		addBytes(p.replace(image, level));
+	}
+
+	public final void updateImagePlusPath(final String oldPath, final String newPath) {
+		synchronized (imps) {
+			final ImagePlusUsers u = imps.removeEntry(oldPath);
+			if (null == u) return;
+			u.path = newPath;
+			imps.put(newPath, u);
+		}
+	}
+
+	/** Returns the number of bytes added to the cache.
+	 *  Must be called while holding the lock of the stripe of @param p: stripe locks are always acquired before the imps lock. */
+	private final long attachImagePlus(final Pyramid p, final ImagePlus imp) {
+		p.srimp = new SoftReference<ImagePlus>(imp);
+		final String path = getPath(imp); // may be null, in which case it is not stored in imps
+		if (null == path) {
+			p.impBytes = size(imp);
+			p.bytes += p.impBytes;
+			return p.impBytes;
+		}
+		synchronized (imps) {
+			final ImagePlusUsers u = imps.getValue(path);
+			if (null == u) {
+				final long b = size(imp);
+				p.users = new ImagePlusUsers(path, imp, p.id, b);
+				imps.put(path, p.users);
+				p.impBytes = b;
+				p.bytes += b;
+				return b;
+			}
+			u.users.add(p.id);
+			p.users = u;
+			return 0;
+		}
+	}
+
+	/** Returns the number of bytes freed (positive) by forgetting the ImagePlus of @param p,
+	 *  which are zero if the ImagePlus is still in use by other pyramids.
+	 *  Must be called while holding the lock of the stripe of @param p. */
+	private final long detachImagePlus(final Pyramid p) {
+		long freed = 0;
+		if (null == p.users) {
+			freed = p.impBytes;
+		} else {
+			synchronized (imps) {
+				final ImagePlusUsers u = p.users;
+				u.users.remove(p.id);
+				if (u.users.isEmpty()) {
+					if (u == imps.getValue(u.path)) imps.removeEntry(u.path);
+					freed = u.bytes;
+				}
+			}
+		}
+		p.bytes -= p.impBytes;
+		p.srimp = null;
+		p.users = null;
+		p.impBytes = 0;
+		return freed;
+	}
+
+	/** @param maxdim is max(width, height) of the Patch wrapping @param imp;
+	 *  that is, the dimensions of the mipmap image. */
+	public final void put(final long id, final ImagePlus imp, final int maxdim) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			Pyramid p = s.pyramids.getValue(id);
+			if (null == p) {
+				p = new Pyramid(id, maxLevel(maxdim));
+				s.pyramids.put(id, p);
+				s.policy.onInsert(p);
+			} else {
+				s.policy.onAccess(p);
+				if (imp == p.getImagePlus()) return;
+				if (p.hasImagePlus()) {
+					addBytes(-detachImagePlus(p));
+					count.decrementAndGet();
+				}
+			}
+			addBytes(attachImagePlus(p, imp));
+			count.incrementAndGet();
+		}
+		fit();
+	}
+
+	/** Remove one mipmap level, if there. */
+	public final Image remove(final long id, final int level) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			invalidate(id, level);
+			final Pyramid p = s.pyramids.getValue(id);
+			if (null == p) return null;
+			final Image im = p.get(level);
+			if (null != im) {
+				addBytes(p.replace(null, level));
+				count.decrementAndGet();
+			}
+			// If at least one level is still not null, keep the pyramid; otherwise drop it
+			if (p.isEmpty()) s.drop(p);
+			return im;
+		}
+	}
+
+	/** Remove only the ImagePlus, if there. */
+	public final ImagePlus removeImagePlus(final long id) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			final Pyramid p = s.pyramids.getValue(id);
+			if (null == p || !p.hasImagePlus()) return null;
+			final ImagePlus imp = p.getImagePlus();
+			addBytes(-detachImagePlus(p));
+			count.decrementAndGet();
+			if (p.isEmpty()) s.drop(p);
+			return imp;
+		}
+	}
+
+	public final void remove(final long id) {
+		removeAndFlush(id, true);
+	}
+
+	/** Does not alter the ImagePlus. */
+	public final void removeAndFlushPyramid(final long id) {
+		removeAndFlush(id, false);
+	}
+
+	private final void removeAndFlush(final long id, final boolean with_imp) {
+		final Stripe s = stripe(id);
+		synchronized (s) {
+			invalidate(id, -1);
+			final Pyramid p = s.pyramids.getValue(id);
+			if (null == p) return;
+			if (with_imp && p.hasImagePlus()) {
+				addBytes(-detachImagePlus(p));
+				count.decrementAndGet();
+			}
+			count.addAndGet(-p.n_images);
+			addBytes(p.clearImages());
+			if (p.isEmpty()) s.drop(p);
+		}
+	}
+
+	/** Flush all mipmaps, and forget all mipmaps and imps, including those in the second tier. */
+	public final void removeAndFlushAll() {
+		final OffHeapCache l2 = this.l2;
+		for (final Stripe s : stripes) {
+			synchronized (s) {
+				for (final Pyramid p : s.pyramids.values()) {
+					if (p.hasImagePlus()) {
+						addBytes(-detachImagePlus(p));
+						count.decrementAndGet();
+					}
+					count.addAndGet(-p.n_images);
+					addBytes(p.clearImages());
+				}
+				s.pyramids.clear();
+				s.policy = createPolicy(policy);
+				// Within the lock of each stripe, so that none of its flushed pyramids is left demoted
+				// nor is promoted back into it, while other stripes can only demote their own pyramids
+				if (null != l2) l2.removeAll();
+			}
+		}
+		synchronized (imps) {
+			imps.clear();
+		}
+	}
+
+	/** Evict pyramids until at least min_bytes have been freed or the cache is empty.
+	 *  Takes one victim from each stripe in turn.
+	 *  Returns the number of released bytes. */
+	public final long removeAndFlushSome(final long min_bytes) {
+		long size = 0;
+		final int start = hand.getAndIncrement();
+		while (size < min_bytes) {
+			boolean any = false;
+			for (int i=0; i<stripes.length && size < min_bytes; i++) {
+				final long b = stripes[(start + i) & stripe_mask].evictOne();
+				if (b > 0) continue; // empty stripe
+				size -= b;
+				any = true;
+			}
+			if (!any) break;
+		}
+		return size;
+	}
+
+	/** Evict at least @param n images, or until the cache is empty.
+	 *  Returns the number of released bytes. */
+	public final long removeAndFlushSome(final int n) {
+		long size = 0;
+		final int target = count.get() - n;
+		final int start = hand.getAndIncrement();
+		while (count.get() > target) {
+			boolean any = false;
+			for (int i=0; i<stripes.length && count.get() > target; i++) {
+				final long b = stripes[(start + i) & stripe_mask].evictOne();
+				if (b > 0) continue; // empty stripe
+				size -= b;
+				any = true;
+			}
+			if (!any) break;
+		}
+		return size;
+	}
+
+	/** The number of images (mipmap levels and ImagePlus) in the cache. */
+	public final int size() {
+		return count.get();
+	}
+
+	public void debug() {
+		Utils.log2("@@@@@@@@@@ START");
+		final TreeMap<Long,Pyramid> all = new TreeMap<Long,Pyramid>();
+		final int[] distribution = new int[stripes.length];
+		for (int k=0; k<stripes.length; k++) {
+			synchronized (stripes[k]) {
+				all.putAll(stripes[k].pyramids);
+				distribution[k] = stripes[k].pyramids.size();
+			}
+		}
+		Utils.log2("pyramids: " + all.size());
+		for (final Map.Entry<Long,Pyramid> e : all.entrySet()) {
+			final Pyramid p = e.getValue();
+			Utils.log2("p id:" + e.getKey() + ";  images: " + p.n_images + " / " + p.images.length + ";  imp: " + p.getImagePlus());
+		}
+		Utils.log2("----");
+		synchronized (imps) {
+			for (final Map.Entry<String,ImagePlusUsers> e : imps.entrySet()) {
+				Utils.log2(e.getValue().users.size() + " ImagePlusUsers of " + e.getKey());
+			}
+			Utils.log2("imps: " + imps.size());
+		}
+		Utils.log2("----");
+		Utils.log2(getStats());
+		if (null != l2) Utils.log2(l2.getStats());
+		Utils.log2("stripe size distribution: " + Utils.toString(distribution));
+	}
+
+	public final long seqFindId(final ImagePlus imp) {
+		for (final Stripe s : stripes) {
+			synchronized (s) {
+				for (final Pyramid p : s.pyramids.values()) {
+					if (p.getImagePlus() == imp) return p.id;
+				}
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+}
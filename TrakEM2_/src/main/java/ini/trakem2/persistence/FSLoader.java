@@ -43,11 +43,16 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.MipMapImage;
+import ini.trakem2.display.MipMapPrefetcher;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Stack;
 import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.P;
+import ini.trakem2.io.ChannelMipMaps;
+import ini.trakem2.io.CoordinateTransformStore;
+import ini.trakem2.io.CoordinateTransformXML;
 import ini.trakem2.io.ImageSaver;
+import ini.trakem2.io.PackedMipMaps;
 import ini.trakem2.io.RagMipMaps;
 import ini.trakem2.io.RawMipMaps;
 import ini.trakem2.utils.Bureaucrat;
@@ -57,6 +62,7 @@ import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -78,6 +84,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -85,7 +92,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
@@ -95,9 +101,12 @@ import javax.swing.KeyStroke;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
+import mpicbg.trakem2.align.FeatureStore;
 import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.util.Downsampler;
 
 import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
 
 
 /** A class to rely on memory only; except images which are rolled from a folder or their original location and flushed when memory is needed for more. Ideally there would be a given folder for storing items temporarily of permanently as the "project folder", but I haven't implemented it. */
@@ -114,6 +123,8 @@ public final class FSLoader extends Loader {
 	private final Map<Long,String> ht_paths = Collections.synchronizedMap(new HashMap<Long,String>());
 	/** For saving and overwriting. */
 	private String project_file_path = null;
+	/** The changes since the project file was last saved, to save only those. */
+	private final ProjectJournal journal = new ProjectJournal();
 	/** Path to the directory hosting the file image pyramids. */
 	private String dir_mipmaps = null;
 	/** Path to the directory the user provided when creating the project. */
@@ -268,32 +279,47 @@ public final class FSLoader extends Loader {
 
 		// parse file, according to expected format as indicated by the extension:
 		final String lcFilePath = this.project_file_path.toLowerCase();
-		if (lcFilePath.matches(".*(\\.xml|\\.xml\\.gz)")) {
+		if (lcFilePath.matches(".*(\\.xml|\\.xml\\.gz)") || BinaryProjectReader.isBinary(lcFilePath)) {
 			InputStream i_stream = null;
 			TMLHandler handler = new TMLHandler(this.project_file_path, this);
 			if (handler.isUnreadable()) {
 				handler = null;
 			} else {
 				try {
-					SAXParserFactory factory = SAXParserFactory.newInstance();
-					factory.setValidating(false);
-					factory.setXIncludeAware(false);
-					SAXParser parser = factory.newSAXParser();
-					if (isURL(this.project_file_path)) {
-						i_stream = new java.net.URL(this.project_file_path).openStream();
+					// With the changes saved in the journal, if any
+					final DefaultHandler h = journal.open(this.project_file_path, handler);
+					if (BinaryProjectReader.isBinary(lcFilePath)) {
+						// No XML parsing: the elements are decoded straight into the handler
+						BinaryProjectReader.parse(this.project_file_path, h);
 					} else {
-						i_stream = new BufferedInputStream(new FileInputStream(this.project_file_path));
-					}
-					if (lcFilePath.endsWith(".gz")) {
-						i_stream  = new GZIPInputStream(i_stream);
+						if (isURL(this.project_file_path)) {
+							i_stream = new java.net.URL(this.project_file_path).openStream();
+						} else {
+							i_stream = new BufferedInputStream(new FileInputStream(this.project_file_path));
+						}
+						if (lcFilePath.endsWith(".gz")) {
+							i_stream  = new GZIPInputStream(i_stream);
+						}
+						final int n_threads = TMLHandler.getDefaultThreadCount();
+						if (n_threads > 1) {
+							// Chunks of the file parsed in parallel, their events delivered in order
+							ParallelXMLParser.parse(i_stream, this.project_file_path, h, n_threads);
+						} else {
+							SAXParserFactory factory = SAXParserFactory.newInstance();
+							factory.setValidating(false);
+							factory.setXIncludeAware(false);
+							SAXParser parser = factory.newSAXParser();
+							InputSource input_source = new InputSource(i_stream);
+							parser.parse(input_source, h);
+						}
 					}
-					InputSource input_source = new InputSource(i_stream);
-					parser.parse(input_source, handler);
 				} catch (java.io.FileNotFoundException fnfe) {
 					Utils.log("ERROR: File not found: " + path);
+					handler.destroy();
 					handler = null;
 				} catch (Exception e) {
 					IJError.print(e);
+					handler.destroy();
 					handler = null;
 				} finally {
 					if (null != i_stream) {
@@ -311,6 +337,7 @@ public final class FSLoader extends Loader {
 			}
 
 			data = handler.getProjectData(open_displays);
+			journal.loaded();
 		}
 
 		if (null == data) {
@@ -351,19 +378,32 @@ public final class FSLoader extends Loader {
 		return np;
 	}
 
-	/** Restart the ExecutorService for mipmaps with {@param n_threads}. */
+	/** Restart the pipeline for mipmaps with {@param n_threads} in all, split among its stages: a quarter each
+	 * for downsampling and for saving, and the rest for reading and transforming images, with at least one per stage. */
 	static public final void restartMipMapThreads(final int n_threads) {
-		if (null != regenerator && !regenerator.isShutdown()) {
-			regenerator.shutdown();
+		final int n_downsample = Math.max(1, n_threads / 4),
+		          n_save = Math.max(1, n_threads / 4),
+		          n_decode = Math.max(1, n_threads - n_downsample - n_save);
+		restartMipMapThreads(n_decode, n_downsample, n_save, mipmaps_memory_budget);
+	}
+
+	/** Restart the pipeline for mipmaps with the given number of threads for each of its stages:
+	 * reading and transforming images, downsampling them, and encoding and writing the mipmap files.
+	 * Jobs already submitted are completed by the old pipeline.
+	 * @param max_bytes The memory that all mipmaps being generated may take at once. */
+	static public final void restartMipMapThreads(final int n_decode, final int n_downsample, final int n_save, final long max_bytes) {
+		if (null != mipmaps_pipeline && !mipmaps_pipeline.isShutdown()) {
+			mipmaps_pipeline.shutdown();
 		}
-		regenerator = Utils.newFixedThreadPool(Math.max(1, n_threads), "regenerator");
-		Utils.logAll("Restarted mipmap Executor Service for all projects with " + n_threads + " threads.");
+		mipmaps_memory_budget = max_bytes;
+		mipmaps_pipeline = new MipMapPipeline(new int[]{n_decode, n_downsample, n_save}, max_bytes);
+		Utils.logAll("Restarted mipmap pipeline for all projects with " + n_decode + ", " + n_downsample + " and " + n_save + " threads.");
 	}
 
 	static private void startStaticServices() {
-		// Up to nStaticServiceThreads for regenerator and repainter
-		if (null == regenerator || regenerator.isShutdown()) {
-			regenerator = Utils.newFixedThreadPool(1, "regenerator");
+		// Up to nStaticServiceThreads for repainter
+		if (null == mipmaps_pipeline || mipmaps_pipeline.isShutdown()) {
+			mipmaps_pipeline = new MipMapPipeline(new int[]{1, 1, 1}, mipmaps_memory_budget);
 		}
 		if (null == repainter || repainter.isShutdown()) {
 			repainter = Utils.newFixedThreadPool(nStaticServiceThreads, "repainter"); // for SnapshotPanel
@@ -378,7 +418,7 @@ public final class FSLoader extends Loader {
 
 	/** Shutdown the various thread pools and disactivate services in general. */
 	static private void destroyStaticServices() {
-		if (null != regenerator) regenerator.shutdownNow();
+		if (null != mipmaps_pipeline) mipmaps_pipeline.shutdownNow();
 		if (null != remover) remover.shutdownNow();
 		if (null != repainter) repainter.shutdownNow();
 		if (null != autosaver) autosaver.shutdownNow();
@@ -401,6 +441,9 @@ public final class FSLoader extends Loader {
 			// Cannot run in the remover: is a daemon, and would be interrupted.
 			removeMipMaps(createIdPath(Long.toString(p.getId()), f.getName(), mExt), (int)p.getWidth(), (int)p.getHeight());
 		}
+		compactPackedMipMaps();
+		closePackedMipMaps();
+		closeCoordinateTransformStore();
 		//
 		// remove empty trakem2.mipmaps folder if any
 		if (null != dir_mipmaps && !dir_mipmaps.equals(dir_storage)) {
@@ -692,6 +735,116 @@ public final class FSLoader extends Loader {
 		}
 	}
 
+	/** The packed coordinate transforms of this project, opened on demand. Access is synchronized by {@link #ct_store_lock}. */
+	private CoordinateTransformStore ct_store = null;
+	/** Whether the packed coordinate transforms were looked for on disk already. */
+	private boolean ct_store_checked = false;
+	private final Object ct_store_lock = new Object();
+
+	/** Returns the packed coordinate transforms of this project, if they exist or if @param create, opening them on demand;
+	 *  or null if they don't, or if the coordinate transforms folder is an URL, or they could not be opened. */
+	public final CoordinateTransformStore getCoordinateTransformStore(final boolean create) {
+		synchronized (ct_store_lock) {
+			if (null == ct_store && (create || !ct_store_checked)) {
+				ct_store_checked = true;
+				final String dir = getCoordinateTransformsFolder();
+				if (null == dir || isURL(dir)) return null;
+				if (create || CoordinateTransformStore.exists(dir)) {
+					try {
+						ct_store = new CoordinateTransformStore(dir);
+					} catch (Exception e) {
+						IJError.print(e);
+					}
+				}
+			}
+			return ct_store;
+		}
+	}
+
+	/** Whether new coordinate transforms are stored in the {@link CoordinateTransformStore} rather than in one file each. */
+	public final boolean packsCoordinateTransforms() {
+		final Project project = Project.findProject(this);
+		return null != project && project.getBooleanProperty("pack_transforms");
+	}
+
+	/** Write to disk all coordinate transforms not yet written, which must happen before saving the XML that refers to them.
+	 *  Returns false if they could not be written. */
+	private final boolean flushCoordinateTransforms() {
+		synchronized (ct_store_lock) {
+			if (null == ct_store) return true;
+			try {
+				ct_store.flush(true);
+				return true;
+			} catch (Exception e) {
+				IJError.print(e);
+				Utils.log("ERROR: could not write the coordinate transforms to " + ct_store.getFolder() + "\n  The project was NOT saved.");
+				return false;
+			}
+		}
+	}
+
+	private final void closeCoordinateTransformStore() {
+		synchronized (ct_store_lock) {
+			if (null == ct_store) return;
+			ct_store.close();
+			ct_store = null;
+			ct_store_checked = false;
+		}
+	}
+
+	/** Move the coordinate transforms of all Patch instances that are stored in one file each
+	 *  into the {@link CoordinateTransformStore}, reading them in parallel. The files are removed
+	 *  once the store is written to disk. The ids of the transforms don't change, and neither does the XML file. */
+	@Override
+	public Bureaucrat packCoordinateTransforms() {
+		final Project project = Project.findProject(FSLoader.this);
+		return Bureaucrat.createAndStart(new Worker.Task("Packing coordinate transforms") {
+			public void exec() {
+				final CoordinateTransformStore store = getCoordinateTransformStore(true);
+				if (null == store) {
+					Utils.log("Cannot pack coordinate transforms: the folder is not a local folder.");
+					return;
+				}
+				final ExecutorService exec = Utils.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "transform packer");
+				try {
+					final List<Future<String>> fus = new ArrayList<Future<String>>();
+					for (final Layer la : project.getRootLayerSet().getLayers()) {
+						for (final Displayable d : la.getDisplayables(Patch.class)) {
+							final Patch p = (Patch)d;
+							if (!p.hasCoordinateTransform() || store.contains(p.getCoordinateTransformId())) continue;
+							final String path = p.getCoordinateTransformFilePath();
+							if (!new File(path).exists()) continue;
+							fus.add(exec.submit(new Callable<String>() {
+								public String call() throws Exception {
+									store.put(p.getCoordinateTransformId(), CoordinateTransformXML.parse(path));
+									return path;
+								}
+							}));
+						}
+					}
+					final ArrayList<String> packed = new ArrayList<String>();
+					for (final Future<String> fu : fus) {
+						try {
+							packed.add(fu.get());
+						} catch (Exception e) {
+							IJError.print(e);
+						}
+					}
+					// Remove the files only once their transforms are on disk
+					store.flush(true);
+					for (final String path : packed) {
+						if (!new File(path).delete()) Utils.log2("Could not delete " + path);
+					}
+					Utils.log("Packed " + packed.size() + " coordinate transform files into " + store.getFolder());
+				} catch (Exception e) {
+					IJError.print(e);
+				} finally {
+					exec.shutdown();
+				}
+			}
+		}, project);
+	}
+
 	/** Loaded in full from XML file */
 	public Object[] fetchLabel(DLabel label) {
 		return null;
@@ -716,7 +869,10 @@ public final class FSLoader extends Loader {
 	 */
 	public boolean addToDatabase(final DBObject ob) {
 		synchronized (db_lock) {
-			setChanged(true);
+			synchronized (journal) {
+				journal.recordAdd(ob);
+				changes = true;
+			}
 			final long id = ob.getId();
 			if (id > max_id) {
 				max_id = id;
@@ -736,7 +892,10 @@ public final class FSLoader extends Loader {
 
 	public boolean updateInDatabase(final DBObject ob, final String key) {
 		// Should only be GUI-driven
-		setChanged(true);
+		synchronized (journal) {
+			journal.recordUpdate(ob, key);
+			changes = true;
+		}
 		//
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
@@ -747,7 +906,10 @@ public final class FSLoader extends Loader {
 
 	public boolean updateInDatabase(final DBObject ob, final Set<String> keys) {
 		// Should only be GUI-driven
-		setChanged(true);
+		synchronized (journal) {
+			journal.recordUpdate(ob, keys);
+			changes = true;
+		}
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
 			if (keys.contains("tiff_working")) return null != setImageFile(p, fetchImagePlus(p));
@@ -755,9 +917,49 @@ public final class FSLoader extends Loader {
 		return true;
 	}
 
+	/** A change flagged from outside of the journal hooks can't be appended to the journal,
+	 *  and so the next save writes a new snapshot. */
+	@Override
+	public void setChanged(final boolean changed) {
+		synchronized (journal) {
+			if (changed) journal.recordStructural();
+			this.changes = changed;
+		}
+	}
+
+	@Override
+	public void recordChange(final Displayable d) {
+		synchronized (journal) {
+			journal.recordUpdate(d, (String)null);
+			changes = true;
+		}
+	}
+
+	@Override
+	public void addCrossLink(final long project_id, final long id1, final long id2) {
+		synchronized (journal) {
+			journal.recordUpdate(id1);
+			journal.recordUpdate(id2);
+			changes = true;
+		}
+	}
+
+	@Override
+	public boolean removeCrossLink(final long id1, final long id2) {
+		synchronized (journal) {
+			journal.recordUpdate(id1);
+			journal.recordUpdate(id2);
+			changes = true;
+		}
+		return true;
+	}
+
 	public boolean removeFromDatabase(final DBObject ob) {
 		synchronized (db_lock) {
-			setChanged(true);
+			synchronized (journal) {
+				journal.recordRemove(ob);
+				changes = true;
+			}
 			// remove from the hashtable
 			final long loid = ob.getId();
 			Utils.log2("removing " + Project.getName(ob.getClass()) + " " + ob);
@@ -1003,25 +1205,43 @@ public final class FSLoader extends Loader {
 		return name.trim().replace('/', '-').replace(' ', '_').replace('\\','-');
 	}
 
-	/** Overwrites the XML file. If some images do not exist in the file system, a directory with the same name of the XML file plus an "_images" tag appended will be created and images saved there. */
+	/** Overwrites the XML file. If some images do not exist in the file system, a directory with the same name of the XML file plus an "_images" tag appended will be created and images saved there.
+	 *  With {@link XMLOptions#journal}, appends only the objects changed since the last save to the {@link ProjectJournal} of the XML file, when possible. */
 	@Override
 	public String save(final Project project, XMLOptions options) {
+		if (!flushCoordinateTransforms()) return null;
 		String result = null;
 		if (null == project_file_path) {
+			journal.startSnapshot();
 			String xml_path = super.saveAs(project, null, options);
-			if (null == xml_path) return null;
+			if (null == xml_path) {
+				journal.recordStructural();
+				return null;
+			}
 			else {
 				this.project_file_path = xml_path;
+				journal.snapshotWritten(project, xml_path);
 				ControlWindow.updateTitle(project);
 				result = this.project_file_path;
 			}
+		} else if (options.journal && journal.append(project, project_file_path, options)) {
+			synchronized (journal) {
+				// Unless changed while appending
+				if (!journal.hasPending()) changes = false;
+			}
+			deleteStaleFiles();
+			result = project_file_path;
 		} else {
 			File fxml = new File(project_file_path);
+			journal.startSnapshot();
 			result = super.export(project, fxml, options);
+			if (null == result) journal.recordStructural();
+			else journal.snapshotWritten(project, result);
 		}
 		if (null != result) {
 			Utils.logAll(Utils.now() + " Saved " + project);
 			touched_mipmaps.clear();
+			compactPackedMipMaps();
 		}
 		return result;
 	}
@@ -1029,7 +1249,11 @@ public final class FSLoader extends Loader {
 	/** The saveAs called from menus via saveTask. */
 	@Override
 	public String saveAs(Project project, XMLOptions options) {
+		if (!flushCoordinateTransforms()) return null;
+		journal.startSnapshot();
 		String path = super.saveAs(project, null, options);
+		if (null == path) journal.recordStructural();
+		else journal.snapshotWritten(project, path);
 		if (null != path) {
 			// update the xml path to point to the new one
 			this.project_file_path = path;
@@ -1052,6 +1276,7 @@ public final class FSLoader extends Loader {
 		String extension = ".xml";
 		if (path2.endsWith(extension)) {} // all fine
 		else if (path2.endsWith(".xml.gz")) extension = ".xml.gz";
+		else if (BinaryProjectReader.isBinary(path2)) extension = path2.substring(path2.length() - BinaryProjectReader.EXTENSION.length());
 		else {
 			// neither matches, add the default ".xml"
 			path2 += extension;
@@ -1071,14 +1296,18 @@ public final class FSLoader extends Loader {
 				String parent = fxml.getParent().replace('\\','/');
 				if (!parent.endsWith("/")) parent += "/";
 				String name = fxml.getName();
-				name = name.substring(0, name.length() - 4);
+				name = name.substring(0, name.length() - extension.length());
 				path2 =  parent + name + "-" +  i + extension;
 				fxml = new File(path2);
 				i++;
 			}
 		}
 		Project project = Project.findProject(this);
+		if (!flushCoordinateTransforms()) return null;
+		journal.startSnapshot();
 		path2 = super.saveAs(project, path2, options);
+		if (null == path2) journal.recordStructural();
+		else journal.snapshotWritten(project, path2);
 		if (null != path2) {
 			project_file_path = path2;
 			Utils.logAll("After saveAs, new xml path is: " + path2);
@@ -1125,6 +1354,7 @@ public final class FSLoader extends Loader {
 	protected void restorePaths(final Map<Long,String> copy, final String mipmaps_folder, final String storage_folder) {
 		synchronized (db_lock) {
 			try {
+				if (null == mipmaps_folder || !mipmaps_folder.equals(this.dir_mipmaps)) closePackedMipMaps();
 				this.dir_mipmaps = mipmaps_folder;
 				this.dir_storage = storage_folder;
 				ht_paths.clear();
@@ -1358,13 +1588,25 @@ public final class FSLoader extends Loader {
 		}
 		ob = ht_attributes.remove("mipmaps_regen");
 		if (null != ob) {
-			this.mipmaps_regen = Boolean.parseBoolean(ob);
+			this.mipmaps_regen = isMipMapsRegenerationAllowed() && Boolean.parseBoolean(ob);
 		}
 		ob = ht_attributes.get("n_mipmap_threads");
 		if (null != ob) {
 			int n_threads = Math.max(1, Integer.parseInt(ob));
 			FSLoader.restartMipMapThreads(n_threads);
 		}
+		ob = ht_attributes.get("n_prefetch_threads");
+		if (null != ob) {
+			MipMapPrefetcher.setupThreads(Math.max(0, Integer.parseInt(ob)));
+		}
+		ob = ht_attributes.get("cache_policy");
+		if (null != ob) {
+			Loader.setCachePolicy(Integer.parseInt(ob));
+		}
+		ob = ht_attributes.get("offheap_cache_mb");
+		if (null != ob) {
+			Loader.setOffHeapCache(Math.max(0, Long.parseLong(ob)) * 1024L * 1024L, ht_attributes.get("offheap_cache_dir"));
+		}
 
 		// parse the unuid before attempting to create any folders
 		this.unuid = ht_attributes.remove("unuid");
@@ -1531,304 +1773,494 @@ public final class FSLoader extends Loader {
 	 * a pyramid of images until reaching an image not smaller than 32x32 pixels.<br />
 	 * Such images are stored as jpeg 85% quality in a folder named trakem2.mipmaps.<br />
 	 * The Patch id and the right extension will be appended to the filename in all cases.<br />
-	 * Any equally named files will be overwritten. */
+	 * Any equally named files will be overwritten.<br />
+	 * Runs all stages of a {@link MipMapJob} in the calling thread. */
 	protected boolean generateMipMaps(final Patch patch) {
-		Utils.log2("mipmaps for " + patch);
-		final String path = getAbsolutePath(patch);
-		if (null == path) {
-			Utils.log("generateMipMaps: null path for Patch " + patch);
-			cannot_regenerate.add(patch);
-			return false;
+		final MipMapJob job = new MipMapJob(patch, null, false);
+		boolean success = false;
+		try {
+			success = job.decode() && job.downsample() && job.save();
+		} finally {
+			job.finish(success);
 		}
-		if (hs_unloadable.contains(patch)) {
-			FilePathRepair.add(patch);
+		return success;
+	}
+
+	/** The generation of the mipmaps of one Patch, split into the stages of the {@link MipMapPipeline}. */
+	private final class MipMapJob extends MipMapPipeline.Job {
+		private final Patch patch;
+		/** The removal of the existing mipmaps, if any, to wait for. */
+		private final Future<Boolean> removing;
+		/** Whether to repaint the Patch once done: not when run by {@link FSLoader#generateMipMaps(Patch)},
+		 *  whose callers may be generating many in a row. */
+		private final boolean repaint;
+		/** Alpha mask: setup to check if it was modified while regenerating. */
+		private long alpha_mask_id;
+		private boolean started = false;
+		private int resizing_mode;
+		private String filename;
+		private ImageProcessor ip;
+		private ByteProcessor alpha_mask = null,
+		                      outside_mask = null;
+		private int type;
+		/** The levels of the pyramid, made by the downsample stage for the save stage. */
+		private ImageBytes[] b = null;
+
+		MipMapJob(final Patch patch, final Future<Boolean> removing, final boolean repaint) {
+			super(estimateMipMapBytes(patch));
+			this.patch = patch;
+			this.removing = removing;
+			this.repaint = repaint;
+		}
+
+		private final boolean fail(final Throwable e) {
+			Utils.log("*** ERROR: Can't generate mipmaps for patch " + patch);
+			IJError.print(e);
+			cannot_regenerate.add(patch);
 			return false;
 		}
-		synchronized (gm_lock) {
+
+		/** Read, filter and coordinate-transform the image, and bring it to 8-bit or RGB. */
+		@Override
+		final boolean decode() {
 			try {
-				if (null == dir_mipmaps) createMipMapsDir(null);
-				if (null == dir_mipmaps || isURL(dir_mipmaps)) return false;
+				// synchronize with the removal:
+				if (null != removing) removing.get();
 			} catch (Exception e) {
 				IJError.print(e);
 			}
-		}
+			Utils.log2("mipmaps for " + patch);
+			final String path = getAbsolutePath(patch);
+			if (null == path) {
+				Utils.log("generateMipMaps: null path for Patch " + patch);
+				cannot_regenerate.add(patch);
+				return false;
+			}
+			if (hs_unloadable.contains(patch)) {
+				FilePathRepair.add(patch);
+				return false;
+			}
+			synchronized (gm_lock) {
+				try {
+					if (null == dir_mipmaps) createMipMapsDir(null);
+					if (null == dir_mipmaps || isURL(dir_mipmaps)) return false;
+				} catch (Exception e) {
+					IJError.print(e);
+				}
+			}
 
-		/** Record Patch as modified */
-		touched_mipmaps.add(patch);
+			/** Record Patch as modified */
+			touched_mipmaps.add(patch);
 
-		/** Remove serialized features, if any */
-		removeSerializedFeatures(patch);
+			/** Remove serialized features, if any */
+			removeSerializedFeatures(patch);
 
-		/** Remove serialized pointmatches, if any */
-		removeSerializedPointMatches(patch);
+			/** Remove serialized pointmatches, if any */
+			removeSerializedPointMatches(patch);
 
-		/** Alpha mask: setup to check if it was modified while regenerating. */
-		final long alpha_mask_id = patch.getAlphaMaskId();
+			alpha_mask_id = patch.getAlphaMaskId();
+			started = true;
 
-		final int resizing_mode = patch.getProject().getMipMapsMode();
+			resizing_mode = patch.getProject().getMipMapsMode();
 
-		try {
-			ImageProcessor ip;
-			ByteProcessor alpha_mask = null;
-			ByteProcessor outside_mask = null;
-			int type = patch.getType();
-
-			// Aggressive cache freeing
-			releaseToFit(patch.getOWidth() * patch.getOHeight() * 4 + MIN_FREE_BYTES);
-
-			// Obtain an image which may be coordinate-transformed, and an alpha mask.
-			Patch.PatchImage pai = patch.createTransformedImage();
-			if (null == pai || null == pai.target) {
-				Utils.log("Can't regenerate mipmaps for patch " + patch);
-				cannot_regenerate.add(patch);
-				return false;
-			}
-			ip = pai.target;
-			alpha_mask = pai.mask; // can be null
-			outside_mask = pai.outside; // can be null
-			pai = null;
-			
-			// Old style:
-			//final String filename = new StringBuilder(new File(path).getName()).append('.').append(patch.getId()).append(mExt).toString();
-			// New style:
-			final String filename = createMipMapRelPath(patch, mExt);
-
-			int w = ip.getWidth();
-			int h = ip.getHeight();
-
-			// sigma = sqrt(2^level - 0.5^2)
-			//    where 0.5 is the estimated sigma for a full-scale image
-			//  which means sigma = 0.75 for the full-scale image (has level 0)
-			// prepare a 0.75 sigma image from the original
-
-			double min = patch.getMin(),
-			       max = patch.getMax();
-			// Fix improper min,max values
-			// (The -1,-1 are flags really for "not set")
-			if (-1 == min && -1 == max) {
-				switch (type) {
-					case ImagePlus.COLOR_RGB:
-					case ImagePlus.COLOR_256:
-					case ImagePlus.GRAY8:
-						patch.setMinAndMax(0, 255);
-						break;
-					// Find and flow through to default:
-					case ImagePlus.GRAY16:
-						((ij.process.ShortProcessor)ip).findMinAndMax();
-						patch.setMinAndMax(ip.getMin(), ip.getMax());
-						break;
-					case ImagePlus.GRAY32:
-						((FloatProcessor)ip).findMinAndMax();
-						patch.setMinAndMax(ip.getMin(), ip.getMax());
-						break;
-				}
-				min = patch.getMin(); // may have changed
-				max = patch.getMax();
-			}
-			
-			// Set for the level 0 image, which is a duplicate of the one in the cache in any case
-			ip.setMinAndMax(min, max);
-
-
-			// ImageJ no longer stretches the bytes for ByteProcessor with setMinAndmax
-			if (ByteProcessor.class == ip.getClass()) {
-				if (0 != min && 255 != max) {
-					final byte[] b = (byte[]) ip.getPixels();
-					final double scale = 255 / (max - min);
-					for (int i=0; i<b.length; ++i) {
-						final int val = b[i] & 0xff;
-						if (val < min) b[i] = 0;
-						else b[i] = (byte)Math.min(255, ((val - min) * scale));
+			try {
+				type = patch.getType();
+
+				// Aggressive cache freeing, for as much as the pipeline budgeted for this job
+				releaseToFit(bytes + MIN_FREE_BYTES);
+
+				// The mipmaps will reflect the current state of the patch: forget the changes recorded so far
+				double min, max;
+				synchronized (patch) {
+					patch.takeMipMapChanges();
+					min = patch.getMin();
+					max = patch.getMax();
+				}
+
+				// Obtain an image which may be coordinate-transformed, and an alpha mask.
+				Patch.PatchImage pai;
+				generating.set(patch);
+				try {
+					pai = patch.createTransformedImage();
+				} finally {
+					generating.remove();
+				}
+				synchronized (patch) {
+					// Unless changed by others meanwhile, in which case the mipmaps are generated again,
+					// type and min,max are as set by any preprocessor script while opening the image
+					if (!patch.hasMipMapChanges()) {
+						type = patch.getType();
+						min = patch.getMin();
+						max = patch.getMax();
+					}
+				}
+				if (null == pai || null == pai.target) {
+					Utils.log("Can't regenerate mipmaps for patch " + patch);
+					cannot_regenerate.add(patch);
+					return false;
+				}
+				ImageProcessor ip = pai.target;
+				alpha_mask = pai.mask; // can be null
+				outside_mask = pai.outside; // can be null
+				pai = null;
+		
+				// Old style:
+				//final String filename = new StringBuilder(new File(path).getName()).append('.').append(patch.getId()).append(mExt).toString();
+				// New style:
+				filename = createMipMapRelPath(patch, mExt);
+
+				// sigma = sqrt(2^level - 0.5^2)
+				//    where 0.5 is the estimated sigma for a full-scale image
+				//  which means sigma = 0.75 for the full-scale image (has level 0)
+				// prepare a 0.75 sigma image from the original
+
+				// Fix improper min,max values
+				// (The -1,-1 are flags really for "not set")
+				if (-1 == min && -1 == max) {
+					switch (type) {
+						case ImagePlus.COLOR_RGB:
+						case ImagePlus.COLOR_256:
+						case ImagePlus.GRAY8:
+							patch.setMinAndMax(0, 255);
+							break;
+						// Find and flow through to default:
+						case ImagePlus.GRAY16:
+							((ij.process.ShortProcessor)ip).findMinAndMax();
+							patch.setMinAndMax(ip.getMin(), ip.getMax());
+							break;
+						case ImagePlus.GRAY32:
+							((FloatProcessor)ip).findMinAndMax();
+							patch.setMinAndMax(ip.getMin(), ip.getMax());
+							break;
+					}
+					min = patch.getMin(); // may have changed
+					max = patch.getMax();
+					patch.takeMipMapChanges(); // the fix is part of this generation
+				}
+		
+				// Set for the level 0 image, which is a duplicate of the one in the cache in any case
+				ip.setMinAndMax(min, max);
+
+
+				// ImageJ no longer stretches the bytes for ByteProcessor with setMinAndmax
+				if (ByteProcessor.class == ip.getClass()) {
+					if (0 != min && 255 != max) {
+						final byte[] b = (byte[]) ip.getPixels();
+						final double scale = 255 / (max - min);
+						for (int i=0; i<b.length; ++i) {
+							final int val = b[i] & 0xff;
+							if (val < min) b[i] = 0;
+							else b[i] = (byte)Math.min(255, ((val - min) * scale));
+						}
 					}
 				}
+
+				// Proper support for LUT images: treat them as RGB
+				if (ip.isColorLut() || type == ImagePlus.COLOR_256) {
+					ip = ip.convertToRGB();
+					type = ImagePlus.COLOR_RGB;
+				}
+
+				this.ip = ip;
+				return true;
+			} catch (Throwable e) {
+				return fail(e);
 			}
+		}
 
-			// Proper support for LUT images: treat them as RGB
-			if (ip.isColorLut() || type == ImagePlus.COLOR_256) {
-				ip = ip.convertToRGB();
-				type = ImagePlus.COLOR_RGB;
+		/** Create all levels of the pyramid. */
+		@Override
+		final boolean downsample() {
+			try {
+				if (Thread.currentThread().isInterrupted()) return false;
+				if (Loader.AREA_DOWNSAMPLING == resizing_mode) {
+					b = DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask);
+					return true;
+				} else if (Loader.GAUSSIAN == resizing_mode) {
+					b = createGaussianMipMaps(patch, ip, alpha_mask, outside_mask, type);
+					return null != b;
+				} else {
+					Utils.log("ERROR: unknown image resizing mode for mipmaps: " + resizing_mode);
+					return false;
+				}
+			} catch (Throwable e) {
+				return fail(e);
+			} finally {
+				// No longer needed
+				ip = null;
+				alpha_mask = null;
+				outside_mask = null;
 			}
-			
-			if (Loader.AREA_DOWNSAMPLING == resizing_mode) {
-				long t0 = System.currentTimeMillis();
-				final ImageBytes[] b = DownsamplerMipMaps.create(patch, type, ip, alpha_mask, outside_mask);
-				long t1 = System.currentTimeMillis();
+		}
+
+		/** Encode and write the levels of the pyramid. */
+		@Override
+		final boolean save() {
+			if (null == b) return false;
+			try {
 				for (int i=0; i<b.length; ++i) {
-					mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
-				}
-				long t2 = System.currentTimeMillis();
-				System.out.println("MipMaps with area downsampling: creation took " + (t1 - t0) + "ms, saving took " + (t2 - t1) + "ms, total: " + (t2 - t0) + "ms\n");
-			} else if (Loader.GAUSSIAN == resizing_mode) {
-				if (ImagePlus.COLOR_RGB == type) {
-					// TODO releaseToFit proper
-					releaseToFit(w * h * 4 * 10);
-					final ColorProcessor cp = (ColorProcessor)ip;
-					final FloatProcessorT2 red = new FloatProcessorT2(w, h, 0, 255);   cp.toFloat(0, red);
-					final FloatProcessorT2 green = new FloatProcessorT2(w, h, 0, 255); cp.toFloat(1, green);
-					final FloatProcessorT2 blue = new FloatProcessorT2(w, h, 0, 255);  cp.toFloat(2, blue);
-					FloatProcessorT2 alpha;
-					final FloatProcessorT2 outside;
-					if (null != alpha_mask) {
-						alpha = new FloatProcessorT2(alpha_mask);
-					} else {
-						alpha = null;
-					}
-					if (null != outside_mask) {
-						outside = new FloatProcessorT2(outside_mask);
-						if ( null == alpha ) {
-							alpha = outside;
-							alpha_mask = outside_mask;
-						}
-					} else {
-						outside = null;
+					if (Thread.currentThread().isInterrupted()) return false;
+					if (!mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f)) {
+						Utils.log("Failed to save mipmap, level = " + i + " for  patch " + patch);
+						cannot_regenerate.add(patch);
+						return false;
 					}
+				}
+				return true;
+			} catch (Throwable e) {
+				return fail(e);
+			} finally {
+				b = null;
+			}
+		}
 
-					final String target_dir0 = getLevelDir(dir_mipmaps, 0);
+		@Override
+		final void finish(final boolean success) {
+			ip = null;
+			alpha_mask = null;
+			outside_mask = null;
+			b = null;
 
-					if (Thread.currentThread().isInterrupted()) return false;
+			// flush any cached tiles
+			flushMipMaps(patch.getId());
 
-					// Generate level 0 first:
-					// TODO Add alpha information into the int[] pixel array or make the image visible some other way
-					if (!(null == alpha ? mmio.save(cp, target_dir0 + filename, 0.85f, false)
-							: mmio.save(target_dir0 + filename, P.asRGBABytes((int[])cp.getPixels(), (byte[])alpha_mask.getPixels(), null == outside ? null : (byte[])outside_mask.getPixels()), w, h, 0.85f))) {
-						Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = 0  for  patch " + patch);
-						cannot_regenerate.add(patch);
-					} else {
-						int k = 0; // the scale level. Proper scale is: 1 / pow(2, k)
-						do {
-							if (Thread.currentThread().isInterrupted()) return false;
-							// 1 - Prepare values for the next scaled image
-							k++;
-							// 2 - Check that the target folder for the desired scale exists
-							final String target_dir = getLevelDir(dir_mipmaps, k);
-							if (null == target_dir) continue;
-							// 3 - Blur the previous image to 0.75 sigma, and scale it
-							final byte[] r = gaussianBlurResizeInHalf(red);   // will resize 'red' FloatProcessor in place.
-							final byte[] g = gaussianBlurResizeInHalf(green); // idem
-							final byte[] b = gaussianBlurResizeInHalf(blue);  // idem
-							final byte[] a = null == alpha ? null : gaussianBlurResizeInHalf(alpha); // idem
-							if ( null != outside ) {
-								final byte[] o;
-								if (alpha != outside)
-									o = gaussianBlurResizeInHalf(outside); // idem
-								else
-									o = a;
-								// Remove all not completely inside pixels from the alphamask
-								// If there was no alpha mask, alpha is the outside itself
-								for (int i=0; i<o.length; i++) {
-									if ( (o[i]&0xff) != 255 ) a[i] = 0; // TODO I am sure there is a bitwise operation to do this in one step. Some thing like: a[i] &= 127;
-								}
-							}
+			// flush any cached layer screenshots
+			if (null != patch.getLayer()) {
+				try { patch.getLayer().getParent().removeFromOffscreens(patch.getLayer()); } catch (Exception e) { IJError.print(e); }
+			}
 
-							w = red.getWidth();
-							h = red.getHeight();
+			synchronized (gm_lock) {
+				regenerating_mipmaps.remove(patch);
+			}
 
-							// 4 - Compose ColorProcessor
-							if (null == alpha) {
-								// 5 - Save as jpeg
-								if (!mmio.save(target_dir + filename, new byte[][]{r, g, b}, w, h, 0.85f)) {
-									Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
-									cannot_regenerate.add(patch);
-									break;
-								}
-							} else {
-								if (!mmio.save(target_dir + filename, new byte[][]{r, g, b, a}, w, h, 0.85f)) {
-									Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
-									cannot_regenerate.add(patch);
-									break;
-								}
-							}
-						} while (w >= 32 && h >= 32); // not smaller than 32x32
-					}
-				} else {
-					long t0 = System.currentTimeMillis();
-					// Greyscale:
-					releaseToFit(w * h * 4 * 10);
+			// Has the alpha mask changed?
+			if (started && patch.getAlphaMaskId() != alpha_mask_id) {
+				Utils.log2("Alpha mask changed: resubmitting mipmap regeneration for " + patch);
+				regenerateMipMaps(patch);
+			} else if (started && patch.hasMipMapChanges()) {
+				// Changed after it was read: apply the changes, in place if possible
+				regenerateMipMaps(patch);
+			}
 
-					if (Thread.currentThread().isInterrupted()) return false;
+			if (repaint) {
+				Display.repaint(patch.getLayer());
+				Display.updatePanel(patch.getLayer(), patch);
+			}
+		}
+	}
 
-					final FloatProcessorT2 fp = new FloatProcessorT2((FloatProcessor) ip.convertToFloat());
-					if (ImagePlus.GRAY8 == type) {
-						// for 8-bit, the min,max has been applied when going to FloatProcessor
-						fp.setMinMax(0, 255); // just set it
-					} else {
-						fp.setMinAndMax(patch.getMin(), patch.getMax());
+	/** The memory that the generation of the mipmaps of @param patch is expected to take. */
+	private final long estimateMipMapBytes(final Patch patch) {
+		final long n_pixels = (long)patch.getOWidth() * patch.getOHeight();
+		// The original, the transformed image and masks, and the pyramid;
+		// the gaussian mode works on float images
+		return n_pixels * 4 * (Loader.GAUSSIAN == patch.getProject().getMipMapsMode() ? 10 : 3);
+	}
+
+	/** Returns a job that updates the existing mipmaps of @param patch in place, or null if the @param changes
+	 *  require generating them anew from the original image. Only done for lossless mipmap formats and
+	 *  {@link Loader#AREA_DOWNSAMPLING}, where the levels can be read back and reproduced exactly:
+	 *
+	 * - A new display range @param min, @param max of a grey image is remapped onto the 8-bit levels,
+	 *   as long as it is within the old range and not less than half as wide, beyond which
+	 *   the quantization of the old levels would show.
+	 * - An edited region of the alpha mask of an image without a coordinate transform is downsampled
+	 *   and pasted onto the alpha channel of each level.
+	 */
+	private final MipMapUpdateJob createMipMapUpdate(final Patch patch, final Patch.MipMapChanges changes, final double min, final double max) {
+		if (null == changes || 0 != (changes.kinds & Patch.MIPMAP_OTHER)) return null;
+		switch (mipmaps_format) {
+			case MIPMAP_PNG:
+			case MIPMAP_TIFF:
+			case MIPMAP_RAW:
+			case MIPMAP_RAG:
+			case MIPMAP_PACKED:
+				break;
+			default:
+				return null; // lossy
+		}
+		if (Loader.AREA_DOWNSAMPLING != patch.getProject().getMipMapsMode()) return null;
+		if (null == dir_mipmaps || isURL(dir_mipmaps)) return null;
+		final int type = patch.getType();
+		if (0 != (changes.kinds & Patch.MIPMAP_MIN_MAX)) {
+			switch (type) {
+				case ImagePlus.GRAY8:
+				case ImagePlus.GRAY16:
+				case ImagePlus.GRAY32:
+					break;
+				default:
+					return null;
+			}
+			if (patch.paintsWithFalseColor()) return null;
+			final double[] old_range = getMipMapRange(type, changes.min, changes.max),
+			               new_range = getMipMapRange(type, min, max);
+			if (null == old_range || null == new_range) return null;
+			if (new_range[0] < old_range[0] || new_range[1] > old_range[1]
+			 || 2 * (new_range[1] - new_range[0]) < old_range[1] - old_range[0]) return null;
+		}
+		if (0 != (changes.kinds & Patch.MIPMAP_ALPHA_MASK_REGION)) {
+			if (null == changes.mask_bounds || !changes.alpha_mask || !patch.hasAlphaMask() || patch.hasCoordinateTransform()) return null;
+		}
+		final String filename = createMipMapRelPath(patch, mExt);
+		final int n_levels = Loader.getHighestMipMapLevel(patch) + 1;
+		if (!mipMapExists(getLevelDir(dir_mipmaps, 0) + filename)
+		 || !mipMapExists(getLevelDir(dir_mipmaps, n_levels -1) + filename)) return null;
+		return new MipMapUpdateJob(patch, changes, min, max, filename, n_levels);
+	}
+
+	/** The range of pixel values of a grey image that the 8-bit levels of its mipmaps span, or null if unknown. */
+	static private final double[] getMipMapRange(final int type, final double min, final double max) {
+		if (max <= min || (-1 == min && -1 == max)) return null;
+		// Like when generating mipmaps: 8-bit images are only stretched when neither bound is the default
+		if (ImagePlus.GRAY8 == type && (0 == min || 255 == max)) return new double[]{0, 255};
+		return new double[]{min, max};
+	}
+
+	/** The update in place of the existing mipmaps of one Patch; see {@link FSLoader#createMipMapUpdate(Patch, Patch.MipMapChanges, double, double)}.
+	 *  If it fails, the mipmaps are generated anew. */
+	private final class MipMapUpdateJob extends MipMapPipeline.Job {
+		private final Patch patch;
+		private final Patch.MipMapChanges changes;
+		/** The display range to apply. */
+		private final double min, max;
+		private final String filename;
+		private final int n_levels;
+		private ImageBytes[] b = null;
+		/** The edited region of the alpha mask, enlarged to whole pixels of the highest level. */
+		private ByteProcessor mask = null;
+		private Rectangle mask_bounds = null;
+
+		MipMapUpdateJob(final Patch patch, final Patch.MipMapChanges changes, final double min, final double max, final String filename, final int n_levels) {
+			// The levels, at most 4 channels, and the alpha mask
+			super((long)patch.getOWidth() * patch.getOHeight() * 7);
+			this.patch = patch;
+			this.changes = changes;
+			this.min = min;
+			this.max = max;
+			this.filename = filename;
+			this.n_levels = n_levels;
+		}
+
+		private final boolean is(final int kind) {
+			return 0 != (changes.kinds & kind);
+		}
+
+		/** Read all levels and, if needed, the edited region of the alpha mask. */
+		@Override
+		final boolean decode() {
+			// As when generating them anew: the image changed
+			touched_mipmaps.add(patch);
+			removeSerializedFeatures(patch);
+			removeSerializedPointMatches(patch);
+			try {
+				b = new ImageBytes[n_levels];
+				for (int k=0; k<n_levels; ++k) {
+					final ImageBytes ib = mmio.load(getLevelDir(dir_mipmaps, k) + filename);
+					if (null == ib) return false;
+					b[k] = ib;
+					// All levels must be like the pyramid that would be generated now
+					if (0 == k ? (ib.width != patch.getOWidth() || ib.height != patch.getOHeight())
+					           : (ib.width != b[k-1].width / 2 || ib.height != b[k-1].height / 2 || ib.c.length != b[k-1].c.length)) {
+						return false;
 					}
-					//fp.debugMinMax(patch.toString());
+				}
+				final int nCh = b[0].c.length;
+				// Grey, with or without alpha
+				if (is(Patch.MIPMAP_MIN_MAX) && nCh > 2) return false;
+				if (is(Patch.MIPMAP_ALPHA_MASK_REGION)) {
+					// With alpha
+					if (0 != nCh % 2) return false;
+					final ByteProcessor alpha_mask = patch.getAlphaMask();
+					if (null == alpha_mask) return false;
+					// Align to the pixels of the highest level, so that the downsampled region
+					// is identical to the same region of the downsampled mask
+					final int s = 1 << (n_levels -1),
+					          x0 = (Math.max(0, changes.mask_bounds.x) / s) * s,
+					          y0 = (Math.max(0, changes.mask_bounds.y) / s) * s,
+					          x1 = Math.min(b[0].width, ((changes.mask_bounds.x + changes.mask_bounds.width + s -1) / s) * s),
+					          y1 = Math.min(b[0].height, ((changes.mask_bounds.y + changes.mask_bounds.height + s -1) / s) * s);
+					if (x1 <= x0 || y1 <= y0) return true; // nothing to paste
+					mask_bounds = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+					alpha_mask.setRoi(mask_bounds);
+					mask = (ByteProcessor) alpha_mask.crop();
+				}
+				return true;
+			} catch (Throwable e) {
+				IJError.print(e);
+				return false;
+			}
+		}
 
-					FloatProcessorT2 alpha, outside;
-					if (null != alpha_mask) {
-						alpha = new FloatProcessorT2(alpha_mask);
-					} else {
-						alpha = null;
+		/** Remap the grey channel and paste the edited region of the alpha mask into each level. */
+		@Override
+		final boolean downsample() {
+			try {
+				if (is(Patch.MIPMAP_MIN_MAX)) {
+					final double[] old_range = getMipMapRange(patch.getType(), changes.min, changes.max),
+					               new_range = getMipMapRange(patch.getType(), min, max);
+					final byte[] lut = new byte[256];
+					final double scale = (old_range[1] - old_range[0]) / (new_range[1] - new_range[0]),
+					             offset = (old_range[0] - new_range[0]) * 255 / (new_range[1] - new_range[0]);
+					for (int i=0; i<256; ++i) {
+						lut[i] = (byte) Math.max(0, Math.min(255, (int)(i * scale + offset + 0.5)));
 					}
-					if (null != outside_mask) {
-						outside = new FloatProcessorT2(outside_mask);
-						if (null == alpha) {
-							alpha = outside;
-							alpha_mask = outside_mask;
-						}
-					} else {
-						outside = null;
+					for (final ImageBytes ib : b) {
+						final byte[] grey = ib.c[0];
+						final int len = ib.width * ib.height;
+						for (int i=0; i<len; ++i) grey[i] = lut[grey[i] & 0xff];
 					}
-
-					int k = 0; // the scale level. Proper scale is: 1 / pow(2, k)
-					do {
-						if (Thread.currentThread().isInterrupted()) return false;
-
-						if (0 != k) { // not doing so at the end because it would add one unnecessary blurring
-							gaussianBlurResizeInHalf( fp );
-							if (null != alpha) {
-								gaussianBlurResizeInHalf( alpha );
-								if (alpha != outside && outside != null) {
-									gaussianBlurResizeInHalf( outside );
-								}
-							}
-						}
-
-						w = fp.getWidth();
-						h = fp.getHeight();
-
-						// 1 - check that the target folder for the desired scale exists
-						final String target_dir = getLevelDir(dir_mipmaps, k);
-						if (null == target_dir) continue;
-
-						if (null != alpha) {
-							// 3 - save as jpeg with alpha
-							// Remove all not completely inside pixels from the alpha mask
-							// If there was no alpha mask, alpha is the outside itself
-							if (!mmio.save(target_dir + filename, new byte[][]{fp.getScaledBytePixels(), P.merge(alpha.getBytePixels(), null == outside ? null : outside.getBytePixels())}, w, h, 0.85f)) {
-								Utils.log("Failed to save mipmap for GRAY8, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
-								cannot_regenerate.add(patch);
-								break;
-							}
-						} else {
-							// 3 - save as 8-bit jpeg
-							if (!mmio.save(target_dir + filename, new byte[][]{fp.getScaledBytePixels()}, w, h, 0.85f)) {
-								Utils.log("Failed to save mipmap for GRAY8, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
-								cannot_regenerate.add(patch);
-								break;
-							}
+				}
+				if (null != mask) {
+					ByteProcessor m = mask;
+					for (int k=0; k<n_levels; ++k) {
+						final ImageBytes ib = b[k];
+						final byte[] alpha = ib.c[ib.c.length -1],
+						             pix = (byte[]) m.getPixels();
+						final int x = mask_bounds.x >> k,
+						          y = mask_bounds.y >> k,
+						          mw = m.getWidth(),
+						          w = Math.min(mw, ib.width - x),
+						          h = Math.min(m.getHeight(), ib.height - y);
+						for (int row=0; row<h; ++row) {
+							System.arraycopy(pix, row * mw, alpha, (y + row) * ib.width + x, w);
 						}
+						// The region has no pixels at the next level
+						if (m.getWidth() < 2 || m.getHeight() < 2) break;
+						m = Downsampler.downsampleByteProcessor(m);
+					}
+				}
+				return true;
+			} catch (Throwable e) {
+				IJError.print(e);
+				return false;
+			} finally {
+				mask = null;
+			}
+		}
 
-						// 4 - prepare values for the next scaled image
-						k++;
-					} while (fp.getWidth() >= 32 && fp.getHeight() >= 32); // not smaller than 32x32
-
-					long t1 = System.currentTimeMillis();
-					System.out.println("MipMaps took " + (t1 - t0));
+		@Override
+		final boolean save() {
+			try {
+				for (int k=0; k<b.length; ++k) {
+					if (Thread.currentThread().isInterrupted()) return false;
+					if (!mmio.save(getLevelDir(dir_mipmaps, k) + filename, b[k].c, b[k].width, b[k].height, 0.85f)) {
+						Utils.log("Failed to save mipmap, level = " + k + " for  patch " + patch);
+						return false;
+					}
 				}
-			} else {
-				Utils.log("ERROR: unknown image resizing mode for mipmaps: " + resizing_mode);
+				return true;
+			} catch (Throwable e) {
+				IJError.print(e);
+				return false;
+			} finally {
+				b = null;
 			}
+		}
 
-			return true;
-		} catch (Throwable e) {
-			Utils.log("*** ERROR: Can't generate mipmaps for patch " + patch);
-			IJError.print(e);
-			cannot_regenerate.add(patch);
-			return false;
-		} finally {
+		@Override
+		final void finish(final boolean success) {
+			b = null;
+			mask = null;
 
 			// flush any cached tiles
 			flushMipMaps(patch.getId());
@@ -1838,24 +2270,155 @@ public final class FSLoader extends Loader {
 				try { patch.getLayer().getParent().removeFromOffscreens(patch.getLayer()); } catch (Exception e) { IJError.print(e); }
 			}
 
-			// gets executed even when returning from the catch statement or within the try/catch block
 			synchronized (gm_lock) {
 				regenerating_mipmaps.remove(patch);
 			}
 
-			// Has the alpha mask changed?
-			if (patch.getAlphaMaskId() != alpha_mask_id) {
-				Utils.log2("Alpha mask changed: resubmitting mipmap regeneration for " + patch);
+			if (!success) {
+				Utils.log2("Could not update the mipmaps in place: regenerating them for " + patch);
+				regenerateMipMaps(patch, false);
+			} else if (patch.hasMipMapChanges()) {
+				// Changed while updating
 				regenerateMipMaps(patch);
 			}
+
+			Display.repaint(patch.getLayer());
+			Display.updatePanel(patch.getLayer(), patch);
 		}
 	}
 
+	/** Create the levels of the mipmaps of @param ip with gaussian blurring. Returns null only when interrupted. */
+	private final ImageBytes[] createGaussianMipMaps(final Patch patch, final ImageProcessor ip, ByteProcessor alpha_mask, final ByteProcessor outside_mask, final int type) {
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		final ArrayList<ImageBytes> levels = new ArrayList<ImageBytes>();
+		if (ImagePlus.COLOR_RGB == type) {
+			// TODO releaseToFit proper
+			releaseToFit(w * h * 4 * 10);
+			final ColorProcessor cp = (ColorProcessor)ip;
+			final FloatProcessorT2 red = new FloatProcessorT2(w, h, 0, 255);   cp.toFloat(0, red);
+			final FloatProcessorT2 green = new FloatProcessorT2(w, h, 0, 255); cp.toFloat(1, green);
+			final FloatProcessorT2 blue = new FloatProcessorT2(w, h, 0, 255);  cp.toFloat(2, blue);
+			FloatProcessorT2 alpha;
+			final FloatProcessorT2 outside;
+			if (null != alpha_mask) {
+				alpha = new FloatProcessorT2(alpha_mask);
+			} else {
+				alpha = null;
+			}
+			if (null != outside_mask) {
+				outside = new FloatProcessorT2(outside_mask);
+				if ( null == alpha ) {
+					alpha = outside;
+					alpha_mask = outside_mask;
+				}
+			} else {
+				outside = null;
+			}
+
+			if (Thread.currentThread().isInterrupted()) return null;
+
+			// Level 0 first:
+			// TODO Add alpha information into the int[] pixel array or make the image visible some other way
+			levels.add(new ImageBytes(null == alpha ? P.asRGBBytes((int[])cp.getPixels())
+					: P.asRGBABytes((int[])cp.getPixels(), (byte[])alpha_mask.getPixels(), null == outside ? null : (byte[])outside_mask.getPixels()), w, h));
+			do {
+				if (Thread.currentThread().isInterrupted()) return null;
+				// 1 - Blur the previous image to 0.75 sigma, and scale it
+				final byte[] r = gaussianBlurResizeInHalf(red);   // will resize 'red' FloatProcessor in place.
+				final byte[] g = gaussianBlurResizeInHalf(green); // idem
+				final byte[] b = gaussianBlurResizeInHalf(blue);  // idem
+				final byte[] a = null == alpha ? null : gaussianBlurResizeInHalf(alpha); // idem
+				if ( null != outside ) {
+					final byte[] o;
+					if (alpha != outside)
+						o = gaussianBlurResizeInHalf(outside); // idem
+					else
+						o = a;
+					// Remove all not completely inside pixels from the alphamask
+					// If there was no alpha mask, alpha is the outside itself
+					for (int i=0; i<o.length; i++) {
+						if ( (o[i]&0xff) != 255 ) a[i] = 0; // TODO I am sure there is a bitwise operation to do this in one step. Some thing like: a[i] &= 127;
+					}
+				}
+
+				w = red.getWidth();
+				h = red.getHeight();
+
+				// 2 - Compose the channels
+				levels.add(new ImageBytes(null == alpha ? new byte[][]{r, g, b} : new byte[][]{r, g, b, a}, w, h));
+			} while (w >= 32 && h >= 32); // not smaller than 32x32
+		} else {
+			// Greyscale:
+			releaseToFit(w * h * 4 * 10);
+
+			if (Thread.currentThread().isInterrupted()) return null;
+
+			final FloatProcessorT2 fp = new FloatProcessorT2((FloatProcessor) ip.convertToFloat());
+			if (ImagePlus.GRAY8 == type) {
+				// for 8-bit, the min,max has been applied when going to FloatProcessor
+				fp.setMinMax(0, 255); // just set it
+			} else {
+				fp.setMinAndMax(patch.getMin(), patch.getMax());
+			}
+			//fp.debugMinMax(patch.toString());
+
+			FloatProcessorT2 alpha, outside;
+			if (null != alpha_mask) {
+				alpha = new FloatProcessorT2(alpha_mask);
+			} else {
+				alpha = null;
+			}
+			if (null != outside_mask) {
+				outside = new FloatProcessorT2(outside_mask);
+				if (null == alpha) {
+					alpha = outside;
+					alpha_mask = outside_mask;
+				}
+			} else {
+				outside = null;
+			}
+
+			int k = 0; // the scale level. Proper scale is: 1 / pow(2, k)
+			do {
+				if (Thread.currentThread().isInterrupted()) return null;
+
+				if (0 != k) { // not doing so at the end because it would add one unnecessary blurring
+					gaussianBlurResizeInHalf( fp );
+					if (null != alpha) {
+						gaussianBlurResizeInHalf( alpha );
+						if (alpha != outside && outside != null) {
+							gaussianBlurResizeInHalf( outside );
+						}
+					}
+				}
+
+				w = fp.getWidth();
+				h = fp.getHeight();
+
+				if (null != alpha) {
+					// Grey with alpha
+					// Remove all not completely inside pixels from the alpha mask
+					// If there was no alpha mask, alpha is the outside itself
+					levels.add(new ImageBytes(new byte[][]{fp.getScaledBytePixels(), P.merge(alpha.getBytePixels(), null == outside ? null : outside.getBytePixels())}, w, h));
+				} else {
+					// 8-bit grey
+					levels.add(new ImageBytes(new byte[][]{fp.getScaledBytePixels()}, w, h));
+				}
+
+				// prepare values for the next scaled image
+				k++;
+			} while (fp.getWidth() >= 32 && fp.getHeight() >= 32); // not smaller than 32x32
+		}
+		return levels.toArray(new ImageBytes[levels.size()]);
+	}
 
 	/** Remove the file, if it exists, with serialized features for patch.
 	 * Returns true when no such file or on success; false otherwise. */
 	public boolean removeSerializedFeatures(final Patch patch) {
-		final File f = new File(new StringBuilder(getUNUIdFolder()).append("features.ser/").append(FSLoader.createIdPath(Long.toString(patch.getId()), "features", ".ser")).toString());
+		final String path = new StringBuilder(getUNUIdFolder()).append("features.ser/").append(FSLoader.createIdPath(Long.toString(patch.getId()), "features", ".ser")).toString();
+		FeatureStore.remove(path); // not yet on disk
+		final File f = new File(path);
 		if (f.exists()) {
 			try {
 				return f.delete();
@@ -1870,12 +2433,21 @@ public final class FSLoader extends Loader {
 	 * Returns true when no such file or on success; false otherwise. */
 	public boolean removeSerializedPointMatches(final Patch patch) {
 		final String ser = new StringBuilder(getUNUIdFolder()).append("pointmatches.ser/").toString();
+		final String sid = Long.toString(patch.getId());
+
+		// 0 - Drop those not yet on disk, named <p1.id>_<p2.id> or <p2.id>_<p1.id>
+		for (final String path : FeatureStore.getPendingPaths(ser)) {
+			final int idot = path.lastIndexOf(".pointmatches.ser");
+			if (idot < ser.length()) continue;
+			final String[] ids = path.substring(ser.length(), idot).replace("/", "").split("_");
+			if (2 == ids.length && (sid.equals(ids[0]) || sid.equals(ids[1]))) FeatureStore.remove(path);
+		}
+
 		final File fser = new File(ser);
 
 		if (!fser.exists() || !fser.isDirectory()) return true;
 
 		boolean success = true;
-		final String sid = Long.toString(patch.getId());
 
 		final ArrayList<String> removed_paths = new ArrayList<String>();
 
@@ -1987,12 +2559,12 @@ public final class FSLoader extends Loader {
 							int w = (int)pa.getWidth();
 							int h = (int)pa.getHeight();
 							int level = 0;
-							final String filename = new File(getAbsolutePath(pa)).getName() + "." + pa.getId() + mExt;
+							final String filename = createIdPath(Long.toString(pa.getId()), new File(getAbsolutePath(pa)).getName(), mExt);
 							do {
 								w /= 2;
 								h /= 2;
 								level++;
-								if (!new File(dir_mipmaps + level + "/" + filename).exists()) {
+								if (!mipMapExists(dir_mipmaps + level + "/" + filename)) {
 									ow = true;
 									break;
 								}
@@ -2148,7 +2720,10 @@ public final class FSLoader extends Loader {
 		if (null == dir_mipmaps) return;
 		synchronized (db_lock) {
 			try {
-				if (forget_dir_mipmaps) this.dir_mipmaps = null;
+				if (forget_dir_mipmaps) {
+					closePackedMipMaps();
+					this.dir_mipmaps = null;
+				}
 				mawts.removeAndFlushAll();
 			} catch (Throwable t) {
 				handleCacheError(t);
@@ -2203,16 +2778,7 @@ public final class FSLoader extends Loader {
 		int h = height;
 		int k = 0; // the level
 		do {
-			final File f = new File(new StringBuilder(dir_mipmaps).append(k).append('/').append(filename).toString());
-			if (f.exists()) {
-				try {
-					if (!f.delete()) {
-						Utils.log2("Could not remove file " + f.getAbsolutePath());
-					}
-				} catch (Exception e) {
-					IJError.print(e);
-				}
-			}
+			deleteMipMap(new StringBuilder(dir_mipmaps).append(k).append('/').append(filename).toString());
 			w /= 2;
 			h /= 2;
 			k++;
@@ -2233,7 +2799,7 @@ public final class FSLoader extends Loader {
 		try {
 			final String path = getAbsolutePath(patch);
 			if (null == path) return ERROR_PATH_NOT_FOUND;
-			final String filename = new File(path).getName() + mExt;
+			final String filename = createIdPath(Long.toString(patch.getId()), new File(path).getName(), mExt);
 			if (isURL(dir_mipmaps)) {
 				if (level <= 0) return 0;
 				// choose the smallest dimension
@@ -2242,8 +2808,7 @@ public final class FSLoader extends Loader {
 				return level;
 			} else {
 				do {
-					final File f = new File(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString());
-					if (f.exists()) {
+					if (mipMapExists(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString())) {
 						return level;
 					}
 					// try the next level
@@ -2260,6 +2825,14 @@ public final class FSLoader extends Loader {
 	 *  Access is synchronized by gm_lock. */
 	final private Map<Patch,Future<Boolean>> regenerating_mipmaps = new HashMap<Patch,Future<Boolean>>();
 
+	/** The Patch whose image a {@link MipMapJob} is reading in the current thread, if any. */
+	final private ThreadLocal<Patch> generating = new ThreadLocal<Patch>();
+
+	@Override
+	public boolean isGeneratingMipMaps(final Patch patch) {
+		return null != patch && patch == generating.get();
+	}
+
 	/** A lock for the generation of mipmaps. */
 	final private Object gm_lock = new Object();
 
@@ -2268,8 +2841,7 @@ public final class FSLoader extends Loader {
 		if (null == dir_mipmaps) return false;
 		final int level = getMipMapLevel(magnification, maxDim(p));
 		if (isURL(dir_mipmaps)) return true; // just assume that it does
-		if (new File(dir_mipmaps + level + "/" + new File(getAbsolutePath(p)).getName() + "." + p.getId() + mExt).exists()) return true;
-		return false;
+		return mipMapExists(dir_mipmaps + level + "/" + createIdPath(Long.toString(p.getId()), new File(getAbsolutePath(p)).getName(), mExt));
 	}
 
 	final Set<Patch> cannot_regenerate = Collections.synchronizedSet(new HashSet<Patch>());
@@ -2372,8 +2944,9 @@ public final class FSLoader extends Loader {
 		return null;
 	}
 
-	static private AtomicInteger n_regenerating = new AtomicInteger(0);
-	static private ExecutorService regenerator = null;
+	static private MipMapPipeline mipmaps_pipeline = null;
+	/** A quarter of the heap, by default. */
+	static private long mipmaps_memory_budget = Runtime.getRuntime().maxMemory() / 4;
 	static private ExecutorService remover = null;
 	static public ExecutorService repainter = null;
 	static private int nStaticServiceThreads = nStaticServiceThreads();
@@ -2409,6 +2982,12 @@ public final class FSLoader extends Loader {
 	 *  returns a Future if the task was submitted, null if not. */
 	@Override
 	public final Future<Boolean> regenerateMipMaps(final Patch patch) {
+		return regenerateMipMaps(patch, true);
+	}
+
+	/** @param in_place Whether to update the existing mipmaps, if the changes recorded in the @param patch allow it,
+	 *  rather than generating them anew from the original image. */
+	private final Future<Boolean> regenerateMipMaps(final Patch patch, final boolean in_place) {
 
 		if (!isMipMapsRegenerationEnabled()) {
 			// If not enabled, the cache must be flushed
@@ -2423,32 +3002,25 @@ public final class FSLoader extends Loader {
 
 				// else, start it
 
-				n_regenerating.incrementAndGet();
-				Utils.log2("SUBMITTING to regen " + patch);
-				Utils.showStatus(new StringBuilder("Regenerating mipmaps (").append(n_regenerating.get()).append(" to go)").toString());
+				// What changed since the mipmaps were generated, and the display range to apply
+				final Patch.MipMapChanges changes;
+				final double min, max;
+				synchronized (patch) {
+					changes = patch.takeMipMapChanges();
+					min = patch.getMin();
+					max = patch.getMax();
+				}
 
-				// Eliminate existing mipmaps, if any, in a separate thread:
-				//Utils.log2("calling removeMipMaps from regenerateMipMaps");
-				final Future<Boolean> removing = removeMipMaps(patch);
+				final MipMapUpdateJob update = in_place ? createMipMapUpdate(patch, changes, min, max) : null;
+				if (null != update) {
+					fu = mipmaps_pipeline.submit(update);
+				} else {
+					// Eliminate existing mipmaps, if any, in a separate thread:
+					//Utils.log2("calling removeMipMaps from regenerateMipMaps");
+					final Future<Boolean> removing = removeMipMaps(patch);
 
-				fu = regenerator.submit(new Callable<Boolean>() {
-					public Boolean call() {
-						boolean b = false;
-						try {
-							// synchronize with the removal:
-							if (null != removing) removing.get();
-							Utils.showStatus(new StringBuilder("Regenerating mipmaps (").append(n_regenerating.get()).append(" to go)").toString());
-							b = generateMipMaps(patch); // will remove the Future from the regenerating_mipmaps table, under proper gm_lock synchronization
-							Display.repaint(patch.getLayer());
-							Display.updatePanel(patch.getLayer(), patch);
-							Utils.showStatus("");
-						} catch (Exception e) {
-							IJError.print(e);
-						}
-						n_regenerating.decrementAndGet();
-						return b;
-					}
-				});
+					fu = mipmaps_pipeline.submit(new MipMapJob(patch, removing, true));
+				}
 
 				regenerating_mipmaps.put(patch, fu);
 
@@ -2576,6 +3148,7 @@ public final class FSLoader extends Loader {
 				}
 			}
 			// Set it!
+			closePackedMipMaps();
 			this.dir_mipmaps = new_dir_mipmaps;
 
 			// Remove old empty dirs:
@@ -2770,12 +3343,31 @@ public final class FSLoader extends Loader {
 	 * Delete stale files under the {@link FSLoader#unuid} folder.
 	 * These include "*.ct" files (for {@link CoordinateTransform})
 	 * and "*.zip" files (for alpha mask images) that are not referenced from any {@link Patch}.
+	 * The {@link CoordinateTransformStore}, if any, is compacted to the transforms referenced from any {@link Patch}.
 	 */
 	@Override
 	public boolean deleteStaleFiles(boolean coordinate_transforms, boolean alpha_masks) {
 		boolean b = true;
 		final Project project = Project.findProject(this);
-		if (coordinate_transforms) b = b && StaleFiles.deleteCoordinateTransforms(project);
+		if (coordinate_transforms) {
+			b = b && StaleFiles.deleteCoordinateTransforms(project);
+			final CoordinateTransformStore store = getCoordinateTransformStore(false);
+			if (null != store) {
+				final HashSet<Long> live = new HashSet<Long>();
+				for (final Layer la : project.getRootLayerSet().getLayers()) {
+					for (final Displayable d : la.getDisplayables(Patch.class)) {
+						if (((Patch)d).hasCoordinateTransform()) live.add(((Patch)d).getCoordinateTransformId());
+					}
+				}
+				try {
+					final int n = store.compact(live);
+					if (n > 0) Utils.log("Removed " + n + " stale coordinate transforms from " + store.getFolder());
+				} catch (Exception e) {
+					IJError.print(e);
+					b = false;
+				}
+			}
+		}
 		if (alpha_masks) b = b && StaleFiles.deleteAlphaMasks(project);
 		return b;
 	}
@@ -2784,14 +3376,16 @@ public final class FSLoader extends Loader {
 	////////////////////
 
 
-	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag"};
+	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag", ".pack"};
 	static public final int MIPMAP_JPEG = 0;
 	static public final int MIPMAP_PNG = 1;
 	static public final int MIPMAP_TIFF = 2;
 	static public final int MIPMAP_RAW = 3;
 	static public final int MIPMAP_RAG = 4;
+	/** Like {@link #MIPMAP_RAG}, but packed into a few large files; see {@link PackedMipMaps}. */
+	static public final int MIPMAP_PACKED = 5;
 
-	static private final int MIPMAP_HIGHEST = MIPMAP_RAG; // WARNING: update this value if other formats are added
+	static private final int MIPMAP_HIGHEST = MIPMAP_PACKED; // WARNING: update this value if other formats are added
 
 	// Default: RAG
 	private int mipmaps_format = MIPMAP_RAG;
@@ -2810,13 +3404,15 @@ public final class FSLoader extends Loader {
 				return new RWImageRaw();
 			case MIPMAP_RAG:
 				return new RWImageRag();
+			case MIPMAP_PACKED:
+				return new RWImagePacked();
 			// WARNING add here another one
 		}
 		return null;
 	}
 
 	/** Any of: {@link #MIPMAP_JPEG}, {@link #MIPMAP_PNG}, {@link #MIPMAP_TIFF}, {@link #MIPMAP_RAW},
-	 * {@link #MIPMAP_RAG}. */
+	 * {@link #MIPMAP_RAG}, {@link #MIPMAP_PACKED}. */
 	@Override
 	public final int getMipMapFormat() {
 		return mipmaps_format;
@@ -2830,6 +3426,7 @@ public final class FSLoader extends Loader {
 			case MIPMAP_TIFF:
 			case MIPMAP_RAW:
 			case MIPMAP_RAG:
+			case MIPMAP_PACKED:
 				this.mipmaps_format = format;
 				this.mExt = MIPMAP_FORMATS[mipmaps_format];
 				this.mmio = newMipMapRWImage();
@@ -2840,7 +3437,8 @@ public final class FSLoader extends Loader {
 		}
 	}
 
-	/** Removes all mipmap files and recreates them with the currently set mipmaps format.
+	/** Sets @param new_format as the mipmaps format, and removes all mipmap files and recreates them with it;
+	 *  or, when packing, converts them and sets the new format only once done.
 	 *  @param old_format Any of MIPMAP_JPEG, MIPMAP_PNG in which files were saved before. */
 	@Override
 	public Bureaucrat updateMipMapsFormat(final int old_format, final int new_format) {
@@ -2848,6 +3446,11 @@ public final class FSLoader extends Loader {
 			Utils.log("Invalid old format for mipmaps!");
 			return null;
 		}
+		if (MIPMAP_PACKED == new_format && old_format != MIPMAP_PACKED) {
+			// The format is switched only once all files are packed
+			setMipMapFormat(old_format);
+			return packMipMaps(old_format);
+		}
 		if (!setMipMapFormat(new_format)) {
 			Utils.log("Invalid new format for mipmaps!");
 			return null;
@@ -2878,6 +3481,121 @@ public final class FSLoader extends Loader {
 		}, project);
 	}
 
+	/** Convert, in parallel, all mipmap files in format @param old_format into {@link PackedMipMaps},
+	 *  without regenerating them, and then switch the mipmaps format to {@link #MIPMAP_PACKED}.
+	 *  While converting, the old format remains the current one: the pack is written only by the conversion,
+	 *  and no fetch or regeneration of mipmaps opens it. The old files are removed only after the switch,
+	 *  so that a fetch meanwhile still finds them, and a failed conversion leaves them in place. */
+	private Bureaucrat packMipMaps(final int old_format) {
+		final Project project = Project.findProject(FSLoader.this);
+		return Bureaucrat.createAndStart(new Worker.Task("Packing mipmaps") {
+			public void exec() {
+				if (null == dir_mipmaps || isURL(dir_mipmaps)) {
+					Utils.log("Cannot pack mipmaps: the mipmaps folder is not a local folder.");
+					return;
+				}
+				final ExecutorService exec = Utils.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "mipmap packer");
+				try {
+					// The packed mipmaps are not in use while the old format is the current one
+					closePackedMipMaps();
+					final Map<String,Long> migrated = new ConcurrentHashMap<String,Long>();
+					final int n = PackedMipMaps.migrate(dir_mipmaps, MIPMAP_FORMATS[old_format], MIPMAP_FORMATS[MIPMAP_PACKED], exec, migrated);
+					if (n < 0) return;
+					Utils.log("Packed " + n + " mipmap files.");
+					setMipMapFormat(MIPMAP_PACKED);
+					mawts.removeAndFlushAll();
+					Display.repaint();
+					// Only now that the packed mipmaps are in use, remove the old files
+					final PackedMipMaps pmm = getPackedMipMaps();
+					if (null != pmm) PackedMipMaps.removeMigrated(pmm, dir_mipmaps, MIPMAP_FORMATS[old_format], MIPMAP_FORMATS[MIPMAP_PACKED], migrated);
+				} catch (Exception e) {
+					IJError.print(e);
+				} finally {
+					exec.shutdown();
+				}
+			}
+		}, project);
+	}
+
+	/** The packed mipmaps of this project, opened on demand. Opening and closing are synchronized by FSLOCK;
+	 *  reading the field is not, so that fetching mipmaps doesn't serialize on it. */
+	private volatile PackedMipMaps packed = null;
+
+	/** Returns null if the mipmaps folder is not set or is an URL, or the packed mipmaps could not be opened. */
+	private final PackedMipMaps getPackedMipMaps() {
+		final PackedMipMaps pm = packed;
+		if (null != pm) return pm;
+		synchronized (FSLOCK) {
+			if (null == packed) {
+				if (null == dir_mipmaps || isURL(dir_mipmaps)) return null;
+				try {
+					packed = new PackedMipMaps(dir_mipmaps);
+				} catch (Exception e) {
+					IJError.print(e);
+				}
+			}
+			return packed;
+		}
+	}
+
+	private final void closePackedMipMaps() {
+		synchronized (FSLOCK) {
+			if (null == packed) return;
+			packed.close();
+			packed = null;
+		}
+	}
+
+	/** Reclaim the space of regenerated and removed mipmaps once it exceeds {@link PackedMipMaps#MAX_GARBAGE}
+	 *  of the packed mipmaps; see {@link PackedMipMaps#compact()}. */
+	private final void compactPackedMipMaps() {
+		final PackedMipMaps pm = packed;
+		if (null == pm || !pm.needsCompaction()) return;
+		Utils.log2("Compacting packed mipmaps: " + pm.getGarbageBytes() + " bytes of garbage");
+		try {
+			pm.compact();
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+	}
+
+	/** The key of a packed mipmap is its path relative to the mipmaps folder. */
+	private final String packedKey(final String path) {
+		return path.startsWith(dir_mipmaps) ? path.substring(dir_mipmaps.length()) : path;
+	}
+
+	private final boolean isPacked(final String path) {
+		return path.endsWith(MIPMAP_FORMATS[MIPMAP_PACKED]);
+	}
+
+	/** Whether the mipmap at @param path exists, be it a file or a packed mipmap. */
+	private final boolean mipMapExists(final String path) {
+		if (isPacked(path)) {
+			final PackedMipMaps pm = getPackedMipMaps();
+			return null != pm && pm.contains(packedKey(path));
+		}
+		return new File(path).exists();
+	}
+
+	/** Remove the mipmap at @param path, be it a file or a packed mipmap. */
+	private final void deleteMipMap(final String path) {
+		if (isPacked(path)) {
+			final PackedMipMaps pm = getPackedMipMaps();
+			if (null != pm) pm.remove(packedKey(path));
+			return;
+		}
+		final File f = new File(path);
+		if (f.exists()) {
+			try {
+				if (!f.delete()) {
+					Utils.log2("Could not remove file " + f.getAbsolutePath());
+				}
+			} catch (Exception e) {
+				IJError.print(e);
+			}
+		}
+	}
+
 	private abstract class RWImage {
 		boolean save(ImageProcessor ip, final String path, final float quality, final boolean as_grey) {
 			if (as_grey) ip = ip.convertToByte(false);
@@ -2914,6 +3632,16 @@ public final class FSLoader extends Loader {
 		abstract BufferedImage open(String path);
 		/** Opens grey images or, if not grey, converts them to grey. */
 		abstract BufferedImage openGrey(String path);
+		/** Opens the image as its grey, grey and alpha, RGB or RGBA channels, like they were saved. */
+		ImageBytes load(final String path) {
+			final BufferedImage bi = open(path);
+			if (null == bi) return null;
+			try {
+				return ImageSaver.asImageBytes(bi);
+			} finally {
+				bi.flush();
+			}
+		}
 	}
 	private final class RWImageJPG extends RWImage {
 		@Override
@@ -2965,6 +3693,16 @@ public final class FSLoader extends Loader {
 			return ImageSaver.openGreyImage(path);
 		}
 		@Override
+		final ImageBytes load(final String path) {
+			final BufferedImage bi = ImageSaver.openImage(path, false); // as saved, not premultiplied
+			if (null == bi) return null;
+			try {
+				return ImageSaver.asImageBytes(bi);
+			} finally {
+				bi.flush();
+			}
+		}
+		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
 			BufferedImage bi = null;
 			try {
@@ -3009,6 +3747,16 @@ public final class FSLoader extends Loader {
 			return ImageSaver.openTIFF(path, true);
 		}
 		@Override
+		final ImageBytes load(final String path) {
+			final BufferedImage bi = ImageSaver.openTIFF(path, false); // as saved, not premultiplied
+			if (null == bi) return null;
+			try {
+				return ImageSaver.asImageBytes(bi);
+			} finally {
+				bi.flush();
+			}
+		}
+		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
 			switch (b.length) {
 				case 1:
@@ -3026,11 +3774,15 @@ public final class FSLoader extends Loader {
 	private final class RWImageRaw extends RWImage {
 		@Override
 		final BufferedImage open(final String path) {
-			return RawMipMaps.read(path);
+			return ChannelMipMaps.readRaw(path);
 		}
 		@Override
 		final BufferedImage openGrey(final String path) {
-			return ImageSaver.asGrey(RawMipMaps.read(path)); // TODO may not need the asGrey if all is correct
+			return ImageSaver.asGrey(ChannelMipMaps.readRaw(path)); // TODO may not need the asGrey if all is correct
+		}
+		@Override
+		final ImageBytes load(final String path) {
+			return ChannelMipMaps.loadRaw(path);
 		}
 		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
@@ -3041,14 +3793,44 @@ public final class FSLoader extends Loader {
 			}
 		}
 	}
+	private final class RWImagePacked extends RWImage {
+		@Override
+		final BufferedImage open(final String path) {
+			final PackedMipMaps pm = getPackedMipMaps();
+			return null == pm ? null : pm.read(packedKey(path));
+		}
+		@Override
+		final BufferedImage openGrey(final String path) {
+			final BufferedImage bi = open(path);
+			return null == bi ? null : ImageSaver.asGrey(bi);
+		}
+		@Override
+		final ImageBytes load(final String path) {
+			final PackedMipMaps pm = getPackedMipMaps();
+			return null == pm ? null : pm.load(packedKey(path));
+		}
+		@Override
+		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+			try {
+				final PackedMipMaps pm = getPackedMipMaps();
+				return null != pm && pm.save(packedKey(path), b, width, height);
+			} finally {
+				CachingThread.storeForReuse(b);
+			}
+		}
+	}
 	private final class RWImageRag extends RWImage {
 		@Override
 		final BufferedImage open(final String path) {
-			return RagMipMaps.read(path);
+			return ChannelMipMaps.readRag(path);
 		}
 		@Override
 		final BufferedImage openGrey(final String path) {
-			return ImageSaver.asGrey(RagMipMaps.read(path)); // TODO may not need the asGrey if all is correct
+			return ImageSaver.asGrey(ChannelMipMaps.readRag(path)); // TODO may not need the asGrey if all is correct
+		}
+		@Override
+		final ImageBytes load(final String path) {
+			return ChannelMipMaps.loadRag(path);
 		}
 		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
@@ -0,0 +1,463 @@
+package ini.trakem2.persistence;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Saver;
+import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Exports the prescaled tiles of layers for the web, named and laid out as {@link Loader#makePrescaledTiles(Layer[], Class, Rectangle, double, int, int, String, boolean, Saver, int)}
+ *  does, but making only the tiles whose contents changed since the last export into the same directory.
+ *
+ *  Only the tiles at full resolution are rendered; each coarser tile is made by averaging the pixels of the four
+ *  finer tiles under it. Finer tiles that did not change are read back from disk when the format is lossless;
+ *  with JPEG they are rendered again from the images, at their own scale, because averaging decoded JPEG tiles
+ *  would degrade the coarser levels a bit more with every export. A tile is identified by a hash of the export
+ *  parameters and of what it is made of: for a full resolution tile, the XML and image file modification time of
+ *  each Displayable in it; for a coarser tile, the hashes of its four finer tiles. These hashes are listed in the
+ *  {@link #MANIFEST} file of the directory of each layer, appended to as each tile is saved, so that an export
+ *  that was interrupted resumes from where it stopped.
+ */
+public final class IncrementalTileExporter {
+
+	/** Name of the file, in the directory of each layer, listing each tile and the hash of what it was made of. */
+	static public final String MANIFEST = "tiles.manifest";
+
+	private final Loader loader;
+	private final Rectangle srcRect;
+	private final int c_alphas;
+	private final int type;
+	private final Class<?> clazz;
+	private final Saver saver;
+	private final int tileSide;
+	private final Worker worker;
+	/** Whether tiles read back from disk have the pixels they were saved with. */
+	private final boolean lossless;
+	/** The parameters that all tiles depend on. */
+	private final String params;
+	/** How many levels under a tile to render in parallel: 4^parallel_levels tiles at a time. */
+	private final int parallel_levels;
+
+	private final XMLOptions xml_options = new XMLOptions();
+	private final ConcurrentHashMap<Displayable,String> fingerprints = new ConcurrentHashMap<Displayable,String>();
+
+	/** @param worker Checked for {@link Worker#hasQuitted()} to stop the export; may be null. */
+	public IncrementalTileExporter(final Loader loader, final Rectangle srcRect, final int c_alphas, final int type, final Class<?> clazz, final Saver saver, final int tileSide, final Worker worker) {
+		this.loader = loader;
+		this.srcRect = new Rectangle(srcRect);
+		this.c_alphas = c_alphas;
+		this.type = type;
+		this.clazz = null == clazz ? Displayable.class : clazz;
+		this.saver = saver;
+		this.tileSide = tileSide;
+		this.worker = worker;
+		this.lossless = !(".jpg".equals(saver.getExtension()) || ".jpeg".equals(saver.getExtension()));
+		this.params = new StringBuilder().append(srcRect).append(' ').append(c_alphas).append(' ').append(type).append(' ')
+			.append(this.clazz.getName()).append(' ').append(tileSide).append(' ').append(saver.getExtension()).toString();
+		int p = 0;
+		for (int n = 1; n < 2 * Runtime.getRuntime().availableProcessors(); n *= 4) ++p;
+		this.parallel_levels = p;
+		// The ct_id of a Patch changes with its transform: no need to read the transform itself
+		this.xml_options.include_coordinate_transform = false;
+	}
+
+	/** What a tile was made of, and its pixels if it was made in this run: null if it was already on disk. */
+	static private final class Tile {
+		final String hash;
+		final String path;
+		final ImageProcessor ip;
+		Tile(final String hash, final String path, final ImageProcessor ip) {
+			this.hash = hash;
+			this.path = path;
+			this.ip = ip;
+		}
+	}
+
+	/** The export of one layer. */
+	private final class Run {
+		final Layer layer;
+		final String dir;
+		/** Tiles a side, per level. */
+		final int[] n;
+		/** Tile name vs. hash, as listed in the manifest of a previous export. */
+		final HashMap<String,String> previous;
+		/** Tile name vs. hash of all tiles of this export. */
+		final ConcurrentHashMap<String,String> current = new ConcurrentHashMap<String,String>();
+		final Writer manifest;
+		final AtomicInteger done = new AtomicInteger(0),
+		                    made = new AtomicInteger(0);
+		final int total;
+		final ExecutorService exec;
+
+		Run(final Layer layer, final String dir, final int[] n, final ExecutorService exec) throws IOException {
+			this.layer = layer;
+			this.dir = dir;
+			this.n = n;
+			this.exec = exec;
+			this.previous = readManifest(dir + MANIFEST);
+			this.manifest = new BufferedWriter(new FileWriter(dir + MANIFEST, true));
+			int t = 0;
+			for (final int k : n) t += k * k;
+			this.total = t;
+		}
+
+		/** Record a tile as done, and in the manifest if it was made. */
+		void record(final String name, final String hash, final boolean was_made) throws IOException {
+			current.put(name, hash);
+			if (was_made) {
+				made.incrementAndGet();
+				synchronized (manifest) {
+					manifest.write(name + ' ' + hash + '\n');
+					manifest.flush();
+				}
+			}
+			Utils.showProgress(done.incrementAndGet() / (double)total);
+		}
+
+		boolean unchanged(final String name, final String hash, final String path) {
+			return hash.equals(previous.get(name)) && new File(path).exists();
+		}
+	}
+
+	/** Export the tiles of a layer into dir: n_edge_tiles a side at full resolution, halving at each coarser level for as long as
+	 *  there are at least min_edge_tiles a side.
+	 *  @return the number of tiles that were made, or -1 if the export was stopped. */
+	public int export(final Layer layer, final String dir, final int n_edge_tiles, final int min_edge_tiles) throws Exception {
+		final ArrayList<Integer> sides = new ArrayList<Integer>();
+		sides.add(n_edge_tiles);
+		for (int k = n_edge_tiles / 2; k >= min_edge_tiles && k > 0; k /= 2) sides.add(k);
+		final int[] n = new int[sides.size()];
+		for (int i=0; i<n.length; ++i) n[i] = sides.get(i);
+
+		final ExecutorService exec = Utils.newFixedThreadPool("export-for-web");
+		final Run run = new Run(layer, dir, n, exec);
+		try {
+			// From the coarsest level down: each tile whose parent is beyond the grid of the coarser level is the root of its own subtree
+			final int top = n.length - 1;
+			for (int s = top; s > -1; --s) {
+				for (int r=0; r<n[s]; ++r) {
+					for (int c=0; c<n[s]; ++c) {
+						if (s == top || r >= 2 * n[s+1] || c >= 2 * n[s+1]) {
+							build(run, s, r, c, null);
+						}
+					}
+				}
+			}
+		} catch (final InterruptedException ie) {
+			Utils.log("Stopped exporting tiles of " + layer + ": the next export will resume.");
+			return -1;
+		} finally {
+			exec.shutdownNow();
+			run.manifest.close();
+		}
+		writeManifest(dir + MANIFEST, run.current);
+		Utils.log("Exported " + run.made.get() + " changed tiles of " + run.total + " for " + layer);
+		return run.made.get();
+	}
+
+	private boolean quit() {
+		return Thread.currentThread().isInterrupted() || (null != worker && worker.hasQuitted());
+	}
+
+	static private long key(final int r, final int c) {
+		return (((long)r) << 32) | (c & 0xffffffffL);
+	}
+
+	private String name(final int r, final int c, final int s) {
+		return new StringBuilder().append(r).append('_').append(c).append('_').append(s).toString();
+	}
+
+	/** The tile s,r,c, made from the leaves already submitted, if any; else its leaves are submitted to be made in parallel
+	 *  if it is at most {@link #parallel_levels} above them. */
+	private Tile build(final Run run, final int s, final int r, final int c, Map<Long,Future<Tile>> leaves) throws Exception {
+		if (quit()) throw new InterruptedException();
+		if (0 == s) {
+			if (null == leaves) return leaf(run, r, c);
+			try {
+				return leaves.get(key(r, c)).get();
+			} catch (final ExecutionException ee) {
+				final Throwable t = ee.getCause();
+				if (t instanceof Exception) throw (Exception)t;
+				throw ee;
+			}
+		}
+		if (null == leaves && s <= parallel_levels) {
+			final ArrayList<long[]> ls = new ArrayList<long[]>();
+			collectLeaves(run, s, r, c, ls);
+			leaves = new HashMap<Long,Future<Tile>>();
+			for (final long[] rc : ls) {
+				final int rr = (int)rc[0],
+				          cc = (int)rc[1];
+				leaves.put(key(rr, cc), run.exec.submit(new Callable<Tile>() {
+					@Override
+					public Tile call() throws Exception {
+						return leaf(run, rr, cc);
+					}
+				}));
+			}
+		}
+
+		// The four tiles under this one, left to right and top to bottom
+		final Tile[] children = new Tile[4];
+		final StringBuilder sb = new StringBuilder(params).append(' ').append(s);
+		for (int i=0; i<4; ++i) {
+			final int rr = 2 * r + i / 2,
+			          cc = 2 * c + i % 2;
+			if (rr < run.n[s-1] && cc < run.n[s-1]) {
+				children[i] = build(run, s-1, rr, cc, leaves);
+				sb.append(' ').append(children[i].hash);
+			} else {
+				sb.append(" -");
+			}
+		}
+
+		final String name = name(r, c, s);
+		final String hash = md5(sb.toString());
+		final String path = run.dir + name + saver.getExtension();
+		if (run.unchanged(name, hash, path)) {
+			run.record(name, hash, false);
+			return new Tile(hash, path, null);
+		}
+
+		final ImageProcessor big = createProcessor(2 * tileSide, 2 * tileSide);
+		for (int i=0; i<4; ++i) {
+			if (null == children[i]) continue;
+			final ImageProcessor ip = pixels(run, children[i], s-1, 2 * r + i / 2, 2 * c + i % 2);
+			if (null != ip) big.insert(ip, (i % 2) * tileSide, (i / 2) * tileSide);
+		}
+		final ImageProcessor ip = downsampleByTwo(big);
+		save(ip, name, path);
+		run.record(name, hash, true);
+		return new Tile(hash, path, ip);
+	}
+
+	private void collectLeaves(final Run run, final int s, final int r, final int c, final ArrayList<long[]> leaves) {
+		if (0 == s) {
+			leaves.add(new long[]{r, c});
+			return;
+		}
+		for (int i=0; i<4; ++i) {
+			final int rr = 2 * r + i / 2,
+			          cc = 2 * c + i % 2;
+			if (rr < run.n[s-1] && cc < run.n[s-1]) collectLeaves(run, s-1, rr, cc, leaves);
+		}
+	}
+
+	/** The tile at full resolution at row r and column c. */
+	private Tile leaf(final Run run, final int r, final int c) throws Exception {
+		final Rectangle box = new Rectangle(srcRect.x + c * tileSide, srcRect.y + r * tileSide, tileSide, tileSide);
+		final Rectangle tile_src = box.intersection(srcRect);
+		final StringBuilder sb = new StringBuilder(params).append(' ').append(box);
+		final ArrayList<Displayable> ds = new ArrayList<Displayable>();
+		if (!tile_src.isEmpty()) {
+			ds.addAll(run.layer.find(clazz, tile_src, true, true));
+			ds.addAll(run.layer.getParent().findZDisplayables(clazz, run.layer, tile_src, true, true));
+		}
+		for (final Displayable d : ds) sb.append(' ').append(fingerprint(d));
+
+		final String name = name(r, c, 0);
+		final String hash = md5(sb.toString());
+		final String path = run.dir + name + saver.getExtension();
+		if (run.unchanged(name, hash, path)) {
+			run.record(name, hash, false);
+			return new Tile(hash, path, null);
+		}
+
+		// Tiles beyond the edges of the srcRect, or cropped by them, are padded with black
+		final ImageProcessor ip = createProcessor(tileSide, tileSide);
+		if (!tile_src.isEmpty() && !ds.isEmpty()) {
+			final ImagePlus imp = loader.getFlatImage(run.layer, tile_src, 1.0, c_alphas, type, clazz, null, true);
+			if (null != imp) {
+				ip.insert(convert(imp.getProcessor()), 0, 0);
+				imp.flush();
+			}
+		}
+		save(ip, name, path);
+		run.record(name, hash, true);
+		return new Tile(hash, path, ip);
+	}
+
+	/** A hash of what a Displayable paints: its XML, and for a Patch, the modification time of its image file. */
+	private String fingerprint(final Displayable d) {
+		String f = fingerprints.get(d);
+		if (null == f) {
+			final StringBuilder sb = new StringBuilder();
+			d.exportXML(sb, "", xml_options);
+			if (d instanceof Patch) {
+				final String path = loader.getAbsolutePath((Patch)d);
+				if (null != path) sb.append(new File(path).lastModified());
+			}
+			f = md5(sb.toString());
+			fingerprints.put(d, f);
+		}
+		return f;
+	}
+
+	private ImageProcessor createProcessor(final int w, final int h) {
+		// zeros: black
+		return ImagePlus.GRAY8 == type ? new ByteProcessor(w, h) : new ColorProcessor(w, h);
+	}
+
+	private ImageProcessor convert(final ImageProcessor ip) {
+		if (ImagePlus.GRAY8 == type) return ip instanceof ByteProcessor ? ip : ip.convertToByte(false);
+		return ip instanceof ColorProcessor ? ip : ip.convertToRGB();
+	}
+
+	/** The pixels of the tile s,r,c: those made in this run, else read from its file if the format is lossless,
+	 *  else rendered from the images at the scale of level s; null if they can't be had. */
+	private ImageProcessor pixels(final Run run, final Tile tile, final int s, final int r, final int c) {
+		if (null != tile.ip) return tile.ip;
+		if (lossless) {
+			final ImagePlus imp = new Opener().openImage(tile.path);
+			if (null != imp) return convert(imp.getProcessor());
+			Utils.log("Could not read tile " + tile.path + ": rendering it again for the coarser tile.");
+		}
+		final int side = tileSide << s;
+		final Rectangle tile_src = new Rectangle(srcRect.x + c * side, srcRect.y + r * side, side, side).intersection(srcRect);
+		final ImageProcessor ip = createProcessor(tileSide, tileSide);
+		if (tile_src.isEmpty()) return ip;
+		final ImagePlus imp = loader.getFlatImage(run.layer, tile_src, 1.0 / (1 << s), c_alphas, type, clazz, null, true);
+		if (null == imp) {
+			Utils.log("Could not render tile " + tile.path + ": painting it black in the coarser tile.");
+			return null;
+		}
+		ip.insert(convert(imp.getProcessor()), 0, 0);
+		imp.flush();
+		return ip;
+	}
+
+	private void save(final ImageProcessor ip, final String name, final String path) {
+		if (!saver.save(new ImagePlus(name, ip), path)) {
+			Utils.log("Could not save tile " + path);
+		}
+	}
+
+	/** Half the width and height of ip, each pixel the average of four; each color channel on its own for RGB images.
+	 *  @param ip A ByteProcessor or a ColorProcessor. */
+	static public ImageProcessor downsampleByTwo(final ImageProcessor ip) {
+		final int width1 = ip.getWidth();
+		if (ip instanceof ByteProcessor) {
+			final ByteProcessor next = new ByteProcessor(width1 / 2, ip.getHeight() / 2);
+			final byte[] p1 = (byte[]) ip.getPixels();
+			final byte[] p2 = (byte[]) next.getPixels();
+			final int width2 = next.getWidth();
+			final int height2 = next.getHeight();
+			int i = 0;
+			for (int y1=0, y2=0; y2 < height2; y1 += 2, y2++) {
+				final int offset1a = y1 * width1;
+				final int offset1b = (y1 + 1) * width1;
+				for (int x1=0, x2=0; x2 < width2; x1 += 2, x2++) {
+					p2[i++] = (byte)( (   (p1[offset1a + x1] & 0xff) + (p1[offset1a + x1 + 1] & 0xff)
+										+ (p1[offset1b + x1] & 0xff) + (p1[offset1b + x1 + 1] & 0xff) ) /4 );
+				}
+			}
+			return next;
+		}
+		final ColorProcessor next = new ColorProcessor(width1 / 2, ip.getHeight() / 2);
+		final int[] p1 = (int[]) ip.getPixels();
+		final int[] p2 = (int[]) next.getPixels();
+		final int width2 = next.getWidth();
+		final int height2 = next.getHeight();
+		int i = 0;
+		for (int y1=0, y2=0; y2 < height2; y1 += 2, y2++) {
+			final int offset1a = y1 * width1;
+			final int offset1b = (y1 + 1) * width1;
+			for (int x1=0, x2=0; x2 < width2; x1 += 2, x2++) {
+				final int ka = p1[offset1a + x1],
+						  kb = p1[offset1a + x1 + 1],
+						  kc = p1[offset1b + x1],
+						  kd = p1[offset1b + x1 + 1];
+				// Average each channel independently
+				p2[i++] =
+					    (((   ((ka >> 16) & 0xff)        // red
+					        + ((kb >> 16) & 0xff)
+					        + ((kc >> 16) & 0xff)
+					        + ((kd >> 16) & 0xff) ) / 4) << 16)
+					  + (((   ((ka >> 8) & 0xff)         // green
+						    + ((kb >> 8) & 0xff)
+						    + ((kc >> 8) & 0xff)
+						    + ((kd >> 8) & 0xff) ) / 4) << 8)
+						+ (   (ka & 0xff)                // blue
+						    + (kb & 0xff)
+						    + (kc & 0xff)
+						    + (kd & 0xff) ) / 4;
+			}
+		}
+		return next;
+	}
+
+	static private String md5(final String s) {
+		try {
+			final byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+			final StringBuilder sb = new StringBuilder(32);
+			for (final byte b : d) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (final Exception e) {
+			// MD5 and UTF-8 are always available
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Tile name vs. hash; the last entry of a name wins, as the manifest is appended to. */
+	static private HashMap<String,String> readManifest(final String path) {
+		final HashMap<String,String> m = new HashMap<String,String>();
+		final File f = new File(path);
+		if (!f.exists()) return m;
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(f));
+			for (String line = br.readLine(); null != line; line = br.readLine()) {
+				final int i = line.indexOf(' ');
+				// an incomplete last line, of an export that was killed, is ignored
+				if (i > 0 && 32 == line.length() - i - 1) m.put(line.substring(0, i), line.substring(i + 1));
+			}
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+		} finally {
+			if (null != br) try { br.close(); } catch (final IOException ioe) {}
+		}
+		return m;
+	}
+
+	/** Replace the manifest, which had all entries appended, with the current ones. */
+	static private void writeManifest(final String path, final Map<String,String> tiles) {
+		final StringBuilder sb = new StringBuilder();
+		for (final Map.Entry<String,String> e : tiles.entrySet()) {
+			sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		final File tmp = new File(path + ".tmp");
+		if (!Utils.saveToFile(tmp, sb.toString())) return;
+		final File f = new File(path);
+		if (!f.delete() || !tmp.renameTo(f)) {
+			Utils.log("Could not replace " + path + " with " + tmp);
+		}
+	}
+}
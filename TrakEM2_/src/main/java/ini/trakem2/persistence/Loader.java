@@ -50,6 +50,7 @@ import ini.trakem2.display.DLabel;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.DisplayablePanel;
+import ini.trakem2.display.FlatTileRenderer;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.MipMapImage;
@@ -69,6 +70,7 @@ import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.AmiraImporter;
 import ini.trakem2.io.ImageFileFilter;
 import ini.trakem2.io.ImageFileHeader;
+import ini.trakem2.io.TiffStreamWriter;
 import ini.trakem2.tree.DTDParser;
 import ini.trakem2.tree.TemplateThing;
 import ini.trakem2.utils.Bureaucrat;
@@ -231,7 +233,57 @@ abstract public class Loader {
 		}
 	}
 
-	transient protected final Cache mawts = new Cache((long)(MAX_MEMORY * heap_fraction));
+	/** The eviction policy of the image caches of all open projects; see {@link ConcurrentCache}. */
+	static private int cache_policy = ConcurrentCache.LRU;
+
+	static public final void setCachePolicy(final int policy) {
+		synchronized (HEAPLOCK) {
+			if (policy < 0 || policy >= ConcurrentCache.POLICIES.length) {
+				Utils.log("Invalid cache policy: " + policy);
+				return;
+			}
+			Loader.cache_policy = policy;
+			for (final Loader l : v_loaders) l.mawts.setPolicy(policy);
+		}
+	}
+
+	/** The size, in bytes, of the off-heap second tier of the image cache of each open project; zero means none. */
+	static private long offheap_bytes = 0;
+
+	/** The folder for the memory-mapped files of the off-heap caches, or null for the system's temporary folder. */
+	static private File offheap_dir = null;
+
+	/** Set the size of the off-heap, memory-mapped second tier of the image cache of each open project,
+	 *  into which mipmaps evicted from the heap are stored so that they can be brought back without
+	 *  reading and decoding their files. A @param max_bytes of zero disables it.
+	 *  @param dir The folder for the mapped files, or null for the system's temporary folder. */
+	static public final void setOffHeapCache(final long max_bytes, final String dir) {
+		synchronized (HEAPLOCK) {
+			if (max_bytes < 0) {
+				Utils.log("Invalid off-heap cache size: " + max_bytes);
+				return;
+			}
+			Loader.offheap_bytes = max_bytes;
+			Loader.offheap_dir = null == dir ? null : new File(dir);
+			for (final Loader l : v_loaders) l.setupOffHeapCache();
+		}
+	}
+
+	private final void setupOffHeapCache() {
+		if (0 == offheap_bytes) {
+			mawts.setSecondTier(null);
+			return;
+		}
+		try {
+			mawts.setSecondTier(new OffHeapCache(offheap_bytes, offheap_dir));
+		} catch (Exception e) {
+			Utils.log("Could not create an off-heap cache of " + offheap_bytes + " bytes: " + e);
+			mawts.setSecondTier(null);
+		}
+	}
+
+	/** Thread-safe: calls that only read from or write to the cache need not synchronize on db_lock. */
+	transient protected final ConcurrentCache mawts = new ConcurrentCache((long)(MAX_MEMORY * heap_fraction), cache_policy, 4 * Runtime.getRuntime().availableProcessors());
 	
 	static transient protected Vector<Loader> v_loaders = new Vector<Loader>(); // Vector: synchronized
 	
@@ -262,6 +314,10 @@ abstract public class Loader {
 
 		Utils.log2("MAX_MEMORY: " + MAX_MEMORY);
 		Utils.log2("cache size: " + mawts.getMaxBytes());
+
+		synchronized (HEAPLOCK) {
+			setupOffHeapCache();
+		}
 	}
 
 	/** Release all memory and unregister itself. Child Loader classes should call this method in their destroy() methods. */
@@ -271,6 +327,10 @@ abstract public class Loader {
 		}
 		Utils.showStatus("Releasing all memory ...", false);
 		destroyCache();
+		// Close the off-heap cache, if any: drops its mapped segments and deletes its slab file
+		final OffHeapCache l2 = mawts.getSecondTier();
+		mawts.setSecondTier(null);
+		if (null != l2) l2.close();
 		
 		// First remove from list:
 		v_loaders.remove(this);
@@ -756,34 +816,28 @@ abstract public class Loader {
 
 	/** Removes from the cache all awt images bond to the given id. */
 	public void decacheAWT(final long id) {
-		synchronized (db_lock) {
-			try {
-				mawts.removeAndFlushPyramid(id); // where are my lisp macros! Wrapping any function in a synch/lock/unlock could be done crudely with reflection, but what a pain
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.removeAndFlushPyramid(id);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
 	public Image getCachedAWT(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				return mawts.get(id, level);
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.get(id, level);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
 	
 	public void cacheAWT( final long id, final Image awt) {
 		if (null == awt) return;
-		synchronized (db_lock) {
-			try {
-				mawts.put(id, awt, 0);
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.put(id, awt, 0);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 	} 
 
@@ -836,36 +890,30 @@ abstract public class Loader {
 	}
 
 	public boolean isImagePlusCached(final Patch p) {
-		synchronized (db_lock) {
-			try {
-				return null != mawts.get(p.getId());
-			} catch (Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return null != mawts.get(p.getId());
+		} catch (Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
 	/** Returns true if there is a cached awt image for the given mag and Patch id. */
 	public boolean isCached(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.contains(p.getId(), level);
-			} catch (Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return mawts.contains(p.getId(), level);
+		} catch (Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
 	public MipMapImage getCached(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestAbove(id, level);
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestAbove(id, level);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -873,12 +921,10 @@ abstract public class Loader {
 	/** Above or equal in size. */
 	public MipMapImage getCachedClosestAboveImage(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestAbove(p.getId(), level);
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestAbove(p.getId(), level);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -886,12 +932,10 @@ abstract public class Loader {
 	/** Below, not equal. */
 	public MipMapImage getCachedClosestBelowImage(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestBelow(p.getId(), level);
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestBelow(p.getId(), level);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -949,24 +993,25 @@ abstract public class Loader {
 		final long id = p.getId();
 		ImageLoadingLock plock = null;
 
-		synchronized (db_lock) {
+		if (null == mawts) {
+			return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
+		}
+
+		if (level >= 0 && isMipMapsRegenerationEnabled()) {
+			// 1 - check if the exact level is cached: the cache is thread-safe, no need for the db_lock
 			try {
-				if (null == mawts) {
-					return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
-				}
-				if (level >= 0 && isMipMapsRegenerationEnabled()) {
-					// 1 - check if the exact level is cached
-					final Image mawt = mawts.get( id, level );
-					if (null != mawt) {
-						//Utils.log2("returning cached exact mawt for level " + level);
-						final double scale = Math.pow( 2.0, level );
-						return new MipMapImage( mawt, scale, scale );
-					}
-					plock = getOrMakeImageLoadingLock(p.getId(), level);
+				final Image mawt = mawts.get( id, level );
+				if (null != mawt) {
+					//Utils.log2("returning cached exact mawt for level " + level);
+					final double scale = Math.pow( 2.0, level );
+					return new MipMapImage( mawt, scale, scale );
 				}
 			} catch (Exception e) {
 				IJError.print(e);
 			}
+			synchronized (db_lock) {
+				plock = getOrMakeImageLoadingLock(p.getId(), level);
+			}
 		}
 
 		MipMapImage mipMap = null;
@@ -974,10 +1019,7 @@ abstract public class Loader {
 		// 2 - check if the exact file is present for the desired level
 		if (level >= 0 && isMipMapsRegenerationEnabled()) {
 			synchronized (plock) {
-				final Image mawt;
-				synchronized (db_lock) {
-					mawt = mawts.get( id, level );
-				}
+				final Image mawt = mawts.get( id, level );
 				if (null != mawt) {
 					final double scale = Math.pow( 2.0, level );
 					return new MipMapImage( mawt, scale, scale ); // was loaded by a different thread
@@ -1042,17 +1084,15 @@ abstract public class Loader {
 		// level is zero or nonsensically lower than zero, or was not found
 		//Utils.log2("not found!");
 
-		synchronized (db_lock) {
-			try {
-				// 4 - check if any suitable level is cached (whithout mipmaps, it may be the large image)
-				mipMap = mawts.getClosestAbove(id, level);
-				if (null != mipMap) {
-					//Utils.log2("returning from getClosest with level " + level);
-					return mipMap;
-				}
-			} catch (Exception e) {
-				IJError.print(e);
+		try {
+			// 4 - check if any suitable level is cached (whithout mipmaps, it may be the large image)
+			mipMap = mawts.getClosestAbove(id, level);
+			if (null != mipMap) {
+				//Utils.log2("returning from getClosest with level " + level);
+				return mipMap;
 			}
+		} catch (Exception e) {
+			IJError.print(e);
 		}
 
 		// 5 - else, fetch the (perhaps) transformed ImageProcessor and make an image from it of the proper size and quality
@@ -1138,12 +1178,10 @@ abstract public class Loader {
 
 	/** Simply reads from the cache, does no reloading at all. If the ImagePlus is not found in the cache, it returns null and the burden is on the calling method to do reconstruct it if necessary. This is intended for the LayerStack. */
 	public ImagePlus getCachedImagePlus(final long id) {
-		synchronized(db_lock) {
-			try {
-				return mawts.get(id);
-			} catch (Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.get(id);
+		} catch (Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -2414,7 +2452,8 @@ while (it.hasNext()) {
 					base_layer.getParent().setMinimumDimensions();
 					Display.repaint(base_layer.getParent());
 
-					recreateBuckets(touched_layers);
+					// No need to recreate the buckets: each patch was indexed as it was added,
+					// and setMinimumDimensions recreates them if the LayerSet grew.
 
 					if (homogenize_contrast) {
 						setTaskName("Enhance contrast");
@@ -2616,6 +2655,9 @@ while (it.hasNext()) {
 					
 					Utils.showProgress(i / (float)layer.length);
 					
+					if (null != target_dir && saveFlatTiff(layer[i], srcRect_, scale, c_alphas, type, quality, background, uniquePath(target_dir, layer[i].getPrintableTitle(), ".tif"))) {
+						continue;
+					}
 					final ImagePlus slice = getFlatImage(layer[i], srcRect_, scale, c_alphas, type, Displayable.class, null, quality, background);
 					if (null == slice) {
 						Utils.log("Could not retrieve flat image for " + layer[i].toString());
@@ -2638,6 +2680,8 @@ while (it.hasNext()) {
 					impCalibration.pixelHeight /= scale;
 					imp.setCalibration(impCalibration);
 				}
+			} else if (null != target_dir && isTiff(format) && saveFlatTiff(layer[0], srcRect_, scale, c_alphas, type, quality, background, uniquePath(target_dir, layer[0].getPrintableTitle(), format))) {
+				// saved tile by tile, not shown
 			} else {
 				imp = getFlatImage(layer[0], srcRect_, scale, c_alphas, type, Displayable.class, null, quality, background);
 				if (null != target_dir) {
@@ -2654,20 +2698,85 @@ while (it.hasNext()) {
 		return Bureaucrat.createAndStart(worker, layer[0].getProject());
 	}
 
+	static private boolean isTiff(final String extension) {
+		final String ext = extension.toLowerCase();
+		return ".tif".equals(ext) || ".tiff".equals(ext) || "tif".equals(ext) || "tiff".equals(ext);
+	}
+
+	/** A path in dir for file_name plus extension that doesn't exist yet: adds an underscore and ordinal to the file name if needed. */
+	static private String uniquePath(final String dir, final String file_name, String extension) {
+		if ('.' != extension.charAt(0)) extension = "." + extension;
+		final String path = dir + "/" + file_name;
+		File file = new File(path + extension);
+		int k = 1;
+		while (file.exists()) {
+			file = new File(path + "_" + k + extension);
+			k++;
+		}
+		return file.getAbsolutePath();
+	}
+
+	/** Save the flat image of the layer into a TIFF file at path, writing each tile as soon as it is painted by
+	 *  {@link FlatTileRenderer}, so that the image is never all in memory. Returns false, having written nothing,
+	 *  when the flat image can't be painted as tiles (see {@link #paintsFlatTiles(boolean, double)}),
+	 *  is of a type other than 8-bit or RGB or doesn't fit in a TIFF file, or when writing fails, in which case
+	 *  the partial file is deleted: then the caller must make it whole. */
+	private boolean saveFlatTiff(final Layer layer, final Rectangle srcRect, final double scale, final int c_alphas, final int type, final boolean quality, final Color background, final String path) {
+		if (!paintsFlatTiles(quality, scale)) return false;
+		if (ImagePlus.GRAY8 != type && ImagePlus.COLOR_RGB != type) return false;
+		final int ww = (int)Math.ceil(srcRect.width * scale),
+		          hh = (int)Math.ceil(srcRect.height * scale);
+		if (!TiffStreamWriter.fits(ww, hh, type)) return false;
+		final Calibration cal = layer.getParent().getCalibrationCopy();
+		cal.pixelWidth /= scale;
+		cal.pixelHeight /= scale;
+		TiffStreamWriter writer = null;
+		boolean saved = false;
+		try {
+			writer = new TiffStreamWriter(path, ww, hh, type, cal);
+			final TiffStreamWriter w = writer;
+			FlatTileRenderer.paint(layer, srcRect, scale, c_alphas, type, Displayable.class, null, quality && 1.0 != scale, background, null, Runtime.getRuntime().availableProcessors(),
+					new FlatTileRenderer.TileConsumer<BufferedImage>() {
+						@Override
+						public void accept(final int x, final int y, final BufferedImage tile) throws Exception {
+							w.write(x, y, tile);
+							tile.flush();
+						}
+					});
+			writer.close();
+			writer = null;
+			saved = true;
+			Utils.log2("Saved flat image of " + layer + " to " + path);
+		} catch (Throwable t) {
+			Utils.log("Could not save flat image for " + layer.getPrintableTitle() + " as tiles; making it whole instead.");
+			IJError.print(t);
+		} finally {
+			if (null != writer) {
+				try { writer.close(); } catch (Exception e) { IJError.print(e); }
+			}
+			if (!saved) {
+				// Not a partial image
+				final File f = new File(path);
+				if (f.exists() && !f.delete()) Utils.log("Could not delete the incomplete file " + path);
+			}
+		}
+		return saved;
+	}
+
+	/** Whether {@link #getFlatAWTImage(Layer, Rectangle, double, int, int, Class, List, boolean, Color, Displayable)} paints
+	 *  the flat image as tiles, with {@link FlatTileRenderer}: always but when 'quality' requires area averaging the whole image,
+	 *  which is at scales other than 1.0 unless there are mipmaps and the scale is below 0.5. */
+	private boolean paintsFlatTiles(final boolean quality, final double scale) {
+		return !quality || 1.0 == scale || (isMipMapsRegenerationEnabled() && scale < 0.5);
+	}
+
 	/** Will never overwrite, rather, add an underscore and ordinal to the file name. */
 	private void saveToPath(final ImagePlus imp, final String dir, final String file_name, final String extension) {
 		if (null == imp) {
 			Utils.log2("Loader.saveToPath: can't save a null image.");
 			return;
 		}
-		// create a unique file name
-		String path = dir + "/" + file_name;
-		File file = new File(path + extension);
-		int k = 1;
-		while (file.exists()) {
-			file = new File(path + "_" + k + ".tif");
-			k++;
-		}
+		final File file = new File(uniquePath(dir, file_name, extension));
 		try {
 			new Saver(extension).save(imp, file.getAbsolutePath());
 		} catch (OutOfMemoryError oome) {
@@ -2782,6 +2891,14 @@ while (it.hasNext()) {
 				bih = hh;
 			}
 
+			// Paint tiles in parallel, unless area averaging of the whole image is needed:
+			// at 2x scale and then scaled down if 'quality' with mipmaps
+			if ( paintsFlatTiles( quality, scale ) )
+			{
+				releaseToFit( (long)( ww * (long)hh * (ImagePlus.GRAY8 == type ? 1 : 4) ) );
+				return FlatTileRenderer.paint(layer, srcRect, scale, c_alphas, type, clazz, al_displ, quality && 1.0 != scaleP, background, active, Runtime.getRuntime().availableProcessors());
+			}
+
 			// estimate image size
 			final long n_bytes = (long)( ( biw * bih * (ImagePlus.GRAY8 == type ? 1.0 /*byte*/ : 4.0 /*int*/)));
 			Utils.log2("Flat image estimated size in bytes: " + Long.toString(n_bytes) + "  w,h : " + (int)Math.ceil( biw ) + "," + (int)Math.ceil( bih ) + (quality ? " (using 'quality' flag: scaling to " + scale + " is done later with area averaging)" : ""));
@@ -2966,6 +3083,15 @@ while (it.hasNext()) {
 	 */
 	public Bureaucrat makePrescaledTiles(final Layer[] layers, final Class<?> clazz, final Rectangle srcRect, double max_scale_,
 			final int c_alphas, final int type, String target_dir, final boolean from_original_images, final Saver saver, final int tileSide) {
+		return makePrescaledTiles(layers, clazz, srcRect, max_scale_, c_alphas, type, target_dir, from_original_images, saver, tileSide, false);
+	}
+
+	/** Like {@link #makePrescaledTiles(Layer[], Class, Rectangle, double, int, int, String, boolean, Saver, int)}, but if @param incremental
+	 *  is true, make only the tiles that changed since the last export into target_dir, and those that an interrupted export did not make,
+	 *  with coarser tiles made from the finer ones: see {@link IncrementalTileExporter}. The 'from_original_images' is then ignored. */
+	public Bureaucrat makePrescaledTiles(final Layer[] layers, final Class<?> clazz, final Rectangle srcRect, double max_scale_,
+			final int c_alphas, final int type, String target_dir, final boolean from_original_images, final Saver saver, final int tileSide,
+			final boolean incremental) {
 		if (null == layers || 0 == layers.length) return null;
 		switch (type) {
 		case ImagePlus.GRAY8:
@@ -3026,6 +3152,8 @@ while (it.hasNext()) {
 		}
 		
 
+		final IncrementalTileExporter exporter = incremental ? new IncrementalTileExporter(Loader.this, srcRect, c_alphas, type, clazz, saver, tileSide, this) : null;
+
 		// Figure out layer indices, given that layers are not necessarily evenly spaced
 		final TreeMap<Integer,Layer> indices = new TreeMap<Integer,Layer>();
 		final ArrayList<Integer> missingIndices = new ArrayList<Integer>();
@@ -3156,7 +3284,12 @@ while (it.hasNext()) {
 				makeTile(layer, srcRect, max_scale, c_alphas, type, clazz, tile_dir + "0_0_0", saver);
 			} else {
 				// create pyramid of tiles
-				if (from_original_images) {
+				if (incremental) {
+					if (-1 == exporter.export(layer, tile_dir, n_edge_tiles, best[1])) {
+						cleanUp();
+						return;
+					}
+				} else if (from_original_images) {
 					Utils.log("Exporting from web using original images");
 					// Create a giant 8-bit image of the whole layer from original images
 					double scale = 1;
@@ -3234,56 +3367,7 @@ while (it.hasNext()) {
 							Utils.wait(fus);
 							fus.clear();
 							// Scale snapshot in half with area averaging
-							final ImageProcessor nextSnapshot;
-							if (ImagePlus.GRAY8 == type) {
-								nextSnapshot = new ByteProcessor((int)(srcRect.width * scale), (int)(srcRect.height * scale));							
-								final byte[] p1 = (byte[]) snapshot.getPixels();
-								final byte[] p2 = (byte[]) nextSnapshot.getPixels();
-								final int width1 = snapshot.getWidth();
-								final int width2 = nextSnapshot.getWidth();
-								final int height2 = nextSnapshot.getHeight();
-								int i = 0;
-								for (int y1=0, y2=0; y2 < height2; y1 += 2, y2++) {
-									final int offset1a = y1 * width1;
-									final int offset1b = (y1 + 1) * width1;
-									for (int x1=0, x2=0; x2 < width2; x1 += 2, x2++) {
-										p2[i++] = (byte)( (   (p1[offset1a + x1] & 0xff) + (p1[offset1a + x1 + 1] & 0xff)
-															+ (p1[offset1b + x1] & 0xff) + (p1[offset1b + x1 + 1] & 0xff) ) /4 );
-									}
-								}
-							} else {
-								nextSnapshot = new ColorProcessor((int)(srcRect.width * scale), (int)(srcRect.height * scale));
-								final int[] p1 = (int[]) snapshot.getPixels();
-								final int[] p2 = (int[]) nextSnapshot.getPixels();
-								final int width1 = snapshot.getWidth();
-								final int width2 = nextSnapshot.getWidth();
-								final int height2 = nextSnapshot.getHeight();
-								int i = 0;
-								for (int y1=0, y2=0; y2 < height2; y1 += 2, y2++) {
-									final int offset1a = y1 * width1;
-									final int offset1b = (y1 + 1) * width1;
-									for (int x1=0, x2=0; x2 < width2; x1 += 2, x2++) {
-										final int ka = p1[offset1a + x1],
-												  kb = p1[offset1a + x1 + 1],
-												  kc = p1[offset1b + x1],
-												  kd = p1[offset1b + x1 + 1];
-										// Average each channel independently
-										p2[i++] =
-											    (((   ((ka >> 16) & 0xff)        // red
-											        + ((kb >> 16) & 0xff)
-											        + ((kc >> 16) & 0xff)
-											        + ((kd >> 16) & 0xff) ) / 4) << 16)
-											  + (((   ((ka >> 8) & 0xff)         // green
-												    + ((kb >> 8) & 0xff)
-												    + ((kc >> 8) & 0xff)
-												    + ((kd >> 8) & 0xff) ) / 4) << 8)
-												+ (   (ka & 0xff)                // blue
-												    + (kb & 0xff)
-												    + (kc & 0xff)
-												    + (kd & 0xff) ) / 4;
-									}
-								}
-							}
+							final ImageProcessor nextSnapshot = IncrementalTileExporter.downsampleByTwo(snapshot);
 							// Assign for next iteration
 							snapshot = nextSnapshot;
 							
@@ -3826,7 +3910,10 @@ while (it.hasNext()) {
 			
 			// TODO: test saving times if the BufferedOutputStream is given a much larger buffer size than the default 8192.
 			java.io.Writer writer;
-			if (fxml.getName().endsWith(".xml.gz")) {
+			if (BinaryProjectReader.isBinary(fxml.getName())) {
+				// Same XML text, encoded as it is written
+				writer = new BinaryProjectWriter(new BufferedOutputStream(fos));
+			} else if (fxml.getName().endsWith(".xml.gz")) {
 				writer = new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(fos)), "8859_1");
 			} else {
 				writer = new OutputStreamWriter(new BufferedOutputStream(fos), "8859_1");
@@ -3895,24 +3982,7 @@ while (it.hasNext()) {
 			}
 			
 			// Remove files that are no longer relevant
-			final ArrayList<String> stales;
-			synchronized (stale_files) {
-				stales = new ArrayList<String>(stale_files);
-				stale_files.clear();
-			}
-			for (String stale_path : stales) {
-				File f = new File(stale_path);
-				if (f.exists()) {
-					if (f.delete()) {
-						Utils.logAll("Deleted stale file at " + stale_path);
-					} else {
-						Utils.logAll("FAILED to delete stale file at " + stale_path);
-					}
-				} else {
-					Utils.logAll("Ignoring non-existent stale file " + stale_path);
-				}
-			}
-			
+			deleteStaleFiles();
 
 		} catch (Throwable t) {
 			IJError.print(t);
@@ -3921,6 +3991,35 @@ while (it.hasNext()) {
 		return path;
 	}
 
+	/** Delete the files marked with {@link #markStaleFileForDeletionUponSaving(String)}, once the project was saved without them. */
+	protected final void deleteStaleFiles() {
+		final ArrayList<String> stales;
+		synchronized (stale_files) {
+			stales = new ArrayList<String>(stale_files);
+			stale_files.clear();
+		}
+		for (String stale_path : stales) {
+			File f = new File(stale_path);
+			if (f.exists()) {
+				if (f.delete()) {
+					Utils.logAll("Deleted stale file at " + stale_path);
+				} else {
+					Utils.logAll("FAILED to delete stale file at " + stale_path);
+				}
+			} else {
+				Utils.logAll("Ignoring non-existent stale file " + stale_path);
+			}
+		}
+	}
+
+	/** The XML declaration and the DOCTYPE, with the DTD, that start the XML file of @param project. */
+	static public String createXMLProlog(final Project project) {
+		final StringBuilder sb_header = new StringBuilder(30000).append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<!DOCTYPE ").append(project.getDocType()).append(" [\n");
+		project.exportDTD(sb_header, new HashSet<String>(), "\t");
+		sb_header.append("] >\n\n");
+		return sb_header.toString();
+	}
+
 	/** Write the project as XML.
 	 * 
 	 * @param project
@@ -3928,11 +4027,7 @@ while (it.hasNext()) {
 	 * @param patches_dir Null if images are not being exported.
 	 * */
 	public void writeXMLTo(final Project project, final Writer writer, final XMLOptions options) throws Exception {
-			StringBuilder sb_header = new StringBuilder(30000).append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<!DOCTYPE ").append(project.getDocType()).append(" [\n");
-			project.exportDTD(sb_header, new HashSet<String>(), "\t");
-			sb_header.append("] >\n\n");
-			writer.write(sb_header.toString());
-			sb_header = null;
+			writer.write(createXMLProlog(project));
 			project.exportXML(writer, "", options);
 			writer.flush(); // make sure all buffered chars are written
 	}
@@ -3972,7 +4067,7 @@ while (it.hasNext()) {
 		if (null == fxml) return null; // User canceled dialog
 		// ... which means we must do some checking here:
 		final String name = fxml.getName();
-		if ( !(name.endsWith(".xml") || name.endsWith(".xml.gz"))) {
+		if ( !(name.endsWith(".xml") || name.endsWith(".xml.gz") || BinaryProjectReader.isBinary(name))) {
 			// Default to compressed XML
 			fxml = new File(Utils.fixDir(fxml.getParent()) + name + ".xml.gz");
 		}
@@ -4065,12 +4160,22 @@ while (it.hasNext()) {
 		//Utils.printCaller(this, 7);
 	}
 
+	/** The data of @param d changed, or, when null, that of any number of objects.
+	 *  Meant to be overriden by loaders that save only what changed. */
+	public void recordChange(final Displayable d) {
+		setChanged(true);
+	}
+
 	/** Returns null unless overriden. This is intended for FSLoader projects. */
 	public String getPath(final Patch patch) { return null; }
 
 	/** Returns null unless overriden. This is intended for FSLoader projects. */
 	public String getAbsolutePath(final Patch patch) { return null; }
 
+	/** Whether the current thread is generating the mipmaps of @param patch, which then reflect
+	 *  any change to its properties made meanwhile by this thread. Returns false unless overriden. */
+	public boolean isGeneratingMipMaps(final Patch patch) { return false; }
+
 	/** Returns null unless overriden. This is intended for FSLoader projects. */
 	public String getImageFilePath(final Patch p) { return null; }
 
@@ -4232,7 +4337,10 @@ while (it.hasNext()) {
 			long mb = lo.mawts.getMaxBytes();
 			sb.append(++i).append(": cache size: " ).append(b).append(" / ").append(mb)
 			.append(" (").append((100 * b) / (float)mb).append("%)")
-			.append(" (ids: ").append(lo.mawts.size()).append(')');
+			.append(" (ids: ").append(lo.mawts.size()).append(')')
+			.append('\n').append(lo.mawts.getStats()).append('\n');
+			final OffHeapCache l2 = lo.mawts.getSecondTier();
+			if (null != l2) sb.append(l2.getStats()).append('\n');
 		}
 		Utils.log2(sb.toString());
 	}
@@ -4321,13 +4429,27 @@ while (it.hasNext()) {
 		}
 	}
 
+	/** Whether loaders may regenerate mipmaps at all in this JVM; see {@link #setMipMapsRegenerationAllowed(boolean)}. */
+	static private volatile boolean mipmaps_regen_allowed = true;
+
+	/** When false, projects opened from then on have mipmaps regeneration disabled
+	 * from the start, whatever their XML file says; for JVMs that only read the
+	 * mipmaps of projects owned by another JVM. */
+	static public void setMipMapsRegenerationAllowed(final boolean b) {
+		mipmaps_regen_allowed = b;
+	}
+
+	static public boolean isMipMapsRegenerationAllowed() {
+		return mipmaps_regen_allowed;
+	}
+
 	/** If mipmaps regeneration is enabled or not. */
-	protected boolean mipmaps_regen = true;
+	protected boolean mipmaps_regen = mipmaps_regen_allowed;
 
 	// used to prevent generating them when, for example, importing a montage
 	public void setMipMapsRegeneration(boolean b) {
 		Project.findProject(this).setProperty("mipmaps_regen", Boolean.toString(b));
-		mipmaps_regen = b;
+		mipmaps_regen = b && mipmaps_regen_allowed;
 	}
 
 	/** Whether mipmaps should be generated. This depends on both the internal flag
@@ -4415,7 +4537,7 @@ while (it.hasNext()) {
 		//}
 	}
 	
-	/** Must be called within the context of the db_lock. */
+	/** Empties the cache, which is thread-safe; need not be called within the context of the db_lock. */
 	final protected void handleCacheError(final Throwable t) {
 		Utils.log("ERROR with image cache!");
 		IJError.print(t);
@@ -4683,6 +4805,11 @@ while (it.hasNext()) {
 		if (null != preloader) { preloader.shutdownNow(); preloader = null; }
 	}
 
+	/** Whether preloading is disabled because there is little memory for the number of CPU cores. */
+	static public final boolean isLowMemory() {
+		return low_memory_conditions;
+	}
+
 	/** Disabled when on low memory condition, or when num_preloader_threads is smaller than 1. */
 	static public void preload(final Collection<Patch> patches, final double mag, final boolean repaint) {
 		if (low_memory_conditions || num_preloader_threads < 1) return;
@@ -5089,6 +5216,9 @@ while (it.hasNext()) {
 	/** Does nothing unless overriden. */
 	public boolean deleteStaleFiles(boolean coordinate_transforms, boolean alpha_masks) { return false; }
 
+	/** Does nothing unless overriden. */
+	public Bureaucrat packCoordinateTransforms() { return null; }
+
 	/** Returns null unless overriden. */
 	public String getCoordinateTransformsFolder() {
 		return null;
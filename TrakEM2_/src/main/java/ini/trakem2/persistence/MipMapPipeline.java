@@ -0,0 +1,271 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A staged pipeline for the generation of mipmaps, so that the reading of images from disk,
+ * the downsampling and the encoding and writing of the mipmap files of different patches overlap
+ * in time, rather than one thread doing all steps of one patch in sequence.
+ *
+ * Each {@link Job} goes through three stages, each run by its own set of threads:
+ *
+ * 1. decode: read, filter and coordinate-transform the image ({@link Job#decode()});
+ * 2. downsample: create all levels of the pyramid ({@link Job#downsample()});
+ * 3. save: encode and write each level ({@link Job#save()}).
+ *
+ * The encoding and the writing are a single stage because the image writers for most mipmap formats
+ * encode straight into the file.
+ *
+ * The stages are connected by bounded queues: when a later stage falls behind, the threads of
+ * the earlier stage block, instead of piling up decoded images in memory.
+ * In addition, jobs are only admitted into the decode stage when their estimated memory
+ * fits within a byte budget, so that many large images are not processed at once.
+ *
+ * The progress and throughput are shown in the status bar as each job completes.
+ */
+final class MipMapPipeline {
+
+	static final int DECODE = 0,
+	                 DOWNSAMPLE = 1,
+	                 SAVE = 2;
+	static final String[] STAGES = new String[]{"decode", "downsample", "save"};
+
+	/** A mipmap pyramid to generate. Its {@link Future} returns true when all stages succeeded. */
+	static abstract class Job extends FutureTask<Boolean> {
+		static private final Callable<Boolean> NOOP = new Callable<Boolean>() {
+			@Override
+			public Boolean call() { return false; }
+		};
+		/** The estimated memory that the job will take while in the pipeline. */
+		final long bytes;
+		/** Whether the job counts against the memory budget; guarded by the budget lock. */
+		private boolean admitted = false;
+
+		Job(final long bytes) {
+			super(NOOP);
+			this.bytes = bytes;
+		}
+		/** Read, filter and transform the image. Returns false if the job must not continue. */
+		abstract boolean decode() throws Exception;
+		/** Create the levels of the pyramid. Returns false if the job must not continue. */
+		abstract boolean downsample() throws Exception;
+		/** Encode and write the levels of the pyramid. */
+		abstract boolean save() throws Exception;
+		/** Always called last, from whichever stage the job ended at, before the {@link Future} is set. */
+		abstract void finish(boolean success);
+
+		final void complete(final boolean success) {
+			set(success);
+		}
+	}
+
+	private final BlockingQueue<Job> submitted = new LinkedBlockingQueue<Job>();
+	private final ArrayList<BlockingQueue<Job>> queues = new ArrayList<BlockingQueue<Job>>();
+	private final ArrayList<ExecutorService> stages = new ArrayList<ExecutorService>();
+
+	/** Memory budget. */
+	private final long max_bytes;
+	private long bytes_in_flight = 0;
+	private final Object budget_lock = new Object();
+
+	/** Progress and throughput. */
+	private final AtomicInteger n_pending = new AtomicInteger(0),
+	                            n_done = new AtomicInteger(0),
+	                            n_failed = new AtomicInteger(0);
+	private final AtomicLong[] stage_nanos = new AtomicLong[]{new AtomicLong(0), new AtomicLong(0), new AtomicLong(0)};
+	private final AtomicInteger[] stage_active = new AtomicInteger[]{new AtomicInteger(0), new AtomicInteger(0), new AtomicInteger(0)};
+	/** Start of the current busy period, to compute throughput. */
+	private volatile long busy_since = 0;
+
+	/** @param n_threads The number of threads for each of the stages {@link #DECODE}, {@link #DOWNSAMPLE} and {@link #SAVE}.
+	 *  @param max_bytes The memory budget for all jobs in the pipeline. */
+	MipMapPipeline(final int[] n_threads, final long max_bytes) {
+		this.max_bytes = max_bytes;
+		queues.add(submitted);
+		// Each queue holds at most as many jobs as threads consume from it
+		queues.add(new ArrayBlockingQueue<Job>(Math.max(1, n_threads[DOWNSAMPLE])));
+		queues.add(new ArrayBlockingQueue<Job>(Math.max(1, n_threads[SAVE])));
+		for (int stage=0; stage<STAGES.length; ++stage) {
+			final int n = Math.max(1, n_threads[stage]);
+			final ExecutorService exec = Utils.newFixedThreadPool(n, "mipmap-" + STAGES[stage]);
+			for (int i=0; i<n; ++i) exec.submit(new Stage(stage));
+			stages.add(exec);
+		}
+		Utils.log2("Mipmap pipeline: " + Math.max(1, n_threads[DECODE]) + " decode, " + Math.max(1, n_threads[DOWNSAMPLE]) + " downsample, "
+				+ Math.max(1, n_threads[SAVE]) + " save threads; memory budget " + max_bytes + " bytes");
+	}
+
+	/** Queue the job and return it. */
+	final Future<Boolean> submit(final Job job) {
+		synchronized (budget_lock) {
+			if (0 == n_pending.getAndIncrement()) {
+				busy_since = System.currentTimeMillis();
+			}
+		}
+		submitted.add(job);
+		return job;
+	}
+
+	/** The number of jobs queued or in progress. */
+	final int getPending() {
+		return n_pending.get();
+	}
+
+	final boolean isShutdown() {
+		return stages.get(0).isShutdown();
+	}
+
+	/** Interrupt all threads; jobs in the queues are cancelled. */
+	final void shutdownNow() {
+		for (final ExecutorService exec : stages) exec.shutdownNow();
+		for (final BlockingQueue<Job> queue : queues) {
+			final ArrayList<Job> jobs = new ArrayList<Job>();
+			queue.drainTo(jobs);
+			for (final Job job : jobs) {
+				job.cancel(false);
+				finish(job, false);
+			}
+		}
+	}
+
+	/** Wait for the jobs in progress to complete and then stop the threads. */
+	final void shutdown() {
+		final MipMapPipeline self = this;
+		// Poll until all submitted jobs have gone through all stages
+		new Thread() {
+			{ setDaemon(true); setName("mipmap-pipeline-shutdown"); }
+			@Override
+			public void run() {
+				try {
+					while (n_pending.get() > 0) Thread.sleep(100);
+				} catch (InterruptedException ie) {}
+				self.shutdownNow();
+			}
+		}.start();
+	}
+
+	private final String getStatus() {
+		final StringBuilder sb = new StringBuilder("mipmaps: ").append(n_pending.get()).append(" to go");
+		for (int stage=0; stage<STAGES.length; ++stage) {
+			sb.append(", ").append(stage_active[stage].get()).append(' ').append(STAGES[stage]).append(" (")
+			  .append(queues.get(stage).size()).append(" queued)");
+		}
+		final int done = n_done.get();
+		final long elapsed = System.currentTimeMillis() - busy_since;
+		if (done > 0 && elapsed > 0) {
+			sb.append(", ").append(Utils.cutNumber(done * 1000.0 / elapsed, 2)).append(" patches/s");
+		}
+		return sb.toString();
+	}
+
+	private final void acquire(final Job job) throws InterruptedException {
+		synchronized (budget_lock) {
+			// A job larger than the budget runs alone
+			while (bytes_in_flight > 0 && bytes_in_flight + job.bytes > max_bytes) {
+				budget_lock.wait();
+			}
+			bytes_in_flight += job.bytes;
+			job.admitted = true;
+		}
+	}
+
+	private final void release(final Job job) {
+		synchronized (budget_lock) {
+			if (!job.admitted) return;
+			job.admitted = false;
+			bytes_in_flight -= job.bytes;
+			budget_lock.notifyAll();
+		}
+	}
+
+	/** Let the job clean up, release its memory and complete it. */
+	private final void finish(final Job job, final boolean success) {
+		try {
+			job.finish(success);
+		} catch (Throwable t) {
+			IJError.print(t);
+		}
+		release(job);
+		(success ? n_done : n_failed).incrementAndGet();
+		final int pending = n_pending.decrementAndGet();
+		if (0 == pending) {
+			// Report on the completed busy period
+			final long elapsed = System.currentTimeMillis() - busy_since;
+			final int done = n_done.getAndSet(0),
+			          failed = n_failed.getAndSet(0);
+			final StringBuilder sb = new StringBuilder("Mipmap pipeline: ").append(done).append(" done, ").append(failed)
+				.append(" failed in ").append(elapsed).append(" ms");
+			for (int stage=0; stage<STAGES.length; ++stage) {
+				sb.append("; ").append(STAGES[stage]).append(' ').append(stage_nanos[stage].getAndSet(0) / 1000000).append(" ms");
+			}
+			Utils.log2(sb.toString());
+			Utils.showStatus("", false);
+		} else {
+			Utils.showStatus(getStatus(), false);
+		}
+		job.complete(success);
+	}
+
+	private final class Stage implements Runnable {
+		private final int stage;
+		Stage(final int stage) {
+			this.stage = stage;
+		}
+		@Override
+		public void run() {
+			final BlockingQueue<Job> in = queues.get(stage),
+			                         out = stage + 1 < queues.size() ? queues.get(stage + 1) : null;
+			while (!Thread.currentThread().isInterrupted()) {
+				Job job = null;
+				try {
+					job = in.take();
+					if (job.isCancelled()) {
+						finish(job, false);
+						continue;
+					}
+					if (DECODE == stage) acquire(job);
+				} catch (InterruptedException ie) {
+					if (null != job) finish(job, false);
+					return;
+				}
+				boolean success = false;
+				stage_active[stage].incrementAndGet();
+				final long t0 = System.nanoTime();
+				try {
+					switch (stage) {
+						case DECODE: success = job.decode(); break;
+						case DOWNSAMPLE: success = job.downsample(); break;
+						case SAVE: success = job.save(); break;
+					}
+				} catch (Throwable t) {
+					IJError.print(t);
+				} finally {
+					stage_nanos[stage].addAndGet(System.nanoTime() - t0);
+					stage_active[stage].decrementAndGet();
+				}
+				if (!success || null == out) {
+					finish(job, success);
+					continue;
+				}
+				try {
+					// Blocks when the next stage is behind
+					out.put(job);
+				} catch (InterruptedException ie) {
+					finish(job, false);
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.display.MipMapImage;
+import ini.trakem2.io.ImageSaver;
+import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.TypedHashMap;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/** A second-tier cache for mipmaps evicted from the {@link ConcurrentCache}, stored outside
+ *  of the java heap in a memory-mapped slab file, so that promoting them back to the heap
+ *  costs a memory copy, without file I/O or decoding, and without adding to the GC pressure.
+ *
+ *  The slab is divided into segments of equal size which are filled in turn, like a ring:
+ *  when the segment to write into is full, all mipmaps in the next segment are forgotten
+ *  and writing continues there. Hence the least recently stored mipmaps are the first to go,
+ *  and the slab never grows beyond its byte budget.
+ *
+ *  Stores the pixel arrays of the images as they are, without the conversion to
+ *  {@link ImageBytes} channels and back: 8-bit grey images (with {@link Loader#GRAY_LUT})
+ *  as one byte per pixel, and RGB and ARGB images as one int per pixel.
+ *  Other kinds of images are not stored.
+ *
+ *  The slab file is deleted right after mapping it, so nothing remains on disk after
+ *  the JVM exits, even if it crashes. Where it can't be deleted while mapped, it is deleted
+ *  by {@link #close()} or else on exit.
+ *
+ *  All methods are synchronized.
+ */
+public final class OffHeapCache {
+
+	/** The types of stored images. */
+	static private final byte GREY = 1,
+	                          RGB = 2,
+	                          ARGB = 3,
+	                          ARGB_PRE = 4;
+
+	/** Segments of the slab are at most 256 Mb. */
+	static private final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+	static private final class Entry {
+		final long key;
+		final int segment, offset, length;
+		final byte type;
+		final int width, height;
+		Entry(final long key, final int segment, final int offset, final int length, final byte type, final int width, final int height) {
+			this.key = key;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.type = type;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	/** Null elements once closed. */
+	private final MappedByteBuffer[] segments;
+	private final File file;
+	private boolean closed = false;
+	/** The keys of the entries stored in each segment. */
+	private final ArrayList<Set<Long>> segment_keys;
+	private final int segment_size;
+	private final TypedHashMap<Long,Entry> entries = new TypedHashMap<Long,Entry>();
+	/** The segment currently being written into, and the position in it. */
+	private int current = 0, position = 0;
+	private long bytes = 0;
+
+	private long hits = 0, misses = 0, stored = 0, dropped = 0;
+
+	/** @param max_bytes The size of the slab.
+	 *  @param dir The folder in which to create the slab file, or null for the system's temporary folder. */
+	public OffHeapCache(final long max_bytes, final File dir) throws IOException {
+		final int n = (int) Math.max(1, (max_bytes + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+		this.segment_size = (int) Math.min(MAX_SEGMENT_SIZE, Math.max(1024 * 1024, max_bytes / n));
+		this.segments = new MappedByteBuffer[n];
+		this.segment_keys = new ArrayList<Set<Long>>(n);
+		final File f = File.createTempFile("trakem2.mipmaps.", ".slab", dir);
+		this.file = f;
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(f, "rw");
+			ra.setLength((long)n * segment_size);
+			final FileChannel fc = ra.getChannel();
+			for (int i=0; i<n; i++) {
+				segments[i] = fc.map(FileChannel.MapMode.READ_WRITE, (long)i * segment_size, segment_size);
+				segments[i].order(ByteOrder.nativeOrder());
+				segment_keys.add(new HashSet<Long>());
+			}
+		} finally {
+			// The mappings remain valid after closing the channel
+			if (null != ra) try { ra.close(); } catch (Exception e) { IJError.print(e); }
+			if (!f.delete()) f.deleteOnExit();
+		}
+		Utils.log2("Off-heap mipmap cache of " + ((long)n * segment_size) + " bytes in " + n + " segments");
+	}
+
+	static private final long key(final long id, final int level) {
+		// Patch ids are positive and well below 2^56; levels are below 256
+		return (id << 8) | (level & 0xff);
+	}
+
+	/** Maximum space for this cache. */
+	public long getMaxBytes() { return (long)segments.length * segment_size; }
+
+	/** Space taken by the stored images. */
+	synchronized public long getBytes() { return bytes; }
+
+	synchronized public final int size() { return entries.size(); }
+
+	synchronized public final boolean contains(final long id, final int level) {
+		return entries.hasKey(key(id, level));
+	}
+
+	/** Copies the pixels of @param img into the slab, if it is of a supported kind; does not flush @param img.
+	 *  Returns false if the image could not be stored. */
+	synchronized public final boolean put(final long id, final int level, final Image img) {
+		if (closed || !(img instanceof BufferedImage)) return false;
+		final BufferedImage bi = (BufferedImage) img;
+		final int width = bi.getWidth(),
+		          height = bi.getHeight();
+		final DataBuffer db = bi.getRaster().getDataBuffer();
+		if (1 != db.getNumBanks() || 0 != db.getOffset() || db.getSize() != width * height) return false;
+		final ColorModel cm = bi.getColorModel();
+		final byte type;
+		final int length;
+		if (db instanceof DataBufferByte && cm == Loader.GRAY_LUT) {
+			type = GREY;
+			length = width * height;
+		} else if (db instanceof DataBufferInt) {
+			type = !cm.hasAlpha() ? RGB : (cm.isAlphaPremultiplied() ? ARGB_PRE : ARGB);
+			length = width * height * 4;
+		} else {
+			return false;
+		}
+		if (length > segment_size) return false;
+
+		final long key = key(id, level);
+		remove(key);
+		if (position + length > segment_size) {
+			// Move on to the next segment, forgetting all that it contains
+			current = (current + 1) % segments.length;
+			position = 0;
+			clearSegment(current);
+		}
+		final ByteBuffer b = segments[current].duplicate();
+		b.order(ByteOrder.nativeOrder());
+		b.position(position);
+		if (GREY == type) {
+			b.put(((DataBufferByte)db).getData(), 0, length);
+		} else {
+			b.asIntBuffer().put(((DataBufferInt)db).getData(), 0, width * height);
+		}
+		entries.put(key, new Entry(key, current, position, length, type, width, height));
+		segment_keys.get(current).add(key);
+		position += length;
+		bytes += length;
+		stored++;
+		return true;
+	}
+
+	private final void clearSegment(final int segment) {
+		final Set<Long> keys = segment_keys.get(segment);
+		for (final Long key : keys) {
+			final Entry e = entries.removeEntry(key);
+			if (null != e) {
+				bytes -= e.length;
+				dropped++;
+			}
+		}
+		keys.clear();
+	}
+
+	private final Entry remove(final long key) {
+		final Entry e = entries.removeEntry(key);
+		if (null == e) return null;
+		segment_keys.get(e.segment).remove(key);
+		bytes -= e.length;
+		return e;
+	}
+
+	/** Creates a new image from the stored pixels, and forgets them: the image is meant to go back into the on-heap cache.
+	 *  Returns null if not found. */
+	synchronized public final Image remove(final long id, final int level) {
+		final Entry e = remove(key(id, level));
+		if (null == e) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return createImage(e);
+	}
+
+	/** Forget the stored pixels, if any, for example because the image is no longer valid. */
+	synchronized public final void forget(final long id, final int level) {
+		remove(key(id, level));
+	}
+
+	/** Like {@link ConcurrentCache#getClosestAbove(long, int)}: looks for the requested level or the closest larger one,
+	 *  and removes it from this cache. */
+	synchronized public final MipMapImage removeClosestAbove(final long id, final int level) {
+		for (int i=level; i>-1; i--) {
+			final Entry e = remove(key(id, i));
+			if (null == e) continue;
+			hits++;
+			final double scale = Math.pow( 2.0, i );
+			return new MipMapImage( createImage(e), scale, scale );
+		}
+		misses++;
+		return null;
+	}
+
+	private final Image createImage(final Entry e) {
+		final ByteBuffer b = segments[e.segment].duplicate();
+		b.order(ByteOrder.nativeOrder());
+		b.position(e.offset);
+		final int n = e.width * e.height;
+		if (GREY == e.type) {
+			final byte[] pix = CachingThread.getOrCreateByteArray(n);
+			b.get(pix, 0, n);
+			return ImageSaver.createGrayImage(pix, e.width, e.height);
+		}
+		final int[] pix = CachingThread.getOrCreateIntArray(n);
+		b.asIntBuffer().get(pix, 0, n);
+		switch (e.type) {
+			case RGB: return ImageSaver.createRGBImage(pix, e.width, e.height);
+			case ARGB: return ImageSaver.createARGBImage(pix, e.width, e.height);
+			default: return ImageSaver.createARGBImagePre(pix, e.width, e.height);
+		}
+	}
+
+	/** Forget all levels of the given id, for example because its mipmaps have been regenerated.
+	 *  There are at most 256 levels, so this is O(1). */
+	synchronized public final void removePyramid(final long id) {
+		if (entries.isEmpty()) return;
+		for (int level=0; level<256; level++) remove(key(id, level));
+	}
+
+	synchronized public final void removeAll() {
+		entries.clear();
+		for (final Set<Long> keys : segment_keys) keys.clear();
+		current = 0;
+		position = 0;
+		bytes = 0;
+	}
+
+	/** Forget all images and drop the mapped segments, so that their memory is released once
+	 *  the garbage collector reclaims them, and delete the slab file if it still exists.
+	 *  This cache stores nothing after closing. */
+	synchronized public final void close() {
+		if (closed) return;
+		removeAll();
+		closed = true;
+		for (int i=0; i<segments.length; i++) segments[i] = null;
+		if (file.exists() && !file.delete()) Utils.log2("Could not delete the off-heap cache file " + file);
+	}
+
+	synchronized public final String getStats() {
+		return new StringBuilder("off-heap cache: hits ").append(hits)
+			.append(", misses ").append(misses)
+			.append(", stored ").append(stored)
+			.append(", dropped ").append(dropped)
+			.append(", images ").append(entries.size())
+			.append(", bytes ").append(bytes).append(" / ").append(getMaxBytes())
+			.toString();
+	}
+}
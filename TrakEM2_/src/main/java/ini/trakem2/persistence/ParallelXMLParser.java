@@ -0,0 +1,404 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** Parses an XML file in chunks, each by its own SAX parser and in parallel, and delivers to a single
+ * {@link DefaultHandler}, in one thread, the same events in the same order as parsing the whole file would.
+ *
+ * The file is split, as it is read, at the ends of elements: at the end of a layer set, layer or ZDisplayable
+ * (see {@link BinaryProjectWriter#CHUNK_ENDS}) once the chunk holds {@link #MIN_CHUNK} bytes, or at the end
+ * of any element once it holds {@link #MAX_CHUNK}. Finding these ends only needs to tell apart tags, quoted
+ * attribute values, comments, CDATA sections and the DOCTYPE, which is much less work than parsing.
+ *
+ * Each chunk is parsed after the prolog of the file, so that attributes are read with the same DTD,
+ * and between bare start tags for the elements still open where the chunk starts and end tags for those
+ * still open where it ends; the events of these added tags are dropped. The last chunk gets no added
+ * end tags, so that an incomplete file fails like it would when parsed whole.
+ *
+ * At most a few chunks are parsed ahead of the handler, so that memory stays bounded.
+ */
+final class ParallelXMLParser
+{
+	static private final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	static private final int MIN_CHUNK = 1024 * 1024,
+	                         MAX_CHUNK = 8 * 1024 * 1024;
+
+	/** States of the scanner. */
+	static private final int TEXT = 0,
+	                         LT = 1, // after '<'
+	                         START_NAME = 2,
+	                         IN_TAG = 3,
+	                         QUOTE = 4,
+	                         END_TAG = 5,
+	                         BANG = 6, // after "<!"
+	                         COMMENT = 7,
+	                         CDATA = 8,
+	                         PI = 9,
+	                         DECL = 10,
+	                         DECL_QUOTE = 11,
+	                         SUBSET = 12,
+	                         SUBSET_QUOTE = 13;
+
+	/** A SAX event, for replaying. */
+	static private final class Event {
+		static final byte START = 0, END = 1, TEXT = 2, SPACE = 3;
+		final byte type;
+		final String name;
+		final Attributes attributes;
+		final char[] text;
+		Event(final byte type, final String name, final Attributes attributes, final char[] text) {
+			this.type = type;
+			this.name = name;
+			this.attributes = attributes;
+			this.text = text;
+		}
+	}
+
+	/** Records the events of a chunk, without those of the tags added around it. */
+	static private final class Recorder extends DefaultHandler {
+		final ArrayList<Event> events = new ArrayList<Event>();
+		private int skip;
+		Recorder(final int n_added_starts) {
+			this.skip = n_added_starts;
+		}
+		@Override
+		public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) {
+			if (skip > 0) {
+				--skip;
+				return;
+			}
+			events.add(new Event(Event.START, qualified_name, new AttributesImpl(attributes), null));
+		}
+		@Override
+		public void endElement(final String uri, final String local_name, final String qualified_name) {
+			events.add(new Event(Event.END, qualified_name, null, null));
+		}
+		@Override
+		public void characters(final char[] c, final int start, final int length) {
+			events.add(new Event(Event.TEXT, null, null, Arrays.copyOfRange(c, start, start + length)));
+		}
+		@Override
+		public void ignorableWhitespace(final char[] c, final int start, final int length) {
+			events.add(new Event(Event.SPACE, null, null, Arrays.copyOfRange(c, start, start + length)));
+		}
+		@Override
+		public void fatalError(final SAXParseException e) throws SAXException {
+			throw e;
+		}
+	}
+
+	/** Parse the XML read from @param in into the @param handler, with @param n_threads parsing chunks of it;
+	 *  @param path is only used for error messages. */
+	static final void parse(final InputStream in, final String path, final DefaultHandler handler, final int n_threads) throws IOException, SAXException {
+		final ExecutorService exec = Utils.newFixedThreadPool(Math.max(1, n_threads), "XML-parse");
+		try {
+			new ParallelXMLParser(in, path, handler, exec, 2 * Math.max(1, n_threads)).run();
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private final InputStream in;
+	private final String path;
+	private final DefaultHandler handler;
+	private final ExecutorService exec;
+	/** The maximum number of chunks parsed ahead of the handler. */
+	private final int window;
+	private final SAXParserFactory factory = SAXParserFactory.newInstance();
+	private final ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>();
+
+	/** The bytes of the chunk being read, of which the first len are valid. */
+	private byte[] buf = new byte[MIN_CHUNK + 64 * 1024];
+	private int len = 0;
+	private int state = TEXT;
+	/** Start of the name of the start tag being scanned, and of the "<!" being scanned, in buf. */
+	private int name_start = 0,
+	            bang_start = 0;
+	private String name = null;
+	private byte quote = 0;
+	/** Whether the last byte scanned in a start tag was a '/', for an empty element. */
+	private boolean slash = false;
+	/** Consecutive '-' in a comment, ']' in a CDATA section, or whether the last byte in a processing instruction was '?'. */
+	private int count = 0;
+	/** The names of the open elements. */
+	private final ArrayList<String> open = new ArrayList<String>();
+	/** Everything before the root element, or null until the root element is found. */
+	private byte[] prolog = null;
+	private int prolog_lines = 0;
+	/** The open elements where the current chunk starts. */
+	private String[] start_stack = new String[0];
+	/** Lines before the current chunk. */
+	private int lines = 0,
+	            start_line = 0;
+	private int n_chunks = 0;
+	private final LinkedList<Future<ArrayList<Event>>> pending = new LinkedList<Future<ArrayList<Event>>>();
+
+	private ParallelXMLParser(final InputStream in, final String path, final DefaultHandler handler, final ExecutorService exec, final int window) {
+		this.in = in;
+		this.path = path;
+		this.handler = handler;
+		this.exec = exec;
+		this.window = window;
+		factory.setValidating(false);
+		factory.setXIncludeAware(false);
+	}
+
+	private final void run() throws IOException, SAXException {
+		handler.startDocument();
+		try {
+			int pos = 0;
+			while (true) {
+				if (buf.length - len < 64 * 1024) buf = Arrays.copyOf(buf, buf.length * 2);
+				final int r = in.read(buf, len, buf.length - len);
+				if (r < 0) break;
+				len += r;
+				for (; pos < len; ++pos) {
+					if (scan(buf[pos], pos)) {
+						pos = cut(pos + 1, false) -1;
+					}
+				}
+			}
+			if (len > 0 || pending.isEmpty()) cut(len, true);
+			while (!pending.isEmpty()) replay(pending.removeFirst());
+		} finally {
+			for (final Future<?> fu : pending) fu.cancel(true);
+		}
+		handler.endDocument();
+	}
+
+	static private final boolean isSpace(final byte b) {
+		return ' ' == b || '\n' == b || '\r' == b || '\t' == b;
+	}
+
+	/** Scan the byte @param b at @param i in buf; returns true if the chunk may be cut right after it. */
+	private final boolean scan(final byte b, final int i) {
+		if ('\n' == b) ++lines;
+		switch (state) {
+			case TEXT:
+				if ('<' == b) state = LT;
+				return false;
+			case LT:
+				if ('/' == b) {
+					state = END_TAG;
+				} else if ('!' == b) {
+					state = BANG;
+					bang_start = i;
+				} else if ('?' == b) {
+					state = PI;
+					count = 0;
+				} else {
+					if (null == prolog) {
+						prolog = Arrays.copyOf(buf, i -1);
+						prolog_lines = lines;
+					}
+					state = START_NAME;
+					name_start = i;
+				}
+				return false;
+			case START_NAME:
+				if (!(isSpace(b) || '/' == b || '>' == b)) return false;
+				name = new String(buf, name_start, i - name_start, LATIN1);
+				state = IN_TAG;
+				slash = false;
+				// fall through: b is part of the tag
+			case IN_TAG:
+				if ('"' == b || '\'' == b) {
+					quote = b;
+					state = QUOTE;
+				} else if ('>' == b) {
+					state = TEXT;
+					if (slash) return ended(name, i);
+					open.add(name);
+				} else {
+					slash = '/' == b;
+				}
+				return false;
+			case QUOTE:
+				if (quote == b) {
+					state = IN_TAG;
+					slash = false;
+				}
+				return false;
+			case END_TAG:
+				if ('>' != b) return false;
+				state = TEXT;
+				// A wrong end tag fails when parsing the chunk
+				return open.isEmpty() ? false : ended(open.remove(open.size() -1), i);
+			case BANG:
+				final int k = i - bang_start;
+				if ('-' == buf[bang_start + 1]) {
+					if (2 == k) {
+						state = COMMENT;
+						count = 0;
+					}
+				} else if ('[' == buf[bang_start + 1]) {
+					if (7 == k) { // "<![CDATA["
+						state = CDATA;
+						count = 0;
+					}
+				} else {
+					state = DECL;
+				}
+				return false;
+			case COMMENT:
+				if ('-' == b) ++count;
+				else {
+					if ('>' == b && count >= 2) state = TEXT;
+					count = 0;
+				}
+				return false;
+			case CDATA:
+				if (']' == b) ++count;
+				else {
+					if ('>' == b && count >= 2) state = TEXT;
+					count = 0;
+				}
+				return false;
+			case PI:
+				if ('>' == b && 1 == count) state = TEXT;
+				count = '?' == b ? 1 : 0;
+				return false;
+			case DECL:
+				if ('"' == b || '\'' == b) {
+					quote = b;
+					state = DECL_QUOTE;
+				} else if ('[' == b) {
+					state = SUBSET;
+				} else if ('>' == b) {
+					state = TEXT;
+				}
+				return false;
+			case DECL_QUOTE:
+				if (quote == b) state = DECL;
+				return false;
+			case SUBSET:
+				if ('"' == b || '\'' == b) {
+					quote = b;
+					state = SUBSET_QUOTE;
+				} else if (']' == b) {
+					state = DECL;
+				}
+				return false;
+			case SUBSET_QUOTE:
+				if (quote == b) state = SUBSET;
+				return false;
+		}
+		return false;
+	}
+
+	/** Called at the end of an element; returns true if the chunk should be cut after @param i. */
+	private final boolean ended(final String name, final int i) {
+		if (null == prolog || open.isEmpty()) return false;
+		final int size = i + 1;
+		return size >= MAX_CHUNK || (size >= MIN_CHUNK && BinaryProjectWriter.CHUNK_ENDS.contains(name));
+	}
+
+	/** Submit the first @param end bytes of buf as a chunk, and keep the rest for the next one;
+	 *  returns the position in the new buf that corresponds to @param end. Then replays parsed chunks
+	 *  until no more than {@link #window} are pending. */
+	private final int cut(final int end, final boolean last) throws IOException, SAXException {
+		final byte[] data = buf;
+		final String[] starts = start_stack,
+		               ends = last ? new String[0] : open.toArray(new String[open.size()]);
+		final boolean first = 0 == n_chunks++;
+		final int line = start_line;
+		pending.add(exec.submit(new Callable<ArrayList<Event>>() {
+			@Override
+			public ArrayList<Event> call() throws Exception {
+				return parseChunk(data, end, first, starts, ends, line);
+			}
+		}));
+		buf = new byte[Math.max(MIN_CHUNK + 64 * 1024, len - end + 64 * 1024)];
+		System.arraycopy(data, end, buf, 0, len - end);
+		len -= end;
+		start_stack = ends;
+		start_line = lines;
+		while (pending.size() >= window) replay(pending.removeFirst());
+		return 0;
+	}
+
+	/** Parse @param n bytes of @param data, with the prolog, unless @param first, and the added tags. */
+	private final ArrayList<Event> parseChunk(final byte[] data, final int n, final boolean first, final String[] starts, final String[] ends, final int line) throws Exception {
+		final StringBuilder prefix = new StringBuilder(),
+		                    suffix = new StringBuilder();
+		for (final String s : starts) prefix.append('<').append(s).append('>');
+		for (int i=ends.length -1; i>-1; i--) suffix.append("</").append(ends[i]).append('>');
+		final ArrayList<InputStream> streams = new ArrayList<InputStream>();
+		if (!first) streams.add(new ByteArrayInputStream(prolog));
+		streams.add(new ByteArrayInputStream(prefix.toString().getBytes(LATIN1)));
+		streams.add(new ByteArrayInputStream(data, 0, n));
+		streams.add(new ByteArrayInputStream(suffix.toString().getBytes(LATIN1)));
+		SAXParser parser = parsers.get();
+		if (null == parser) {
+			parser = factory.newSAXParser();
+			parsers.set(parser);
+		} else {
+			parser.reset();
+		}
+		final Recorder recorder = new Recorder(starts.length);
+		try {
+			parser.parse(new InputSource(new SequenceInputStream(Collections.enumeration(streams))), recorder);
+		} catch (SAXParseException e) {
+			// Lines as in the file
+			final int l = first ? e.getLineNumber() : line + e.getLineNumber() - prolog_lines;
+			throw new SAXParseException(e.getMessage() + " in " + path, null, null, l, e.getColumnNumber());
+		}
+		// Drop the events of the added end tags, which are the last ones
+		final ArrayList<Event> events = recorder.events;
+		events.subList(events.size() - ends.length, events.size()).clear();
+		return events;
+	}
+
+	/** Deliver the events of a parsed chunk to the handler. */
+	private final void replay(final Future<ArrayList<Event>> fu) throws IOException, SAXException {
+		final ArrayList<Event> events;
+		try {
+			events = fu.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing " + path);
+		} catch (ExecutionException ee) {
+			final Throwable t = ee.getCause();
+			if (t instanceof SAXParseException) {
+				handler.fatalError((SAXParseException)t);
+				throw (SAXParseException)t;
+			}
+			if (t instanceof SAXException) throw (SAXException)t;
+			if (t instanceof IOException) throw (IOException)t;
+			throw new SAXException(t.toString());
+		}
+		for (final Event e : events) {
+			switch (e.type) {
+				case Event.START: handler.startElement("", "", e.name, e.attributes); break;
+				case Event.END: handler.endElement("", "", e.name); break;
+				case Event.TEXT: handler.characters(e.text, 0, e.text.length); break;
+				case Event.SPACE: handler.ignorableWhitespace(e.text, 0, e.text.length); break;
+			}
+		}
+	}
+}
@@ -0,0 +1,535 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** Records which objects of a project changed since it was last saved, so that a save can append
+ * only those to a journal file next to the project file (the snapshot), instead of rewriting it all.
+ *
+ * Changes are recorded by the {@link FSLoader} from the {@link DBObject#addToDatabase()},
+ * {@link DBObject#updateInDatabase(String)} and {@link DBObject#removeFromDatabase()} calls,
+ * the links between {@link Displayable} objects, and the edit steps of each {@link LayerSet}.
+ * A change flagged only with {@link Loader#setChanged(boolean)} has no trace of what changed,
+ * and so it counts as one that the journal cannot append.
+ * Only changes to the data of existing {@link Displayable} objects, other than {@link LayerSet},
+ * and their removal, can be appended: any other change, such as adding objects, changing
+ * layers, the project tree or the order of objects in a layer, requires writing a new snapshot.
+ *
+ * The journal is named like the snapshot plus {@link #EXTENSION} and consists of:
+ *
+ * - The 8 bytes of {@link #MAGIC} and the version, as an int.
+ * - The identity of the snapshot it applies to: its length and the CRC32 of its last bytes,
+ *   so that a journal is never applied to a snapshot written after it.
+ * - The XML declaration and the DOCTYPE of the snapshot, as an int length and UTF-8 bytes.
+ * - A sequence of batches, one per save, each an int with its length, a long with its CRC32
+ *   and the bytes of a &lt;t2_journal&gt; XML element, which contains a &lt;t2_update oid="..."&gt; element
+ *   wrapping the XML of each changed object, and a &lt;t2_remove oid="..."/&gt; element for each removed one.
+ *   A batch that was not written in full, such as when crashing while saving, ends the journal.
+ *
+ * When opening the project, the snapshot is read through {@link #open(String, DefaultHandler)},
+ * which replaces the elements of changed objects with those in the journal and skips removed ones,
+ * so that the {@link TMLHandler} receives the project as it was at the last save.
+ *
+ * After {@link #MAX_BATCHES} batches, or when the journal grows beyond a fraction of the
+ * size of the snapshot, the next save writes a new snapshot, which removes the journal.
+ */
+public final class ProjectJournal
+{
+	/** Appended to the path of the project file to name its journal. */
+	static public final String EXTENSION = ".journal";
+
+	static final byte[] MAGIC = new byte[]{'T', 'R', 'A', 'K', 'E', 'M', '2', 'J'};
+	static final int VERSION = 1;
+
+	/** The maximum number of batches before writing a new snapshot. */
+	static public final int MAX_BATCHES = 100;
+
+	/** The number of bytes at the end of the snapshot whose CRC32 identifies it. */
+	static private final int TAIL = 65536;
+
+	/** The elements of the objects that can be replaced or removed. */
+	static private final Set<String> tags = new HashSet<String>(Arrays.asList(new String[]{
+		"t2_patch", "t2_label", "t2_profile", "t2_area_list", "t2_pipe", "t2_polyline", "t2_ball",
+		"t2_dissector", "t2_stack", "t2_treeline", "t2_areatree", "t2_connector"}));
+
+	/** The keys of {@link DBObject#updateInDatabase(String)} that mean an object moved or was reordered. */
+	static private final Set<String> structural_keys = new HashSet<String>(Arrays.asList(new String[]{
+		"layer_id", "layer_set_id", "stack_index"}));
+
+	/** Changed objects, and ids of objects whose links changed. */
+	private LinkedHashSet<Displayable> updated = new LinkedHashSet<Displayable>();
+	private HashSet<Long> updated_ids = new HashSet<Long>();
+	/** Ids of removed objects. */
+	private HashSet<Long> removed = new HashSet<Long>();
+	/** Whether there are changes that the journal cannot record. */
+	private boolean structural = true;
+
+	/** The snapshot that the journal applies to, or null if there isn't one that can have a journal. */
+	private long[] snapshot = null;
+	private String prolog = null;
+	private int n_batches = 0;
+	private long journal_length = 0;
+
+	static public final String getJournalPath(final String snapshot_path) {
+		return snapshot_path + EXTENSION;
+	}
+
+	/** Record the addition of @param ob to the project. */
+	synchronized final void recordAdd(final DBObject ob) {
+		if (ob instanceof Display) return; // not part of the data
+		structural = true;
+	}
+
+	/** Record a change in @param ob; @param key may be null. */
+	synchronized final void recordUpdate(final DBObject ob, final String key) {
+		if (null == ob || ob instanceof Display) {
+			if (null == ob) structural = true;
+			return;
+		}
+		if ((null != key && structural_keys.contains(key)) || !(ob instanceof Displayable) || ob instanceof LayerSet) {
+			structural = true;
+			return;
+		}
+		updated.add((Displayable)ob);
+	}
+
+	synchronized final void recordUpdate(final DBObject ob, final Set<String> keys) {
+		for (final String key : keys) {
+			if (structural_keys.contains(key)) {
+				structural = true;
+				return;
+			}
+		}
+		recordUpdate(ob, (String)null);
+	}
+
+	/** Record a change in the object with @param id, such as in its links. */
+	synchronized final void recordUpdate(final long id) {
+		updated_ids.add(id);
+	}
+
+	synchronized final void recordRemove(final DBObject ob) {
+		if (ob instanceof Display) return;
+		if (!(ob instanceof Displayable) || ob instanceof LayerSet) {
+			structural = true;
+			return;
+		}
+		updated.remove(ob);
+		removed.add(ob.getId());
+	}
+
+	/** Record a change that the journal cannot append, so that the next save writes a new snapshot. */
+	synchronized final void recordStructural() {
+		structural = true;
+	}
+
+	/** Whether there are changes not yet saved, including any that the journal cannot record. */
+	synchronized final boolean hasPending() {
+		return structural || !updated.isEmpty() || !updated_ids.isEmpty() || !removed.isEmpty();
+	}
+
+	/** Forget all changes, which are about to be written in a new snapshot.
+	 *  If the snapshot fails, call {@link #recordStructural()}. */
+	synchronized final void startSnapshot() {
+		updated.clear();
+		updated_ids.clear();
+		removed.clear();
+		structural = false;
+	}
+
+	/** A new snapshot was written at @param path: remove its journal, if any, and start a new one with the next save.
+	 *  @param project The project of the snapshot, for its DTD. */
+	final void snapshotWritten(final Project project, final String path) {
+		final long[] id = identify(path);
+		final String prolog = null == id ? null : Loader.createXMLProlog(project);
+		final File f = new File(getJournalPath(path));
+		if (f.exists() && !f.delete()) {
+			Utils.log("ERROR: could not delete the journal " + f + "\n  It will be ignored when opening the project.");
+		}
+		synchronized (this) {
+			this.snapshot = id;
+			this.prolog = prolog;
+			this.n_batches = 0;
+			this.journal_length = 0;
+		}
+	}
+
+	/** The project was opened from the snapshot and journal read in {@link #open(String, DefaultHandler)}:
+	 *  forget the changes recorded while creating its objects. */
+	synchronized final void loaded() {
+		startSnapshot();
+		if (null == snapshot) structural = true;
+	}
+
+	/** Append the objects changed since the last save to the journal of the snapshot at @param path.
+	 *  Returns false, without writing anything, if it can't, and then a new snapshot has to be written. */
+	final boolean append(final Project project, final String path, final XMLOptions options) {
+		final LinkedHashSet<Displayable> updated;
+		final HashSet<Long> updated_ids, removed;
+		final long[] snapshot;
+		final String prolog;
+		synchronized (this) {
+			if (structural || null == this.snapshot || n_batches >= MAX_BATCHES
+			 || journal_length > Math.max(1024 * 1024, this.snapshot[0] / 4)) return false;
+			// Such as when only the view changed
+			if (this.updated.isEmpty() && this.updated_ids.isEmpty() && this.removed.isEmpty()) return true;
+			updated = this.updated;
+			updated_ids = this.updated_ids;
+			removed = this.removed;
+			snapshot = this.snapshot;
+			prolog = null == this.prolog ? Loader.createXMLProlog(project) : this.prolog;
+			// Changes from now on go to the next save
+			this.updated = new LinkedHashSet<Displayable>();
+			this.updated_ids = new HashSet<Long>();
+			this.removed = new HashSet<Long>();
+		}
+		boolean success = false;
+		try {
+			// Resolve objects whose links changed
+			for (final Long id : updated_ids) {
+				if (removed.contains(id)) continue;
+				final DBObject ob = project.findById(id);
+				if (!(ob instanceof Displayable) || ob instanceof LayerSet) return false;
+				updated.add((Displayable)ob);
+			}
+			final StringBuilder sb = new StringBuilder(4096).append("<t2_journal time=\"").append(System.currentTimeMillis()).append("\">\n");
+			for (final Displayable d : updated) {
+				if (removed.contains(d.getId())) continue;
+				// Must still be in the same place, or else it was moved without a trace
+				if (d instanceof ZDisplayable) {
+					final LayerSet ls = d.getLayerSet();
+					if (null == ls || !ls.contains(d)) return false;
+				} else {
+					final Layer la = d.getLayer();
+					if (null == la || !la.contains(d)) return false;
+				}
+				sb.append("<t2_update oid=\"").append(d.getId()).append("\">\n");
+				d.exportXML(sb, "\t", options);
+				sb.append("</t2_update>\n");
+			}
+			for (final Long id : removed) {
+				sb.append("<t2_remove oid=\"").append(id).append("\"/>\n");
+			}
+			sb.append("</t2_journal>\n");
+
+			final byte[] batch = sb.toString().getBytes("8859_1");
+			final CRC32 crc = new CRC32();
+			crc.update(batch);
+
+			final File f = new File(getJournalPath(path));
+			final boolean new_journal = !f.exists() || 0 == journal_length;
+			final FileOutputStream fos = new FileOutputStream(f, !new_journal);
+			// Drop any incomplete batch at the end
+			if (!new_journal && f.length() > journal_length) fos.getChannel().truncate(journal_length);
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			try {
+				if (new_journal) {
+					dos.write(MAGIC);
+					dos.writeInt(VERSION);
+					dos.writeLong(snapshot[0]);
+					dos.writeLong(snapshot[1]);
+					final byte[] b = prolog.getBytes("UTF-8");
+					dos.writeInt(b.length);
+					dos.write(b);
+				}
+				dos.writeInt(batch.length);
+				dos.writeLong(crc.getValue());
+				dos.write(batch);
+				dos.flush();
+				fos.getFD().sync();
+			} finally {
+				dos.close();
+			}
+			synchronized (this) {
+				if (new_journal) this.prolog = prolog;
+				++n_batches;
+				journal_length = f.length();
+			}
+			Utils.log2("Appended " + (updated.size() + removed.size()) + " changed objects to the journal " + f.getName() + " (" + batch.length + " bytes)");
+			success = true;
+			return true;
+		} catch (Throwable t) {
+			IJError.print(t);
+			return false;
+		} finally {
+			if (!success) {
+				// Give the changes back, for the snapshot to write
+				synchronized (this) {
+					this.updated.addAll(updated);
+					this.updated_ids.addAll(updated_ids);
+					this.removed.addAll(removed);
+					structural = true;
+				}
+			}
+		}
+	}
+
+	/** The length and the CRC32 of the last bytes of the file at @param path, or null if it isn't a local file. */
+	static private final long[] identify(final String path) {
+		if (null == path || FSLoader.isURL(path)) return null;
+		final File f = new File(path);
+		if (!f.exists()) return null;
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(f, "r");
+			final long length = ra.length();
+			final byte[] b = new byte[(int)Math.min(length, TAIL)];
+			ra.seek(length - b.length);
+			ra.readFully(b);
+			final CRC32 crc = new CRC32();
+			crc.update(b);
+			return new long[]{length, crc.getValue()};
+		} catch (IOException ioe) {
+			IJError.print(ioe);
+			return null;
+		} finally {
+			if (null != ra) try { ra.close(); } catch (IOException ioe) { IJError.print(ioe); }
+		}
+	}
+
+	/** Read the journal, if any, of the snapshot at @param path, and return a handler that feeds @param handler
+	 *  with the snapshot as modified by the journal; or @param handler itself if there isn't a journal. */
+	final DefaultHandler open(final String path, final DefaultHandler handler) {
+		final long[] id = identify(path);
+		synchronized (this) {
+			this.snapshot = id;
+			this.prolog = null;
+			this.n_batches = 0;
+			this.journal_length = 0;
+		}
+		if (null == id) return handler;
+		final File f = new File(getJournalPath(path));
+		if (!f.exists()) return handler;
+
+		final Merger merger = new Merger(handler);
+		DataInputStream dis = null;
+		int n = 0;
+		long length = 0;
+		String prolog = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			final byte[] magic = new byte[MAGIC.length];
+			dis.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a TrakEM2 journal: " + f);
+			final int version = dis.readInt();
+			if (version > VERSION) throw new IOException("Unsupported version " + version + " of the journal " + f);
+			if (dis.readLong() != id[0] || dis.readLong() != id[1]) {
+				Utils.log("WARNING: ignoring the journal " + f.getName() + ", which belongs to a different version of the project file.");
+				return handler;
+			}
+			final byte[] bp = new byte[dis.readInt()];
+			dis.readFully(bp);
+			prolog = new String(bp, "UTF-8");
+			length = MAGIC.length + 4 + 8 + 8 + 4 + bp.length;
+
+			final SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setValidating(false);
+			factory.setXIncludeAware(false);
+			final SAXParser parser = factory.newSAXParser();
+			final CRC32 crc = new CRC32();
+			while (true) {
+				final int len;
+				final long sum;
+				final byte[] batch;
+				try {
+					len = dis.readInt();
+					sum = dis.readLong();
+					batch = new byte[len];
+					dis.readFully(batch);
+				} catch (EOFException eofe) {
+					break;
+				}
+				crc.reset();
+				crc.update(batch);
+				if (crc.getValue() != sum) {
+					Utils.log("WARNING: ignoring the incomplete end of the journal " + f.getName());
+					break;
+				}
+				// With the DTD, so that attributes are read as in the snapshot
+				parser.parse(new InputSource(new StringReader(prolog + new String(batch, "8859_1"))), merger.new BatchReader());
+				length += 4 + 8 + len;
+				++n;
+			}
+		} catch (Exception e) {
+			Utils.log("ERROR: could not read the journal " + f.getName() + ": " + e);
+			IJError.print(e);
+			if (0 == n) return handler;
+		} finally {
+			if (null != dis) try { dis.close(); } catch (IOException ioe) { IJError.print(ioe); }
+		}
+		if (0 == n) return handler;
+		Utils.log("Applying " + n + " saves from the journal " + f.getName());
+		synchronized (this) {
+			this.prolog = prolog;
+			this.n_batches = n;
+			// Beyond the last complete batch, if any, is overwritten by the next save
+			this.journal_length = length;
+		}
+		return merger;
+	}
+
+	/** A SAX event, for replaying. */
+	static private final class Event {
+		static final byte START = 0, END = 1, TEXT = 2;
+		final byte type;
+		final String name;
+		final Attributes attributes;
+		final char[] text;
+		Event(final byte type, final String name, final Attributes attributes, final char[] text) {
+			this.type = type;
+			this.name = name;
+			this.attributes = attributes;
+			this.text = text;
+		}
+	}
+
+	/** Passes on the events of the snapshot to a handler, replacing or skipping the elements of changed objects. */
+	static private final class Merger extends DefaultHandler {
+		private final DefaultHandler handler;
+		private final HashMap<Long,List<Event>> updates = new HashMap<Long,List<Event>>();
+		private final HashSet<Long> removed = new HashSet<Long>();
+		/** Depth within a skipped element. */
+		private int skip = 0;
+
+		Merger(final DefaultHandler handler) {
+			this.handler = handler;
+		}
+
+		/** Reads one batch of the journal into the updates and removals; later batches override earlier ones. */
+		final class BatchReader extends DefaultHandler {
+			private long oid = -1;
+			private List<Event> events = null;
+			@Override
+			public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) {
+				if (null != events) {
+					events.add(new Event(Event.START, qualified_name, new AttributesImpl(attributes), null));
+				} else if ("t2_update".equals(qualified_name)) {
+					oid = Long.parseLong(attributes.getValue("oid"));
+					events = new ArrayList<Event>();
+				} else if ("t2_remove".equals(qualified_name)) {
+					final long id = Long.parseLong(attributes.getValue("oid"));
+					updates.remove(id);
+					removed.add(id);
+				}
+			}
+			@Override
+			public void endElement(final String uri, final String local_name, final String qualified_name) {
+				if (null == events) return;
+				if ("t2_update".equals(qualified_name)) {
+					updates.put(oid, events);
+					removed.remove(oid);
+					events = null;
+				} else {
+					events.add(new Event(Event.END, qualified_name, null, null));
+				}
+			}
+			@Override
+			public void characters(final char[] c, final int start, final int length) {
+				if (null != events) events.add(new Event(Event.TEXT, null, null, Arrays.copyOfRange(c, start, start + length)));
+			}
+		}
+
+		@Override
+		public void startDocument() throws SAXException {
+			handler.startDocument();
+		}
+		@Override
+		public void endDocument() throws SAXException {
+			handler.endDocument();
+		}
+		@Override
+		public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			if (skip > 0) {
+				++skip;
+				return;
+			}
+			if (tags.contains(qualified_name.toLowerCase())) {
+				final String soid = attributes.getValue("oid");
+				if (null != soid) {
+					final Long oid = Long.parseLong(soid.trim());
+					if (removed.contains(oid)) {
+						skip = 1;
+						return;
+					}
+					final List<Event> events = updates.get(oid);
+					if (null != events) {
+						for (final Event e : events) {
+							switch (e.type) {
+								case Event.START: handler.startElement("", "", e.name, e.attributes); break;
+								case Event.END: handler.endElement("", "", e.name); break;
+								case Event.TEXT: handler.characters(e.text, 0, e.text.length); break;
+							}
+						}
+						skip = 1;
+						return;
+					}
+				}
+			}
+			handler.startElement(uri, local_name, qualified_name, attributes);
+		}
+		@Override
+		public void endElement(final String uri, final String local_name, final String qualified_name) throws SAXException {
+			if (skip > 0) {
+				--skip;
+				return;
+			}
+			handler.endElement(uri, local_name, qualified_name);
+		}
+		@Override
+		public void characters(final char[] c, final int start, final int length) throws SAXException {
+			if (0 == skip) handler.characters(c, start, length);
+		}
+		@Override
+		public void ignorableWhitespace(final char[] c, final int start, final int length) throws SAXException {
+			if (0 == skip) handler.ignorableWhitespace(c, start, length);
+		}
+		@Override
+		public void warning(final SAXParseException e) throws SAXException {
+			handler.warning(e);
+		}
+		@Override
+		public void error(final SAXParseException e) throws SAXException {
+			handler.error(e);
+		}
+		@Override
+		public void fatalError(final SAXParseException e) throws SAXException {
+			handler.fatalError(e);
+		}
+	}
+}
@@ -41,7 +41,6 @@ import ini.trakem2.display.Polyline;
 import ini.trakem2.display.Profile;
 import ini.trakem2.display.Stack;
 import ini.trakem2.display.Tag;
-import ini.trakem2.display.Taggable;
 import ini.trakem2.display.Tree;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
@@ -56,6 +55,7 @@ import ini.trakem2.utils.ReconstructArea;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Color;
+import java.awt.geom.Area;
 import java.awt.event.KeyEvent;
 import java.io.File;
 import java.util.ArrayList;
@@ -67,8 +67,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 
 import mpicbg.models.TransformList;
@@ -82,7 +84,15 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 
-/** Creates the project objects from an XML file (TrakEM2 Markup Language Handler). */
+/** Creates the project objects from an XML file (TrakEM2 Markup Language Handler).
+ *
+ * The events arrive in document order, in one thread, whether the XML is parsed whole or in parallel chunks
+ * (see {@link ParallelXMLParser}). In that thread only the light objects are constructed: Layer, LayerSet,
+ * Displayable and Thing instances. The heavy parts are recorded and built by other threads while events keep
+ * arriving (see {@link #TMLHandler(String, FSLoader, int)}): the areas of AreaList instances, the nodes of each
+ * Tree with the areas of AreaTree nodes, and the checks of the files of the Patch instances of each Layer.
+ * All of it exists once {@link #getProjectData(boolean)} returns, because Tree and AreaList instances read
+ * their nodes and areas directly; only the coordinate transforms of Patch instances are read lazily, from their files. */
 public class TMLHandler extends DefaultHandler {
 
 	private LayerThing root_lt = null;
@@ -120,11 +130,10 @@ public class TMLHandler extends DefaultHandler {
 	private Treeline last_treeline = null;
 	private AreaTree last_areatree = null;
 	private Connector last_connector = null;
-	private Tree<?> last_tree = null;
-	final private LinkedList<Taggable> taggables = new LinkedList<Taggable>();
-	private ReconstructArea reca = null;
-	private Node<?> last_root_node = null;
-	final private LinkedList<Node<?>> nodes = new LinkedList<Node<?>>();
+	/** The nodes of the Tree being read, to be built when the Tree ends. */
+	private TreeNodes last_tree_nodes = null;
+	/** The SVG paths of the area being read. */
+	private ArrayList<String> last_area_paths = null;
 	final private Map<Long,List<Node<?>>> node_layer_table = new HashMap<Long,List<Node<?>>>();
 	final private Map<Tree<?>,Node<?>> tree_root_nodes = new HashMap<Tree<?>,Node<?>>();
 	final private Map<Color,Collection<Node<?>>> node_colors = new HashMap<Color,Collection<Node<?>>>();
@@ -134,13 +143,159 @@ public class TMLHandler extends DefaultHandler {
 	final private ArrayList< TransformList< Object > > ct_list_stack = new ArrayList< TransformList< Object > >();
 	private boolean open_displays = true;
 	final private LinkedList<Runnable> legacy = new LinkedList<Runnable>();
+	/** When not null, the heavy parts of each Layer and ZDisplayable are built by these threads while parsing continues. */
+	private ExecutorService exec = null;
+	/** The areas of AreaList and AreaTree nodes in the order in which they were read, to be set once built. */
+	final private ArrayList<PendingArea> pending_areas = new ArrayList<PendingArea>();
+	/** The Patch instances of the layer being read, whose files are checked when the layer ends. */
+	final private ArrayList<Patch> layer_patches = new ArrayList<Patch>();
+	final private ArrayList<Future<?>> layer_fus = new ArrayList<Future<?>>();
+	/** The nodes of each Tree in the order in which they were read, to be assigned their layers and colors once built. */
+	final private ArrayList<Future<TreeNodes>> tree_nodes_fus = new ArrayList<Future<TreeNodes>>();
+
+	/** An area being built from its SVG paths, for an AreaList at a Layer. */
+	static private final class PendingArea {
+		final AreaList area_list;
+		final long layer_id;
+		final Future<Area> fu;
+		PendingArea(final AreaList area_list, final long layer_id, final Future<Area> fu) {
+			this.area_list = area_list;
+			this.layer_id = layer_id;
+			this.fu = fu;
+		}
+	}
+
+	/** The nodes of a Tree: recorded while parsing, as the start and end of each node with its tags
+	 * and the SVG paths of its area, and then built all at once in a loading thread. */
+	static private final class TreeNodes implements Callable<TreeNodes> {
+		static private final byte START = 0, END = 1, TAG = 2, AREA = 3;
+		final Tree<?> tree;
+		private ArrayList<Byte> types = new ArrayList<Byte>();
+		/** The attributes of a node, a Tag or the SVG paths of an area, for each type. */
+		private ArrayList<Object> data = new ArrayList<Object>();
+		private int depth = 0;
+		/** Once built: */
+		Node<?> root = null;
+		final Map<Long,List<Node<?>>> layer_nodes = new HashMap<Long,List<Node<?>>>();
+		final Map<Color,Collection<Node<?>>> colors = new HashMap<Color,Collection<Node<?>>>();
+
+		TreeNodes(final Tree<?> tree) {
+			this.tree = tree;
+		}
+		private final void record(final byte type, final Object ob) {
+			types.add(type);
+			data.add(ob);
+		}
+		final void start(final HashMap<String,String> ht_attributes) {
+			record(START, ht_attributes);
+			++depth;
+		}
+		final void end() {
+			record(END, null);
+			--depth;
+		}
+		/** Whether a node is open, to which tags and areas apply. */
+		final boolean inNode() {
+			return depth > 0;
+		}
+		final void tag(final Tag tag) {
+			record(TAG, tag);
+		}
+		final void area(final ArrayList<String> paths) {
+			record(AREA, paths);
+		}
+		final boolean isEmpty() {
+			return types.isEmpty();
+		}
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		@Override
+		public TreeNodes call() {
+			// The nodes that are open; null for those that failed, whose subtree is ignored
+			final LinkedList<Node<?>> stack = new LinkedList<Node<?>>();
+			for (int i=0, n=types.size(); i<n; i++) {
+				final Object ob = data.get(i);
+				switch (types.get(i)) {
+					case START:
+						Node<?> node = null;
+						if (stack.isEmpty() ? null == root : null != stack.getLast()) {
+							try {
+								node = createNode((HashMap<String,String>)ob, stack.isEmpty() ? null : stack.getLast());
+							} catch (Exception e) {
+								IJError.print(e);
+							}
+						}
+						stack.add(node);
+						break;
+					case END:
+						stack.removeLast();
+						break;
+					case TAG:
+						if (null != stack.getLast()) stack.getLast().addTag((Tag)ob);
+						break;
+					case AREA:
+						if (null != stack.getLast()) {
+							final ReconstructArea reca = new ReconstructArea();
+							for (final String d : (ArrayList<String>)ob) reca.add(d);
+							((AreaTree.AreaNode)stack.getLast()).setData(reca.getArea());
+						}
+						break;
+				}
+			}
+			types = null;
+			data = null;
+			return this;
+		}
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private final Node<?> createNode(final HashMap<String,String> ht_attributes, final Node<?> parent) {
+			final Node<?> node = tree.newNode(ht_attributes);
+			// Put node into the list of nodes with that layer id, to update to proper Layer pointer later
+			final long ndlid = Long.parseLong(ht_attributes.get("lid"));
+			List<Node<?>> list = layer_nodes.get(ndlid);
+			if (null == list) {
+				list = new ArrayList<Node<?>>();
+				layer_nodes.put(ndlid, list);
+			}
+			list.add(node);
+			// Set node as root node or add as child to its parent
+			if (null == parent) {
+				root = node;
+			} else {
+				final String sconf = ht_attributes.get("c");
+				parent.add((Node)node, null == sconf ? Node.MAX_EDGE_CONFIDENCE : Byte.parseByte(sconf));
+			}
+			// color?
+			final String scolor = ht_attributes.get("color");
+			if (null != scolor) {
+				final Color color = Utils.getRGBColorFromHex(scolor);
+				Collection<Node<?>> nodes = colors.get(color);
+				if (null == nodes) {
+					nodes = new ArrayList<Node<?>>();
+					colors.put(color, nodes);
+				}
+				nodes.add(node);
+			}
+			return node;
+		}
+	}
 
 
 	/** @param path The XML file that contains the project data in XML format.
 	 *  @param loader The FSLoader for the project.
 	 *  Expects the path with '/' as folder separator char.
+	 *  Loads in parallel, with as many threads as {@link #getDefaultThreadCount()}.
 	 */
 	public TMLHandler(final String path, FSLoader loader) {
+		this(path, loader, getDefaultThreadCount());
+	}
+
+	/** @param path The XML file that contains the project data in XML format.
+	 *  @param loader The FSLoader for the project.
+	 *  @param n_threads The number of threads that, while the SAX thread keeps parsing, build the areas of AreaList
+	 *  instances and the nodes of each Tree, with the areas of AreaTree nodes, and check the files of the Patch instances
+	 *  of each layer, and that set up the node caches of each Tree once all is read. With 1 or less, everything is done in the SAX thread, in order.
+	 *  Expects the path with '/' as folder separator char.
+	 */
+	public TMLHandler(final String path, FSLoader loader, final int n_threads) {
 		this.loader = loader;
 		//this.base_dir = path.substring(0, path.lastIndexOf('/') + 1); // not File.separatorChar: TrakEM2 uses '/' always
 		//this.xml_path = path;
@@ -192,12 +347,114 @@ public class TMLHandler extends DefaultHandler {
 		this.project_tt = new TemplateThing("project");
 		project_tt.addChild(this.root_tt);
 		//TODO//project_tt.addAttribute("title", "Project");
+
+		if (n_threads > 1) {
+			this.exec = Utils.newFixedThreadPool(n_threads, "TMLHandler-load");
+		}
+	}
+
+	/** The number of threads to load a project with: all CPUs but one or two, which parse the XML and render. */
+	static public final int getDefaultThreadCount() {
+		final int n = Runtime.getRuntime().availableProcessors();
+		switch (n) {
+			case 1:
+				return 1;
+			case 2:
+			case 3:
+			case 4:
+				return n -1;
+			default:
+				return n -2;
+		}
 	}
 
 	public boolean isUnreadable() {
 		return null == loader;
 	}
 
+	/** Stop the threads that build the parts of the project, if any; for when parsing failed and {@link #getProjectData(boolean)} won't be called. */
+	public void destroy() {
+		if (null != exec) {
+			exec.shutdownNow();
+			exec = null;
+		}
+	}
+
+	/** Run @param task in the loading threads, or right away in this thread if there aren't any. */
+	private final <T> Future<T> submit(final Callable<T> task) {
+		if (null != exec) return exec.submit(task);
+		final FutureTask<T> fu = new FutureTask<T>(task);
+		fu.run();
+		return fu;
+	}
+
+	/** Submit the checks of the files of the Patch instances of the layer just read, as one task. */
+	private final void submitLayerPatches() {
+		if (layer_patches.isEmpty()) return;
+		final Patch[] patches = layer_patches.toArray(new Patch[layer_patches.size()]);
+		layer_patches.clear();
+		layer_fus.add(submit(new Callable<Object>() {
+			@Override
+			public Object call() {
+				for (final Patch patch : patches) {
+					checkAlphaMasks(patch);
+					if (!patch.checkCoordinateTransformFile()) {
+						Utils.log("ERROR: could not find a file for the coordinate transform #" + patch.getCoordinateTransformId() + " of Patch #" + patch.getId());
+					}
+					if (!patch.checkAlphaMaskFile()) {
+						Utils.log("ERROR: could not find a file for the alpha mask #" + patch.getAlphaMaskId() + " of Patch #" + patch.getId());
+					}
+				}
+				return null;
+			}
+		}));
+	}
+
+	/** Submit the building of the nodes of the Tree just read. */
+	private final void submitTreeNodes() {
+		tree_nodes_fus.add(submit(last_tree_nodes));
+		last_tree_nodes = null;
+	}
+
+	/** Wait for all Layer and ZDisplayable parts built in parallel, set the areas, and collect the nodes of each Tree. */
+	private final void joinParts() {
+		submitLayerPatches();
+		Utils.wait(layer_fus);
+		layer_fus.clear();
+		for (final PendingArea pa : pending_areas) {
+			final Area area;
+			try {
+				area = pa.fu.get();
+			} catch (Exception e) {
+				IJError.print(e);
+				continue;
+			}
+			pa.area_list.addArea(pa.layer_id, area); // it's local
+		}
+		pending_areas.clear();
+		for (final Future<TreeNodes> fu : tree_nodes_fus) {
+			final TreeNodes tn;
+			try {
+				tn = fu.get();
+			} catch (Exception e) {
+				IJError.print(e);
+				continue;
+			}
+			tree_root_nodes.put(tn.tree, tn.root);
+			for (final Map.Entry<Long,List<Node<?>>> e : tn.layer_nodes.entrySet()) {
+				final List<Node<?>> list = node_layer_table.get(e.getKey());
+				if (null == list) node_layer_table.put(e.getKey(), e.getValue());
+				else list.addAll(e.getValue());
+			}
+			for (final Map.Entry<Color,Collection<Node<?>>> e : tn.colors.entrySet()) {
+				final Collection<Node<?>> nodes = node_colors.get(e.getKey());
+				if (null == nodes) node_colors.put(e.getKey(), e.getValue());
+				else nodes.addAll(e.getValue());
+			}
+		}
+		tree_nodes_fus.clear();
+	}
+
 	/** returns 4 objects packed in an array:
 	 <pre>
 	 [0] = root TemplateThing
@@ -209,86 +466,105 @@ public class TMLHandler extends DefaultHandler {
 	 * Also, triggers the reconstruction of links and assignment of Displayable objects to their layer.
 	 */
 	public Object[] getProjectData(final boolean open_displays) {
-		if (null == project) return null;
+		if (null == project) {
+			destroy();
+			return null;
+		}
 		this.open_displays = open_displays;
-		// 1 - Reconstruct links using ht_links
-		// Links exist between Displayable objects.
-		for (final Displayable d : ht_displayables.values()) {
-			String olinks = ht_links.get(d);
-			if (null == olinks) continue; // not linked
-			String[] links = olinks.split(",");
-			Long lid = null;
-			for (int i=0; i<links.length; i++) {
-				try {
-					lid = new Long(links[i]);
-				} catch (NumberFormatException nfe) {
-					Utils.log2("Ignoring incorrectly formated link '" + links[i] + "' for ob " + d);
-					continue;
+		try {
+			// 0 - Wait for the parts of layers and ZDisplayable objects built while parsing, including Tree nodes
+			joinParts();
+			// 1 - Reconstruct links using ht_links
+			// Links exist between Displayable objects.
+			for (final Displayable d : ht_displayables.values()) {
+				String olinks = ht_links.get(d);
+				if (null == olinks) continue; // not linked
+				String[] links = olinks.split(",");
+				Long lid = null;
+				for (int i=0; i<links.length; i++) {
+					try {
+						lid = new Long(links[i]);
+					} catch (NumberFormatException nfe) {
+						Utils.log2("Ignoring incorrectly formated link '" + links[i] + "' for ob " + d);
+						continue;
+					}
+					Displayable partner = ht_displayables.get(lid);
+					if (null != partner) d.link(partner, false);
+					else Utils.log("TMLHandler: can't find partner with id=" + links[i] + " for Displayable with id=" + d.getId());
 				}
-				Displayable partner = ht_displayables.get(lid);
-				if (null != partner) d.link(partner, false);
-				else Utils.log("TMLHandler: can't find partner with id=" + links[i] + " for Displayable with id=" + d.getId());
 			}
-		}
 
-		// 1.2 - Reconstruct linked properties
-		for (final Map.Entry<Displayable,Map<Long,Map<String,String>>> lpe : all_linked_props.entrySet()) {
-			final Displayable origin = lpe.getKey();
-			for (final Map.Entry<Long,Map<String,String>> e : lpe.getValue().entrySet()) {
-				final Displayable target = ht_displayables.get(e.getKey());
-				if (null == target) {
-					Utils.log("Setting linked properties for origin " + origin.getId() + ":\n\t* Could not find target displayable #" + e.getKey());
-					continue;
+			// 1.2 - Reconstruct linked properties
+			for (final Map.Entry<Displayable,Map<Long,Map<String,String>>> lpe : all_linked_props.entrySet()) {
+				final Displayable origin = lpe.getKey();
+				for (final Map.Entry<Long,Map<String,String>> e : lpe.getValue().entrySet()) {
+					final Displayable target = ht_displayables.get(e.getKey());
+					if (null == target) {
+						Utils.log("Setting linked properties for origin " + origin.getId() + ":\n\t* Could not find target displayable #" + e.getKey());
+						continue;
+					}
+					origin.setLinkedProperties(target, e.getValue());
 				}
-				origin.setLinkedProperties(target, e.getValue());
 			}
-		}
 
-		// 2 - Add Displayable objects to ProjectThing that can contain them
-		for (final Map.Entry<Long,ProjectThing> entry : ht_oid_pt.entrySet()) {
-			ProjectThing pt = entry.getValue();
-			Object od = ht_displayables.remove(entry.getKey());
-			//Utils.log("==== processing: Displayable [" + od + "]  vs. ProjectThing [" + pt + "]");
-			if (null != od) {
-				pt.setObject(od);
-			} else {
-				Utils.log("#### Failed to find a Displayable for ProjectThing " + pt + " #####");
+			// 2 - Add Displayable objects to ProjectThing that can contain them
+			for (final Map.Entry<Long,ProjectThing> entry : ht_oid_pt.entrySet()) {
+				ProjectThing pt = entry.getValue();
+				Object od = ht_displayables.remove(entry.getKey());
+				//Utils.log("==== processing: Displayable [" + od + "]  vs. ProjectThing [" + pt + "]");
+				if (null != od) {
+					pt.setObject(od);
+				} else {
+					Utils.log("#### Failed to find a Displayable for ProjectThing " + pt + " #####");
+				}
 			}
-		}
 
-		// debug:
-		/*
-		for (Iterator it = al_layer_sets.iterator(); it.hasNext(); ) {
-			LayerSet ls = (LayerSet)it.next();
-			Utils.log2("ls #id " + ls.getId() + "  size: " +ls.getLayers().size());
-		}
-		*/
+			// debug:
+			/*
+			for (Iterator it = al_layer_sets.iterator(); it.hasNext(); ) {
+				LayerSet ls = (LayerSet)it.next();
+				Utils.log2("ls #id " + ls.getId() + "  size: " +ls.getLayers().size());
+			}
+			*/
 
-		// 3 - Assign a layer pointer to ZDisplayable objects
-		for (final ZDisplayable zd : ht_zdispl.values()) {
-			//zd.setLayer((Layer)zd.getLayerSet().getLayers().get(0));
-			zd.setLayer(zd.getLayerSet().getLayer(0));
-		}
+			// 3 - Assign a layer pointer to ZDisplayable objects
+			for (final ZDisplayable zd : ht_zdispl.values()) {
+				//zd.setLayer((Layer)zd.getLayerSet().getLayers().get(0));
+				zd.setLayer(zd.getLayerSet().getLayer(0));
+			}
 
-		// 4 - Assign layers to Treeline nodes
-		for (final Layer la : al_layers) {
-			final List<Node<?>> list = node_layer_table.remove(la.getId());
-			if (null == list) continue;
-			for (final Node<?> nd : list) nd.setLayer(la);
-		}
-		if (!node_layer_table.isEmpty()) {
-			Utils.log("ERROR: node_layer_table is not empty!");
-		}
-		// 5 - Assign root nodes to Treelines, now that all nodes have a layer
-		for (final Map.Entry<Tree<?>,Node<?>> e : tree_root_nodes.entrySet()) {
-			if (null == e.getValue()) {
-				//Utils.log2("Ignoring, applies to new Treeline format only.");
-				continue;
+			// 4 - Assign layers to Treeline nodes
+			for (final Layer la : al_layers) {
+				final List<Node<?>> list = node_layer_table.remove(la.getId());
+				if (null == list) continue;
+				for (final Node<?> nd : list) nd.setLayer(la);
+			}
+			if (!node_layer_table.isEmpty()) {
+				Utils.log("ERROR: node_layer_table is not empty!");
+			}
+			// 5 - Assign root nodes to Treelines, now that all nodes have a layer
+			final ArrayList<Future<?>> tree_fus = new ArrayList<Future<?>>();
+			for (final Map.Entry<Tree<?>,Node<?>> e : tree_root_nodes.entrySet()) {
+				if (null == e.getValue()) {
+					//Utils.log2("Ignoring, applies to new Treeline format only.");
+					continue;
+				}
+				// Each Tree on its own
+				tree_fus.add(submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						// Can't compile with <?>
+						e.getKey().setRoot((Node)e.getValue()); // will generate node caches of each Treeline
+						return null;
+					}
+				}));
 			}
-			// Can't compile with <?>
-			e.getKey().setRoot((Node)e.getValue()); // will generate node caches of each Treeline
+			Utils.wait(tree_fus);
+			tree_root_nodes.clear();
+		} finally {
+			// Also when any of the above throws
+			destroy();
 		}
-		tree_root_nodes.clear();
 		// Assign colors to nodes
 		for (final Map.Entry<Color,Collection<Node<?>>> e : node_colors.entrySet()) {
 			for (final Node<?> nd : e.getValue()) {
@@ -311,20 +587,7 @@ public class TMLHandler extends DefaultHandler {
 			}
 
 			// Spawn threads to recreate buckets, starting from the subset of displays to open
-			int n = Runtime.getRuntime().availableProcessors();
-			switch (n) {
-				case 1:
-					break;
-				case 2:
-				case 3:
-				case 4:
-					n--;
-					break;
-				default:
-					n -= 2;
-					break;
-			}
-			final ExecutorService exec = Utils.newFixedThreadPool(n, "TMLHandler-recreateBuckets");
+			final ExecutorService exec = Utils.newFixedThreadPool(getDefaultThreadCount(), "TMLHandler-recreateBuckets");
 
 			final Set<Long> dlids = new HashSet<Long>();
 			final LayerSet layer_set = (LayerSet) root_lt.getObject();
@@ -517,29 +780,34 @@ public class TMLHandler extends DefaultHandler {
 
 		// terminate non-single clause objects
 		if (orig_qualified_name.equals("t2_node")) {
-			// Remove one node from the stack
-			nodes.removeLast();
-			taggables.removeLast();
+			// Close the node
+			if (null != last_tree_nodes) last_tree_nodes.end();
 		} else if (orig_qualified_name.equals("t2_connector")) {
 			if (null != last_connector) {
-				tree_root_nodes.put(last_connector, last_root_node);
-				last_root_node = null;
+				submitTreeNodes();
 				last_connector = null;
-				last_tree = null;
-				nodes.clear();
 			}
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area_list")) {
 			last_area_list = null;
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area")) {
-			if (null != reca) {
-				if (null != last_area_list) {
-					last_area_list.addArea(last_area_list_layer_id, reca.getArea()); // it's local
-				} else {
-					((AreaTree.AreaNode)nodes.getLast()).setData(reca.getArea());
-				}
-				reca = null;
+			if (null != last_area_paths && null == last_area_list) {
+				// Of an AreaTree node: built with the nodes
+				if (null != last_tree_nodes && last_tree_nodes.inNode()) last_tree_nodes.area(last_area_paths);
+				last_area_paths = null;
+			} else if (null != last_area_paths) {
+				final ArrayList<String> paths = last_area_paths;
+				final Future<Area> fu = submit(new Callable<Area>() {
+					@Override
+					public Area call() {
+						final ReconstructArea reca = new ReconstructArea();
+						for (final String d : paths) reca.add(d);
+						return reca.getArea();
+					}
+				});
+				pending_areas.add(new PendingArea(last_area_list, last_area_list_layer_id, fu));
+				last_area_paths = null;
 			}
 		} else if (orig_qualified_name.equals("ict_transform_list")) {
 			ct_list_stack.remove( ct_list_stack.size() - 1 );
@@ -548,17 +816,17 @@ public class TMLHandler extends DefaultHandler {
 				last_patch.setFilters(last_patch_filters.toArray(new IFilter[last_patch_filters.size()]));
 			}
 			if (null != last_ct) {
+				// Old XML with the transform inline: write it to its own file, in order
 				last_patch.setCoordinateTransformSilently(last_ct);
 				last_ct = null;
-			} else if (!last_patch.checkCoordinateTransformFile()) {
-				Utils.log("ERROR: could not find a file for the coordinate transform #" + last_patch.getCoordinateTransformId() + " of Patch #" + last_patch.getId());
-			}
-			if (!last_patch.checkAlphaMaskFile()) {
-				Utils.log("ERROR: could not find a file for the alpha mask #" + last_patch.getAlphaMaskId() + " of Patch #" + last_patch.getId());
 			}
+			// The files are checked, with those of all other patches of the layer, when the layer ends
+			layer_patches.add(last_patch);
 			last_patch = null;
 			last_patch_filters.clear();
 			last_displayable = null;
+		} else if (orig_qualified_name.equals("t2_layer")) {
+			submitLayerPatches();
 		} else if (orig_qualified_name.equals("t2_ball")) {
 			last_ball = null;
 			last_displayable = null;
@@ -568,26 +836,22 @@ public class TMLHandler extends DefaultHandler {
 		} else if (orig_qualified_name.equals("t2_treeline")) {
 			if (null != last_treeline) {
 				// old format:
-				if (null == last_root_node && null != last_treeline_data && last_treeline_data.length() > 0) {
-					last_root_node = parseBranch(Utils.trim(last_treeline_data));
-					last_treeline_data = null;
+				if (last_tree_nodes.isEmpty() && null != last_treeline_data && last_treeline_data.length() > 0) {
+					tree_root_nodes.put(last_treeline, parseBranch(Utils.trim(last_treeline_data)));
+					last_tree_nodes = null;
+				} else {
+					// new
+					submitTreeNodes();
 				}
-				// new
-				tree_root_nodes.put(last_treeline, last_root_node);
-				last_root_node = null;
 				// always:
+				last_treeline_data = null;
 				last_treeline = null;
-				last_tree = null;
-				nodes.clear();
 			}
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_areatree")) {
 			if (null != last_areatree) {
-				tree_root_nodes.put(last_areatree, last_root_node);
-				last_root_node = null;
+				submitTreeNodes();
 				last_areatree = null;
-				last_tree = null;
-				nodes.clear(); // the absence of this line would have made the nodes list grow with all nodes of all areatrees, which is ok but consumes memory
 			}
 			last_displayable = null;
 		} else if (orig_qualified_name.equals( "t2_stack" )) {
@@ -746,39 +1010,11 @@ public class TMLHandler extends DefaultHandler {
 			if (null != soid) oid = Long.parseLong(soid);
 
 			if (type.equals("node")) {
-				if (null == last_tree) {
+				if (null == last_tree_nodes) {
 					throw new NullPointerException("Can't create a node for null last_tree!");
 				}
-				final Node<?> node = last_tree.newNode(ht_attributes);
-				taggables.add(node);
-				// Put node into the list of nodes with that layer id, to update to proper Layer pointer later
-				final long ndlid = Long.parseLong(ht_attributes.get("lid"));
-				List<Node<?>> list = node_layer_table.get(ndlid);
-				if (null == list) {
-					list = new ArrayList<Node<?>>();
-					node_layer_table.put(ndlid, list);
-				}
-				list.add(node);
-				// Set node as root node or add as child to last node in the stack
-				if (null == last_root_node) {
-					last_root_node = node;
-				} else {
-					final String sconf = ht_attributes.get("c");
-					nodes.getLast().add((Node)node, null == sconf ? Node.MAX_EDGE_CONFIDENCE : Byte.parseByte(sconf));
-				}
-				// color?
-				final String scolor = ht_attributes.get("color");
-				if (null != scolor) {
-					final Color color = Utils.getRGBColorFromHex(scolor);
-					Collection<Node<?>> nodes = node_colors.get(color);
-					if (null == nodes) {
-						nodes = new ArrayList<Node<?>>();
-						node_colors.put(color, nodes);
-					}
-					nodes.add(node);
-				}
-				// Put node into stack of nodes (to be removed on closing the tag)
-				nodes.add(node);
+				// Built with all other nodes of the Tree when it ends
+				last_tree_nodes.start(ht_attributes);
 			} else if (type.equals("profile")) {
 				Profile profile = new Profile(this.project, oid, ht_attributes, ht_links);
 				profile.addToDatabase();
@@ -813,20 +1049,20 @@ public class TMLHandler extends DefaultHandler {
 				}
 				con.addToDatabase();
 				last_connector = con;
-				last_tree = con;
+				last_tree_nodes = new TreeNodes(con);
 				last_displayable = con;
 				ht_displayables.put(new Long(oid), con);
 				ht_zdispl.put(new Long(oid), con);
 				addToLastOpenLayerSet(con);
 				return null;
 			} else if (type.equals("path")) {
-				if (null != reca) {
-					reca.add(ht_attributes.get("d"));
+				if (null != last_area_paths) {
+					last_area_paths.add(ht_attributes.get("d"));
 					return null;
 				}
 				return null;
 			} else if (type.equals("area")) {
-				reca = new ReconstructArea();
+				last_area_paths = new ArrayList<String>();
 				if (null != last_area_list) {
 					last_area_list_layer_id = Long.parseLong(ht_attributes.get("layer_id"));
 				}
@@ -841,13 +1077,13 @@ public class TMLHandler extends DefaultHandler {
 				addToLastOpenLayerSet(area);
 				return null;
 			} else if (type.equals("tag")) {
-				Taggable t = taggables.getLast();
-				if (null != t) {
+				// Only nodes are Taggable
+				if (null != last_tree_nodes && last_tree_nodes.inNode()) {
 					Object ob = ht_attributes.get("key");
 					int keyCode = KeyEvent.VK_T; // defaults to 't'
 					if (null != ob) keyCode = (int)((String)ob).toUpperCase().charAt(0); // KeyEvent.VK_U is char U, not u
 					Tag tag = al_layer_sets.get(al_layer_sets.size()-1).putTag(ht_attributes.get("name"), keyCode);
-					if (null != tag) t.addTag(tag); // could be null if name is not found
+					if (null != tag) last_tree_nodes.tag(tag); // could be null if name is not found
 				}
 			} else if (type.equals("ball_ob")) {
 				// add a ball to the last open Ball
@@ -879,7 +1115,7 @@ public class TMLHandler extends DefaultHandler {
 				Treeline tline = new Treeline(this.project, oid, ht_attributes, ht_links);
 				tline.addToDatabase();
 				last_treeline = tline;
-				last_tree = tline;
+				last_tree_nodes = new TreeNodes(tline);
 				last_treeline_data = new StringBuilder();
 				last_displayable = tline;
 				ht_displayables.put(oid, tline);
@@ -889,7 +1125,7 @@ public class TMLHandler extends DefaultHandler {
 				AreaTree art = new AreaTree(this.project, oid, ht_attributes, ht_links);
 				art.addToDatabase();
 				last_areatree = art;
-				last_tree = art;
+				last_tree_nodes = new TreeNodes(art);
 				last_displayable = art;
 				ht_displayables.put(oid, art);
 				ht_zdispl.put(oid, art);
@@ -917,7 +1153,6 @@ public class TMLHandler extends DefaultHandler {
 				addToLastOpenLayer(patch);
 				last_patch = patch;
 				last_displayable = patch;
-				checkAlphaMasks(patch);
 				return null;
 			} else if (type.equals("filter")) {
 				last_patch_filters.add(newFilter(ht_attributes));
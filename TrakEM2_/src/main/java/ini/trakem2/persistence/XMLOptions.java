@@ -25,6 +25,10 @@ public class XMLOptions
 	/** If true, then {@link Patch#exportXML(StringBuilder, String, XMLOptions)} will write
 	 * the @{link {@link CoordinateTransform}} XML into the XML file. */
 	public boolean include_coordinate_transform = true;
+
+	/** If true, and the project was saved before, only the objects changed since then
+	 * are appended to the {@link ProjectJournal} of its file, if possible. */
+	public boolean journal = false;
 	
 	public XMLOptions() {}
 }
@@ -1,6 +1,7 @@
 
 package ini.trakem2.tree;
 
+import ini.trakem2.persistence.BinaryProjectReader;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -10,6 +11,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,6 +28,7 @@ public class DTDParser {
 	/** Extracts the template by reading the ELEMENT and ATTLIST tags from a .dtd file or the DOCTYPE of an .xml file. */
 	static public TemplateThing[] extractTemplate(String path) throws Exception {
 		if (path.matches(".*(\\.xml|\\.xml\\.gz)")) return parseXMLFile(path);
+		if (BinaryProjectReader.isBinary(path)) return parseXMLProlog(new BufferedReader(new StringReader(BinaryProjectReader.readProlog(path))));
 		if (path.length() -4 == path.lastIndexOf(".dtd")) return parseDTDFile(path);
 		return null;
 	}
@@ -63,10 +66,9 @@ public class DTDParser {
 	/** Parses a !DOCTYPE chunk from an .xml file, if any. Returns the TemplateThing roots. Assumes there is only one continuous DOCTYPE clause and the root template thing, the layer_set and the display are part of the project tag. */
 	static public TemplateThing[] parseXMLFile(String xml_path) throws Exception {
 		// fetch file
+		InputStream i_stream = null;
 		BufferedReader dis = null;
-		final StringBuilder data = new StringBuilder();
 		try {
-			InputStream i_stream;
 			if (FSLoader.isURL(xml_path)) {
 				i_stream = new java.net.URL(xml_path).openStream();
 			} else {
@@ -76,6 +78,21 @@ public class DTDParser {
 			}
 			if (xml_path.endsWith(".xml.gz")) i_stream = new GZIPInputStream(i_stream);
 			dis = new BufferedReader(new InputStreamReader(i_stream));
+		} finally {
+			// From here on parseXMLProlog closes the reader; until then, close what was opened
+			if (null == dis && null != i_stream) {
+				try {
+					i_stream.close();
+				} catch (Exception e) { IJError.print(e); }
+			}
+		}
+		return parseXMLProlog(dis);
+	}
+
+	/** Parses the !DOCTYPE chunk, if any, of the XML text read from @param dis, which is then closed. Returns the TemplateThing roots. */
+	static private TemplateThing[] parseXMLProlog(final BufferedReader dis) throws Exception {
+		final StringBuilder data = new StringBuilder();
+		try {
 			String tmp;
 			while (null != (tmp = dis.readLine())) {
 				int i_doc = tmp.indexOf("<!DOCTYPE ");
@@ -20,19 +20,21 @@
 package mpicbg.trakem2.align;
 
 import ij.process.ByteProcessor;
-import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.PathIterator;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -275,60 +277,131 @@ abstract public class AbstractAffineTile2D< A extends Model< A > & Affine2D< A >
 			final List< AAT > tiles,
 			final List< AbstractAffineTile2D< ? >[] > tilePairs )
 	{
-		final HashSet< Patch > visited = new HashSet< Patch >();
-
-		final ArrayList< AbstractAffineTile2D< ? >[] > tilePairCandidates = new ArrayList< AbstractAffineTile2D< ? >[] >();
+		pairOverlappingTiles( tiles, new BoxGrid( tiles ), true, tilePairs );
+	}
 
-		/* LUT for tiles */
-		final Hashtable< Patch, AAT > lut = new Hashtable< Patch, AAT >();
-		for ( final AAT tile : tiles )
-			lut.put( tile.patch, tile );
+	/**
+	 * Uniform grid over the world bounding boxes of a {@link List} of
+	 * {@link AbstractAffineTile2D Tiles}, the same boxes by which a
+	 * {@link ini.trakem2.display.Bucket} indexes {@link Patch Patches}.
+	 * Cells are as large as the average box, so that each box falls into a few
+	 * cells only and finding the boxes that intersect a given box takes about
+	 * constant time instead of a test against every box.
+	 */
+	final static private class BoxGrid
+	{
+		final List< ? extends AbstractAffineTile2D< ? > > tiles;
+		final Rectangle[] boxes;
+		final int side;
+		final HashMap< Long, ArrayList< Integer > > cells = new HashMap< Long, ArrayList< Integer > >();
 
-		for ( int a = 0; a < tiles.size(); ++a )
+		BoxGrid( final List< ? extends AbstractAffineTile2D< ? > > tiles )
 		{
-			final AbstractAffineTile2D< ? > ta = tiles.get( a );
-			final Patch pa = ta.patch;
-			visited.add( pa );
-			final Layer la = pa.getLayer();
-			for ( final Displayable d : la.getDisplayables( Patch.class, pa.getBoundingBox() ) )
+			this.tiles = tiles;
+			boxes = new Rectangle[ tiles.size() ];
+			long sum = 0;
+			for ( int i = 0; i < boxes.length; ++i )
+			{
+				boxes[ i ] = tiles.get( i ).patch.getBoundingBox( null );
+				sum += Math.max( boxes[ i ].width, boxes[ i ].height );
+			}
+			side = ( int )Math.max( 1, sum / Math.max( 1, boxes.length ) );
+			for ( int i = 0; i < boxes.length; ++i )
 			{
-				final Patch pb = ( Patch )d;
-				if ( visited.contains( pb ) )
-					continue;
+				final Rectangle r = boxes[ i ];
+				for ( int y = cell( r.y ); y <= cell( r.y + r.height ); ++y )
+					for ( int x = cell( r.x ); x <= cell( r.x + r.width ); ++x )
+					{
+						final Long key = key( x, y );
+						ArrayList< Integer > c = cells.get( key );
+						if ( null == c )
+						{
+							c = new ArrayList< Integer >();
+							cells.put( key, c );
+						}
+						c.add( i );
+					}
+			}
+		}
 
-				final AAT tb = lut.get( pb );
-				if ( tb == null )
-					continue;
+		final private int cell( final int coordinate )
+		{
+			return ( int )Math.floor( coordinate / ( double )side );
+		}
 
-				tilePairCandidates.add( new AbstractAffineTile2D< ? >[]{ ta, tb } );
-			}
+		final static private Long key( final int x, final int y )
+		{
+			return ( ( long )x << 32 ) | ( y & 0xffffffffL );
+		}
+
+		/**
+		 * Returns the indices, in increasing order, of the boxes that intersect
+		 * @param r.
+		 */
+		final TreeSet< Integer > find( final Rectangle r )
+		{
+			final TreeSet< Integer > found = new TreeSet< Integer >();
+			for ( int y = cell( r.y ); y <= cell( r.y + r.height ); ++y )
+				for ( int x = cell( r.x ); x <= cell( r.x + r.width ); ++x )
+				{
+					final ArrayList< Integer > c = cells.get( key( x, y ) );
+					if ( null == c ) continue;
+					for ( final Integer i : c )
+						if ( r.intersects( boxes[ i ] ) )
+							found.add( i );
+				}
+			return found;
 		}
+	}
 
+	/**
+	 * Pair each tile of tilesA with the tiles indexed in gridB whose bounding
+	 * boxes intersect its own, and keep the pairs whose {@link Patch Patches}
+	 * actually overlap.  When same, gridB indexes tilesA itself, and a tile is
+	 * only paired with the visible tiles after it in the same {@link Layer}.
+	 * The overlap tests run in parallel, but the pairs are added in order.
+	 */
+	final static private <AAT extends AbstractAffineTile2D< ? >> void pairOverlappingTiles(
+			final List< AAT > tilesA,
+			final BoxGrid gridB,
+			final boolean same,
+			final List< AbstractAffineTile2D< ? >[] > tilePairs )
+	{
+		final List< ? extends AbstractAffineTile2D< ? > > tilesB = gridB.tiles;
 		// TODO Fix this and use what the user wants to provide
 		final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
-		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
+		final ArrayList< Future< ArrayList< AbstractAffineTile2D< ? >[] > > > futures = new ArrayList< Future< ArrayList< AbstractAffineTile2D< ? >[] > > >();
 
-		for ( final AbstractAffineTile2D< ? >[] tatb : tilePairCandidates )
+		for ( int a = 0; a < tilesA.size(); ++a )
 		{
+			final int ia = a;
+			final AAT ta = tilesA.get( a );
 			futures.add( exec.submit(
-					new Runnable()
+					new Callable< ArrayList< AbstractAffineTile2D< ? >[] > >()
 					{
 						@Override
-						public void run()
+						public ArrayList< AbstractAffineTile2D< ? >[] > call()
 						{
-							if ( tatb[ 0 ].intersects( tatb[ 1 ] ) )
-								synchronized ( tilePairs )
-								{
-									tilePairs.add( tatb );
-								}
+							final ArrayList< AbstractAffineTile2D< ? >[] > pairs = new ArrayList< AbstractAffineTile2D< ? >[] >();
+							final Rectangle box = same ? gridB.boxes[ ia ] : ta.patch.getBoundingBox( null );
+							final Layer la = ta.patch.getLayer();
+							for ( final Integer ib : gridB.find( box ) )
+							{
+								final AbstractAffineTile2D< ? > tb = tilesB.get( ib );
+								if ( same && ( ib <= ia || la != tb.patch.getLayer() || !tb.patch.isVisible() ) )
+									continue;
+								if ( ta.intersects( tb ) )
+									pairs.add( new AbstractAffineTile2D< ? >[]{ ta, tb } );
+							}
+							return pairs;
 						}
 					} ) );
 		}
 
 		try
 		{
-			for ( final Future< ? > f : futures )
-				f.get();
+			for ( final Future< ArrayList< AbstractAffineTile2D< ? >[] > > f : futures )
+				tilePairs.addAll( f.get() );
 		}
 		catch ( final InterruptedException e )
 		{
@@ -342,60 +415,6 @@ abstract public class AbstractAffineTile2D< A extends Model< A > & Affine2D< A >
 		{
 			exec.shutdown();
 		}
-
-
-//		// 1. Precompute the Area of each tile's Patch
-//		final HashMap< Patch, Pair< AAT, Area > > m = new HashMap< Patch, Pair< AAT, Area > >();
-//		// A lazy collection of pairs, computed in parallel ahead of consumption
-//		final Iterable< Pair< AAT, Area > > ts =
-//				new ParallelMapping< AAT, Pair< AAT, Area > >(
-//						tiles,
-//						new TaskFactory< AAT, Pair< AAT, Area > >() {
-//							@Override
-//							public Pair< AAT, Area > process( final AAT tile ) {
-//								return new Pair< AAT, Area >( tile, tile.patch.getArea() );
-//							}
-//						}
-//				);
-//		for ( final Pair< AAT, Area > t : ts) {
-//			m.put( t.a.patch, t );
-//		}
-//
-//		// 2. Obtain the list of tile pairs, at one list per tile
-//		final Iterable< List<AbstractAffineTile2D< ? >[]> > pairsList =
-//				new ParallelMapping< AAT, List<AbstractAffineTile2D< ? >[]> >(
-//						tiles,
-//						new TaskFactory< AAT, List<AbstractAffineTile2D< ? >[]> >() {
-//							@Override
-//							public List<AbstractAffineTile2D< ? >[]> process( final AAT ta ) {
-//								final Area a;
-//								synchronized (m) {
-//									a = m.get( ta.patch ).b;
-//								}
-//								final ArrayList<AbstractAffineTile2D< ? >[]> seq = new ArrayList<AbstractAffineTile2D< ? >[]>();
-//								for ( final Patch p : ta.patch.getLayer().getIntersecting( ta.patch, Patch.class ) ) {
-//									if ( p == ta.patch )
-//										continue;
-//									final Pair< AAT, Area > pair;
-//									synchronized (m) {
-//										pair =  m.get(p);
-//									}
-//									// Check that the Patch is among those to consider in the alignment
-//									if ( null != pair ) {
-//										// Check that the Patch visible pixels overlap -- may not if it has an alpha mask or coordinate transform
-//										if ( M.intersects( a, pair.b ) ) {
-//											seq.add( new AbstractAffineTile2D< ? >[]{ ta, pair.a });
-//										}
-//									}
-//								}
-//								return seq;
-//							}
-//						}
-//				);
-//
-//		for (final List<AbstractAffineTile2D<?>[]> list: pairsList) {
-//			tilePairs.addAll(list);
-//		}
 	}
 
 	/**
@@ -436,16 +455,7 @@ abstract public class AbstractAffineTile2D< A extends Model< A > & Affine2D< A >
 			final List< AbstractAffineTile2D< ? > > tilesB,
 			final List< AbstractAffineTile2D< ? >[] > tilePairs )
 	{
-		for ( int a = 0; a < tilesA.size(); ++a )
-		{
-			for ( int b = 0; b < tilesB.size(); ++b )
-			{
-				final AbstractAffineTile2D< ? > ta = tilesA.get( a );
-				final AbstractAffineTile2D< ? > tb = tilesB.get( b );
-				if ( ta.intersects( tb ) )
-					tilePairs.add( new AbstractAffineTile2D< ? >[]{ ta, tb } );
-			}
-		}
+		pairOverlappingTiles( tilesA, new BoxGrid( tilesB ), false, tilePairs );
 	}
 
 	/**
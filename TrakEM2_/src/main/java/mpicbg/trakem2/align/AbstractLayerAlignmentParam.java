@@ -57,6 +57,57 @@ public class AbstractLayerAlignmentParam
 	
 	public int maxNumThreads = Runtime.getRuntime().availableProcessors();
 	
+	/**
+	 * Fit independent tiles in parallel, see
+	 * {@link TileConfiguration#optimizeConcurrently(float, int, int, int)};
+	 * converges differently than the default sequential optimizer
+	 */
+	public boolean optimizeConcurrently = false;
+	
+	/**
+	 * Save the results of pairs of layers as they are computed, see
+	 * {@link AlignmentCheckpoint}; they are kept in the project storage
+	 * after the run is done, until cleared
+	 */
+	public boolean saveCheckpoints = false;
+	
+	/**
+	 * Read back the results of pairs of layers saved by an earlier run with
+	 * compatible parameters, instead of computing them again
+	 */
+	public boolean resume = false;
+	
+	/**
+	 * Delete all saved results of pairs of layers of this kind of alignment
+	 * before running
+	 */
+	public boolean clearCheckpoints = false;
+	
+	/**
+	 * Describes the parameters that the correspondences and models of pairs
+	 * of layers depend on, as key of their {@link AlignmentCheckpoint}.
+	 */
+	public String correspondenceKey()
+	{
+		return new StringBuilder( "sift=" )
+			.append( ppm.sift.fdBins ).append( ',' )
+			.append( ppm.sift.fdSize ).append( ',' )
+			.append( ppm.sift.initialSigma ).append( ',' )
+			.append( ppm.sift.maxOctaveSize ).append( ',' )
+			.append( ppm.sift.minOctaveSize ).append( ',' )
+			.append( ppm.sift.steps )
+			.append( " rod=" ).append( ppm.rod )
+			.append( " recall=" ).append( ppm.matchRecall )
+			.append( " model=" ).append( expectedModelIndex )
+			.append( " maxEpsilon=" ).append( maxEpsilon )
+			.append( " minInlierRatio=" ).append( minInlierRatio )
+			.append( " minNumInliers=" ).append( minNumInliers )
+			.append( " multipleHypotheses=" ).append( multipleHypotheses )
+			.append( " rejectIdentity=" ).append( rejectIdentity )
+			.append( " identityTolerance=" ).append( identityTolerance )
+			.toString();
+	}
+	
 	
 	public boolean setupSIFT( final String title )
 	{
@@ -67,6 +118,7 @@ public class AbstractLayerAlignmentParam
 		
 		gdSIFT.addMessage( "Local Descriptor Matching:" );
 		gdSIFT.addNumericField( "closest/next_closest_ratio :", ppm.rod, 2 );
+		gdSIFT.addNumericField( "matching_recall :", ppm.matchRecall, 2 );
 		
 		gdSIFT.addMessage( "Miscellaneous:" );
 		gdSIFT.addCheckbox( "clear_cache", ppm.clearCache );
@@ -80,6 +132,7 @@ public class AbstractLayerAlignmentParam
 		SIFT.readFields( gdSIFT, ppm.sift );
 		
 		ppm.rod = ( float )gdSIFT.getNextNumber();
+		ppm.matchRecall = ( float )gdSIFT.getNextNumber();
 		ppm.clearCache = gdSIFT.getNextBoolean();
 		ppm.maxNumThreadsSift = ( int )gdSIFT.getNextNumber();
 		
@@ -145,7 +198,7 @@ public class AbstractLayerAlignmentParam
 	@Override
 	public AbstractLayerAlignmentParam clone()
 	{
-		return new AbstractLayerAlignmentParam(
+		final AbstractLayerAlignmentParam clone = new AbstractLayerAlignmentParam(
 				ppm.sift.fdBins,
 				ppm.sift.fdSize,
 				ppm.sift.initialSigma,
@@ -171,5 +224,11 @@ public class AbstractLayerAlignmentParam
 				multipleHypotheses,
 				rejectIdentity,
 				visualize );
+		clone.ppm.matchRecall = ppm.matchRecall;
+		clone.optimizeConcurrently = optimizeConcurrently;
+		clone.saveCheckpoints = saveCheckpoints;
+		clone.resume = resume;
+		clone.clearCheckpoints = clearCheckpoints;
+		return clone;
 	}
 }
\ No newline at end of file
@@ -19,12 +19,18 @@ import ini.trakem2.utils.Utils;
 import java.awt.Color;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.ij.FeatureTransform;
@@ -65,6 +71,12 @@ public class Align
 		 */
 		public float rod = 0.92f;
 
+		/**
+		 * Fraction of features for which the closest neighbour must be found
+		 * exactly; below 1, features are matched with a {@link FeatureIndex}
+		 */
+		public float matchRecall = 1.0f;
+
 		/**
 		 * Maximal allowed alignment error in px
 		 */
@@ -117,6 +129,7 @@ public class Align
 		{
 			SIFT.addFields( gd, sift );
 			gd.addNumericField( "closest/next_closest_ratio :", rod, 2 );
+			gd.addNumericField( "matching_recall :", matchRecall, 2 );
 		}
 
 		public void addGeometricConsensusFilterFields( final GenericDialog gd )
@@ -161,6 +174,7 @@ public class Align
 		{
 			SIFT.readFields( gd, sift );
 			rod = ( float )gd.getNextNumber();
+			matchRecall = ( float )gd.getNextNumber();
 
 			return !gd.invalidNumber();
 		}
@@ -265,6 +279,7 @@ public class Align
 			p.sift.fdBins = this.sift.fdBins;
 
 			p.rod = rod;
+			p.matchRecall = matchRecall;
 			p.maxEpsilon = maxEpsilon;
 			p.minInlierRatio = minInlierRatio;
 			p.minNumInliers = minNumInliers;
@@ -298,6 +313,7 @@ public class Align
 			return
 				sift.equals( p.sift ) &&
 				( rod == p.rod ) &&
+				( matchRecall == p.matchRecall ) &&
 				( maxEpsilon == p.maxEpsilon ) &&
 				( minInlierRatio == p.minInlierRatio ) &&
 				( minNumInliers == p.minNumInliers ) &&
@@ -306,6 +322,13 @@ public class Align
 				( identityTolerance == p.identityTolerance );
 //			&& ( desiredModelIndex == p.desiredModelIndex );
 		}
+
+		private void readObject( final ObjectInputStream in ) throws IOException, ClassNotFoundException
+		{
+			in.defaultReadObject();
+			/* serialized before matchRecall existed: matched exhaustively */
+			if ( 0 == matchRecall ) matchRecall = 1.0f;
+		}
 	}
 
 	final static public Param param = new Param();
@@ -331,6 +354,13 @@ public class Align
 		public boolean filterOutliers = false;
 		public float meanFactor = 3.0f;
 
+		/**
+		 * Fit independent tiles in parallel, see
+		 * {@link TileConfiguration#optimizeConcurrently(float, int, int, int)};
+		 * converges differently than the default sequential optimizer
+		 */
+		public boolean optimizeConcurrently = false;
+
 		@Override
 		public void addAlignmentFields( final GenericDialog gd )
 		{
@@ -342,6 +372,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addCheckbox( "optimize_concurrently", optimizeConcurrently );
 		}
 
 		@Override
@@ -353,6 +384,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			optimizeConcurrently = gd.getNextBoolean();
 
 			return !gd.invalidNumber();
 		}
@@ -366,6 +398,7 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addCheckbox( "optimize_concurrently", optimizeConcurrently );
 		}
 
 		@Override
@@ -377,6 +410,7 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			optimizeConcurrently = gd.getNextBoolean();
 
 			return !gd.invalidNumber();
 		}
@@ -396,6 +430,7 @@ public class Align
 			p.sift.fdBins = this.sift.fdBins;
 
 			p.rod = rod;
+			p.matchRecall = matchRecall;
 			p.maxEpsilon = maxEpsilon;
 			p.minInlierRatio = minInlierRatio;
 			p.minNumInliers = minNumInliers;
@@ -411,6 +446,7 @@ public class Align
 			p.maxPlateauwidth = maxPlateauwidth;
 			p.filterOutliers = filterOutliers;
 			p.meanFactor = meanFactor;
+			p.optimizeConcurrently = optimizeConcurrently;
 
 			return p;
 		}
@@ -422,36 +458,29 @@ public class Align
 				( maxIterations == p.maxIterations ) &&
 				( maxPlateauwidth == p.maxPlateauwidth ) &&
 				( filterOutliers == p.filterOutliers ) &&
-				( meanFactor == p.meanFactor );
+				( meanFactor == p.meanFactor ) &&
+				( optimizeConcurrently == p.optimizeConcurrently );
 		}
 	}
 
 	final static public ParamOptimize paramOptimize = new ParamOptimize();
 
+	/** As saved before the {@link FeatureStore}; read only. */
 	final static private class Features implements Serializable
 	{
 		private static final long serialVersionUID = 2689219384710526198L;
 
 		FloatArray2DSIFT.Param p;
 		ArrayList< Feature > features;
-		Features( final FloatArray2DSIFT.Param p, final ArrayList< Feature > features )
-		{
-			this.p = p;
-			this.features = features;
-		}
 	}
 
+	/** As saved before the {@link FeatureStore}; read only. */
 	final static private class PointMatches implements Serializable
 	{
 		private static final long serialVersionUID = -2564147268101223484L;
 
 		Param p;
 		ArrayList< PointMatch > pointMatches;
-		PointMatches( final Param p, final ArrayList< PointMatch > pointMatches )
-		{
-			this.p = p;
-			this.pointMatches = pointMatches;
-		}
 	}
 
 	/**
@@ -573,11 +602,7 @@ public class Align
 
 					final long s = System.currentTimeMillis();
 
-					FeatureTransform.matchFeatures(
-						fetchFeatures( p, tilePair[ 0 ] ),
-						fetchFeatures( p, tilePair[ 1 ] ),
-						candidates,
-						p.rod );
+					matchFeatures( p, tilePair[ 0 ], tilePair[ 1 ], candidates );
 
 					/* find the model */
 					final AbstractAffineModel2D< ? > model;
@@ -690,15 +715,25 @@ public class Align
 	}
 
 
+	final static private String featuresPath( final Patch patch )
+	{
+		return new StringBuilder( patch.getProject().getLoader().getUNUIdFolder() ).append( "features.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString();
+	}
+
+	final static private String pointMatchesPath( final Patch p1, final Patch p2 )
+	{
+		return new StringBuilder( p1.getProject().getLoader().getUNUIdFolder() ).append( "pointmatches.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString();
+	}
+
+	/**
+	 * Save the features with the {@link FeatureStore}, in the background:
+	 * see {@link FeatureStore#flush()}.
+	 */
 	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
-		final Patch patch = t.getPatch();
-		final Loader loader = patch.getProject().getLoader();
-		final Features fe = new Features( p.sift, list );
-		return loader.serialize( fe, new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
+		return FeatureStore.writeFeatures( featuresPath( t.getPatch() ), p.sift, f, true );
 	}
 
 	/**
@@ -707,10 +742,17 @@ public class Align
 	final static protected Collection< Feature > deserializeFeatures( final Param p, final AbstractAffineTile2D< ? > t )
 	{
 		final Patch patch = t.getPatch();
-		final Loader loader = patch.getProject().getLoader();
+		final String path = featuresPath( patch );
+
+		if ( !FeatureStore.isLegacy( path ) )
+		{
+			final FeatureStore.Entry< Feature > fe = FeatureStore.readFeatures( path );
+			if ( null != fe && fe.key instanceof FloatArray2DSIFT.Param && p.sift.equals( ( FloatArray2DSIFT.Param )fe.key ) )
+				return fe.items;
+			return null;
+		}
 
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
-			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
+		final Object ob = patch.getProject().getLoader().deserialize( path );
 		if ( null != ob )
 		{
 			try
@@ -750,6 +792,53 @@ public class Align
 	}
 
 
+	/** {@link FeatureIndex FeatureIndices} of tiles, kept while memory allows. */
+	final static private Map< AbstractAffineTile2D< ? >, SoftReference< FeatureIndex > > featureIndices =
+			Collections.synchronizedMap( new WeakHashMap< AbstractAffineTile2D< ? >, SoftReference< FeatureIndex > >() );
+
+	/**
+	 * Fetch the {@link FeatureIndex} of the features of a tile, building it
+	 * only once for all the pairs the tile takes part in.
+	 */
+	final static protected FeatureIndex fetchFeatureIndex(
+			final Param p,
+			final AbstractAffineTile2D< ? > t )
+	{
+		final SoftReference< FeatureIndex > ref = featureIndices.get( t );
+		FeatureIndex index = null == ref ? null : ref.get();
+		if ( null == index || index.getRecall() != p.matchRecall )
+		{
+			final long s = System.currentTimeMillis();
+			index = new FeatureIndex( fetchFeatures( p, t ), p.matchRecall );
+			Utils.log2( "Indexed " + index.size() + " features of tile \"" + t.getPatch().getTitle() + "\" comparing up to " + index.getChecks() + " per query (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+			featureIndices.put( t, new SoftReference< FeatureIndex >( index ) );
+		}
+		return index;
+	}
+
+
+	/**
+	 * Match the features of @param t1 to those of @param t2, exhaustively
+	 * or, when {@link Param#matchRecall} is below 1, with the
+	 * {@link FeatureIndex} of @param t2.
+	 */
+	final static protected void matchFeatures(
+			final Param p,
+			final AbstractAffineTile2D< ? > t1,
+			final AbstractAffineTile2D< ? > t2,
+			final List< PointMatch > candidates )
+	{
+		if ( p.matchRecall >= 1 )
+			FeatureTransform.matchFeatures(
+					fetchFeatures( p, t1 ),
+					fetchFeatures( p, t2 ),
+					candidates,
+					p.rod );
+		else
+			fetchFeatureIndex( p, t2 ).match( fetchFeatures( p, t1 ), candidates, p.rod );
+	}
+
+
 	/**
 	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided.
 	 * Creates two serialization files which is desperately required to clean
@@ -767,20 +856,13 @@ public class Align
 			final AbstractAffineTile2D< ? > t2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
-		final Loader loader = p1.getProject().getLoader();
 		return
-			loader.serialize(
-				new PointMatches( p, list ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( p, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" ).append( FSLoader.createIdPath( Long.toString( p2.getId() ) + "_" + Long.toString( p1.getId() ), "pointmatches", ".ser" ) ).toString() );
+			FeatureStore.writePointMatches( pointMatchesPath( p1, p2 ), p, m, true ) &&
+			FeatureStore.writePointMatches( pointMatchesPath( p2, p1 ), p, tsil, true );
 	}
 
 
@@ -791,10 +873,17 @@ public class Align
 	{
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
-		final Loader loader = p1.getProject().getLoader();
+		final String path = pointMatchesPath( p1, p2 );
 
-		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" )
-				.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() );
+		if ( !FeatureStore.isLegacy( path ) )
+		{
+			final FeatureStore.Entry< PointMatch > pm = FeatureStore.readPointMatches( path );
+			if ( null != pm && pm.key instanceof Param && p.equals( ( Param )pm.key ) )
+				return pm.items;
+			return null;
+		}
+
+		final Object ob = p1.getProject().getLoader().deserialize( path );
 
 		if ( null != ob )
 		{
@@ -845,11 +934,7 @@ public class Align
 			final List< PointMatch > inliers = new ArrayList< PointMatch >();
 
 			final long s = System.currentTimeMillis();
-			FeatureTransform.matchFeatures(
-					fetchFeatures( p, t1 ),
-					fetchFeatures( p, t2 ),
-					candidates,
-					p.rod );
+			matchFeatures( p, t1, t2, candidates );
 
 			final AbstractAffineModel2D< ? > model;
 			switch ( p.expectedModelIndex )
@@ -930,7 +1015,7 @@ public class Align
 		else
 			AbstractAffineTile2D.pairTiles( tiles, tilePairs );
 		connectTilePairs( p, tiles, tilePairs, numThreads );
-		optimizeTileConfiguration( p, tiles, fixedTiles );
+		optimizeTileConfiguration( p, tiles, fixedTiles, numThreads );
 	}
 
 
@@ -976,6 +1061,22 @@ public class Align
 			final ParamOptimize p,
 			final List< AbstractAffineTile2D< ? > > tiles,
 			final List< AbstractAffineTile2D< ? > > fixedTiles )
+	{
+		optimizeTileConfiguration( p, tiles, fixedTiles, 1 );
+	}
+
+	/**
+	 * Align a set of {@link AbstractAffineTile2D tiles} that are
+	 * interconnected by {@link PointMatch point-correspondences}, fitting
+	 * the tiles with numThreads threads if {@link ParamOptimize#optimizeConcurrently}
+	 * and outliers are not to be filtered.
+	 * See {@link TileConfiguration#optimizeConcurrently(float, int, int, int)}.
+	 */
+	final static public void optimizeTileConfiguration(
+			final ParamOptimize p,
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? > > fixedTiles,
+			final int numThreads )
 	{
 		final TileConfiguration tc = new TileConfiguration();
 		for ( final AbstractAffineTile2D< ? > t : tiles )
@@ -1003,6 +1104,8 @@ public class Align
 		{
 			if ( p.filterOutliers )
 				tc.optimizeAndFilter( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, p.meanFactor );
+			else if ( p.optimizeConcurrently && numThreads > 1 )
+				tc.optimizeConcurrently( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, numThreads );
 			else
 				tc.optimize( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth );
 		}
@@ -1107,6 +1210,9 @@ public class Align
 			Thread.currentThread().interrupt();
 			IJ.showProgress( 1.0 );
 		}
+
+		/* features and point matches were saved in the background */
+		FeatureStore.flush();
 	}
 
 
@@ -1199,8 +1305,7 @@ public class Align
 
 		alignTiles( paramOptimize, tiles, fixedTiles, numThreads );
 
-		for ( final AbstractAffineTile2D< ? > t : tiles )
-			t.getPatch().setAffineTransform( t.getModel().createAffine() );
+		TransformApplier.setAffineTransforms( tiles );
 	}
 
 
@@ -1223,8 +1328,7 @@ public class Align
 
 		alignTiles( paramOptimize, tiles, fixedTiles, numThreads );
 
-		for ( final AbstractAffineTile2D< ? > t : tiles )
-			t.getPatch().setAffineTransform( t.getModel().createAffine() );
+		TransformApplier.setAffineTransforms( tiles );
 	}
 
 	/**
@@ -1302,11 +1406,12 @@ public class Align
 
 				candidates.clear();
 
-				FeatureTransform.matchFeatures(
+				FeatureIndex.matchFeatures(
 					features2,
 					features1,
 					candidates,
-					p.rod );
+					p.rod,
+					p.matchRecall );
 
 				final AbstractAffineModel2D< ? > model;
 				switch ( p.expectedModelIndex )
@@ -1471,11 +1576,12 @@ public class Align
 		if ( featuresA.size() > 0 && featuresB.size() > 0 )
 		{
 			s = System.currentTimeMillis();
-			FeatureTransform.matchFeatures(
+			FeatureIndex.matchFeatures(
 					featuresA,
 					featuresB,
 					candidates,
-					pp.rod );
+					pp.rod,
+					pp.matchRecall );
 
 			final AbstractAffineModel2D< ? > model;
 			switch ( p.expectedModelIndex )
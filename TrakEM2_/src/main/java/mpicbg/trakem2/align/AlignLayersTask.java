@@ -213,6 +213,11 @@ final public class AlignLayersTask
 				if (null != toMatch2 && !patch.getTitle().matches(toMatch2)) return false;
 				return true;
 			}
+			/** Describes the filter for the keys of {@link AlignmentCheckpoint}s. */
+			@Override
+			public final String toString() {
+				return "visibleOnly=" + visibleOnly + " match=" + toMatch2;
+			}
 		};
 
 		if ( mode == ELASTIC )
@@ -52,7 +52,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.Tile;
 import mpicbg.models.Transforms;
-import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
 import mpicbg.trakem2.transform.InvertibleCoordinateTransform;
 import mpicbg.trakem2.transform.MovingLeastSquaresTransform2;
@@ -1280,8 +1279,7 @@ A:		for ( final Layer layer : layers )
 			Align.optimizeTileConfiguration( pcp, allTiles, allFixedTiles );
 			if (Thread.currentThread().isInterrupted()) return;
 			
-			for ( final AbstractAffineTile2D< ? > t : allTiles )
-				t.getPatch().setAffineTransform( t.getModel().createAffine() );
+			TransformApplier.setAffineTransforms( allTiles );
 			
 			previousLayer = layer;
 		}
@@ -1337,6 +1335,7 @@ A:		for ( final Layer layer : layers )
 				tileCenterPoints.put( t.getPatch(), new PointMatch( q.clone(), q ) );
 			}
 			
+			final TransformApplier applier = new TransformApplier();
 			for ( final Layer layer : layerRange )
 			{
 				Utils.log( "layer" + layer );
@@ -1378,39 +1377,22 @@ A:		for ( final Layer layer : layers )
 						toBeDeformedTiles.add( t );
 					}
 					
-					for ( final AbstractAffineTile2D< ? > t : toBeDeformedTiles )
+					/* the same deformation for all tiles of the graph, applied to all layers at once below */
+					try
 					{
-						if ( Thread.currentThread().isInterrupted() ) return;
-						
-						try
-						{
-							final Patch patch = t.getPatch();
-							final Rectangle pbox = patch.getCoordinateTransformBoundingBox();
-							final AffineTransform pat = new AffineTransform();
-							pat.translate( -pbox.x, -pbox.y );
-							pat.preConcatenate( patch.getAffineTransform() );
-							
-							final mpicbg.trakem2.transform.AffineModel2D toWorld = new mpicbg.trakem2.transform.AffineModel2D();
-							toWorld.set( pat );
-							
-							final MovingLeastSquaresTransform2 mlst = Align.createMLST( matches, 1.0f );
-							
-							final CoordinateTransformList< CoordinateTransform > ctl = new CoordinateTransformList< CoordinateTransform >();
-							ctl.add( toWorld );
-							ctl.add( mlst );
-							ctl.add( toWorld.createInverse() );
-							
-							patch.appendCoordinateTransform( ctl );
-							
-							patch.getProject().getLoader().regenerateMipMaps( patch );
-						}
-						catch ( final Exception e )
-						{
-							e.printStackTrace();
-						}
+						final MovingLeastSquaresTransform2 mlst = Align.createMLST( matches, 1.0f );
+						for ( final AbstractAffineTile2D< ? > t : toBeDeformedTiles )
+							applier.add( t.getPatch(), mlst );
+					}
+					catch ( final Exception e )
+					{
+						e.printStackTrace();
 					}
 				}
 			}
+			
+			TransformApplier.regenerateMipMaps( applier.apply( Runtime.getRuntime().availableProcessors() ) );
+			if ( Thread.currentThread().isInterrupted() ) return;
 		}
 		
 		layerRange.get(0).getParent().setMinimumDimensions();
@@ -0,0 +1,211 @@
+package mpicbg.trakem2.align;
+
+import ini.trakem2.Project;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.models.PointMatch;
+
+/**
+ * Persistent results of the pairs of layers of an alignment run, so that a
+ * run that was interrupted or canceled can be resumed without computing
+ * them again, and a finished run can be optimized again with other
+ * parameters.  Results are saved as {@link PointMatch point matches} with
+ * the {@link FeatureStore} in the folder checkpoints/&lt;name&gt;/ of the
+ * project storage, under the ids of the two layers and the name of a part,
+ * and with a key that describes the parameters they were computed with
+ * and the content of the two layers, see {@link #fingerprint(Layer, Filter)}.
+ *
+ * Results are saved only when enabled, and read back only when resuming:
+ * then a result is read back when its key equals the current key, and
+ * otherwise the pair is computed again and its checkpoint overwritten.
+ * An empty collection stands for a pair that failed.  Checkpoints are kept
+ * after the alignment is done, until {@link #clear(Project, String)}.
+ */
+public final class AlignmentCheckpoint implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	final private String folder;
+	final private String key;
+	final private boolean save;
+	final private boolean resume;
+	/** The fingerprint of each layer by its id, as of the start of the run. */
+	final private HashMap< Long, String > fingerprints = new HashMap< Long, String >();
+
+	/**
+	 * @param name of the kind of alignment, for the folder
+	 * @param key the parameters that the results depend on
+	 * @param layerRange the layers whose content the results depend on
+	 * @param filter of the patches of the layers, or null for all
+	 * @param save whether to save the results as they are computed
+	 * @param resume whether to read back results saved before
+	 */
+	public AlignmentCheckpoint(
+			final Project project,
+			final String name,
+			final String key,
+			final List< Layer > layerRange,
+			final Filter< Patch > filter,
+			final boolean save,
+			final boolean resume )
+	{
+		this.folder = folder( project, name );
+		this.key = key;
+		this.save = save;
+		this.resume = resume;
+		if ( save || resume )
+			for ( final Layer layer : layerRange )
+				fingerprints.put( layer.getId(), fingerprint( layer, filter ) );
+	}
+
+	/**
+	 * Describes the content of a layer that the results of its pairs depend
+	 * on: a hash of the id, affine transform, coordinate transform id,
+	 * alpha mask id, display range and image file modification time of each
+	 * of its patches accepted by filter.
+	 */
+	static public String fingerprint( final Layer layer, final Filter< Patch > filter )
+	{
+		final List< Patch > patches = AlignmentUtils.filterPatches( layer, filter );
+		final double[] m = new double[ 6 ];
+		long h = 17;
+		for ( final Patch patch : patches )
+		{
+			h = 31 * h + patch.getId();
+			patch.getAffineTransform().getMatrix( m );
+			for ( final double d : m )
+				h = 31 * h + Double.doubleToLongBits( d );
+			h = 31 * h + patch.getCoordinateTransformId();
+			h = 31 * h + patch.getAlphaMaskId();
+			h = 31 * h + Double.doubleToLongBits( patch.getMin() );
+			h = 31 * h + Double.doubleToLongBits( patch.getMax() );
+			final String path = patch.getImageFilePath();
+			h = 31 * h + ( null == path ? 0 : new File( path ).lastModified() );
+		}
+		return new StringBuilder().append( patches.size() ).append( ':' ).append( Long.toHexString( h ) ).toString();
+	}
+
+	/** The key of the results of the pair of layers id1 and id2. */
+	final private String key( final long id1, final long id2 )
+	{
+		return new StringBuilder( key ).append( " content=" ).append( fingerprints.get( id1 ) ).append( ',' ).append( fingerprints.get( id2 ) ).toString();
+	}
+
+	static final private String folder( final Project project, final String name )
+	{
+		return new StringBuilder( project.getLoader().getUNUIdFolder() ).append( "checkpoints/" ).append( name ).append( '/' ).toString();
+	}
+
+	final private String path( final String part, final long id1, final long id2 )
+	{
+		return folder + FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), part, ".ser" );
+	}
+
+	/**
+	 * Returns the matches saved for part of the pair of layers id1 and id2,
+	 * or null if not resuming, if there are none or if they were computed
+	 * with other parameters or from layers whose content changed since.
+	 */
+	public ArrayList< PointMatch > read( final String part, final long id1, final long id2 )
+	{
+		if ( !resume ) return null;
+		final FeatureStore.Entry< PointMatch > e = FeatureStore.readPointMatches( path( part, id1, id2 ) );
+		if ( null == e ) return null;
+		if ( !key( id1, id2 ).equals( e.key ) )
+		{
+			Utils.log( "Checkpoint of " + part + " for layers " + id1 + " and " + id2 + " was computed with other parameters or layer contents: computing again." );
+			return null;
+		}
+		return e.items;
+	}
+
+	/**
+	 * Save the matches of part of the pair of layers id1 and id2, unless
+	 * saving is disabled; null for a pair that failed.  When batch, the file
+	 * is written in the background until the next {@link #flush()}.
+	 */
+	public void write( final String part, final long id1, final long id2, final Collection< PointMatch > matches, final boolean batch )
+	{
+		if ( !save ) return;
+		final Collection< PointMatch > m = null == matches ? Collections.< PointMatch >emptyList() : matches;
+		if ( !FeatureStore.writePointMatches( path( part, id1, id2 ), key( id1, id2 ), m, batch ) )
+			Utils.log( "Could not save checkpoint of " + part + " for layers " + id1 + " and " + id2 + "." );
+	}
+
+	/**
+	 * Delete all checkpoints of the kind of alignment name in project, for
+	 * when the user has no further use for them.
+	 */
+	static public void clear( final Project project, final String name )
+	{
+		FeatureStore.flush();
+		final File dir = new File( folder( project, name ) );
+		if ( !dir.exists() ) return;
+		final int n = delete( dir );
+		Utils.log( "Deleted " + n + " " + name + " alignment checkpoints." );
+	}
+
+	/** Delete the files in dir and its subfolders, and the folders as they become empty; returns the number of files deleted. */
+	static final private int delete( final File dir )
+	{
+		int n = 0;
+		final File[] files = dir.listFiles();
+		if ( null != files )
+		{
+			for ( final File f : files )
+			{
+				if ( f.isDirectory() )
+					n += delete( f );
+				else if ( f.delete() )
+					++n;
+				else
+					Utils.log2( "Could not delete checkpoint " + f );
+			}
+		}
+		dir.delete();
+		return n;
+	}
+
+	/**
+	 * Describes, for a key, the layers of an alignment and which of them are
+	 * fixed, by their ids, and the filter of the patches by its toString();
+	 * a filter that doesn't override toString() never matches one of another
+	 * run, so that its checkpoints are never read back.
+	 */
+	static public String describe( final List< Layer > layerRange, final Set< Layer > fixedLayers, final Filter< Patch > filter )
+	{
+		final StringBuilder sb = new StringBuilder( "layers=" );
+		if ( !layerRange.isEmpty() )
+			sb.append( layerRange.get( 0 ).getId() ).append( ".." ).append( layerRange.get( layerRange.size() - 1 ).getId() );
+		sb.append( '(' ).append( layerRange.size() ).append( ')' );
+		if ( null != fixedLayers )
+		{
+			final long[] ids = new long[ fixedLayers.size() ];
+			int i = 0;
+			for ( final Layer layer : fixedLayers ) ids[ i++ ] = layer.getId();
+			Arrays.sort( ids );
+			sb.append( " fixed=" ).append( Arrays.toString( ids ) );
+		}
+		return sb.append( " filter=" ).append( filter ).toString();
+	}
+
+	/** Wait until the checkpoints written in batch are on disk. */
+	public void flush()
+	{
+		FeatureStore.flush();
+	}
+}
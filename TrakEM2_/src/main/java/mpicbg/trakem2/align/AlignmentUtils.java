@@ -27,6 +27,8 @@ import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -57,6 +59,12 @@ final public class AlignmentUtils
 		 */
 		public float rod = 0.92f;
 		
+		/**
+		 * Fraction of features for which the closest neighbor must be found
+		 * exactly; below 1, features are matched with a {@link FeatureIndex}
+		 */
+		public float matchRecall = 1.0f;
+		
 		@Override
 		public boolean equals( final Object o )
 		{
@@ -65,12 +73,20 @@ final public class AlignmentUtils
 				final ParamPointMatch oppm = ( ParamPointMatch )o;
 				return 
 					oppm.sift.equals( sift ) &
-					oppm.rod == rod;
+					oppm.rod == rod &
+					oppm.matchRecall == matchRecall;
 			}
 			else
 				return false;
 		}
 		
+		private void readObject( final ObjectInputStream in ) throws IOException, ClassNotFoundException
+		{
+			in.defaultReadObject();
+			/* serialized before matchRecall existed: matched exhaustively */
+			if ( 0 == matchRecall ) matchRecall = 1.0f;
+		}
+		
 		public boolean clearCache = true;
 		
 		public int maxNumThreadsSift = Runtime.getRuntime().availableProcessors();
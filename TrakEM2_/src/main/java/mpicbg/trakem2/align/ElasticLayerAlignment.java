@@ -34,19 +34,23 @@ import java.awt.geom.Area;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.FutureTask;
 
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
 import mpicbg.models.AbstractModel;
 import mpicbg.models.AffineModel2D;
+import mpicbg.models.CoordinateTransform;
 import mpicbg.models.HomographyModel2D;
+import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.NotEnoughDataPointsException;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
@@ -55,11 +59,11 @@ import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.Spring;
 import mpicbg.models.SpringMesh;
 import mpicbg.models.Tile;
-import mpicbg.models.TileConfiguration;
 import mpicbg.models.Transforms;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.Vertex;
 import mpicbg.trakem2.align.concurrent.BlockMatchPairCallable;
+import mpicbg.trakem2.align.concurrent.LayerRenderCache;
 import mpicbg.trakem2.transform.MovingLeastSquaresTransform2;
 import mpicbg.trakem2.util.Triple;
 
@@ -88,6 +92,12 @@ public class ElasticLayerAlignment
 		public float maxLocalTrust = 3;
 		
 		public int resolutionSpringMesh = 16;
+		/**
+		 * Block match and optimize at that many scales, halving layerScale
+		 * from one to the next, coarse to fine.  Each finer level searches
+		 * only around where the meshes of the coarser level place the blocks.
+		 */
+		public int numPyramidLevels = 1;
 		public float stiffnessSpringMesh = 0.1f;
 		public float dampSpringMesh = 0.9f;
 		public float maxStretchSpringMesh = 2000.0f;
@@ -95,6 +105,42 @@ public class ElasticLayerAlignment
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
 		
+		/**
+		 * Describes the parameters that the block matches of pairs of layers
+		 * depend on, as key of their {@link AlignmentCheckpoint}.  The blocks
+		 * of a seeded pyramid level are placed by the optimized meshes of the
+		 * coarser levels, and so depend on the optimization parameters too.
+		 */
+		public String blockMatchingKey( final boolean seeded )
+		{
+			final StringBuilder key = new StringBuilder( "layerScale=" ).append( layerScale )
+				.append( " searchRadius=" ).append( searchRadius )
+				.append( " blockRadius=" ).append( blockRadius )
+				.append( " resolution=" ).append( resolutionSpringMesh )
+				.append( " minR=" ).append( minR )
+				.append( " maxCurvatureR=" ).append( maxCurvatureR )
+				.append( " rodR=" ).append( rodR )
+				.append( " localSmoothness=" ).append( useLocalSmoothnessFilter ).append( ',' )
+				.append( localModelIndex ).append( ',' )
+				.append( localRegionSigma ).append( ',' )
+				.append( maxLocalEpsilon ).append( ',' )
+				.append( maxLocalTrust );
+			if ( isAligned )
+				key.append( " aligned" );
+			else
+				key.append( ' ' ).append( correspondenceKey() );
+			if ( seeded )
+				key.append( " seeded levels=" ).append( numPyramidLevels )
+					.append( " optimize=" ).append( maxEpsilon ).append( ',' )
+					.append( stiffnessSpringMesh ).append( ',' )
+					.append( maxStretchSpringMesh ).append( ',' )
+					.append( dampSpringMesh ).append( ',' )
+					.append( maxIterationsSpringMesh ).append( ',' )
+					.append( maxPlateauwidthSpringMesh ).append( ',' )
+					.append( useLegacyOptimizer );
+			return key.toString();
+		}
+		
 		public boolean setup( final Rectangle box )
 		{
 			/* Block Matching */
@@ -111,6 +157,7 @@ public class ElasticLayerAlignment
 			gdBlockMatching.addNumericField( "block_radius :", blockRadius, 0, 6, "px" );
 			/* TODO suggest a resolution that matches searchRadius */
 			gdBlockMatching.addNumericField( "resolution :", resolutionSpringMesh, 0 );
+			gdBlockMatching.addNumericField( "pyramid_levels :", numPyramidLevels, 0 );
 			
 			gdBlockMatching.addMessage( "Correlation Filters:" );
 			gdBlockMatching.addNumericField( "minimal_PMCC_r :", minR, 2 );
@@ -127,6 +174,9 @@ public class ElasticLayerAlignment
 			gdBlockMatching.addMessage( "Miscellaneous:" );
 			gdBlockMatching.addCheckbox( "layers_are_pre-aligned", isAligned );
 			gdBlockMatching.addNumericField( "test_maximally :", maxNumNeighbors, 0, 6, "layers" );
+			gdBlockMatching.addCheckbox( "save_checkpoints", saveCheckpoints );
+			gdBlockMatching.addCheckbox( "resume_from_checkpoints", resume );
+			gdBlockMatching.addCheckbox( "clear_checkpoints_first", clearCheckpoints );
 			
 			gdBlockMatching.showDialog();
 			
@@ -137,6 +187,7 @@ public class ElasticLayerAlignment
 			searchRadius = ( int )gdBlockMatching.getNextNumber();
 			blockRadius = ( int )gdBlockMatching.getNextNumber();
 			resolutionSpringMesh = ( int )gdBlockMatching.getNextNumber();
+			numPyramidLevels = Math.max( 1, ( int )gdBlockMatching.getNextNumber() );
 			minR = ( float )gdBlockMatching.getNextNumber();
 			maxCurvatureR = ( float )gdBlockMatching.getNextNumber();
 			rodR = ( float )gdBlockMatching.getNextNumber();
@@ -147,6 +198,9 @@ public class ElasticLayerAlignment
 			maxLocalTrust = ( float )gdBlockMatching.getNextNumber();
 			isAligned = gdBlockMatching.getNextBoolean();
 			maxNumNeighbors = ( int )gdBlockMatching.getNextNumber();
+			saveCheckpoints = gdBlockMatching.getNextBoolean();
+			resume = gdBlockMatching.getNextBoolean();
+			clearCheckpoints = gdBlockMatching.getNextBoolean();
 			
 			
 			if ( !isAligned )
@@ -188,6 +242,7 @@ public class ElasticLayerAlignment
 			gdOptimize.addChoice( "approximate_transformation :", Param.modelStrings, Param.modelStrings[ desiredModelIndex ] );
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsOptimize, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthOptimize, 0 );
+			gdOptimize.addCheckbox( "optimize_concurrently", optimizeConcurrently );
 			
 			gdOptimize.addMessage( "Spring Mesh:" );
 			gdOptimize.addNumericField( "stiffness :", stiffnessSpringMesh, 2 );
@@ -204,6 +259,7 @@ public class ElasticLayerAlignment
 			desiredModelIndex = gdOptimize.getNextChoiceIndex();
 			maxIterationsOptimize = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthOptimize = ( int )gdOptimize.getNextNumber();
+			optimizeConcurrently = gdOptimize.getNextBoolean();
 			
 			stiffnessSpringMesh = ( float )gdOptimize.getNextNumber();
 			maxStretchSpringMesh = ( float )gdOptimize.getNextNumber();
@@ -312,7 +368,7 @@ public class ElasticLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -358,6 +414,13 @@ public class ElasticLayerAlignment
 					searchRadius,
 					stiffnessSpringMesh,
 					useLocalSmoothnessFilter );
+			clone.ppm.matchRecall = ppm.matchRecall;
+			clone.numPyramidLevels = numPyramidLevels;
+			clone.optimizeConcurrently = optimizeConcurrently;
+			clone.saveCheckpoints = saveCheckpoints;
+			clone.resume = resume;
+			clone.clearCheckpoints = clearCheckpoints;
+			return clone;
 		}
 	}
 	
@@ -400,32 +463,14 @@ public class ElasticLayerAlignment
 	{
         ExecutorService service = ExecutorProvider.getExecutorService(1.0f);
 		
+		if ( param.clearCheckpoints )
+			AlignmentCheckpoint.clear( project, "elastic" );
+		
 		
 		/* create tiles and models for all layers */
-		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
-		for ( int i = 0; i < layerRange.size(); ++i )
-		{
-			switch ( param.desiredModelIndex )
-			{
-			case 0:
-				tiles.add( new Tile< TranslationModel2D >( new TranslationModel2D() ) );
-				break;
-			case 1:
-				tiles.add( new Tile< RigidModel2D >( new RigidModel2D() ) );
-				break;
-			case 2:
-				tiles.add( new Tile< SimilarityModel2D >( new SimilarityModel2D() ) );
-				break;
-			case 3:
-				tiles.add( new Tile< AffineModel2D >( new AffineModel2D() ) );
-				break;
-			case 4:
-				tiles.add( new Tile< HomographyModel2D >( new HomographyModel2D() ) );
-				break;
-			default:
-				return;
-			}
-		}
+		ArrayList< Tile< ? > > tiles = createTiles( param.desiredModelIndex, layerRange.size() );
+		if ( null == tiles )
+			return;
 		
 		/* collect all pairs of slices for which a model could be found */
 		final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > pairs =
@@ -434,7 +479,10 @@ public class ElasticLayerAlignment
 		
 		if ( !param.isAligned )
 		{
-		    preAlignStack(param, project, layerRange, box, filter, pairs);
+		    preAlignStack(param, project, layerRange, box, filter, pairs,
+		            new AlignmentCheckpoint( project, "elastic",
+		                    param.correspondenceKey() + " box=" + box + " layerScale=" + param.layerScale + " filter=" + filter,
+		                    layerRange, filter, param.saveCheckpoints, param.resume ) );
 		}
 		else
 		{
@@ -450,8 +498,234 @@ public class ElasticLayerAlignment
 			}
 		}
 		
-		/* Elastic alignment */
+		/* Elastic alignment, coarse to fine */
+		final int numLevels = Math.max( 1, param.numPyramidLevels );
+		ArrayList< SpringMesh > meshes = null;
+		ArrayList< CoordinateTransform[] > seeds = null;
+		for ( int level = numLevels - 1; level >= 0; --level )
+		{
+			final Param levelParam = 1 == numLevels ? param : param.clone();
+			levelParam.layerScale = param.layerScale / ( 1 << level );
+			if ( null != seeds )
+			{
+				/* the coarser level placed the blocks within a few of its pixels */
+				levelParam.searchRadius = Math.min( param.searchRadius, ( int )Math.ceil( REFINEMENT_RADIUS / levelParam.layerScale ) );
+				tiles = createTiles( param.desiredModelIndex, layerRange.size() );
+			}
+			if ( numLevels > 1 )
+				Utils.log( "Pyramid level " + level + ": scale " + levelParam.layerScale + ", search radius " + levelParam.searchRadius + "px" );
+			
+			meshes = matchAndOptimize( levelParam, layerRange, fixedLayers, box, filter, pairs, tiles, seeds, level, service );
+			if ( null == meshes )
+				return;
+			
+			if ( level > 0 )
+				seeds = meshTransforms( meshes, levelParam.layerScale );
+		}
+		
+		/* translate relative to bounding box */
+		for ( final SpringMesh mesh : meshes )
+		{
+			for ( final PointMatch pm : mesh.getVA().keySet() )
+			{
+				final Point p1 = pm.getP1();
+				final Point p2 = pm.getP2();
+				final float[] l = p1.getL();
+				final float[] w = p2.getW();
+				l[ 0 ] = l[ 0 ] / param.layerScale + box.x;
+				l[ 1 ] = l[ 1 ] / param.layerScale + box.y;
+				w[ 0 ] = w[ 0 ] / param.layerScale + box.x;
+				w[ 1 ] = w[ 1 ] / param.layerScale + box.y;
+			}
+		}
+		
+		/* free memory */
+		project.getLoader().releaseAll();
+		
+		final Layer first = layerRange.get( 0 );
+		final List< Layer > layers = first.getParent().getLayers();
+
+        final LayerSet ls = first.getParent();
+        Area infArea = AreaUtils.infiniteArea();
+        final List<VectorData> vectorData = new ArrayList<VectorData>();
+        for (final Layer layer : ls.getLayers()) {
+            vectorData.addAll(
+                    Utils.castCollection(layer.getDisplayables(VectorData.class, false, true),
+                            VectorData.class, true));
+        }
+        vectorData.addAll(Utils.castCollection(ls.getZDisplayables(VectorData.class, true),
+                VectorData.class, true));
+
+		/* transfer layer transform into patch transforms and append to patches */
+		if ( propagateTransformBefore || propagateTransformAfter )
+		{
+			if ( propagateTransformBefore )
+			{
+				final MovingLeastSquaresTransform2 mlt = makeMLST2( meshes.get( 0 ).getVA().keySet() );
+				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
+				for ( int i = 0; i < firstLayerIndex; ++i )
+                {
+					applyTransformToLayer( layers.get( i ), mlt, filter );
+                    for (final VectorData vd : vectorData)
+                    {
+                        vd.apply(layers.get(i), infArea, mlt);
+                    }
+                }
+
+			}
+			if ( propagateTransformAfter )
+			{
+				final Layer last = layerRange.get( layerRange.size() - 1 );
+				final MovingLeastSquaresTransform2 mlt = makeMLST2( meshes.get( meshes.size() - 1 ).getVA().keySet() );
+				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
+				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
+                {
+                    applyTransformToLayer( layers.get( i ), mlt, filter );
+                    for (final VectorData vd : vectorData)
+                    {
+                        vd.apply(layers.get(i), infArea, mlt);
+                    }
+                }
+			}
+		}
+		for ( int l = 0; l < layerRange.size(); ++l )
+		{
+			IJ.showStatus( "Applying transformation to patches ..." );
+			IJ.showProgress( 0, layerRange.size() );
+			
+			final Layer layer = layerRange.get( l );
+			
+			final MovingLeastSquaresTransform2 mlt = new MovingLeastSquaresTransform2();
+			mlt.setModel( AffineModel2D.class );
+			mlt.setAlpha( 2.0f );
+			mlt.setMatches( meshes.get( l ).getVA().keySet() );
+			
+			applyTransformToLayer( layer, mlt, filter );
+
+            for (final VectorData vd : vectorData)
+            {
+                vd.apply(layer, infArea, mlt);
+            }
+					
+			if ( Thread.interrupted() )
+			{
+				Utils.log( "Interrupted during applying transformations to patches.  No all patches have been updated.  Re-generate mipmaps manually." );
+			}
+			
+			IJ.showProgress( l + 1, layerRange.size() );
+		}
+		
+		/* update patch mipmaps */
+		final int firstLayerIndex;
+		final int lastLayerIndex;
+		
+		if ( propagateTransformBefore )
+			firstLayerIndex = 0;
+		else
+		{
+			firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
+		}
+		if ( propagateTransformAfter )
+			 lastLayerIndex = layers.size() - 1;
+		else
+		{
+			final Layer last = layerRange.get( layerRange.size() - 1 );
+			lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
+		}
+		
+		final ArrayList< Patch > transformed = new ArrayList< Patch >();
+		for ( int i = firstLayerIndex; i <= lastLayerIndex; ++i )
+		{
+			final Layer layer = layers.get( i );
+			if ( !( emptyLayers.contains( layer ) || fixedLayers.contains( layer ) ) )
+				transformed.addAll( AlignmentUtils.filterPatches( layer, filter ) );
+		}
+		TransformApplier.regenerateMipMaps( transformed );
 		
+		Utils.log( "Done." );
+	}
+	
+	/** Pixels of a pyramid level within which to search around where the coarser level placed a block. */
+	final static private int REFINEMENT_RADIUS = 8;
+	
+	final static private ArrayList< Tile< ? > > createTiles( final int modelIndex, final int n )
+	{
+		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+		for ( int i = 0; i < n; ++i )
+		{
+			switch ( modelIndex )
+			{
+			case 0:
+				tiles.add( new Tile< TranslationModel2D >( new TranslationModel2D() ) );
+				break;
+			case 1:
+				tiles.add( new Tile< RigidModel2D >( new RigidModel2D() ) );
+				break;
+			case 2:
+				tiles.add( new Tile< SimilarityModel2D >( new SimilarityModel2D() ) );
+				break;
+			case 3:
+				tiles.add( new Tile< AffineModel2D >( new AffineModel2D() ) );
+				break;
+			case 4:
+				tiles.add( new Tile< HomographyModel2D >( new HomographyModel2D() ) );
+				break;
+			default:
+				return null;
+			}
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Make matches read from a checkpoint start at the vertices of a fresh
+	 * mesh with the same local coordinates, as block matching does.
+	 */
+	final static private ArrayList< PointMatch > onto( final List< PointMatch > matches, final List< Vertex > vertices )
+	{
+		final HashMap< Long, Vertex > lut = new HashMap< Long, Vertex >();
+		for ( final Vertex v : vertices )
+			lut.put( bits( v.getL() ), v );
+		final ArrayList< PointMatch > pms = new ArrayList< PointMatch >( matches.size() );
+		for ( final PointMatch pm : matches )
+		{
+			final Vertex v = lut.get( bits( pm.getP1().getL() ) );
+			if ( null != v )
+				pms.add( new PointMatch( v, pm.getP2(), pm.getWeight() ) );
+		}
+		return pms;
+	}
+	
+	final static private Long bits( final float[] l )
+	{
+		return ( ( long )Float.floatToIntBits( l[ 0 ] ) << 32 ) | ( Float.floatToIntBits( l[ 1 ] ) & 0xffffffffL );
+	}
+	
+	/**
+	 * Block match all pairs of layers at param.layerScale and optimize the
+	 * spring meshes of the layers.
+	 * 
+	 * @param seeds per layer, the transforms of a coarser level from layer to
+	 * aligned space and back, see {@link #meshTransforms(List, float)}, by which
+	 * to guess where to search for each block; or null to use the
+	 * pre-alignment models of the pairs
+	 * @param level of the pyramid, such that the pre-alignment models are
+	 * 2<sup>level</sup> times param.layerScale
+	 * @return the meshes in pixels of param.layerScale relative to box, or null
+	 * if there were not enough correspondences
+	 */
+	final private ArrayList< SpringMesh > matchAndOptimize(
+			final Param param,
+			final List< Layer > layerRange,
+			final Set< Layer > fixedLayers,
+			final Rectangle box,
+			final Filter< Patch > filter,
+			final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > pairs,
+			final ArrayList< Tile< ? > > tiles,
+			final ArrayList< CoordinateTransform[] > seeds,
+			final int level,
+			final ExecutorService service ) throws Exception
+	{
 		/* Initialization */
 		final TileConfiguration initMeshes = new TileConfiguration();
 		
@@ -479,12 +753,25 @@ public class ElasticLayerAlignment
         final ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>> futures =
                 new ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>>(pairs.size());
 
+		/* each layer is rendered once for all the pairs it takes part in, and released after the last one,
+		 * with up to a quarter of the heap for layers waiting for their next pair */
+		final LayerRenderCache renderCache = new LayerRenderCache( Runtime.getRuntime().maxMemory() / 4 );
+		int numMatchedPairs = 0;
+		
+		/* block matches of pairs saved by an earlier run at this level */
+		final AlignmentCheckpoint checkpoint = new AlignmentCheckpoint(
+				layerRange.get( 0 ).getProject(),
+				"elastic",
+				param.blockMatchingKey( null != seeds ) + " box=" + box + " " + AlignmentCheckpoint.describe( layerRange, fixedLayers, filter ),
+				layerRange,
+				filter,
+				param.saveCheckpoints,
+				param.resume );
+		final String part12 = "level" + level + ".pm12", part21 = "level" + level + ".pm21";
+		final HashSet< Future< ? > > restored = new HashSet< Future< ? > >();
 		
 		for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : pairs )
 		{
-			/* free memory */
-			project.getLoader().releaseAll();
-			
 			final SpringMesh m1 = meshes.get( pair.a );
 			final SpringMesh m2 = meshes.get( pair.b );
 
@@ -501,6 +788,29 @@ public class ElasticLayerAlignment
 
 			if ( !( layer1Fixed && layer2Fixed ) )
 			{
+                final ArrayList< PointMatch > pm12 = checkpoint.read( part12, layer1.getId(), layer2.getId() );
+                final ArrayList< PointMatch > pm21 = null == pm12 ? null : checkpoint.read( part21, layer1.getId(), layer2.getId() );
+                if ( null != pm21 )
+                {
+                    final FutureTask< BlockMatchPairCallable.BlockMatchResults > task =
+                            new FutureTask< BlockMatchPairCallable.BlockMatchResults >(
+                                    new Callable< BlockMatchPairCallable.BlockMatchResults >()
+                                    {
+                                        @Override
+                                        public BlockMatchPairCallable.BlockMatchResults call()
+                                        {
+                                            return new BlockMatchPairCallable.BlockMatchResults(
+                                                    v1, v2, onto( pm12, v1 ), onto( pm21, v2 ), layer1Fixed, layer2Fixed, pair );
+                                        }
+                                    } );
+                    task.run();
+                    futures.add( task );
+                    restored.add( task );
+                    continue;
+                }
+                renderCache.expect( layer1, box, param.layerScale, filter, 1 );
+                renderCache.expect( layer2, box, param.layerScale, filter, 1 );
+                ++numMatchedPairs;
                 BlockMatchPairCallable bmpc = new BlockMatchPairCallable(
                         pair,
                         layerRange,
@@ -508,7 +818,21 @@ public class ElasticLayerAlignment
                         filter,
                         param,
                         v1, v2,
-                        box);
+                        box,
+                        renderCache);
+                if ( null != seeds )
+                {
+                    final float toFull = 1.0f / param.layerScale;
+                    bmpc.setSeeds(
+                            new ScaledTransform( toFull, seeds.get( pair.a )[ 0 ], seeds.get( pair.b )[ 1 ] ),
+                            new ScaledTransform( toFull, seeds.get( pair.b )[ 0 ], seeds.get( pair.a )[ 1 ] ) );
+                }
+                else if ( level > 0 )
+                {
+                    bmpc.setSeeds(
+                            new ScaledTransform( 1 << level, ( ( InvertibleCoordinateTransform )pair.c ).createInverse() ),
+                            new ScaledTransform( 1 << level, pair.c ) );
+                }
                 futures.add(service.submit(bmpc));
             }
         }
@@ -516,16 +840,25 @@ public class ElasticLayerAlignment
         for (final Future<BlockMatchPairCallable.BlockMatchResults> future : futures)
         {
             final BlockMatchPairCallable.BlockMatchResults results = future.get();
-            final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
             final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
             final Tile< ? > t1 = tiles.get( pair.a );
             final Tile< ? > t2 = tiles.get( pair.b );
             final SpringMesh m1 = meshes.get( pair.a );
             final SpringMesh m2 = meshes.get( pair.b );
+            /* results computed in another JVM match copies of the vertices */
+            results.relink( m1.getVertices(), m2.getVertices() );
+            final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
             final float springConstant  = 1.0f / ( pair.b - pair.a );
             final boolean layer1Fixed = results.layer1Fixed;
             final boolean layer2Fixed = results.layer2Fixed;
 
+            if ( !restored.contains( future ) )
+            {
+                final long id1 = layerRange.get( pair.a ).getId(), id2 = layerRange.get( pair.b ).getId();
+                checkpoint.write( part12, id1, id2, pm12, true );
+                checkpoint.write( part21, id1, id2, pm21, true );
+            }
+
             if (layer1Fixed)
             {
                 initMeshes.fixTile( t1 );
@@ -605,11 +938,24 @@ public class ElasticLayerAlignment
 
         }
 
+        Utils.log( "Rendered " + renderCache.getRenderCount() + " layers for " + numMatchedPairs + " pairs." );
+        if ( !restored.isEmpty() )
+            Utils.log( "Read the block matches of " + restored.size() + " pairs from checkpoints." );
+        renderCache.clear();
+        checkpoint.flush();
+
         /* pre-align by optimizing a piecewise linear model */
-		initMeshes.optimize(
-				param.maxEpsilon * param.layerScale,
-				param.maxIterationsSpringMesh,
-				param.maxPlateauwidthSpringMesh );
+		if ( param.optimizeConcurrently )
+			initMeshes.optimizeConcurrently(
+					param.maxEpsilon * param.layerScale,
+					param.maxIterationsSpringMesh,
+					param.maxPlateauwidthSpringMesh,
+					param.maxNumThreads );
+		else
+			initMeshes.optimize(
+					param.maxEpsilon * param.layerScale,
+					param.maxIterationsSpringMesh,
+					param.maxPlateauwidthSpringMesh );
 		for ( int i = 0; i < layerRange.size(); ++i )
 			meshes.get( i ).init( tiles.get( i ).getModel() );
 
@@ -646,133 +992,77 @@ public class ElasticLayerAlignment
 		{
 			Utils.log( "There were not enough data points to get the spring mesh optimizing." );
 			e.printStackTrace();
-			return;
+			return null;
 		}
 		
-		/* translate relative to bounding box */
+		return meshes;
+	}
+	
+	/**
+	 * Per mesh, the transforms from the layer to the aligned space and back,
+	 * in pixels of the full resolution relative to the bounding box, for seeding
+	 * the block matching of a finer level.  The meshes are in pixels of scale.
+	 */
+	final static private ArrayList< CoordinateTransform[] > meshTransforms( final List< SpringMesh > meshes, final float scale ) throws Exception
+	{
+		final ArrayList< CoordinateTransform[] > transforms = new ArrayList< CoordinateTransform[] >( meshes.size() );
 		for ( final SpringMesh mesh : meshes )
 		{
+			final ArrayList< PointMatch > forward = new ArrayList< PointMatch >();
+			final ArrayList< PointMatch > backward = new ArrayList< PointMatch >();
 			for ( final PointMatch pm : mesh.getVA().keySet() )
 			{
-				final Point p1 = pm.getP1();
-				final Point p2 = pm.getP2();
-				final float[] l = p1.getL();
-				final float[] w = p2.getW();
-				l[ 0 ] = l[ 0 ] / param.layerScale + box.x;
-				l[ 1 ] = l[ 1 ] / param.layerScale + box.y;
-				w[ 0 ] = w[ 0 ] / param.layerScale + box.x;
-				w[ 1 ] = w[ 1 ] / param.layerScale + box.y;
+				final float[] l = pm.getP1().getL();
+				final float[] w = pm.getP2().getW();
+				final float[] lf = new float[]{ l[ 0 ] / scale, l[ 1 ] / scale };
+				final float[] wf = new float[]{ w[ 0 ] / scale, w[ 1 ] / scale };
+				forward.add( new PointMatch( new Point( lf ), new Point( wf ) ) );
+				backward.add( new PointMatch( new Point( wf ), new Point( lf ) ) );
 			}
+			transforms.add( new CoordinateTransform[]{ makeMLST2( forward ), makeMLST2( backward ) } );
 		}
+		return transforms;
+	}
+	
+	/**
+	 * Applies a chain of transforms in coordinates that are scale times those
+	 * of the locations it is applied to, for seeding the block matching at a
+	 * pyramid level with transforms made for another scale.
+	 */
+	final static private class ScaledTransform implements CoordinateTransform, Serializable
+	{
+		private static final long serialVersionUID = 1L;
 		
-		/* free memory */
-		project.getLoader().releaseAll();
+		final private float scale;
+		final private CoordinateTransform[] chain;
 		
-		final Layer first = layerRange.get( 0 );
-		final List< Layer > layers = first.getParent().getLayers();
-
-        final LayerSet ls = first.getParent();
-        Area infArea = AreaUtils.infiniteArea();
-        final List<VectorData> vectorData = new ArrayList<VectorData>();
-        for (final Layer layer : ls.getLayers()) {
-            vectorData.addAll(
-                    Utils.castCollection(layer.getDisplayables(VectorData.class, false, true),
-                            VectorData.class, true));
-        }
-        vectorData.addAll(Utils.castCollection(ls.getZDisplayables(VectorData.class, true),
-                VectorData.class, true));
-
-		/* transfer layer transform into patch transforms and append to patches */
-		if ( propagateTransformBefore || propagateTransformAfter )
+		ScaledTransform( final float scale, final CoordinateTransform... chain )
 		{
-			if ( propagateTransformBefore )
-			{
-				final MovingLeastSquaresTransform2 mlt = makeMLST2( meshes.get( 0 ).getVA().keySet() );
-				final int firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
-				for ( int i = 0; i < firstLayerIndex; ++i )
-                {
-					applyTransformToLayer( layers.get( i ), mlt, filter );
-                    for (final VectorData vd : vectorData)
-                    {
-                        vd.apply(layers.get(i), infArea, mlt);
-                    }
-                }
-
-			}
-			if ( propagateTransformAfter )
-			{
-				final Layer last = layerRange.get( layerRange.size() - 1 );
-				final MovingLeastSquaresTransform2 mlt = makeMLST2( meshes.get( meshes.size() - 1 ).getVA().keySet() );
-				final int lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
-				for ( int i = lastLayerIndex + 1; i < layers.size(); ++i )
-                {
-                    applyTransformToLayer( layers.get( i ), mlt, filter );
-                    for (final VectorData vd : vectorData)
-                    {
-                        vd.apply(layers.get(i), infArea, mlt);
-                    }
-                }
-			}
+			this.scale = scale;
+			this.chain = chain;
 		}
-		for ( int l = 0; l < layerRange.size(); ++l )
-		{
-			IJ.showStatus( "Applying transformation to patches ..." );
-			IJ.showProgress( 0, layerRange.size() );
-			
-			final Layer layer = layerRange.get( l );
-			
-			final MovingLeastSquaresTransform2 mlt = new MovingLeastSquaresTransform2();
-			mlt.setModel( AffineModel2D.class );
-			mlt.setAlpha( 2.0f );
-			mlt.setMatches( meshes.get( l ).getVA().keySet() );
-			
-			applyTransformToLayer( layer, mlt, filter );
-
-            for (final VectorData vd : vectorData)
-            {
-                vd.apply(layer, infArea, mlt);
-            }
-					
-			if ( Thread.interrupted() )
-			{
-				Utils.log( "Interrupted during applying transformations to patches.  No all patches have been updated.  Re-generate mipmaps manually." );
-			}
-			
-			IJ.showProgress( l + 1, layerRange.size() );
-		}
-		
-		/* update patch mipmaps */
-		final int firstLayerIndex;
-		final int lastLayerIndex;
 		
-		if ( propagateTransformBefore )
-			firstLayerIndex = 0;
-		else
-		{
-			firstLayerIndex = first.getParent().getLayerIndex( first.getId() );
-		}
-		if ( propagateTransformAfter )
-			 lastLayerIndex = layers.size() - 1;
-		else
+		@Override
+		public float[] apply( final float[] location )
 		{
-			final Layer last = layerRange.get( layerRange.size() - 1 );
-			lastLayerIndex = last.getParent().getLayerIndex( last.getId() );
+			final float[] a = location.clone();
+			applyInPlace( a );
+			return a;
 		}
 		
-		for ( int i = firstLayerIndex; i <= lastLayerIndex; ++i )
+		@Override
+		public void applyInPlace( final float[] location )
 		{
-			final Layer layer = layers.get( i );
-			if ( !( emptyLayers.contains( layer ) || fixedLayers.contains( layer ) ) )
-			{
-				for ( final Patch patch : AlignmentUtils.filterPatches( layer, filter ) )
-					patch.updateMipMaps();
-			}
+			location[ 0 ] *= scale;
+			location[ 1 ] *= scale;
+			for ( final CoordinateTransform t : chain )
+				t.applyInPlace( location );
+			location[ 0 ] /= scale;
+			location[ 1 ] /= scale;
 		}
-		
-		Utils.log( "Done." );
 	}
 	
-	final static protected MovingLeastSquaresTransform2 makeMLST2( final Set< PointMatch > matches ) throws Exception
+	final static protected MovingLeastSquaresTransform2 makeMLST2( final Collection< PointMatch > matches ) throws Exception
 	{
 		final MovingLeastSquaresTransform2 mlt = new MovingLeastSquaresTransform2();
 		mlt.setModel( AffineModel2D.class );
@@ -788,37 +1078,13 @@ public class ElasticLayerAlignment
 		 * the new bounding box needs to be estimated which requires the
 		 * TransformMesh to be generated and all vertices iterated.
 		 * 
-		 * Therefore multithreading.
+		 * Therefore multithreading, and the bucket index of the layer
+		 * updated once for all patches.
 		 */
-		final List< Patch > patches = AlignmentUtils.filterPatches( layer, filter );
-		
-		final ArrayList< Thread > applyThreads = new ArrayList< Thread >( p.maxNumThreads );
-		final AtomicInteger ai = new AtomicInteger( 0 );
-		for ( int t = 0; t < p.maxNumThreads; ++t )
-		{
-			final Thread thread = new Thread(
-					new Runnable()
-					{
-						@Override
-						final public void run()
-						{
-							try
-							{
-								for ( int i = ai.getAndIncrement(); i < patches.size() && !Thread.interrupted(); i = ai.getAndIncrement() )
-									mpicbg.trakem2.align.Util.applyLayerTransformToPatch( patches.get( i ), mlt.copy() );
-							}
-							catch ( final Exception e )
-							{
-								e.printStackTrace();
-							}
-						}
-					} );
-			applyThreads.add( thread );
-			thread.start();
-		}
-		
-		for ( final Thread thread : applyThreads )
-			thread.join();
+		final TransformApplier applier = new TransformApplier();
+		for ( final Patch patch : AlignmentUtils.filterPatches( layer, filter ) )
+			applier.add( patch, mlt );
+		applier.apply( p.maxNumThreads );
 	}
 	
 	
@@ -896,14 +1162,15 @@ public class ElasticLayerAlignment
     private void preAlignStack(final Param param, final Project project,
                                final List<Layer> layerRange, final Rectangle box,
                                final Filter<Patch> filter,
-                               final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > pairs)
+                               final ArrayList< Triple< Integer, Integer, AbstractModel< ? > > > pairs,
+                               final AlignmentCheckpoint checkpoint)
     {
         final double scale = Math.min( 1.0, Math.min( ( double )param.ppm.sift.maxOctaveSize / ( double )box.width, ( double )param.ppm.sift.maxOctaveSize / ( double )box.height ) );
 
         /* extract and save features, overwrite cached files if requested */
         try
         {
-            AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache, param.ppm.maxNumThreadsSift );
+            AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache && !param.resume, param.ppm.maxNumThreadsSift );
         }
         catch ( final Exception e )
         {
@@ -951,6 +1218,28 @@ J:            {
 
                             Utils.log( "matching " + layerNameB + " -> " + layerNameA + "..." );
 
+                            final ArrayList< PointMatch > restored = checkpoint.read( "inliers", layerB.getId(), layerA.getId() );
+                            if ( null != restored )
+                            {
+                                if ( restored.isEmpty() )
+                                {
+                                    Utils.log( layerNameB + " -> " + layerNameA + ": no correspondences found, as read from checkpoint." );
+                                    return;
+                                }
+                                try
+                                {
+                                    final AbstractModel< ? > model = mpicbg.trakem2.align.Util.createModel( param.expectedModelIndex );
+                                    model.fit( restored );
+                                    Utils.log( layerNameB + " -> " + layerNameA + ": " + restored.size() + " corresponding features read from checkpoint." );
+                                    models.set( ti, new Triple< Integer, Integer, AbstractModel< ? > >( sliceA, sliceB, model ) );
+                                    return;
+                                }
+                                catch ( final Exception e )
+                                {
+                                    Utils.log( layerNameB + " -> " + layerNameA + ": could not fit the checkpoint, matching again." );
+                                }
+                            }
+
                             ArrayList< PointMatch > candidates = null;
                             if ( !param.ppm.clearCache )
                                 candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
@@ -962,7 +1251,13 @@ J:            {
                                         project, param.ppm.sift, "layer", layerA.getId() );
                                 final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures(
                                         project, param.ppm.sift, "layer", layerB.getId() );
-                                candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+                                if ( param.ppm.matchRecall < 1 )
+                                {
+                                    candidates = new ArrayList< PointMatch >();
+                                    new FeatureIndex( fs1, param.ppm.matchRecall ).match( fs2, candidates, param.ppm.rod );
+                                }
+                                else
+                                    candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
 
                                 /* scale the candidates */
                                 for ( final PointMatch pm : candidates )
@@ -1054,10 +1349,12 @@ J:            {
                                 Utils.log( layerNameB + " -> " + layerNameA + ": " + inliers.size() + " corresponding features with an average displacement of " + ( PointMatch.meanDistance( inliers ) / param.layerScale ) + "px identified." );
                                 Utils.log( "Estimated transformation model: " + model );
                                 models.set( ti, new Triple< Integer, Integer, AbstractModel< ? > >( sliceA, sliceB, model ) );
+                                checkpoint.write( "inliers", layerB.getId(), layerA.getId(), inliers, false );
                             }
                             else
                             {
                                 Utils.log( layerNameB + " -> " + layerNameA + ": no correspondences found." );
+                                checkpoint.write( "inliers", layerB.getId(), layerA.getId(), null, false );
                                 return;
                             }
                         }
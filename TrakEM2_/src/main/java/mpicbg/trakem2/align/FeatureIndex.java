@@ -0,0 +1,485 @@
+package mpicbg.trakem2.align;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.ij.FeatureTransform;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * An index of {@link Feature SIFT-features} for finding, for each feature of
+ * another set, its closest and next closest neighbour in descriptor space
+ * without comparing it to every indexed feature.
+ *
+ * The index is a forest of randomized kd-trees, each splitting on one of the
+ * dimensions of largest variance picked at random. A query descends all trees
+ * and then explores the closest unexplored branches of any tree, until a given
+ * number of descriptors has been compared. That number is calibrated when
+ * building the index, by querying a sample of the indexed descriptors, to find
+ * the true nearest neighbour with at least the requested recall.
+ *
+ * {@link #match(Collection, List, float)} follows
+ * {@link FeatureTransform#matchFeatures(Collection, Collection, List, float)}:
+ * the same ratio test, and the same removal of ambiguous matches.
+ *
+ * An index is immutable once built and can be queried from many threads.
+ */
+public class FeatureIndex
+{
+	/** Number of randomized kd-trees. */
+	static private final int NUM_TREES = 4;
+	/** Maximal number of descriptors in a leaf. */
+	static private final int LEAF_SIZE = 8;
+	/** A split dimension is picked at random among this many of largest variance. */
+	static private final int NUM_SPLIT_CANDIDATES = 5;
+	/** Maximal number of descriptors sampled to compute the split of a node. */
+	static private final int SPLIT_SAMPLE = 100;
+	/** Maximal number of indexed descriptors queried to calibrate the number of checks. */
+	static private final int CALIBRATION_SAMPLE = 100;
+
+	/** Descriptors, one after the other. */
+	final private float[] descriptors;
+	/** Locations, x and y, one after the other. */
+	final private float[] locations;
+	final private int n, d;
+	final private Tree[] trees;
+	final private float recall;
+	/** Maximal number of descriptors compared per query. */
+	final private int checks;
+
+	/**
+	 * @param features the features to index.
+	 * @param recall the fraction of queries, in (0, 1], for which the closest
+	 *   neighbour found must be the true closest neighbour. With 1, all
+	 *   descriptors are compared.
+	 */
+	public FeatureIndex( final Collection< Feature > features, final float recall )
+	{
+		this.n = features.size();
+		this.d = 0 == n ? 0 : features.iterator().next().descriptor.length;
+		this.descriptors = new float[ n * d ];
+		this.locations = new float[ 2 * n ];
+		int i = 0;
+		for ( final Feature f : features )
+		{
+			System.arraycopy( f.descriptor, 0, descriptors, i * d, d );
+			locations[ 2 * i ] = f.location[ 0 ];
+			locations[ 2 * i + 1 ] = f.location[ 1 ];
+			++i;
+		}
+		this.recall = recall;
+
+		if ( recall >= 1 || n <= LEAF_SIZE * NUM_TREES )
+		{
+			this.trees = new Tree[ 0 ];
+			this.checks = n;
+		}
+		else
+		{
+			final Random rnd = new Random( 69997 );
+			this.trees = new Tree[ NUM_TREES ];
+			for ( int t = 0; t < trees.length; ++t )
+				trees[ t ] = new Tree( rnd );
+			this.checks = calibrate( rnd );
+		}
+	}
+
+	public int size()
+	{
+		return n;
+	}
+
+	public float getRecall()
+	{
+		return recall;
+	}
+
+	/** The maximal number of descriptors compared per query, out of {@link #size()}. */
+	public int getChecks()
+	{
+		return checks;
+	}
+
+	/**
+	 * Find, for each of @param queries, the closest indexed feature, and add
+	 * a {@link PointMatch} from the query's location to it into @param matches
+	 * when the distance to the closest is below @param rod times the distance
+	 * to the next closest. Matches that share their target location are then
+	 * removed, as being ambiguous.
+	 */
+	public void match( final Collection< Feature > queries, final List< PointMatch > matches, final float rod )
+	{
+		final int first = matches.size();
+		final Searcher searcher = new Searcher();
+		final int[] result = new int[ 1 ];
+		final float rod2 = rod * rod;
+		for ( final Feature f : queries )
+		{
+			final float[] dist = searcher.search( f.descriptor, -1, result );
+			if ( result[ 0 ] < 0 || dist[ 1 ] == Float.MAX_VALUE ) continue;
+			if ( dist[ 0 ] < rod2 * dist[ 1 ] )
+			{
+				final int b = result[ 0 ];
+				matches.add( new PointMatch(
+						new Point( new float[]{ f.location[ 0 ], f.location[ 1 ] } ),
+						new Point( new float[]{ locations[ 2 * b ], locations[ 2 * b + 1 ] } ) ) );
+			}
+		}
+
+		/* remove ambiguous matches */
+		final HashMap< Long, Integer > counts = new HashMap< Long, Integer >();
+		for ( int i = first; i < matches.size(); ++i )
+		{
+			final Long key = key( matches.get( i ).getP2().getL() );
+			final Integer c = counts.get( key );
+			counts.put( key, null == c ? 1 : c + 1 );
+		}
+		final ArrayList< PointMatch > unique = new ArrayList< PointMatch >( matches.size() - first );
+		for ( int i = first; i < matches.size(); ++i )
+		{
+			final PointMatch m = matches.get( i );
+			if ( 1 == counts.get( key( m.getP2().getL() ) ) ) unique.add( m );
+		}
+		matches.subList( first, matches.size() ).clear();
+		matches.addAll( unique );
+	}
+
+	/**
+	 * Match @param fs1 to @param fs2 like
+	 * {@link FeatureTransform#matchFeatures(Collection, Collection, List, float)},
+	 * which is what is done when @param recall is 1 or larger; otherwise by
+	 * querying a {@link FeatureIndex} of @param fs2.
+	 */
+	static public void matchFeatures(
+			final Collection< Feature > fs1,
+			final Collection< Feature > fs2,
+			final List< PointMatch > matches,
+			final float rod,
+			final float recall )
+	{
+		if ( recall >= 1 )
+			FeatureTransform.matchFeatures( fs1, fs2, matches, rod );
+		else
+			new FeatureIndex( fs2, recall ).match( fs1, matches, rod );
+	}
+
+	static private final Long key( final float[] l )
+	{
+		return ( ( long )Float.floatToIntBits( l[ 0 ] ) << 32 ) | ( Float.floatToIntBits( l[ 1 ] ) & 0xffffffffL );
+	}
+
+	/** Squared distance between descriptor @param i and @param q, or any value larger than @param max once it is exceeded. */
+	final private float distance( final int i, final float[] q, final float max )
+	{
+		float sum = 0;
+		int k = i * d;
+		for ( int j = 0; j < d; ++j, ++k )
+		{
+			final float a = descriptors[ k ] - q[ j ];
+			sum += a * a;
+			if ( 7 == ( j & 7 ) && sum > max ) return sum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Find the smallest number of checks, doubling from 32, for which a sample of
+	 * indexed descriptors find their true closest neighbour, other than
+	 * themselves, at least as often as the requested recall.
+	 */
+	private int calibrate( final Random rnd )
+	{
+		final int s = Math.min( n, CALIBRATION_SAMPLE );
+		final int[] sample = new int[ s ];
+		final int[] exact = new int[ s ];
+		final float[] q = new float[ d ];
+		for ( int i = 0; i < s; ++i )
+		{
+			sample[ i ] = rnd.nextInt( n );
+			System.arraycopy( descriptors, sample[ i ] * d, q, 0, d );
+			float best = Float.MAX_VALUE;
+			for ( int j = 0; j < n; ++j )
+			{
+				if ( j == sample[ i ] ) continue;
+				final float dist = distance( j, q, best );
+				if ( dist < best )
+				{
+					best = dist;
+					exact[ i ] = j;
+				}
+			}
+		}
+
+		final Searcher searcher = new Searcher();
+		final int[] result = new int[ 1 ];
+		for ( int c = 32; c < n; c *= 2 )
+		{
+			searcher.checks = c;
+			int found = 0;
+			for ( int i = 0; i < s; ++i )
+			{
+				System.arraycopy( descriptors, sample[ i ] * d, q, 0, d );
+				searcher.search( q, sample[ i ], result );
+				if ( result[ 0 ] == exact[ i ] ) ++found;
+			}
+			if ( found >= recall * s ) return c;
+		}
+		return n;
+	}
+
+	/** A randomized kd-tree over all descriptors. */
+	final private class Tree
+	{
+		/** Descriptor indices, in leaf order. */
+		final int[] index;
+		/** Per node: split dimension, or -1 for leaves. */
+		final int[] dim;
+		/** Per node: split value. */
+		final float[] value;
+		/** Per node: the child nodes, or the range in {@link #index} for leaves. */
+		final int[] low, high;
+		int numNodes = 0;
+
+		Tree( final Random rnd )
+		{
+			index = new int[ n ];
+			for ( int i = 0; i < n; ++i ) index[ i ] = i;
+			final int maxNodes = 2 * n;
+			dim = new int[ maxNodes ];
+			value = new float[ maxNodes ];
+			low = new int[ maxNodes ];
+			high = new int[ maxNodes ];
+			build( 0, n, rnd );
+		}
+
+		private int build( final int start, final int end, final Random rnd )
+		{
+			final int node = numNodes++;
+			if ( end - start > LEAF_SIZE )
+			{
+				/* mean and variance of each dimension over a sample */
+				final int step = Math.max( 1, ( end - start ) / SPLIT_SAMPLE );
+				final double[] sum = new double[ d ], sum2 = new double[ d ];
+				int count = 0;
+				for ( int i = start; i < end; i += step, ++count )
+				{
+					final int o = index[ i ] * d;
+					for ( int j = 0; j < d; ++j )
+					{
+						final double v = descriptors[ o + j ];
+						sum[ j ] += v;
+						sum2[ j ] += v * v;
+					}
+				}
+				/* pick one of the dimensions of largest variance */
+				final int[] top = new int[ NUM_SPLIT_CANDIDATES ];
+				final double[] topVar = new double[ NUM_SPLIT_CANDIDATES ];
+				for ( int j = 0; j < d; ++j )
+				{
+					final double var = sum2[ j ] / count - ( sum[ j ] / count ) * ( sum[ j ] / count );
+					for ( int k = 0; k < NUM_SPLIT_CANDIDATES; ++k )
+					{
+						if ( var > topVar[ k ] )
+						{
+							System.arraycopy( top, k, top, k + 1, NUM_SPLIT_CANDIDATES - k - 1 );
+							System.arraycopy( topVar, k, topVar, k + 1, NUM_SPLIT_CANDIDATES - k - 1 );
+							top[ k ] = j;
+							topVar[ k ] = var;
+							break;
+						}
+					}
+				}
+				int numCandidates = 0;
+				while ( numCandidates < NUM_SPLIT_CANDIDATES && topVar[ numCandidates ] > 0 ) ++numCandidates;
+				if ( numCandidates > 0 )
+				{
+					final int j = top[ rnd.nextInt( numCandidates ) ];
+					final float split = ( float )( sum[ j ] / count );
+					/* partition */
+					int a = start, b = end - 1;
+					while ( a <= b )
+					{
+						if ( descriptors[ index[ a ] * d + j ] < split ) ++a;
+						else
+						{
+							final int tmp = index[ a ];
+							index[ a ] = index[ b ];
+							index[ b ] = tmp;
+							--b;
+						}
+					}
+					if ( a > start && a < end )
+					{
+						dim[ node ] = j;
+						value[ node ] = split;
+						final int l = build( start, a, rnd );
+						final int h = build( a, end, rnd );
+						low[ node ] = l;
+						high[ node ] = h;
+						return node;
+					}
+				}
+			}
+			dim[ node ] = -1;
+			low[ node ] = start;
+			high[ node ] = end;
+			return node;
+		}
+	}
+
+	/**
+	 * Searches the index for one thread, reusing its buffers from query to query.
+	 */
+	final private class Searcher
+	{
+		int checks = FeatureIndex.this.checks;
+		/** Per descriptor, the last query that compared it. */
+		final int[] visited = new int[ n ];
+		int query = 0;
+		/* a min-heap of branches not yet explored */
+		float[] heapDist = new float[ 64 ];
+		int[] heapTree = new int[ 64 ], heapNode = new int[ 64 ];
+		int heapSize = 0;
+		/* closest and next closest squared distances */
+		final float[] best = new float[ 2 ];
+		int bestIndex, compared;
+
+		/**
+		 * @return the squared distances to the closest and next closest
+		 * descriptors, other than @param exclude, and in @param result the
+		 * index of the closest, or -1 if none.
+		 */
+		float[] search( final float[] q, final int exclude, final int[] result )
+		{
+			best[ 0 ] = best[ 1 ] = Float.MAX_VALUE;
+			bestIndex = -1;
+
+			if ( 0 == trees.length || checks >= n )
+			{
+				for ( int i = 0; i < n; ++i )
+					if ( i != exclude ) compare( i, q );
+				result[ 0 ] = bestIndex;
+				return best;
+			}
+
+			++query;
+			if ( 0 == query )
+			{
+				// wrapped around: forget old visits
+				Arrays.fill( visited, 0 );
+				query = 1;
+			}
+			if ( exclude >= 0 ) visited[ exclude ] = query;
+			compared = 0;
+			heapSize = 0;
+
+			for ( int t = 0; t < trees.length; ++t )
+				descend( t, 0, 0, q );
+			while ( heapSize > 0 && compared < checks )
+			{
+				final float dist = heapDist[ 0 ];
+				final int t = heapTree[ 0 ], node = heapNode[ 0 ];
+				pop();
+				if ( dist >= best[ 1 ] ) break; // no closer descriptors remain
+				descend( t, node, dist, q );
+			}
+			result[ 0 ] = bestIndex;
+			return best;
+		}
+
+		/** Descend to the leaf of @param node that contains @param q, queueing the other branches. */
+		private void descend( final int t, int node, final float dist, final float[] q )
+		{
+			final Tree tree = trees[ t ];
+			while ( -1 != tree.dim[ node ] )
+			{
+				final float diff = q[ tree.dim[ node ] ] - tree.value[ node ];
+				final int near, far;
+				if ( diff < 0 )
+				{
+					near = tree.low[ node ];
+					far = tree.high[ node ];
+				}
+				else
+				{
+					near = tree.high[ node ];
+					far = tree.low[ node ];
+				}
+				push( dist + diff * diff, t, far );
+				node = near;
+			}
+			for ( int i = tree.low[ node ]; i < tree.high[ node ]; ++i )
+			{
+				final int k = tree.index[ i ];
+				if ( query == visited[ k ] ) continue;
+				visited[ k ] = query;
+				compare( k, q );
+				++compared;
+			}
+		}
+
+		private void compare( final int k, final float[] q )
+		{
+			final float dist = distance( k, q, best[ 1 ] );
+			if ( dist < best[ 0 ] )
+			{
+				best[ 1 ] = best[ 0 ];
+				best[ 0 ] = dist;
+				bestIndex = k;
+			}
+			else if ( dist < best[ 1 ] )
+				best[ 1 ] = dist;
+		}
+
+		private void push( final float dist, final int t, final int node )
+		{
+			if ( heapSize == heapDist.length )
+			{
+				heapDist = Arrays.copyOf( heapDist, heapSize * 2 );
+				heapTree = Arrays.copyOf( heapTree, heapSize * 2 );
+				heapNode = Arrays.copyOf( heapNode, heapSize * 2 );
+			}
+			int i = heapSize++;
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) / 2;
+				if ( heapDist[ parent ] <= dist ) break;
+				heapDist[ i ] = heapDist[ parent ];
+				heapTree[ i ] = heapTree[ parent ];
+				heapNode[ i ] = heapNode[ parent ];
+				i = parent;
+			}
+			heapDist[ i ] = dist;
+			heapTree[ i ] = t;
+			heapNode[ i ] = node;
+		}
+
+		private void pop()
+		{
+			--heapSize;
+			final float dist = heapDist[ heapSize ];
+			final int t = heapTree[ heapSize ], node = heapNode[ heapSize ];
+			int i = 0;
+			while ( true )
+			{
+				int child = 2 * i + 1;
+				if ( child >= heapSize ) break;
+				if ( child + 1 < heapSize && heapDist[ child + 1 ] < heapDist[ child ] ) ++child;
+				if ( heapDist[ child ] >= dist ) break;
+				heapDist[ i ] = heapDist[ child ];
+				heapTree[ i ] = heapTree[ child ];
+				heapNode[ i ] = heapNode[ child ];
+				i = child;
+			}
+			heapDist[ i ] = dist;
+			heapTree[ i ] = t;
+			heapNode[ i ] = node;
+		}
+	}
+}
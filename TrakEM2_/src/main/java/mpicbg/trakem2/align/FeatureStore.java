@@ -0,0 +1,447 @@
+package mpicbg.trakem2.align;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Reads and writes the cached {@link Feature features} and
+ * {@link PointMatch point matches} of alignment in a compact binary format,
+ * in place of Java serialization of the object graphs.
+ *
+ * A file starts with {@link #MAGIC}, a format version, the kind of content
+ * and the key, that is, the Java-serialized parameters with which the
+ * content was computed, so that callers can compare them. Then come
+ * the number of items and, for features, the descriptor length, followed
+ * by one block of floats per column:
+ *
+ * - features: scales, orientations, locations (x and y interleaved) and descriptors.
+ * - point matches: P1 local and world, P2 local and world coordinates (2 floats each), and weights.
+ *
+ * Files are read in full with positional reads of their channel, which is
+ * closed right after: a memory mapping would hold the file open until
+ * garbage collected, and on some platforms, like Windows, a file that is
+ * mapped can't be replaced or deleted.
+ * Files that hold a Java-serialized object, as written before, are
+ * recognized by {@link #isLegacy(String)}.
+ *
+ * Writes can be batched with {@link #writeFeatures(String, Object, Collection, boolean)}
+ * and {@link #writePointMatches(String, Object, Collection, boolean)}:
+ * they are then done by a background thread, in the order submitted, and
+ * reads see them before they reach the disk. Call {@link #flush()} to wait
+ * for them, and {@link #remove(String)} to drop those of a file that is no
+ * longer valid. Submitters wait while the batched writes not yet on disk
+ * add up to more than {@link #MAX_PENDING_BYTES}. Each file is written to a temporary file first and then renamed,
+ * so that a file is either complete or absent.
+ */
+public final class FeatureStore
+{
+	static public final int MAGIC = 0x54454d46; // "TEMF"
+	static public final int VERSION = 1;
+	static public final long MAX_PENDING_BYTES = 128 * 1024 * 1024;
+
+	static private final int FEATURES = 1, POINT_MATCHES = 2;
+
+	/** Batched writes not yet on disk, by path. */
+	static private final HashMap< String, byte[] > pending = new HashMap< String, byte[] >();
+	/** All guarded by pending: the bytes in it, and the path being written by the background thread. */
+	static private long pendingBytes = 0;
+	static private String writing = null;
+	static private final ArrayList< Future< ? > > writes = new ArrayList< Future< ? > >();
+	static private ExecutorService writer = null;
+
+	/** Content read from a file, and the key it was saved with. */
+	static public final class Entry< T >
+	{
+		public final Object key;
+		public final ArrayList< T > items;
+
+		Entry( final Object key, final ArrayList< T > items )
+		{
+			this.key = key;
+			this.items = items;
+		}
+	}
+
+	private FeatureStore() {}
+
+	/** Whether the file at @param path exists and holds a Java-serialized object. */
+	static public boolean isLegacy( final String path )
+	{
+		synchronized ( pending )
+		{
+			if ( pending.containsKey( path ) ) return false;
+		}
+		final File f = new File( path );
+		if ( !f.exists() || f.length() < 2 ) return false;
+		try
+		{
+			final RandomAccessFile ra = new RandomAccessFile( f, "r" );
+			try
+			{
+				return 0xACED == ra.readUnsignedShort();
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	/** Save @param features with @param key at @param path; if @param batch, in the background. */
+	static public boolean writeFeatures( final String path, final Object key, final Collection< Feature > features, final boolean batch )
+	{
+		try
+		{
+			final int d = features.isEmpty() ? 0 : features.iterator().next().descriptor.length;
+			final ByteBuffer b = header( FEATURES, key, features.size(), d, 4 * features.size() * ( 4 + d ) );
+			final FloatBuffer fb = b.asFloatBuffer();
+			for ( final Feature f : features ) fb.put( f.scale );
+			for ( final Feature f : features ) fb.put( f.orientation );
+			for ( final Feature f : features ) fb.put( f.location, 0, 2 );
+			for ( final Feature f : features ) fb.put( f.descriptor, 0, d );
+			return write( path, b.array(), batch );
+		}
+		catch ( final IOException e )
+		{
+			IJError.print( e );
+			return false;
+		}
+	}
+
+	/** Save @param matches with @param key at @param path; if @param batch, in the background. */
+	static public boolean writePointMatches( final String path, final Object key, final Collection< PointMatch > matches, final boolean batch )
+	{
+		try
+		{
+			final ByteBuffer b = header( POINT_MATCHES, key, matches.size(), 2, 4 * matches.size() * 9 );
+			final FloatBuffer fb = b.asFloatBuffer();
+			for ( final PointMatch m : matches ) fb.put( m.getP1().getL(), 0, 2 );
+			for ( final PointMatch m : matches ) fb.put( m.getP1().getW(), 0, 2 );
+			for ( final PointMatch m : matches ) fb.put( m.getP2().getL(), 0, 2 );
+			for ( final PointMatch m : matches ) fb.put( m.getP2().getW(), 0, 2 );
+			for ( final PointMatch m : matches ) fb.put( m.getWeight() );
+			return write( path, b.array(), batch );
+		}
+		catch ( final IOException e )
+		{
+			IJError.print( e );
+			return false;
+		}
+	}
+
+	/** Returns the features saved at @param path, or null if there are none or the file is not readable. */
+	static public Entry< Feature > readFeatures( final String path )
+	{
+		final ByteBuffer b = read( path, FEATURES );
+		if ( null == b ) return null;
+		try
+		{
+			final Object key = key( b );
+			final int n = b.getInt();
+			final int d = b.getInt();
+			final FloatBuffer fb = b.asFloatBuffer();
+			final float[] scales = new float[ n ], orientations = new float[ n ], locations = new float[ 2 * n ];
+			fb.get( scales );
+			fb.get( orientations );
+			fb.get( locations );
+			final ArrayList< Feature > features = new ArrayList< Feature >( n );
+			for ( int i = 0; i < n; ++i )
+			{
+				final float[] descriptor = new float[ d ];
+				fb.get( descriptor );
+				features.add( new Feature( scales[ i ], orientations[ i ], new float[]{ locations[ 2 * i ], locations[ 2 * i + 1 ] }, descriptor ) );
+			}
+			return new Entry< Feature >( key, features );
+		}
+		catch ( final Exception e )
+		{
+			Utils.log2( "Could not read features from " + path + ": " + e );
+			return null;
+		}
+	}
+
+	/** Returns the point matches saved at @param path, or null if there are none or the file is not readable. */
+	static public Entry< PointMatch > readPointMatches( final String path )
+	{
+		final ByteBuffer b = read( path, POINT_MATCHES );
+		if ( null == b ) return null;
+		try
+		{
+			final Object key = key( b );
+			final int n = b.getInt();
+			b.getInt();
+			final FloatBuffer fb = b.asFloatBuffer();
+			final float[] l1 = new float[ 2 * n ], w1 = new float[ 2 * n ], l2 = new float[ 2 * n ], w2 = new float[ 2 * n ], weights = new float[ n ];
+			fb.get( l1 );
+			fb.get( w1 );
+			fb.get( l2 );
+			fb.get( w2 );
+			fb.get( weights );
+			final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( n );
+			for ( int i = 0; i < n; ++i )
+			{
+				matches.add( new PointMatch( point( l1, w1, i ), point( l2, w2, i ), weights[ i ] ) );
+			}
+			return new Entry< PointMatch >( key, matches );
+		}
+		catch ( final Exception e )
+		{
+			Utils.log2( "Could not read point matches from " + path + ": " + e );
+			return null;
+		}
+	}
+
+	/** Wait until all batched writes are on disk. */
+	static public void flush()
+	{
+		final ArrayList< Future< ? > > fus;
+		synchronized ( pending )
+		{
+			fus = new ArrayList< Future< ? > >( writes );
+			writes.clear();
+		}
+		Utils.wait( fus );
+	}
+
+	/**
+	 * Drop the batched writes of the file at @param path that are not yet on
+	 * disk, waiting for the one being written, if any; so that afterwards the
+	 * file can be deleted for good.
+	 */
+	static public void remove( final String path )
+	{
+		synchronized ( pending )
+		{
+			unqueue( path );
+			while ( path.equals( writing ) )
+			{
+				try
+				{
+					pending.wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/** Returns the paths, starting with @param prefix, of the batched writes not yet on disk. */
+	static public ArrayList< String > getPendingPaths( final String prefix )
+	{
+		final ArrayList< String > paths = new ArrayList< String >();
+		synchronized ( pending )
+		{
+			for ( final String path : pending.keySet() )
+				if ( path.startsWith( prefix ) ) paths.add( path );
+		}
+		return paths;
+	}
+
+	/** Must be called while holding the lock of pending. */
+	static private void unqueue( final String path )
+	{
+		final byte[] bytes = pending.remove( path );
+		if ( null == bytes ) return;
+		pendingBytes -= bytes.length;
+		pending.notifyAll();
+	}
+
+	static private Point point( final float[] l, final float[] w, final int i )
+	{
+		final Point p = new Point( new float[]{ l[ 2 * i ], l[ 2 * i + 1 ] } );
+		final float[] pw = p.getW();
+		pw[ 0 ] = w[ 2 * i ];
+		pw[ 1 ] = w[ 2 * i + 1 ];
+		return p;
+	}
+
+	static private ByteBuffer header( final int kind, final Object key, final int n, final int d, final int dataLength ) throws IOException
+	{
+		final ByteArrayOutputStream bkey = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream( bkey );
+		oos.writeObject( key );
+		oos.close();
+		final byte[] k = bkey.toByteArray();
+		final ByteBuffer b = ByteBuffer.allocate( 20 + k.length + 8 + dataLength );
+		b.putInt( MAGIC ).putInt( VERSION ).putInt( kind ).putInt( k.length ).put( k ).putInt( n ).putInt( d );
+		return b;
+	}
+
+	static private Object key( final ByteBuffer b ) throws IOException, ClassNotFoundException
+	{
+		final byte[] k = new byte[ b.getInt() ];
+		b.get( k );
+		final ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( k ) );
+		try
+		{
+			return ois.readObject();
+		}
+		finally
+		{
+			ois.close();
+		}
+	}
+
+	/** Returns a buffer positioned after the kind, or null if the file doesn't exist or is not of @param kind. */
+	static private ByteBuffer read( final String path, final int kind )
+	{
+		ByteBuffer b;
+		synchronized ( pending )
+		{
+			final byte[] bytes = pending.get( path );
+			b = null == bytes ? null : ByteBuffer.wrap( bytes );
+		}
+		if ( null == b )
+		{
+			final File f = new File( path );
+			if ( !f.exists() ) return null;
+			try
+			{
+				final RandomAccessFile ra = new RandomAccessFile( f, "r" );
+				try
+				{
+					final FileChannel fc = ra.getChannel();
+					final long size = fc.size();
+					if ( size > Integer.MAX_VALUE ) throw new IOException( "File too large: " + size + " bytes" );
+					b = ByteBuffer.allocate( ( int )size );
+					while ( b.hasRemaining() && -1 != fc.read( b, b.position() ) );
+					b.flip();
+				}
+				finally
+				{
+					ra.close();
+				}
+			}
+			catch ( final IOException e )
+			{
+				Utils.log2( "Could not read " + path + ": " + e );
+				return null;
+			}
+		}
+		if ( b.remaining() < 12 || MAGIC != b.getInt() ) return null;
+		if ( VERSION != b.getInt() || kind != b.getInt() ) return null;
+		return b;
+	}
+
+	static private boolean write( final String path, final byte[] bytes, final boolean batch )
+	{
+		if ( !batch ) return writeFile( path, bytes );
+		synchronized ( pending )
+		{
+			// Wait for the background thread to catch up, unless nothing else is pending
+			while ( pendingBytes > 0 && pendingBytes + bytes.length > MAX_PENDING_BYTES )
+			{
+				try
+				{
+					pending.wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			if ( null == writer ) writer = Utils.newFixedThreadPool( 1, "FeatureStore writer" );
+			for ( final Iterator< Future< ? > > it = writes.iterator(); it.hasNext(); )
+				if ( it.next().isDone() ) it.remove();
+			unqueue( path );
+			pending.put( path, bytes );
+			pendingBytes += bytes.length;
+			writes.add( writer.submit( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized ( pending )
+					{
+						// Not if written again or removed meanwhile
+						if ( bytes != pending.get( path ) ) return;
+						writing = path;
+					}
+					try
+					{
+						writeFile( path, bytes );
+					}
+					finally
+					{
+						synchronized ( pending )
+						{
+							writing = null;
+							if ( bytes == pending.get( path ) ) unqueue( path );
+							pending.notifyAll();
+						}
+					}
+				}
+			} ) );
+		}
+		return true;
+	}
+
+	static private boolean writeFile( final String path, final byte[] bytes )
+	{
+		final File f = new File( path );
+		final File dir = f.getParentFile();
+		if ( null == dir ) return false;
+		dir.mkdirs();
+		if ( !dir.exists() )
+		{
+			Utils.log2( "Could not create folder " + dir.getAbsolutePath() );
+			return false;
+		}
+		final File tmp = new File( path + ".tmp" );
+		try
+		{
+			final RandomAccessFile ra = new RandomAccessFile( tmp, "rw" );
+			try
+			{
+				ra.setLength( 0 );
+				ra.write( bytes );
+			}
+			finally
+			{
+				ra.close();
+			}
+			if ( !tmp.renameTo( f ) )
+			{
+				// Windows won't rename over an existing file
+				f.delete();
+				if ( !tmp.renameTo( f ) ) throw new IOException( "Could not rename " + tmp + " to " + f );
+			}
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IJError.print( e );
+			tmp.delete();
+			return false;
+		}
+	}
+}
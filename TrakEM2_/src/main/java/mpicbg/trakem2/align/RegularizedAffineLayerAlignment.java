@@ -55,7 +55,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.models.RigidModel2D;
 import mpicbg.models.SimilarityModel2D;
 import mpicbg.models.Tile;
-import mpicbg.models.TileConfiguration;
 import mpicbg.models.Transforms;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.trakem2.util.Triple;
@@ -95,6 +94,9 @@ public class RegularizedAffineLayerAlignment
 			gd.addMessage( "Layer neighbor range:" );
 			gd.addNumericField( "test_maximally :", maxNumNeighbors, 0, 6, "layers" );
 			gd.addNumericField( "give_up_after :", maxNumFailures, 0, 6, "failures" );
+			gd.addCheckbox( "save_checkpoints", saveCheckpoints );
+			gd.addCheckbox( "resume_from_checkpoints", resume );
+			gd.addCheckbox( "clear_checkpoints_first", clearCheckpoints );
 			
 			gd.showDialog();
 			
@@ -110,6 +112,9 @@ public class RegularizedAffineLayerAlignment
 			identityTolerance = ( float )gd.getNextNumber();
 			maxNumNeighbors = ( int )gd.getNextNumber();
 			maxNumFailures = ( int )gd.getNextNumber();
+			saveCheckpoints = gd.getNextBoolean();
+			resume = gd.getNextBoolean();
+			clearCheckpoints = gd.getNextBoolean();
 			
 			final GenericDialog gdOptimize = new GenericDialog( "Align layers: Optimization" );
 			gdOptimize.addChoice( "desired_transformation :", modelStrings, modelStrings[ desiredModelIndex ] );
@@ -117,6 +122,7 @@ public class RegularizedAffineLayerAlignment
 			gdOptimize.addMessage( "Optimization:" );
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsOptimize, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthOptimize, 0 );
+			gdOptimize.addCheckbox( "optimize_concurrently", optimizeConcurrently );
 			//gdOptimize.addCheckbox( "filter outliers", filterOutliers );
 			//gdOptimize.addNumericField( "mean_factor :", meanFactor, 2 );
 			
@@ -129,6 +135,7 @@ public class RegularizedAffineLayerAlignment
 			regularize = gdOptimize.getNextBoolean();
 			maxIterationsOptimize = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthOptimize = ( int )gdOptimize.getNextNumber();
+			optimizeConcurrently = gdOptimize.getNextBoolean();
 			
 			if ( regularize )
 			{
@@ -214,7 +221,7 @@ public class RegularizedAffineLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -243,6 +250,12 @@ public class RegularizedAffineLayerAlignment
 					regularizerIndex,
 					rejectIdentity,
 					visualize );
+			clone.ppm.matchRecall = ppm.matchRecall;
+			clone.optimizeConcurrently = optimizeConcurrently;
+			clone.saveCheckpoints = saveCheckpoints;
+			clone.resume = resume;
+			clone.clearCheckpoints = clearCheckpoints;
+			return clone;
 		}
 	}
 	
@@ -275,6 +288,9 @@ public class RegularizedAffineLayerAlignment
 
         final ExecutorService exec = ExecutorProvider.getExecutorService(1.0f / (float)param.maxNumThreads);
 
+		if ( param.clearCheckpoints )
+			AlignmentCheckpoint.clear( layerRange.get( 0 ).getProject(), "affine" );
+
 		/* create tiles and models for all layers */
 		final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
 		final AbstractAffineModel2D< ? > m = ( AbstractAffineModel2D< ? > )Util.createModel( param.desiredModelIndex );
@@ -295,7 +311,7 @@ public class RegularizedAffineLayerAlignment
 		/* extract and save features, overwrite cached files if requested */
 		try
 		{
-			AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache, param.ppm.maxNumThreadsSift );
+			AlignmentUtils.extractAndSaveLayerFeatures( layerRange, box, scale, filter, param.ppm.sift, param.ppm.clearCache && !param.resume, param.ppm.maxNumThreadsSift );
 		}
 		catch ( final Exception e )
 		{
@@ -308,6 +324,14 @@ public class RegularizedAffineLayerAlignment
 		final double pointMatchScale = 1.0 / scale;
         final ArrayList<Future<Triple<Integer, Integer, Collection<PointMatch>>>> modelFutures =
                 new ArrayList<Future<Triple<Integer, Integer, Collection<PointMatch>>>>();
+        final AlignmentCheckpoint checkpoint = new AlignmentCheckpoint(
+                layerRange.get(0).getProject(),
+                "affine",
+                param.correspondenceKey() + " box=" + box + " scale=" + scale + " filter=" + filter,
+                layerRange,
+                filter,
+                param.saveCheckpoints,
+                param.resume);
 		
 		for ( int i = 0; i < layerRange.size(); ++i )
 		{
@@ -320,7 +344,8 @@ public class RegularizedAffineLayerAlignment
                                     param,
                                     layerRange.get(i), layerRange.get(j),
                                     pointMatchScale,
-                                    i, j)));
+                                    i, j,
+                                    checkpoint)));
 
 			}
 		}
@@ -406,10 +431,17 @@ public class RegularizedAffineLayerAlignment
 		
 		IJ.log( "pre-aligned all but " + nonPreAlignedTiles.size() + " tiles" );
 		
-		tileConfiguration.optimize(
-				param.maxEpsilon,
-				param.maxIterationsOptimize,
-				param.maxPlateauwidthOptimize );
+		if ( param.optimizeConcurrently )
+			tileConfiguration.optimizeConcurrently(
+					param.maxEpsilon,
+					param.maxIterationsOptimize,
+					param.maxPlateauwidthOptimize,
+					param.maxNumThreads );
+		else
+			tileConfiguration.optimize(
+					param.maxEpsilon,
+					param.maxIterationsOptimize,
+					param.maxPlateauwidthOptimize );
 		
 		Utils.log( new StringBuffer( "Successfully optimized configuration of " ).append( tiles.size() ).append( " tiles:" ).toString() );
 		Utils.log( "  average displacement: " + String.format( "%.3f", tileConfiguration.getError() ) + "px" );
@@ -643,6 +675,7 @@ public class RegularizedAffineLayerAlignment
         final Layer layerA, layerB;
         final double pointMatchScale;
         final int sliceA, sliceB;
+        final AlignmentCheckpoint checkpoint;
 
 
         public CorrespondenceCallable(final Param param,
@@ -650,8 +683,10 @@ public class RegularizedAffineLayerAlignment
                                       final Layer layerB,
                                       final double pointMatchScale,
                                       final int sliceA,
-                                      final int sliceB)
+                                      final int sliceB,
+                                      final AlignmentCheckpoint checkpoint)
         {
+            this.checkpoint = checkpoint;
             this.param = param;
             this.layerA = layerA;
             this.layerB = layerB;
@@ -667,6 +702,14 @@ public class RegularizedAffineLayerAlignment
             final String layerNameB = AlignmentUtils.layerName( layerB );
             final Triple<Integer, Integer, Collection<PointMatch>> nullTriple =
                     new Triple<Integer, Integer, Collection<PointMatch>>(sliceA, sliceB, null);
+
+            final ArrayList< PointMatch > restored = checkpoint.read( "inliers", layerB.getId(), layerA.getId() );
+            if ( null != restored )
+            {
+                Utils.log( layerNameB + " -> " + layerNameA + ": " + restored.size() + " corresponding features read from checkpoint." );
+                return restored.isEmpty() ? nullTriple : new Triple< Integer, Integer, Collection< PointMatch > >( sliceA, sliceB, restored );
+            }
+
             ArrayList< PointMatch > candidates = null;
             if ( !param.ppm.clearCache )
                 candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
@@ -678,7 +721,13 @@ public class RegularizedAffineLayerAlignment
                         layerA.getProject(), param.ppm.sift, "layer", layerA.getId() );
                 final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures(
                         layerB.getProject(), param.ppm.sift, "layer", layerB.getId() );
-                candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
+                if ( param.ppm.matchRecall < 1 )
+                {
+                    candidates = new ArrayList< PointMatch >();
+                    new FeatureIndex( fs1, param.ppm.matchRecall ).match( fs2, candidates, param.ppm.rod );
+                }
+                else
+                    candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
 
                 /* scale the candidates */
                 for ( final PointMatch pm : candidates )
@@ -796,12 +845,14 @@ public class RegularizedAffineLayerAlignment
             {
                 Utils.log( layerNameB + " -> " + layerNameA + ": " + inliers.size() + " corresponding features with an average displacement of " + ( PointMatch.meanDistance( inliers ) ) + "px identified." );
                 Utils.log( "Estimated transformation model: " + model + ( param.multipleHypotheses ? ( " from " + nHypotheses + " hypotheses" ) : "" ) );
+                checkpoint.write( "inliers", layerB.getId(), layerA.getId(), inliers, false );
                 return new Triple< Integer, Integer, Collection< PointMatch > >( sliceA, sliceB, inliers );
                 //models.set( ti, new Triple< Integer, Integer, Collection< PointMatch > >( sliceA, sliceB, inliers ) );
             }
             else
             {
                 Utils.log( layerNameB + " -> " + layerNameA + ": no correspondences found." );
+                checkpoint.write( "inliers", layerB.getId(), layerA.getId(), null, false );
                 return nullTriple;
             }
         }
@@ -1,13 +1,229 @@
 /**
- * 
+ *
  */
 package mpicbg.trakem2.align;
 
 import ij.IJ;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Tile;
 
 public class TileConfiguration extends mpicbg.models.TileConfiguration
 {
+	/** Print the error every that many iterations of {@link #optimizeConcurrently(float, int, int, int)}; 0 for never. */
+	protected int logInterval = 0;
+
+	/** Per iteration of the last {@link #optimizeConcurrently(float, int, int, int)}: average error, maximal error and milliseconds since the start. */
+	final protected ArrayList< double[] > history = new ArrayList< double[] >();
+
 	@Override
 	protected void println( String s ){ IJ.log( s ); }
 
+	public void setLogInterval( final int logInterval ){ this.logInterval = logInterval; }
+
+	public List< double[] > getHistory(){ return history; }
+
+	/**
+	 * Partition the tiles that are not fixed into colour classes such that
+	 * no two tiles of the same class are connected.  The tiles of a class
+	 * do not share any {@link mpicbg.models.Point}, so they can be fit and
+	 * applied concurrently, with the same result as one after the other.
+	 * Greedy colouring: grids of tiles need four to eight classes.
+	 */
+	final protected ArrayList< ArrayList< Tile< ? > > > colorTiles()
+	{
+		final ArrayList< ArrayList< Tile< ? > > > classes = new ArrayList< ArrayList< Tile< ? > > >();
+		final HashMap< Tile< ? >, Integer > colors = new HashMap< Tile< ? >, Integer >();
+		final BitSet used = new BitSet();
+		for ( final Tile< ? > t : tiles )
+		{
+			if ( fixedTiles.contains( t ) ) continue;
+			used.clear();
+			for ( final Tile< ? > o : t.getConnectedTiles() )
+			{
+				final Integer c = colors.get( o );
+				if ( null != c ) used.set( c );
+			}
+			final int c = used.nextClearBit( 0 );
+			colors.put( t, c );
+			if ( c == classes.size() ) classes.add( new ArrayList< Tile< ? > >() );
+			classes.get( c ).add( t );
+		}
+		return classes;
+	}
+
+	/**
+	 * Like {@link #optimize(float, int, int)}, but fitting and applying the
+	 * models of the tiles of each colour class (see {@link #colorTiles()})
+	 * with numThreads threads.  The result does not depend on numThreads.
+	 * Records the error of each iteration, see {@link #getHistory()}.
+	 */
+	public void optimizeConcurrently(
+			final float maxAllowedError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final int numThreads ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final long t0 = System.currentTimeMillis();
+		final ArrayList< ArrayList< Tile< ? > > > classes = colorTiles();
+		final ArrayList< Tile< ? > > all = new ArrayList< Tile< ? > >( tiles );
+		final double[] distances = new double[ all.size() ];
+		final ExecutorService exec = numThreads > 1 ? Utils.newFixedThreadPool( numThreads, "TileConfiguration optimizer" ) : null;
+
+		history.clear();
+		println( "Optimizing " + all.size() + " tiles in " + classes.size() + " colour classes with " + Math.max( 1, numThreads ) + " threads." );
+
+		final ErrorStatistic observer = new ErrorStatistic( maxPlateauwidth + 1 );
+		int i = 0;
+		try
+		{
+			boolean proceed = i < maxIterations;
+			while ( proceed )
+			{
+				for ( final ArrayList< Tile< ? > > c : classes )
+				{
+					run( exec, numThreads, c, new Chunk()
+					{
+						@Override
+						void process( final List< Tile< ? > > ts, final int offset ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+						{
+							for ( final Tile< ? > t : ts )
+							{
+								t.fitModel();
+								t.apply();
+							}
+						}
+					} );
+				}
+
+				run( exec, numThreads, all, new Chunk()
+				{
+					@Override
+					void process( final List< Tile< ? > > ts, final int offset )
+					{
+						for ( int k = 0; k < ts.size(); ++k )
+						{
+							final Tile< ? > t = ts.get( k );
+							t.updateCost();
+							distances[ offset + k ] = t.getDistance();
+						}
+					}
+				} );
+
+				// Sum in a fixed order, for the same error regardless of the threads
+				double sum = 0;
+				minError = Double.MAX_VALUE;
+				maxError = 0;
+				for ( final double d : distances )
+				{
+					sum += d;
+					if ( d < minError ) minError = d;
+					if ( d > maxError ) maxError = d;
+				}
+				error = all.isEmpty() ? 0 : sum / all.size();
+
+				observer.add( error );
+				history.add( new double[]{ error, maxError, System.currentTimeMillis() - t0 } );
+				if ( logInterval > 0 && 0 == i % logInterval )
+					println( "  iteration " + i + ": average " + String.format( "%.3f", error ) + "px, maximal " + String.format( "%.3f", maxError ) + "px, " + ( System.currentTimeMillis() - t0 ) + " ms" );
+
+				if ( i > maxPlateauwidth )
+				{
+					proceed = error > maxAllowedError;
+
+					int d = maxPlateauwidth;
+					while ( !proceed && d >= 1 )
+					{
+						try
+						{
+							proceed |= Math.abs( observer.getWideSlope( d ) ) > 0.0001;
+						}
+						catch ( final Exception e ) { IJError.print( e ); }
+						d /= 2;
+					}
+				}
+
+				proceed &= ++i < maxIterations;
+			}
+		}
+		finally
+		{
+			if ( null != exec ) exec.shutdown();
+		}
+
+		println( "Successfully optimized configuration of " + all.size() + " tiles after " + i + " iterations in " + ( System.currentTimeMillis() - t0 ) + " ms:" );
+		println( "  average displacement: " + String.format( "%.3f", error ) + "px" );
+		println( "  minimal displacement: " + String.format( "%.3f", minError ) + "px" );
+		println( "  maximal displacement: " + String.format( "%.3f", maxError ) + "px" );
+	}
+
+	/** Work on a contiguous part of a list of tiles that starts at offset. */
+	static private abstract class Chunk
+	{
+		abstract void process( List< Tile< ? > > ts, int offset ) throws NotEnoughDataPointsException, IllDefinedDataPointsException;
+	}
+
+	/** Split ts into one chunk per thread, and wait until all are done. */
+	static private void run(
+			final ExecutorService exec,
+			final int numThreads,
+			final List< Tile< ? > > ts,
+			final Chunk chunk ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		// Not worth dispatching a handful of tiles
+		if ( null == exec || ts.size() < 2 * numThreads )
+		{
+			chunk.process( ts, 0 );
+			return;
+		}
+		final ArrayList< Future< Object > > fus = new ArrayList< Future< Object > >();
+		final int size = ( ts.size() + numThreads - 1 ) / numThreads;
+		for ( int start = 0; start < ts.size(); start += size )
+		{
+			final int offset = start;
+			final List< Tile< ? > > part = ts.subList( start, Math.min( ts.size(), start + size ) );
+			fus.add( exec.submit( new Callable< Object >()
+			{
+				@Override
+				public Object call() throws Exception
+				{
+					chunk.process( part, offset );
+					return null;
+				}
+			} ) );
+		}
+		try
+		{
+			for ( final Future< Object > fu : fus )
+				fu.get();
+		}
+		catch ( final InterruptedException ie )
+		{
+			for ( final Future< Object > fu : fus )
+				fu.cancel( true );
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( ie );
+		}
+		catch ( final ExecutionException ee )
+		{
+			final Throwable cause = ee.getCause();
+			if ( cause instanceof NotEnoughDataPointsException ) throw ( NotEnoughDataPointsException )cause;
+			if ( cause instanceof IllDefinedDataPointsException ) throw ( IllDefinedDataPointsException )cause;
+			if ( cause instanceof RuntimeException ) throw ( RuntimeException )cause;
+			throw new RuntimeException( cause );
+		}
+	}
 }
@@ -0,0 +1,322 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.trakem2.transform.CoordinateTransform;
+
+/**
+ * Applies the result of an alignment to many {@link Patch patches} at once.
+ *
+ * The patches are transformed layer by layer, concurrently within each layer,
+ * with the bucket index of the layer updated once after all its patches are
+ * transformed (see {@link Layer#deferBucketUpdates()}) rather than once per
+ * patch.  Their mipmaps are then regenerated by
+ * {@link #regenerateMipMaps(Collection)}, which feeds the mipmap pipeline of
+ * the loader a few patches at a time, those on screen first, instead of
+ * queueing all patches of the project in whatever order they come.
+ */
+public class TransformApplier
+{
+	/** How many patches {@link #regenerateMipMaps(Collection)} keeps queued in the mipmap pipeline, per processor. */
+	static public int queuedPerProcessor = 4;
+
+	/** The patches to transform, grouped by layer in the order they were added, each with its transform. */
+	final private LinkedHashMap< Layer, ArrayList< Patch > > patches = new LinkedHashMap< Layer, ArrayList< Patch > >();
+	final private HashMap< Patch, CoordinateTransform > transforms = new HashMap< Patch, CoordinateTransform >();
+
+	/**
+	 * Add a {@link Patch} to transform by ct, a transform in world
+	 * coordinates, see {@link Util#applyLayerTransformToPatch(Patch, CoordinateTransform)}.
+	 * The same ct may be added for many patches: each gets a copy.
+	 */
+	public void add( final Patch patch, final CoordinateTransform ct )
+	{
+		ArrayList< Patch > ps = patches.get( patch.getLayer() );
+		if ( null == ps )
+		{
+			ps = new ArrayList< Patch >();
+			patches.put( patch.getLayer(), ps );
+		}
+		if ( null == transforms.put( patch, ct ) )
+			ps.add( patch );
+	}
+
+	/**
+	 * Transform all added patches, one layer after another, with numThreads
+	 * threads, and forget them.  Stops after the current layer when the
+	 * thread is interrupted.
+	 *
+	 * @return the patches that were transformed, in the order they were
+	 * added by layer, for {@link #regenerateMipMaps(Collection)}
+	 */
+	public ArrayList< Patch > apply( final int numThreads )
+	{
+		final ArrayList< Patch > done = new ArrayList< Patch >();
+		final ExecutorService exec = Utils.newFixedThreadPool( Math.max( 1, numThreads ), "TransformApplier" );
+		try
+		{
+			for ( final Map.Entry< Layer, ArrayList< Patch > > e : patches.entrySet() )
+			{
+				if ( Thread.currentThread().isInterrupted() ) break;
+				final Layer layer = e.getKey();
+				final ArrayList< Future< Patch > > fus = new ArrayList< Future< Patch > >();
+				layer.deferBucketUpdates();
+				try
+				{
+					for ( final Patch patch : e.getValue() )
+					{
+						final CoordinateTransform ct = transforms.get( patch );
+						fus.add( exec.submit( new Callable< Patch >()
+						{
+							@Override
+							public Patch call() throws Exception
+							{
+								Util.applyLayerTransformToPatch( patch, ct.copy() );
+								return patch;
+							}
+						} ) );
+					}
+					for ( final Future< Patch > fu : fus )
+					{
+						try
+						{
+							done.add( fu.get() );
+						}
+						catch ( final ExecutionException ee )
+						{
+							IJError.print( ee.getCause() );
+						}
+					}
+				}
+				catch ( final InterruptedException ie )
+				{
+					Utils.log( "Interrupted while transforming the patches of " + layer + ": not all patches have been updated." );
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					layer.resumeBucketUpdates();
+				}
+			}
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+		patches.clear();
+		transforms.clear();
+		return done;
+	}
+
+	/**
+	 * Set to the patch of each tile the affine transform of its model,
+	 * updating the bucket index of each layer once.
+	 */
+	static public void setAffineTransforms( final Collection< ? extends AbstractAffineTile2D< ? > > tiles )
+	{
+		final LinkedHashMap< Layer, ArrayList< AbstractAffineTile2D< ? > > > byLayer = new LinkedHashMap< Layer, ArrayList< AbstractAffineTile2D< ? > > >();
+		for ( final AbstractAffineTile2D< ? > t : tiles )
+		{
+			ArrayList< AbstractAffineTile2D< ? > > ts = byLayer.get( t.getPatch().getLayer() );
+			if ( null == ts )
+			{
+				ts = new ArrayList< AbstractAffineTile2D< ? > >();
+				byLayer.put( t.getPatch().getLayer(), ts );
+			}
+			ts.add( t );
+		}
+		for ( final Map.Entry< Layer, ArrayList< AbstractAffineTile2D< ? > > > e : byLayer.entrySet() )
+		{
+			e.getKey().deferBucketUpdates();
+			try
+			{
+				for ( final AbstractAffineTile2D< ? > t : e.getValue() )
+					t.getPatch().setAffineTransform( t.getModel().createAffine() );
+			}
+			finally
+			{
+				e.getKey().resumeBucketUpdates();
+			}
+		}
+	}
+
+	/**
+	 * Regenerate the mipmaps of the patches in the background, keeping at
+	 * most {@link #queuedPerProcessor} per processor in the mipmap pipeline
+	 * of the loader at a time, so that other mipmap requests, like those of
+	 * a user browsing, are not queued behind those of a whole project.
+	 * Every time it queues more, it picks those closest to what the open
+	 * {@link Display displays} show: first the patches in view, then the
+	 * rest of the layers shown, then the layers nearest to them.
+	 *
+	 * @return a Future that is true when all mipmaps were regenerated
+	 */
+	static public Future< Boolean > regenerateMipMaps( final Collection< Patch > patches )
+	{
+		final ArrayList< Patch > remaining = new ArrayList< Patch >( patches );
+		final FutureTask< Boolean > task = new FutureTask< Boolean >( new Callable< Boolean >()
+		{
+			@Override
+			public Boolean call() throws Exception
+			{
+				final int maxQueued = Math.max( 1, queuedPerProcessor * Runtime.getRuntime().availableProcessors() );
+				final LinkedList< Future< Boolean > > queued = new LinkedList< Future< Boolean > >();
+				boolean success = true;
+				String lastViews = null;
+				while ( !remaining.isEmpty() )
+				{
+					if ( Thread.currentThread().isInterrupted() ) return false;
+					/* rank again when the displays show something else */
+					final ArrayList< Object[] > views = views();
+					final String key = key( views );
+					if ( !key.equals( lastViews ) )
+					{
+						sortByView( remaining, views );
+						lastViews = key;
+					}
+					final int n = Math.min( remaining.size(), Math.max( 1, maxQueued - queued.size() ) );
+					final List< Patch > batch = remaining.subList( 0, n );
+					for ( final Patch patch : batch )
+					{
+						final Future< Boolean > fu = patch.updateMipMaps();
+						if ( null != fu ) queued.add( fu );
+					}
+					batch.clear();
+					/* wait for half of the queue, then refill */
+					while ( queued.size() > maxQueued / 2 )
+						success &= done( queued.removeFirst() );
+				}
+				for ( final Future< Boolean > fu : queued )
+					success &= done( fu );
+				return success;
+			}
+		} );
+		final Thread thread = new Thread( task, "Regenerating mipmaps of " + patches.size() + " patches" );
+		thread.setDaemon( true );
+		thread.start();
+		return task;
+	}
+
+	static private boolean done( final Future< Boolean > fu ) throws InterruptedException
+	{
+		try
+		{
+			return Boolean.TRUE.equals( fu.get() );
+		}
+		catch ( final ExecutionException ee )
+		{
+			IJError.print( ee.getCause() );
+			return false;
+		}
+	}
+
+	/** The layer and the visible rectangle of each open {@link Display}. */
+	static private ArrayList< Object[] > views()
+	{
+		final ArrayList< Object[] > views = new ArrayList< Object[] >();
+		for ( final Display d : Display.getDisplays() )
+		{
+			final Layer layer = d.getLayer();
+			if ( null == layer || null == d.getCanvas() ) continue;
+			views.add( new Object[]{ layer, new Rectangle( d.getCanvas().getSrcRect() ) } );
+		}
+		return views;
+	}
+
+	static private String key( final List< Object[] > views )
+	{
+		final StringBuilder sb = new StringBuilder();
+		for ( final Object[] view : views )
+			sb.append( ( ( Layer )view[ 0 ] ).getId() ).append( view[ 1 ] ).append( ';' );
+		return sb.toString();
+	}
+
+	/** Sort the patches by how far they are from the views; stable for patches at the same distance. */
+	static private void sortByView( final List< Patch > ps, final List< Object[] > views )
+	{
+		if ( views.isEmpty() ) return;
+
+		final HashMap< Layer, Integer > indices = new HashMap< Layer, Integer >();
+		final HashMap< Patch, Double > ranks = new HashMap< Patch, Double >();
+		final Rectangle box = new Rectangle();
+		for ( final Patch p : ps )
+		{
+			double rank = Double.MAX_VALUE;
+			final Layer layer = p.getLayer();
+			final LayerSet ls = layer.getParent();
+			p.getBoundingBox( box );
+			for ( final Object[] view : views )
+			{
+				final Layer vl = ( Layer )view[ 0 ];
+				if ( vl.getParent() != ls ) continue;
+				final Rectangle srcRect = ( Rectangle )view[ 1 ];
+				/* distance in layers weighs more than any distance within a layer */
+				final double dz = Math.abs( index( indices, layer ) - index( indices, vl ) );
+				final double dx = box.getCenterX() - srcRect.getCenterX(),
+				             dy = box.getCenterY() - srcRect.getCenterY();
+				final double r = ( 2 * dz + ( box.intersects( srcRect ) ? 0 : 1 ) ) * 1e12 + Math.sqrt( dx * dx + dy * dy );
+				if ( r < rank ) rank = r;
+			}
+			ranks.put( p, rank );
+		}
+		final Patch[] sorted = ps.toArray( new Patch[ ps.size() ] );
+		Arrays.sort( sorted, new Comparator< Patch >()
+		{
+			@Override
+			public int compare( final Patch p1, final Patch p2 )
+			{
+				return Double.compare( ranks.get( p1 ), ranks.get( p2 ) );
+			}
+		} );
+		ps.clear();
+		ps.addAll( Arrays.asList( sorted ) );
+	}
+
+	static private int index( final HashMap< Layer, Integer > indices, final Layer layer )
+	{
+		Integer i = indices.get( layer );
+		if ( null == i )
+		{
+			i = layer.getParent().indexOf( layer );
+			indices.put( layer, i );
+		}
+		return i;
+	}
+}
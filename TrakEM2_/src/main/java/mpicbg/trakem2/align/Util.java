@@ -50,6 +50,7 @@ import mpicbg.trakem2.transform.CoordinateTransformList;
  */
 public class Util
 {
+	/** As saved before the {@link FeatureStore}; read only. */
 	final static protected class Features implements Serializable
 	{
 		private static final long serialVersionUID = -5707602842402593215L;
@@ -63,6 +64,7 @@ public class Util
 		}
 	}
 	
+	/** As saved before the {@link FeatureStore}; read only. */
 	final static protected class PointMatches implements Serializable
 	{
 		private static final long serialVersionUID = 7905488521562090982L;
@@ -96,18 +98,23 @@ public class Util
 			final long id,
 			final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
-		
+		return FeatureStore.writeFeatures( featuresPath( project, prefix, id ), key, f, false );
+	}
+	
+	final static private String featuresPath( final Project project, final String prefix, final long id )
+	{
 		final String name = prefix == null ? "features" : prefix + ".features";
-		
-		final Loader loader = project.getLoader();
-		final Features fe = new Features( key, list );
-		return loader.serialize(
-				fe,
-				new StringBuilder( loader.getUNUIdFolder() )
+		return new StringBuilder( project.getLoader().getUNUIdFolder() )
 					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString();
+	}
+	
+	final static private String pointMatchesPath( final Project project, final String prefix, final long id1, final long id2 )
+	{
+		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
+		return new StringBuilder( project.getLoader().getUNUIdFolder() )
+					.append( "pointmatches.ser/" )
+					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString();
 	}
 
 	
@@ -131,14 +138,19 @@ public class Util
 			final String prefix,
 			final long id )
 	{
-		final String name = prefix == null ? "features" : prefix + ".features";
+		final String path = featuresPath( project, prefix, id );
 		
-		final Loader loader = project.getLoader();
+		if ( !FeatureStore.isLegacy( path ) )
+		{
+			final FeatureStore.Entry< Feature > fe = FeatureStore.readFeatures( path );
+			if ( fe == null )
+				Utils.log( "features file null" );
+			else if ( fe.key != null && key.equals( fe.key ) )
+				return fe.items;
+			return null;
+		}
 
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+		final Object ob = project.getLoader().deserialize( path );
 		
 		if ( ob != null )
 		{
@@ -179,25 +191,12 @@ public class Util
 			final long id2,
 			final Collection< PointMatch > m )
 	{
-		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
-		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
 		
-		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
-		
-		final Loader loader = project.getLoader();
 		return
-			loader.serialize(
-				new PointMatches( key, list ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( key, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id2 ) + "_" + Long.toString( id1 ), name, ".ser" ) ).toString() );
+			FeatureStore.writePointMatches( pointMatchesPath( project, prefix, id1, id2 ), key, m, false ) &&
+			FeatureStore.writePointMatches( pointMatchesPath( project, prefix, id2, id1 ), key, tsil, false );
 	}
 	
 	
@@ -208,14 +207,17 @@ public class Util
 			final long id1,
 			final long id2 )
 	{
-		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
+		final String path = pointMatchesPath( project, prefix, id1, id2 );
 		
-		final Loader loader = project.getLoader();
+		if ( !FeatureStore.isLegacy( path ) )
+		{
+			final FeatureStore.Entry< PointMatch > pm = FeatureStore.readPointMatches( path );
+			if ( pm != null && pm.key != null && key.equals( pm.key ) )
+				return pm.items;
+			return null;
+		}
 		
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
+		final Object ob = project.getLoader().deserialize( path );
 		
 		if ( null != ob )
 		{
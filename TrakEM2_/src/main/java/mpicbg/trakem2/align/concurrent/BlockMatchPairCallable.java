@@ -1,28 +1,32 @@
 package mpicbg.trakem2.align.concurrent;
 
-import ij.ImagePlus;
 import ij.process.FloatProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ProcessWorker;
 import ini.trakem2.utils.Filter;
 
-import java.awt.Color;
-import java.awt.Image;
 import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
 
 import mpicbg.ij.blockmatching.BlockMatching;
 import mpicbg.models.AbstractModel;
+import mpicbg.models.CoordinateTransform;
 import mpicbg.models.ErrorStatistic;
 import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
-import mpicbg.trakem2.align.AlignmentUtils;
 import mpicbg.trakem2.align.ElasticLayerAlignment;
 import mpicbg.trakem2.align.Util;
 import mpicbg.trakem2.util.Triple;
@@ -57,15 +61,50 @@ public class BlockMatchPairCallable implements
             this.layer2Fixed = layer2Fixed;
             this.pair = pair;
         }
+
+        /**
+         * Make the matches refer to the @param original1 and @param original2 source points,
+         * in place of the copies that a callable run in another JVM matched against.
+         * Does nothing if the results were computed in this JVM.
+         */
+        public void relink(final Collection<? extends Point> original1, final Collection<? extends Point> original2)
+        {
+            if (v1 != original1) relink(pm12, v1, original1);
+            if (v2 != original2) relink(pm21, v2, original2);
+            v1 = original1;
+            v2 = original2;
+        }
+
+        private static void relink(final Collection<PointMatch> pms, final Collection<? extends Point> copies, final Collection<? extends Point> originals)
+        {
+            final IdentityHashMap<Point, Point> map = new IdentityHashMap<Point, Point>();
+            final Iterator<? extends Point> it = originals.iterator();
+            for (final Point p : copies)
+            {
+                map.put(p, it.next());
+            }
+            final ArrayList<PointMatch> relinked = new ArrayList<PointMatch>(pms.size());
+            for (final PointMatch pm : pms)
+            {
+                final Point p1 = map.get(pm.getP1());
+                relinked.add(null == p1 ? pm : new PointMatch(p1, pm.getP2(), pm.getWeight()));
+            }
+            pms.clear();
+            pms.addAll(relinked);
+        }
     }
 
-    private Layer layer1, layer2;
+    private transient Layer layer1, layer2;
     private final boolean layer1Fixed, layer2Fixed;
     private final Filter<Patch> filter;
     private final ElasticLayerAlignment.Param param;
-    private final Collection<? extends Point> v1, v2;
+    private transient Collection<? extends Point> v1, v2;
     private final Rectangle box;
     private final Triple<Integer, Integer, AbstractModel<?>> pair;
+    /** Shared renderings of the layers, or null to render them here. */
+    private final transient LayerRenderCache cache;
+    /** Where to search for the blocks of one layer in the other, or null to use the model of the pair. */
+    private CoordinateTransform seed12, seed21;
 
 
     public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
@@ -77,6 +116,24 @@ public class BlockMatchPairCallable implements
                                   final Collection< ? extends Point > sourcePoints1,
                                   final Collection< ? extends Point > sourcePoints2,
                                   final Rectangle box)
+    {
+        this(pair, layerRange, layer1Fixed, layer2Fixed, filter, param, sourcePoints1, sourcePoints2, box, null);
+    }
+
+    /**
+     * @param cache the renderings of the layers, shared with other pairs; each layer
+     * is acquired and released once. May be null.
+     */
+    public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
+                                  final List<Layer> layerRange,
+                                  final boolean layer1Fixed,
+                                  final boolean layer2Fixed,
+                                  final Filter<Patch> filter,
+                                  final ElasticLayerAlignment.Param param,
+                                  final Collection< ? extends Point > sourcePoints1,
+                                  final Collection< ? extends Point > sourcePoints2,
+                                  final Rectangle box,
+                                  final LayerRenderCache cache)
     {
         this.pair = pair;
         layer1 = layerRange.get(pair.a);
@@ -88,49 +145,62 @@ public class BlockMatchPairCallable implements
         v1 = sourcePoints1;
         v2 = sourcePoints2;
         this.box = box;
+        this.cache = cache;
+    }
+
+    /**
+     * Search for the blocks of layer1 around where @param seed12 maps them into
+     * layer2, and for those of layer2 around where @param seed21 maps them into
+     * layer1, in place of using the model of the pair.
+     */
+    public void setSeeds(final CoordinateTransform seed12, final CoordinateTransform seed21)
+    {
+        this.seed12 = seed12;
+        this.seed21 = seed21;
     }
 
     @Override
     public BlockMatchResults call() throws Exception
     {
-        final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
-        final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
-        final Project project = layer1.getProject();
-
         System.out.println("BMC rev 0: " + pair.a + " " + pair.b);
 
-        final Image img1 = project.getLoader().getFlatAWTImage(
-                layer1,
-                box,
-                param.layerScale,
-                0xffffffff,
-                ImagePlus.COLOR_RGB,
-                Patch.class,
-                AlignmentUtils.filterPatches(layer1, filter),
-                true,
-                new Color( 0x00ffffff, true ) );
-
-        final Image img2 = project.getLoader().getFlatAWTImage(
-                layer2,
-                box,
-                param.layerScale,
-                0xffffffff,
-                ImagePlus.COLOR_RGB,
-                Patch.class,
-                AlignmentUtils.filterPatches( layer2, filter ),
-                true,
-                new Color( 0x00ffffff, true ) );
-
-        final int width = img1.getWidth( null );
-        final int height = img1.getHeight( null );
+        if (null == cache)
+        {
+            return match(LayerRenderCache.render(layer1, box, param.layerScale, filter),
+                    LayerRenderCache.render(layer2, box, param.layerScale, filter));
+        }
+
+        final LayerRenderCache.Rendering r1 = cache.acquire(layer1, box, param.layerScale, filter);
+        try
+        {
+            final LayerRenderCache.Rendering r2 = cache.acquire(layer2, box, param.layerScale, filter);
+            try
+            {
+                return match(r1, r2);
+            }
+            finally
+            {
+                cache.release(layer2, box, param.layerScale, filter);
+            }
+        }
+        finally
+        {
+            cache.release(layer1, box, param.layerScale, filter);
+        }
+    }
+
+    private BlockMatchResults match(final LayerRenderCache.Rendering r1, final LayerRenderCache.Rendering r2) throws Exception
+    {
+        final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
+        final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
 
         final AbstractModel< ? > localSmoothnessFilterModel =
                 Util.createModel(param.localModelIndex);
 
-        final FloatProcessor ip1 = new FloatProcessor( width, height );
-        final FloatProcessor ip2 = new FloatProcessor( width, height );
-        final FloatProcessor ip1Mask = new FloatProcessor( width, height );
-        final FloatProcessor ip2Mask = new FloatProcessor( width, height );
+        final FloatProcessor ip1 = r1.image;
+        final FloatProcessor ip2 = r2.image;
+        final FloatProcessor ip1Mask = r1.mask;
+        final FloatProcessor ip2Mask = r2.mask;
 
         final int blockRadius =
                 Math.max( 16, mpicbg.util.Util.roundPos( param.layerScale * param.blockRadius ) );
@@ -140,9 +210,6 @@ public class BlockMatchPairCallable implements
         final float localRegionSigma = param.layerScale * param.localRegionSigma;
         final float maxLocalEpsilon = param.layerScale * param.maxLocalEpsilon;
 
-        mpicbg.trakem2.align.Util.imageToFloatAndMask( img1, ip1, ip1Mask );
-        mpicbg.trakem2.align.Util.imageToFloatAndMask( img2, ip2, ip2Mask );
-
         if (!layer1Fixed)
         {
 
@@ -153,7 +220,7 @@ public class BlockMatchPairCallable implements
                     ip1Mask,
                     ip2Mask,
                     1.0f,
-                    ((InvertibleCoordinateTransform) pair.c).createInverse(),
+                    null == seed12 ? ((InvertibleCoordinateTransform) pair.c).createInverse() : seed12,
                     blockRadius,
                     blockRadius,
                     searchRadius,
@@ -185,7 +252,7 @@ public class BlockMatchPairCallable implements
                     ip2Mask,
                     ip1Mask,
                     1.0f,
-                    pair.c,
+                    null == seed21 ? pair.c : seed21,
                     blockRadius,
                     blockRadius,
                     searchRadius,
@@ -214,4 +281,47 @@ public class BlockMatchPairCallable implements
         return new BlockMatchResults(v1, v2, pm12, pm21, layer1Fixed, layer2Fixed, pair);
     }
 
+    /**
+     * Layers are written as the path to the saved project and their ids, and the
+     * source points as plain copies, without the springs of their mesh.
+     * Fails with a NotSerializableException when the project has unsaved changes.
+     */
+    private void writeObject(final ObjectOutputStream out) throws IOException
+    {
+        final String path = ProcessWorker.getSavedProjectPath(layer1.getProject());
+        out.defaultWriteObject();
+        out.writeUTF(path);
+        out.writeLong(layer1.getId());
+        out.writeLong(layer2.getId());
+        out.writeObject(copyPoints(v1));
+        out.writeObject(copyPoints(v2));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        final Project project = ProcessWorker.getProject(in.readUTF());
+        layer1 = project.getRootLayerSet().getLayer(in.readLong());
+        layer2 = project.getRootLayerSet().getLayer(in.readLong());
+        if (null == layer1 || null == layer2)
+        {
+            throw new InvalidObjectException("Layers not found in " + project);
+        }
+        v1 = (Collection<Point>) in.readObject();
+        v2 = (Collection<Point>) in.readObject();
+    }
+
+    private static ArrayList<Point> copyPoints(final Collection<? extends Point> points)
+    {
+        final ArrayList<Point> copies = new ArrayList<Point>(points.size());
+        for (final Point p : points)
+        {
+            final Point q = new Point(p.getL().clone());
+            System.arraycopy(p.getW(), 0, q.getW(), 0, q.getW().length);
+            copies.add(q);
+        }
+        return copies;
+    }
+
 }
@@ -0,0 +1,244 @@
+package mpicbg.trakem2.align.concurrent;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.utils.Filter;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.trakem2.align.AlignmentUtils;
+import mpicbg.trakem2.align.Util;
+
+/**
+ * A cache of {@link Layer} images rendered for block matching, as a grey
+ * {@link FloatProcessor} and its alpha mask, shared by all the
+ * {@link BlockMatchPairCallable} instances that compare a layer with its
+ * neighbors.
+ *
+ * Renderings are keyed by layer, box, scale and {@link Filter}, and
+ * reference-counted: {@link #expect(Layer, Rectangle, double, Filter, int)}
+ * announces how many times a rendering will be acquired, and each
+ * {@link #acquire(Layer, Rectangle, double, Filter)} must be followed by a
+ * {@link #release(Layer, Rectangle, double, Filter)}. A rendering is removed
+ * once all its expected uses are released. Renderings that are not in use but
+ * still expected are evicted, least recently used first, when the cache holds
+ * more than its byte budget, and rendered again if acquired later.
+ * Concurrent acquisitions of the same rendering render it only once.
+ */
+public class LayerRenderCache
+{
+    public static final class Rendering
+    {
+        public final FloatProcessor image, mask;
+
+        Rendering(final FloatProcessor image, final FloatProcessor mask)
+        {
+            this.image = image;
+            this.mask = mask;
+        }
+
+        final long bytes()
+        {
+            return 8L * image.getWidth() * image.getHeight();
+        }
+    }
+
+    private static final class Key
+    {
+        final long layerId;
+        final Rectangle box;
+        final double scale;
+        final Filter<Patch> filter;
+
+        Key(final Layer layer, final Rectangle box, final double scale, final Filter<Patch> filter)
+        {
+            this.layerId = layer.getId();
+            this.box = new Rectangle(box);
+            this.scale = scale;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key) o;
+            return layerId == k.layerId && scale == k.scale && box.equals(k.box) && filter == k.filter;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (layerId ^ (layerId >>> 32)) * 31 + box.hashCode();
+        }
+    }
+
+    private static final class Entry
+    {
+        /** Uses announced and not yet released. */
+        int expected = 0;
+        /** Acquired and not yet released. */
+        int inUse = 0;
+        volatile Rendering rendering = null;
+    }
+
+    private final long maxBytes;
+    /** In access order, for evicting the least recently used. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private long bytes = 0;
+    private int renderings = 0;
+
+    /**
+     * @param maxBytes the budget for renderings that are not in use; those in
+     * use are never evicted, so the cache may hold more.
+     */
+    public LayerRenderCache(final long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Announce that the rendering of @param layer will be acquired @param n more times. */
+    public synchronized void expect(final Layer layer, final Rectangle box, final double scale, final Filter<Patch> filter, final int n)
+    {
+        final Key key = new Key(layer, box, scale, filter);
+        Entry e = entries.get(key);
+        if (null == e)
+        {
+            e = new Entry();
+            entries.put(key, e);
+        }
+        e.expected += n;
+    }
+
+    /**
+     * Returns the rendering of @param layer, rendering it if not cached.
+     * The returned images must not be modified, and must be released with
+     * {@link #release(Layer, Rectangle, double, Filter)} when done.
+     */
+    public Rendering acquire(final Layer layer, final Rectangle box, final double scale, final Filter<Patch> filter) throws Exception
+    {
+        final Key key = new Key(layer, box, scale, filter);
+        final Entry e;
+        synchronized (this)
+        {
+            Entry f = entries.get(key);
+            if (null == f)
+            {
+                // Not announced: used only once
+                f = new Entry();
+                f.expected = 1;
+                entries.put(key, f);
+            }
+            e = f;
+            ++e.inUse;
+        }
+        try
+        {
+            synchronized (e)
+            {
+                Rendering r = e.rendering;
+                if (null == r)
+                {
+                    r = render(layer, box, scale, filter);
+                    e.rendering = r;
+                    synchronized (this)
+                    {
+                        bytes += r.bytes();
+                        ++renderings;
+                        evict();
+                    }
+                }
+                return r;
+            }
+        }
+        catch (final Exception ex)
+        {
+            release(layer, box, scale, filter);
+            throw ex;
+        }
+    }
+
+    /** Release a rendering acquired with {@link #acquire(Layer, Rectangle, double, Filter)}. */
+    public synchronized void release(final Layer layer, final Rectangle box, final double scale, final Filter<Patch> filter)
+    {
+        final Key key = new Key(layer, box, scale, filter);
+        final Entry e = entries.get(key);
+        if (null == e) return;
+        --e.inUse;
+        --e.expected;
+        if (e.expected <= 0 && e.inUse <= 0)
+        {
+            entries.remove(key);
+            final Rendering r = e.rendering;
+            if (null != r) bytes -= r.bytes();
+            e.rendering = null;
+        }
+        else
+        {
+            evict();
+        }
+    }
+
+    /** Drop renderings that are not in use, least recently used first, until within budget. */
+    private void evict()
+    {
+        final Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            final Entry e = it.next().getValue();
+            final Rendering r = e.rendering;
+            if (0 == e.inUse && null != r)
+            {
+                e.rendering = null;
+                bytes -= r.bytes();
+            }
+        }
+    }
+
+    /** The number of times a layer was rendered, for measuring. */
+    public synchronized int getRenderCount()
+    {
+        return renderings;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** Render the patches of @param layer accepted by @param filter within @param box at @param scale into a grey image and its alpha mask. */
+    public static Rendering render(final Layer layer, final Rectangle box, final double scale, final Filter<Patch> filter)
+    {
+        final Image img = layer.getProject().getLoader().getFlatAWTImage(
+                layer,
+                box,
+                scale,
+                0xffffffff,
+                ImagePlus.COLOR_RGB,
+                Patch.class,
+                AlignmentUtils.filterPatches(layer, filter),
+                true,
+                new Color( 0x00ffffff, true ) );
+        try
+        {
+            final int width = img.getWidth( null );
+            final int height = img.getHeight( null );
+            final FloatProcessor ip = new FloatProcessor( width, height );
+            final FloatProcessor mask = new FloatProcessor( width, height );
+            Util.imageToFloatAndMask( img, ip, mask );
+            return new Rendering(ip, mask);
+        }
+        finally
+        {
+            img.flush();
+        }
+    }
+}
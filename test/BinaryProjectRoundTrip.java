@@ -0,0 +1,160 @@
+package test;
+
+import ini.trakem2.persistence.BinaryProjectReader;
+import ini.trakem2.persistence.BinaryProjectWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** Check that a project converted from XML to the binary format of {@link BinaryProjectWriter}
+ * reads back, with {@link BinaryProjectReader}, into exactly the same elements, attributes and text
+ * that a SAX parser delivers from the XML file, and compare file sizes and reading times.
+ *
+ * Usage: java test.BinaryProjectRoundTrip project.xml[.gz] [more.xml ...]
+ *
+ * The binary file is written next to the XML file, with the extension {@link BinaryProjectReader#EXTENSION}. */
+public class BinaryProjectRoundTrip
+{
+	/** Records all SAX events as strings, merging consecutive text like a handler that accumulates it would see it. */
+	static private final class Recorder extends DefaultHandler {
+		final ArrayList<String> events = new ArrayList<String>();
+		private final StringBuilder text = new StringBuilder();
+		private final boolean record;
+		Recorder(final boolean record) {
+			this.record = record;
+		}
+		private final void flushText() {
+			if (0 == text.length()) return;
+			if (record) events.add("TEXT " + text);
+			text.setLength(0);
+		}
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			flushText();
+			if (!record) return;
+			final StringBuilder sb = new StringBuilder("START ").append(qName);
+			for (int i=0; i<attributes.getLength(); ++i) {
+				sb.append(' ').append(attributes.getQName(i)).append("=\"").append(attributes.getValue(i)).append('"');
+			}
+			events.add(sb.toString());
+		}
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			flushText();
+			if (record) events.add("END " + qName);
+		}
+		@Override
+		public void characters(char[] c, int start, int length) {
+			text.append(c, start, length);
+		}
+		@Override
+		public void ignorableWhitespace(char[] c, int start, int length) {
+			text.append(c, start, length);
+		}
+	}
+
+	static public final void main(String[] args) {
+		if (0 == args.length) {
+			System.out.println("Usage: java test.BinaryProjectRoundTrip project.xml[.gz] [more.xml ...]");
+			return;
+		}
+		boolean all = true;
+		for (final String xml : args) {
+			try {
+				all = roundTrip(xml) && all;
+			} catch (Exception e) {
+				e.printStackTrace();
+				all = false;
+			}
+		}
+		System.out.println(all ? "All equivalent." : "FAILED");
+		if (!all) System.exit(1);
+	}
+
+	static private final InputStream open(final String path) throws Exception {
+		final InputStream in = new BufferedInputStream(new FileInputStream(path));
+		return path.endsWith(".gz") ? new GZIPInputStream(in) : in;
+	}
+
+	static private final Recorder parseXML(final String path, final boolean record) throws Exception {
+		final SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setValidating(false);
+		factory.setXIncludeAware(false);
+		final SAXParser parser = factory.newSAXParser();
+		final Recorder r = new Recorder(record);
+		final InputStream in = open(path);
+		try {
+			parser.parse(new InputSource(in), r);
+		} finally {
+			in.close();
+		}
+		return r;
+	}
+
+	static private final Recorder parseBinary(final String path, final boolean record) throws Exception {
+		final Recorder r = new Recorder(record);
+		BinaryProjectReader.parse(path, r);
+		return r;
+	}
+
+	static private final boolean roundTrip(final String xml) throws Exception {
+		final String bin = xml.replaceAll("\\.xml(\\.gz)?$", "") + BinaryProjectReader.EXTENSION;
+
+		// Convert, streaming the XML text in pieces like the Writer given to Loader.writeXMLTo receives it
+		long t0 = System.nanoTime();
+		final Reader reader = new InputStreamReader(open(xml), "8859_1");
+		final BinaryProjectWriter writer = new BinaryProjectWriter(new BufferedOutputStream(new FileOutputStream(bin)));
+		try {
+			final char[] c = new char[8192];
+			int n;
+			while (-1 != (n = reader.read(c))) writer.write(c, 0, n);
+		} finally {
+			reader.close();
+			writer.close();
+		}
+		final long t_write = System.nanoTime() - t0;
+
+		// Compare all events
+		final ArrayList<String> e1 = parseXML(xml, true).events,
+		                        e2 = parseBinary(bin, true).events;
+		final int n = Math.min(e1.size(), e2.size());
+		for (int i=0; i<n; ++i) {
+			if (!e1.get(i).equals(e2.get(i))) {
+				System.out.println(xml + ": event " + i + " differs:\n  xml:    " + e1.get(i) + "\n  binary: " + e2.get(i));
+				return false;
+			}
+		}
+		if (e1.size() != e2.size()) {
+			System.out.println(xml + ": " + e1.size() + " events in the XML but " + e2.size() + " in the binary file");
+			return false;
+		}
+
+		// Time reading without recording
+		t0 = System.nanoTime();
+		parseXML(xml, false);
+		final long t_xml = System.nanoTime() - t0;
+		t0 = System.nanoTime();
+		parseBinary(bin, false);
+		final long t_bin = System.nanoTime() - t0;
+
+		System.out.println(xml + ": " + e1.size() + " events equivalent"
+				+ "\n  size: xml " + new File(xml).length() + " bytes, binary " + new File(bin).length() + " bytes"
+				+ "\n  read: xml " + t_xml / 1000000 + " ms, binary " + t_bin / 1000000 + " ms; conversion " + t_write / 1000000 + " ms");
+		return true;
+	}
+}
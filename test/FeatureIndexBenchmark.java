@@ -0,0 +1,120 @@
+package test;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.ij.FeatureTransform;
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.align.FeatureIndex;
+
+/** Compare the time taken and the matches found by {@link FeatureIndex} with those of
+ * the exhaustive {@link FeatureTransform#matchFeatures(java.util.Collection, java.util.Collection, List, float)}.
+ *
+ * Usage: java test.FeatureIndexBenchmark [image1 image2 | number_of_features]
+ *
+ * Matches the SIFT features of two overlapping images, or two sets of synthetic
+ * descriptors of which half correspond to each other with some noise. For each
+ * recall, prints the time to build the index and to match, and how many of the
+ * exhaustive matches were found and how many matches were not among them. */
+public class FeatureIndexBenchmark
+{
+	static private final float[] RECALLS = new float[]{0.7f, 0.8f, 0.9f, 0.95f, 0.99f};
+	static private final float ROD = 0.92f;
+
+	static public final void main(String[] args) {
+		final List<Feature> fs1 = new ArrayList<Feature>(),
+		                    fs2 = new ArrayList<Feature>();
+		if (2 == args.length) {
+			extract(args[0], fs1);
+			extract(args[1], fs2);
+		} else {
+			synthesize(args.length > 0 ? Integer.parseInt(args[0]) : 10000, fs1, fs2);
+		}
+		System.out.println(fs1.size() + " and " + fs2.size() + " features");
+
+		final ArrayList<PointMatch> exact = new ArrayList<PointMatch>();
+		long t0 = System.currentTimeMillis();
+		FeatureTransform.matchFeatures(fs1, fs2, exact, ROD);
+		final long exhaustive = System.currentTimeMillis() - t0;
+		final HashSet<String> expected = keys(exact);
+		System.out.println("exhaustive: " + exact.size() + " matches in " + exhaustive + " ms");
+
+		System.out.println("recall\tchecks\tbuild (ms)\tmatch (ms)\tspeedup\tmatches\tfound\tother");
+		for (final float recall : RECALLS) {
+			t0 = System.currentTimeMillis();
+			final FeatureIndex index = new FeatureIndex(fs2, recall);
+			final long build = System.currentTimeMillis() - t0;
+			final ArrayList<PointMatch> approx = new ArrayList<PointMatch>();
+			t0 = System.currentTimeMillis();
+			index.match(fs1, approx, ROD);
+			final long match = System.currentTimeMillis() - t0;
+			int found = 0;
+			for (final String key : keys(approx)) {
+				if (expected.contains(key)) ++found;
+			}
+			System.out.println(recall + "\t" + index.getChecks() + "\t" + build + "\t" + match
+					+ "\t" + String.format("%.1f", exhaustive / (double)Math.max(1, build + match))
+					+ "\t" + approx.size() + "\t" + String.format("%.3f", found / (double)Math.max(1, exact.size()))
+					+ "\t" + (approx.size() - found));
+		}
+	}
+
+	static private final HashSet<String> keys(final List<PointMatch> matches) {
+		final HashSet<String> keys = new HashSet<String>();
+		for (final PointMatch m : matches) {
+			final float[] l1 = m.getP1().getL(),
+			              l2 = m.getP2().getL();
+			keys.add(l1[0] + "," + l1[1] + ">" + l2[0] + "," + l2[1]);
+		}
+		return keys;
+	}
+
+	static private final void extract(final String path, final List<Feature> features) {
+		final ImagePlus imp = IJ.openImage(path);
+		final FloatArray2DSIFT.Param p = new FloatArray2DSIFT.Param();
+		p.maxOctaveSize = 2048;
+		new SIFT(new FloatArray2DSIFT(p)).extractFeatures(imp.getProcessor(), features);
+	}
+
+	/** SIFT-like descriptors: non-negative, normalized, drawn around sparse cluster centers. */
+	static private final void synthesize(final int n, final List<Feature> fs1, final List<Feature> fs2) {
+		final Random rnd = new Random(42);
+		final int d = 128;
+		final float[][] centers = new float[Math.max(1, n / 20)][d];
+		for (final float[] c : centers) {
+			// Sparse, like gradient histograms
+			for (int j=0; j<d; ++j) c[j] = rnd.nextFloat() < 0.3f ? (float)Math.abs(rnd.nextGaussian()) : 0;
+		}
+		for (int i=0; i<n; ++i) {
+			final float[] c = centers[rnd.nextInt(centers.length)];
+			final float[] desc = new float[d];
+			for (int j=0; j<d; ++j) desc[j] = Math.max(0, c[j] + 0.3f * (float)rnd.nextGaussian());
+			fs1.add(new Feature(1, 0, new float[]{rnd.nextFloat() * 4096, rnd.nextFloat() * 4096}, normalize(desc)));
+			final float[] desc2 = new float[d];
+			if (0 == i % 2) {
+				// A corresponding feature
+				for (int j=0; j<d; ++j) desc2[j] = Math.max(0, desc[j] + 0.05f * (float)rnd.nextGaussian());
+			} else {
+				final float[] c2 = centers[rnd.nextInt(centers.length)];
+				for (int j=0; j<d; ++j) desc2[j] = Math.max(0, c2[j] + 0.3f * (float)rnd.nextGaussian());
+			}
+			fs2.add(new Feature(1, 0, new float[]{rnd.nextFloat() * 4096, rnd.nextFloat() * 4096}, normalize(desc2)));
+		}
+	}
+
+	static private final float[] normalize(final float[] v) {
+		double sum = 0;
+		for (final float f : v) sum += f * f;
+		final float norm = (float)Math.sqrt(sum);
+		for (int j=0; j<v.length; ++j) v[j] /= norm;
+		return v;
+	}
+}
@@ -0,0 +1,95 @@
+package test;
+
+import ini.trakem2.io.ChannelMipMaps;
+import ini.trakem2.io.RagMipMaps;
+import ini.trakem2.io.RawMipMaps;
+import ini.trakem2.persistence.ImageBytes;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Compare the time taken by {@link RawMipMaps#load(String)} and {@link RagMipMaps#load(String)}
+ * with that of {@link ChannelMipMaps#loadRaw(String)} and {@link ChannelMipMaps#loadRag(String)},
+ * and check that they return the same data.
+ *
+ * Usage: java test.MipMapReaderBenchmark [folder [iterations]]
+ *
+ * Writes, in the given folder or in a temporary one, one file of each type for a few
+ * typical mipmap sizes, reads each many times with every loader, and then deletes the files. */
+public class MipMapReaderBenchmark
+{
+	static private final int[] SIZES = new int[]{64, 256, 512, 1024, 2048};
+
+	static public final void main(String[] args) {
+		try {
+			final File dir = args.length > 0 ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"), "mipmap-benchmark");
+			final int n = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+			dir.mkdirs();
+			final Random rnd = new Random(42);
+
+			System.out.println("size\ttype\tchannels\tRawMipMaps/RagMipMaps (ms)\tChannelMipMaps (ms)");
+
+			for (final int side : SIZES) {
+				for (int nCh=1; nCh<=4; ++nCh) {
+					final byte[][] b = new byte[nCh][side * side];
+					for (int i=0; i<nCh; ++i) rnd.nextBytes(b[i]);
+					if (0 == nCh % 2) {
+						// A typical alpha mask: opaque with a transparent margin
+						final byte[] alpha = b[nCh-1];
+						Arrays.fill(alpha, (byte)255);
+						Arrays.fill(alpha, 0, side * (side / 8), (byte)0);
+					}
+					final String raw = new File(dir, side + "." + nCh + ".raw").getAbsolutePath(),
+					             rag = new File(dir, side + "." + nCh + ".rag").getAbsolutePath();
+					RawMipMaps.save(raw, b, side, side);
+					RagMipMaps.save(rag, b, side, side);
+
+					check(b, RawMipMaps.load(raw), ChannelMipMaps.loadRaw(raw), raw);
+					check(b, RagMipMaps.load(rag), ChannelMipMaps.loadRag(rag), rag);
+
+					// Warm up, then measure
+					for (int k=0; k<2; ++k) {
+						final boolean print = 1 == k;
+						time(side, "raw", nCh, raw, n, print);
+						time(side, "rag", nCh, rag, n, print);
+					}
+
+					new File(raw).delete();
+					new File(rag).delete();
+				}
+			}
+			dir.delete();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	static private final void time(final int side, final String type, final int nCh, final String path, final int n, final boolean print) {
+		final boolean rag = "rag".equals(type);
+		long t0 = System.nanoTime();
+		for (int i=0; i<n; ++i) {
+			if (rag) RagMipMaps.load(path);
+			else RawMipMaps.load(path);
+		}
+		final long t1 = System.nanoTime();
+		for (int i=0; i<n; ++i) {
+			if (rag) ChannelMipMaps.loadRag(path);
+			else ChannelMipMaps.loadRaw(path);
+		}
+		final long t2 = System.nanoTime();
+		if (print) System.out.println(side + "\t" + type + "\t" + nCh + "\t" + (t1 - t0) / 1000000.0 + "\t" + (t2 - t1) / 1000000.0);
+	}
+
+	static private final void check(final byte[][] b, final ImageBytes ib1, final ImageBytes ib2, final String path) {
+		if (null == ib1 || null == ib2) throw new RuntimeException("Could not read " + path);
+		if (ib1.width != ib2.width || ib1.height != ib2.height || ib1.c.length != ib2.c.length || b.length != ib2.c.length) {
+			throw new RuntimeException("Different dimensions for " + path);
+		}
+		for (int i=0; i<b.length; ++i) {
+			if (!Arrays.equals(b[i], ib1.c[i]) || !Arrays.equals(b[i], ib2.c[i])) {
+				throw new RuntimeException("Different data in channel " + i + " for " + path);
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package test;
+
+import ij.ImagePlus;
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.Bucket;
+import ini.trakem2.display.Bucketable;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Patch;
+import ini.trakem2.display.SpatialIndex;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Compare the {@link SpatialIndex} with the {@link Bucket} tree it replaced, on a layer with a grid of
+ * overlapping {@link Patch} instances: the time to build each, that both find the same objects, and how
+ * many viewport and point queries per second each answers from many threads, with and without a thread
+ * that keeps moving patches around meanwhile.
+ *
+ * Usage: java test.SpatialIndexBenchmark [number_of_patches [number_of_threads [seconds]]]
+ *
+ * Defaults to 102400 patches, as many threads as processors and 3 seconds per measurement.
+ * The Bucket methods are package-private, so they are called by reflection, whose cost
+ * is negligible next to that of a query. */
+public class SpatialIndexBenchmark
+{
+	static private final int TILE = 1024, STEP = 922; // 10% overlap
+	static private final Rectangle VIEW = new Rectangle(0, 0, 2048, 1536);
+
+	/** The queries and changes of a spatial index of one layer. */
+	static private interface Index {
+		Collection<Displayable> find(Rectangle r) throws Exception;
+		Collection<Displayable> find(double x, double y) throws Exception;
+		void updatePosition(Displayable d) throws Exception;
+	}
+
+	static public final void main(String[] args) throws Exception {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 102400;
+		final int n_threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		final long millis = (args.length > 2 ? Integer.parseInt(args[2]) : 3) * 1000L;
+
+		ControlWindow.setGUIEnabled(false);
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "SpatialIndexBenchmark");
+		dir.mkdirs();
+		final Project project = Project.newFSProject("blank", null, dir.getAbsolutePath() + "/", false);
+		final LayerSet ls = project.getRootLayerSet();
+		final Layer layer = new Layer(project, 0, 1, ls);
+		ls.add(layer);
+
+		final int side = (int)Math.ceil(Math.sqrt(n));
+		final ArrayList<Patch> patches = new ArrayList<Patch>(n);
+		for (int i=0; i<n; i++) {
+			final Patch p = new Patch(project, project.getLoader().getNextId(), "p" + i, TILE, TILE, TILE, TILE,
+					ImagePlus.GRAY8, false, 0, 255, new AffineTransform(1, 0, 0, 1, (i % side) * STEP, (i / side) * STEP));
+			layer.addSilently(p);
+			patches.add(p);
+		}
+		layer.setBucketsEnabled(false); // so that setMinimumDimensions doesn't index them as well
+		ls.setMinimumDimensions();
+		System.out.println(n + " patches in a layer of " + (int)ls.getLayerWidth() + "x" + (int)ls.getLayerHeight() + " pixels; " + n_threads + " threads");
+
+		long t0 = System.currentTimeMillis();
+		final Index bucket = bucket(layer);
+		System.out.println("Bucket: built in " + (System.currentTimeMillis() - t0) + " ms");
+		t0 = System.currentTimeMillis();
+		final Index index = spatialIndex(layer);
+		System.out.println("SpatialIndex: built in " + (System.currentTimeMillis() - t0) + " ms");
+
+		// Same results, in the same order
+		final Random rnd = new Random(42);
+		int mismatches = 0;
+		for (int i=0; i<1000; i++) {
+			final Rectangle r = randomView(rnd, ls);
+			if (!new ArrayList<Displayable>(bucket.find(r)).equals(new ArrayList<Displayable>(index.find(r)))) mismatches++;
+			final double x = r.getCenterX(), y = r.getCenterY();
+			if (!new ArrayList<Displayable>(bucket.find(x, y)).equals(new ArrayList<Displayable>(index.find(x, y)))) mismatches++;
+		}
+		System.out.println("Mismatches in 2000 queries: " + mismatches);
+
+		System.out.println("\tqueries/s\tqueries/s while moving\tmoves/s");
+		for (final Object[] o : new Object[][]{{"Bucket", bucket}, {"SpatialIndex", index}}) {
+			final Index ix = (Index)o[1];
+			final double q = queriesPerSecond(ix, ls, n_threads, millis, null, null);
+			final AtomicLong moves = new AtomicLong();
+			final double qm = queriesPerSecond(ix, ls, n_threads, millis, patches, moves);
+			System.out.println(o[0] + "\t" + (long)q + "\t" + (long)qm + "\t" + (moves.get() * 1000 / millis));
+		}
+		project.getLoader().setChanged(false);
+		project.destroy();
+	}
+
+	static private final Rectangle randomView(final Random rnd, final LayerSet ls) {
+		return new Rectangle(rnd.nextInt((int)ls.getLayerWidth() - VIEW.width), rnd.nextInt((int)ls.getLayerHeight() - VIEW.height), VIEW.width, VIEW.height);
+	}
+
+	/** Run n_threads threads querying a viewport and its center point for millis, while another thread moves the patches if not null. */
+	static private final double queriesPerSecond(final Index ix, final LayerSet ls, final int n_threads, final long millis,
+			final ArrayList<Patch> patches, final AtomicLong moves) throws Exception {
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong count = new AtomicLong();
+		final ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t=0; t<n_threads; t++) {
+			final int seed = t;
+			threads.add(new Thread() {
+				public void run() {
+					final Random rnd = new Random(seed);
+					try {
+						while (!stop.get()) {
+							final Rectangle r = randomView(rnd, ls);
+							ix.find(r);
+							ix.find(r.getCenterX(), r.getCenterY());
+							count.addAndGet(2);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		if (null != patches) {
+			threads.add(new Thread() {
+				public void run() {
+					final Random rnd = new Random(-1);
+					try {
+						for (int i=0; !stop.get(); i++) {
+							final Patch p = patches.get(rnd.nextInt(patches.size()));
+							final int dx = 0 == i % 2 ? STEP : -STEP;
+							p.getAffineTransform().translate(dx, 0); // without updating any bucket
+							ix.updatePosition(p);
+							p.getAffineTransform().translate(-dx, 0);
+							ix.updatePosition(p);
+							moves.addAndGet(2);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for (final Thread t : threads) t.start();
+		Thread.sleep(millis);
+		stop.set(true);
+		for (final Thread t : threads) t.join();
+		return count.get() * 1000.0 / millis;
+	}
+
+	static private final Index spatialIndex(final Layer layer) {
+		final SpatialIndex si = new SpatialIndex(layer, layer);
+		return new Index() {
+			public Collection<Displayable> find(final Rectangle r) { return si.find(r, false); }
+			public Collection<Displayable> find(final double x, final double y) { return si.find(x, y, false); }
+			public void updatePosition(final Displayable d) { si.updatePosition(d); }
+		};
+	}
+
+	static private final Index bucket(final Layer layer) throws Exception {
+		final Bucket root = new Bucket(0, 0, (int)(0.00005 + layer.getLayerWidth()), (int)(0.00005 + layer.getLayerHeight()), Bucket.getBucketSide(layer, layer));
+		final HashMap<Displayable,HashSet<Bucket>> db_map = new HashMap<Displayable,HashSet<Bucket>>();
+		method("populate", Bucketable.class, Layer.class, HashMap.class).invoke(root, layer, layer, db_map);
+		final Method find_rect = method("find", Rectangle.class, Layer.class, boolean.class),
+		             find_point = method("find", double.class, double.class, Layer.class, boolean.class),
+		             update = method("updatePosition", Displayable.class, Layer.class, HashMap.class);
+		return new Index() {
+			@SuppressWarnings("unchecked")
+			public Collection<Displayable> find(final Rectangle r) throws Exception { return (Collection<Displayable>)find_rect.invoke(root, r, layer, false); }
+			@SuppressWarnings("unchecked")
+			public Collection<Displayable> find(final double x, final double y) throws Exception { return (Collection<Displayable>)find_point.invoke(root, x, y, layer, false); }
+			public void updatePosition(final Displayable d) throws Exception { update.invoke(root, d, layer, db_map); }
+		};
+	}
+
+	static private final Method method(final String name, final Class<?>... types) throws Exception {
+		final Method m = Bucket.class.getDeclaredMethod(name, types);
+		m.setAccessible(true);
+		return m;
+	}
+}